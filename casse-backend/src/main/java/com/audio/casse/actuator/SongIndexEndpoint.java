@@ -0,0 +1,40 @@
+package com.audio.casse.actuator;
+
+import com.audio.casse.dto.SongIndexStatus;
+import com.audio.casse.service.SongIndexManager;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@code /actuator/songindex}: which index version the song alias points at, and the progress
+ * and throughput of the running (or last) reindex. POST starts a reindex into a new version, or
+ * sets the throttle of the running one ({@code {"requestsPerSecond": 2000}}); DELETE cancels it.
+ * Approvers only, like every actuator endpoint but health (see SecurityConfig).
+ */
+@Component
+@Endpoint(id = "songindex")
+@RequiredArgsConstructor
+public class SongIndexEndpoint {
+
+    private final SongIndexManager songIndexManager;
+
+    @ReadOperation
+    public SongIndexStatus status() {
+        return songIndexManager.status();
+    }
+
+    @WriteOperation
+    public SongIndexStatus reindex(@Nullable Float requestsPerSecond) {
+        return songIndexManager.reindex(requestsPerSecond);
+    }
+
+    @DeleteOperation
+    public SongIndexStatus cancel() {
+        return songIndexManager.cancel();
+    }
+}
@@ -0,0 +1,29 @@
+package com.audio.casse.actuator;
+
+import com.audio.casse.dto.ActiveStream;
+import com.audio.casse.service.StreamScheduler;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * {@code /actuator/streams}: the proxied song streams this pod is writing right now, with the
+ * bandwidth each was given and what it is actually getting. Aggregates are in the
+ * audio.stream.throughput and audio.streams.active metrics. It names each listener, so only
+ * approvers may read it (see SecurityConfig).
+ */
+@Component
+@Endpoint(id = "streams")
+@RequiredArgsConstructor
+public class StreamsEndpoint {
+
+    private final StreamScheduler streamScheduler;
+
+    @ReadOperation
+    public List<ActiveStream> streams() {
+        return streamScheduler.activeStreams();
+    }
+}
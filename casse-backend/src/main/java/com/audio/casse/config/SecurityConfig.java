@@ -23,7 +23,9 @@ public class SecurityConfig {
         http.csrf(AbstractHttpConfigurer::disable)
                 .sessionManagement(sm -> sm.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
                 .authorizeHttpRequests(auth -> auth
-                        .requestMatchers("/actuator/health", "/api/auth/**", "/api/dev-auth/**").permitAll()
+                        .requestMatchers("/actuator/health", "/actuator/health/**", "/api/auth/**", "/api/dev-auth/**").permitAll()
+                        // the other endpoints show who listens to what and can start or cancel a reindex
+                        .requestMatchers("/actuator/**").hasRole(JwtAuthFilter.APPROVER)
                         .anyRequest().authenticated())
                 .addFilterBefore(jwtAuthFilter, UsernamePasswordAuthenticationFilter.class);
 
@@ -35,7 +37,7 @@ public class SecurityConfig {
      * 403 for ANY request with a missing/invalid token, which reads as "you don't have
      * permission" when the real problem is "you're not authenticated at all." This restores
      * the normal distinction: 401 = no/bad token, 403 = reserved for real authorization
-     * failures later (e.g. role checks), which this system doesn't have yet.
+     * failures (role checks, which only the actuator endpoints have so far).
      */
     private AuthenticationEntryPoint unauthorizedEntryPoint() {
         return (request, response, authException) -> {
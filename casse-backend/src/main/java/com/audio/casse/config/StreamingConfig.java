@@ -0,0 +1,40 @@
+package com.audio.casse.config;
+
+import com.audio.casse.config.properties.StreamingProperties;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Audio bodies are written through StreamingResponseBody, which runs on the MVC async executor
+ * rather than the Tomcat request thread. Spring's default executor only has 8 core threads and
+ * an unbounded queue, so without this every stream past the 8th would silently wait its turn.
+ * A thread is held for the whole of each stream, so {@code max-concurrent-streams} is what caps
+ * concurrent streams.
+ */
+@Configuration
+@RequiredArgsConstructor
+public class StreamingConfig implements WebMvcConfigurer {
+
+    private final StreamingProperties streamingProperties;
+
+    @Bean
+    public ThreadPoolTaskExecutor streamingTaskExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(streamingProperties.getMaxConcurrentStreams());
+        executor.setMaxPoolSize(streamingProperties.getMaxConcurrentStreams());
+        executor.setQueueCapacity(0);
+        executor.setThreadNamePrefix("audio-stream-");
+        executor.initialize();
+        return executor;
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(streamingTaskExecutor());
+        configurer.setDefaultTimeout(streamingProperties.getTimeout().toMillis());
+    }
+}
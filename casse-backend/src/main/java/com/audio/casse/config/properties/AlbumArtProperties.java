@@ -0,0 +1,36 @@
+package com.audio.casse.config.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.List;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "casse.album-art")
+public class AlbumArtProperties {
+
+    // longest edge in pixels; a requested ?size= is rounded up to the next of these
+    private List<Integer> thumbnailSizes = List.of(64, 256, 640);
+
+    private float jpegQuality = 0.85f;
+
+    // decoding and scaling is CPU- and memory-heavy, so only this many images are processed at once
+    private int threads = 2;
+
+    // thumbnails waiting for a worker; when full, upload-time generation is skipped and left to the lazy path
+    private int queueCapacity = 100;
+
+    // how long a request for a missing thumbnail waits for it before the original is served instead
+    private Duration lazyTimeout = Duration.ofSeconds(10);
+
+    // originals above this many pixels are refused rather than decoded
+    private long maxSourcePixels = 50_000_000;
+
+    // uploaded album art is held in memory while the song streams to storage, so larger files are refused
+    private DataSize maxSize = DataSize.ofMegabytes(10);
+
+}
@@ -0,0 +1,22 @@
+package com.audio.casse.config.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "casse.hls")
+public class HlsProperties {
+
+    // segments are cut on the nearest seek point (~250ms) to this, so real durations differ slightly
+    private Duration segmentDuration = Duration.ofSeconds(6);
+
+    // segmenting reads a whole song and writes one object per segment; keep it off the request threads
+    private int threads = 2;
+
+    private int queueCapacity = 100;
+
+}
@@ -13,4 +13,11 @@ public class PendingApprovalProperties {
 
     private Duration ttl = Duration.ofDays(30);
 
+    // how often the files of submissions that expired unreviewed are looked for and released
+    private Duration sweepInterval = Duration.ofMinutes(1);
+
+    // an expired submission is only released this long after it expired, so an approval that read it
+    // just before it expired is done with it by then
+    private Duration releaseDelay = Duration.ofMinutes(10);
+
 }
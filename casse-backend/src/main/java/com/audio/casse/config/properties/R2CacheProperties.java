@@ -0,0 +1,25 @@
+package com.audio.casse.config.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "cloudflare.r2.cache")
+public class R2CacheProperties {
+
+    private boolean enabled = false;
+
+    private Path directory = Path.of(System.getProperty("java.io.tmpdir"), "casse-audio-cache");
+
+    private DataSize maxSize = DataSize.ofGigabytes(2);
+
+    // objects are cached in blocks of this size, so ranged reads (seeks, resumed plays) are cached
+    // too; a read is served from disk once every block it needs is there
+    private DataSize blockSize = DataSize.ofMegabytes(1);
+
+}
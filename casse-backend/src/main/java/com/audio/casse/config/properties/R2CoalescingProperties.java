@@ -0,0 +1,26 @@
+package com.audio.casse.config.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "cloudflare.r2.coalescing")
+public class R2CoalescingProperties {
+
+    private boolean enabled = false;
+
+    // each shared fetch spools here while it has readers; files are deleted once the last one is done
+    private Path spoolDirectory = Path.of(System.getProperty("java.io.tmpdir"), "casse-fetch-spool");
+
+    // upstream fetches running at once; requests beyond that stream straight from R2 uncoalesced
+    private int maxConcurrentFetches = 64;
+
+    // a reader waiting this long for the next bytes from storage gives up
+    private Duration readTimeout = Duration.ofSeconds(60);
+
+}
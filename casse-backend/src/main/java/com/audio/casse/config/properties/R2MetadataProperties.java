@@ -0,0 +1,20 @@
+package com.audio.casse.config.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "cloudflare.r2.metadata")
+public class R2MetadataProperties {
+
+    // a few hundred bytes each, so this stays in the low tens of MB
+    private long maxEntries = 50_000;
+
+    // bounds how long another node's overwrite or delete can go unnoticed here
+    private Duration ttl = Duration.ofMinutes(10);
+
+}
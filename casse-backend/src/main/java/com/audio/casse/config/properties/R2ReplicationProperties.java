@@ -0,0 +1,61 @@
+package com.audio.casse.config.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "cloudflare.r2.replication")
+public class R2ReplicationProperties {
+
+    private boolean enabled = false;
+
+    // S3-compatible buckets every write to the primary bucket is copied to in the background
+    private List<Replica> replicas = new ArrayList<>();
+
+    // Redis stream logging the object keys still to copy; it survives restarts, so nothing is lost in a deploy
+    private String logKey = "storage-replication";
+
+    // entries taken from the log per poll
+    private int batchSize = 32;
+
+    private Duration pollInterval = Duration.ofSeconds(1);
+
+    // an entry not acknowledged for this long (failed, or its pod died mid-copy) is retried by whoever polls next
+    private Duration retryDelay = Duration.ofSeconds(30);
+
+    // after this many attempts an entry is moved to <log-key>:dead and left for an operator
+    private int maxAttempts = 10;
+
+    // the log is trimmed once longer than this, down to the oldest entry not yet replicated
+    private long retainedEntries = 100_000;
+
+    private Routing routing = new Routing();
+
+    @Data
+    public static class Replica {
+
+        // names the replica in logs, metrics and the replication log; must be unique and not "r2"
+        private String name;
+        private String endpoint;
+        private String bucketName;
+        private String accessKey;
+        private String secretKey;
+    }
+
+    @Data
+    public static class Routing {
+
+        // weight of the newest time-to-headers sample in each bucket's moving average
+        private double ewmaWeight = 0.2;
+
+        // share of reads sent to a bucket other than the fastest, so one that recovered gets noticed
+        private double explorationRate = 0.05;
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.audio.casse.config.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "cloudflare.r2.resilience")
+public class R2ResilienceProperties {
+
+    // per attempt, until the response headers arrive; a streamed body is not cut off by it
+    private Duration attemptTimeout = Duration.ofSeconds(5);
+
+    // per attempt of a PUT or multipart part, which has to carry the whole body
+    private Duration uploadAttemptTimeout = Duration.ofMinutes(2);
+
+    // SDK attempts per call, the first one included
+    private int maxAttempts = 3;
+
+    private Hedge hedge = new Hedge();
+
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    // PUTs and multipart parts take as long as their body does, so they are judged on their own
+    private CircuitBreaker uploadCircuitBreaker = CircuitBreaker.forUploads();
+
+    @Data
+    public static class Hedge {
+
+        private boolean enabled = true;
+
+        // a second GET is sent once the first has been waiting longer than this share of recent GETs took
+        private double percentile = 0.95;
+
+        // used until enough GETs have been timed to compute the percentile
+        private Duration initialDelay = Duration.ofMillis(500);
+
+        // never hedge sooner than this, so a fast, healthy R2 is not hit twice for every jittery read
+        private Duration minDelay = Duration.ofMillis(50);
+
+        private int minSamples = 100;
+    }
+
+    @Data
+    public static class CircuitBreaker {
+
+        // open when this percentage of recent calls failed or were slow
+        private float failureRateThreshold = 50;
+        private float slowCallRateThreshold = 80;
+        private Duration slowCallDuration = Duration.ofSeconds(2);
+
+        private int slidingWindowSize = 100;
+        private int minimumNumberOfCalls = 20;
+
+        // how long calls fail fast before a few trial calls are let through again
+        private Duration waitInOpenState = Duration.ofSeconds(30);
+        private int permittedCallsInHalfOpenState = 5;
+
+        static CircuitBreaker forUploads() {
+            CircuitBreaker breaker = new CircuitBreaker();
+            breaker.setSlowCallDuration(Duration.ofSeconds(60));
+            breaker.setSlidingWindowSize(20);
+            breaker.setMinimumNumberOfCalls(10);
+            breaker.setPermittedCallsInHalfOpenState(2);
+            return breaker;
+        }
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.audio.casse.config.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "cloudflare.r2.upload")
+public class R2UploadProperties {
+
+    // S3 requires at least 5MB for every part but the last; files up to this size go up in one PUT
+    private DataSize partSize = DataSize.ofMegabytes(8);
+
+    // per upload, so the memory one upload can pin is part-size * max-in-flight-parts
+    private int maxInFlightParts = 4;
+
+    // shared by all uploads on this node
+    private int threads = 16;
+
+}
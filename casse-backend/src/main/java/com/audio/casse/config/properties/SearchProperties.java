@@ -0,0 +1,103 @@
+package com.audio.casse.config.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "casse.search")
+public class SearchProperties {
+
+    // an alias, read and written through; SongIndexManager points it at the current <index>_v<n>
+    private String index = "music_id3";
+
+    // songs per page when the client does not ask for a size, and the most it may ask for
+    private int defaultSize = 20;
+    private int maxSize = 100;
+
+    // how long a point in time survives between two pages; a cursor older than this has expired
+    private Duration keepAlive = Duration.ofMinutes(1);
+
+    // first pages share a point in time for this long, so a node holds about keep-alive / pit-rotation of them open
+    private Duration pitRotation = Duration.ofSeconds(30);
+
+    private Export export = new Export();
+
+    private Cache cache = new Cache();
+
+    private Suggest suggest = new Suggest();
+
+    private Facets facets = new Facets();
+
+    private Reindex reindex = new Reindex();
+
+    @Data
+    public static class Export {
+
+        // the index is read in this many slices in parallel, each paging with search_after
+        private int slices = 4;
+
+        private int pageSize = 1000;
+
+        // pages fetched but not written yet, across all slices; bounds the memory of an export
+        private int bufferedPages = 8;
+
+        // the export's own point in time: a slice waits on a full queue for as long as the client
+        // takes to read, so this must outlast the slowest client rather than a user paging a search
+        private Duration keepAlive = Duration.ofMinutes(5);
+    }
+
+    @Data
+    public static class Cache {
+
+        private boolean enabled = true;
+
+        // per node; kept short so a node that missed an invalidation message catches up on its own
+        private int localMaxEntries = 10_000;
+        private Duration localTtl = Duration.ofSeconds(10);
+
+        // shared between nodes in Redis; the point in time of a cached page's cursor is kept alive this much longer
+        private Duration sharedTtl = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class Suggest {
+
+        // suggestions kept per prefix, and the most /api/music/suggest returns
+        private int maxSuggestions = 10;
+
+        // the in-memory index is rebuilt from Elasticsearch this often (and at startup); approvals update it in between
+        private Duration rebuildInterval = Duration.ofHours(1);
+    }
+
+    @Data
+    public static class Facets {
+
+        // values per facet when the client does not ask, and the most it may ask for
+        private int defaultSize = 20;
+        private int maxSize = 100;
+
+        // per node; approvals update the unscoped counts in place and drop query-scoped ones
+        private int maxEntries = 1000;
+        private Duration ttl = Duration.ofMinutes(1);
+    }
+
+    @Data
+    public static class Reindex {
+
+        // slices copied in parallel; 0 lets Elasticsearch use one per shard
+        private int slices = 0;
+
+        // documents per second across all slices, -1 for no limit; can be changed while a reindex runs
+        private float requestsPerSecond = 500;
+
+        private int batchSize = 1000;
+
+        // how often a running reindex is checked, and cut over to once it is done
+        private Duration pollInterval = Duration.ofSeconds(5);
+    }
+
+}
@@ -0,0 +1,17 @@
+package com.audio.casse.config.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "casse.seek-index")
+public class SeekIndexProperties {
+
+    // indexing a song without a table reads all of it from storage; keep it off the request threads
+    private int threads = 1;
+
+    private int queueCapacity = 100;
+
+}
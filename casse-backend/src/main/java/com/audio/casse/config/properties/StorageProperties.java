@@ -0,0 +1,29 @@
+package com.audio.casse.config.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "casse.storage")
+public class StorageProperties {
+
+    // r2: Cloudflare R2, MinIO or any S3-compatible store (cloudflare.r2.*); local: files under local.root
+    private String backend = "r2";
+
+    private Local local = new Local();
+
+    @Data
+    public static class Local {
+
+        // objects are stored as files at their storage keys under this directory
+        private Path root = Path.of("data", "storage");
+
+        // album art uploads run on this many threads while the song itself is being stored
+        private int uploadThreads = 4;
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.audio.casse.config.properties;
+
+import com.audio.casse.models.DeliveryMode;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "casse.streaming")
+public class StreamingProperties {
+
+    // upper bound on response bodies being written concurrently off the Tomcat request threads
+    private int maxConcurrentStreams = 200;
+
+    // a 100MB song to a slow mobile client easily outlives Spring's default async timeout
+    private Duration timeout = Duration.ofMinutes(30);
+
+    private Delivery delivery = new Delivery();
+
+    private Pacing pacing = new Pacing();
+
+    @Data
+    public static class Delivery {
+
+        // default delivery mode per endpoint; a client can still ask for another with ?delivery=
+        private DeliveryMode stream = DeliveryMode.PROXY;
+        private DeliveryMode streamDirect = DeliveryMode.PROXY;
+
+        private Duration presignTtl = Duration.ofMinutes(10);
+
+        // a cached URL is re-signed this long before it expires, so a client never receives one that is about to die
+        private Duration presignRefreshMargin = Duration.ofMinutes(2);
+    }
+
+    @Data
+    public static class Pacing {
+
+        private boolean enabled = true;
+
+        // once past its initial burst, a stream is held to this multiple of the song's bitrate
+        private double rateMultiple = 2.0;
+
+        // how much audio (in playback time) a stream may send unpaced, to fill the player's buffer
+        private Duration initialBurst = Duration.ofSeconds(15);
+
+        // bits per second, assumed for songs whose seek table is not in memory to measure it from
+        private long defaultBitrate = 320_000;
+
+        // egress per second for all proxied streams of this pod, and for all streams of one listener; 0 is unlimited
+        private DataSize maxPodBandwidth = DataSize.ofMegabytes(100);
+        private DataSize maxUserBandwidth = DataSize.ofMegabytes(2);
+    }
+
+}
@@ -1,19 +1,45 @@
 package com.audio.casse.controller;
 
+import com.audio.casse.config.properties.StreamingProperties;
+import com.audio.casse.dto.StreamManifest;
+import com.audio.casse.exceptions.SongUploadException;
 import com.audio.casse.models.AuthenticatedUser;
+import com.audio.casse.models.ByteRange;
+import com.audio.casse.models.ContentAddress;
+import com.audio.casse.models.DeliveryMode;
+import com.audio.casse.models.ObjectMetadata;
+import com.audio.casse.models.SeekTable;
 import com.audio.casse.models.Song;
 import com.audio.casse.repository.SongsRepository;
-import com.audio.casse.service.CloudflareR2Service;
+import com.audio.casse.service.AlbumArtThumbnailService;
+import com.audio.casse.service.AudioDiskCache;
+import com.audio.casse.service.CoalescingFetcher;
 import com.audio.casse.service.DenialService;
 import com.audio.casse.service.EmailService;
+import com.audio.casse.service.FacetService;
+import com.audio.casse.service.HlsSegmentService;
+import com.audio.casse.service.ObjectStream;
 import com.audio.casse.service.PendingApprovalService;
+import com.audio.casse.service.PresignedUrlService;
+import com.audio.casse.service.SearchCache;
+import com.audio.casse.service.SeekIndexService;
+import com.audio.casse.service.SongAccessService;
+import com.audio.casse.service.SongIndexManager;
+import com.audio.casse.service.SongUploadService;
+import com.audio.casse.service.StorageBackend;
+import com.audio.casse.service.StreamScheduler;
+import com.audio.casse.service.SuggestionIndex;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.data.elasticsearch.core.RefreshPolicy;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -21,11 +47,26 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.List;
 
 /**
@@ -40,66 +81,63 @@ import java.util.List;
 @Tag(name = "Audio Streaming and Management", description = "Operations for uploading, streaming, and managing songs")
 public class AudioStreamingController {
 
-    private final CloudflareR2Service r2Service;
+    private static final String IMMUTABLE_CACHE_CONTROL = "private, max-age=31536000, immutable";
+    // the exact time, in seconds, at which the bytes of a ?t= seek response start
+    private static final String SEEK_TIME_HEADER = "X-Seek-Time";
+
+    private final StorageBackend storage;
     private final PendingApprovalService approvalService;
     private final SongsRepository songsRepository;
     private final EmailService emailService;
     private final DenialService denialService;
+    private final AudioDiskCache diskCache;
+    private final PresignedUrlService presignedUrlService;
+    private final StreamingProperties streamingProperties;
+    private final AlbumArtThumbnailService thumbnailService;
+    private final SeekIndexService seekIndexService;
+    private final HlsSegmentService hlsSegmentService;
+    private final CoalescingFetcher coalescingFetcher;
+    private final StreamScheduler streamScheduler;
+    private final SearchCache searchCache;
+    private final SuggestionIndex suggestionIndex;
+    private final FacetService facetService;
+    private final SongIndexManager songIndexManager;
+    private final SongUploadService songUploadService;
+    private final SongAccessService songAccessService;
 
     /**
      * Handles the upload of a new song and its album art.
      * The uploaded song is submitted for approval.
      *
-     * @param song         The song metadata.
-     * @param audioFile    The audio file to upload.
-     * @param albumArtFile The album art image file to upload.
-     * @param principal    The authenticated OAuth2 user principal.
+     * The multipart body is read by SongUploadService as it arrives rather than bound here, so the
+     * song's fields and files are documented on the operation instead of as parameters.
+     *
+     * @param request   The multipart request: the song's metadata fields, audioFile and the optional albumArtFile.
+     * @param principal The authenticated OAuth2 user principal.
      * @return A redirect string indicating the success or failure of the upload.
-     * @throws IOException If an error occurs during file processing.
+     * @throws IOException If the song cannot be submitted for approval.
      */
     @Operation(summary = "Upload a new song",
-            description = "Uploads an audio file and its album art, then submits the song for approval.")
+            description = "Uploads an audio file and its album art, then submits the song for approval. "
+                    + "Song metadata (title, artists, album, composer, tags) is sent as form fields alongside "
+                    + "the audioFile and optional albumArtFile parts; sending albumArtFile first lets both upload at once.")
     @PostMapping(value = "/upload", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
     public String handleUpload(
-            @Parameter(description = "Song metadata including title, artists, album, etc.")
-            @ModelAttribute Song song,
-            @Parameter(description = "The audio file to upload.")
-            @RequestPart("audioFile") MultipartFile audioFile,
-            @Parameter(description = "The album art image file to upload.")
-            @RequestPart("albumArtFile") MultipartFile albumArtFile,
+            @Parameter(hidden = true) HttpServletRequest request,
             @AuthenticationPrincipal AuthenticatedUser principal) throws IOException {
         String email = principal.name();
-        song.setEmail(email);
 
-        if (!audioFile.isEmpty()) {
-            try {
-                String originalFilename = audioFile.getOriginalFilename();
-                String extension = "";
-                if (originalFilename != null && originalFilename.contains(".")) {
-                    extension = originalFilename.substring(originalFilename.lastIndexOf("."));
-                }
-                String newFileName = song.getTitle() + extension;
-                song.setStorageAccessKey(newFileName);
-                log.info("Setting storageAccessKey in AudioStreamingController: {}", song.getStorageAccessKey());
-                r2Service.uploadSong(audioFile, email, newFileName);
-            } catch (IOException e) {
-                log.error("File upload failed for user {}: {}", email, e.getMessage());
-                return "redirect:/home?error=file_upload_failed";
-            }
-        } else {
-            log.warn("No file selected for upload by user {}", email);
-            return "redirect:/home?error=no_file_selected";
+        // Storage names are content hashes, so identical files are stored once (the storage
+        // backend skips the upload when the object already exists) and never overwrite each other.
+        Song song;
+        try {
+            song = songUploadService.upload(request, email);
+        } catch (SongUploadException e) {
+            return "redirect:/home?error=" + e.getError();
         }
-
-        if (!albumArtFile.isEmpty()) {
-            try {
-                String originalFilename = albumArtFile.getOriginalFilename();
-                r2Service.uploadAlbumArt(albumArtFile, email, originalFilename);
-                song.setAlbumArt(originalFilename);
-            } catch (IOException e) {
-                log.error("Album art upload failed for user {}: {}", email, e.getMessage());
-                return "redirect:/home?error=album_art_upload_failed";
-            }
+        log.info("Setting storageAccessKey in AudioStreamingController: {}", song.getStorageAccessKey());
+        if (song.getAlbumArt() != null) {
+            thumbnailService.generateInBackground(song.getAlbumArt(), email);
         }
 
         approvalService.storePendingApproval(email, song);
@@ -124,27 +162,50 @@ public class AudioStreamingController {
 
     /**
      * Streams the album art for a given file name.
+     * With {@code size} a JPEG thumbnail whose longest edge is the next configured size up is served
+     * instead of the original; it is generated on the spot if upload-time generation did not get to it.
+     *
+     * A request carrying If-None-Match / If-Modified-Since is answered with 304 from the object's
+     * metadata alone (cached, or a HEAD), without ever opening the image body.
      *
      * @param fileName       The name of the album art file.
+     * @param size           The optional longest edge, in pixels, the client will display the image at.
+     * @param webRequest     The current request, used to evaluate conditional headers.
      * @param authentication The authentication object containing user details.
-     * @return A ResponseEntity containing the album art as an InputStreamResource.
+     * @return A ResponseEntity containing the album art as an InputStreamResource, or 304 Not Modified.
      */
     @Operation(summary = "Stream album art",
-            description = "Streams the album art image associated with a song.")
+            description = "Streams the album art image associated with a song. Supports conditional requests.")
     @GetMapping("/album-art/{fileName}")
     public ResponseEntity<InputStreamResource> streamAlbumArt(
             @Parameter(description = "The file name of the album art.")
             @PathVariable String fileName,
+            @Parameter(description = "The longest edge in pixels the image will be displayed at; omit for the original.")
+            @RequestParam(required = false) Integer size,
+            @Parameter(hidden = true) WebRequest webRequest,
             @Parameter(hidden = true) Authentication authentication) {
+        if (size != null && size <= 0) {
+            return ResponseEntity.badRequest().build();
+        }
         try {
-            ResponseInputStream<GetObjectResponse> responseFromS3 = r2Service.streamAlbumArt(fileName, authentication.getName());
+            String objectKey = thumbnailService.resolveKey(fileName, authentication.getName(), size);
+            if (isConditional(webRequest)) {
+                ObjectMetadata metadata = storage.objectMetadata(objectKey);
+                if (webRequest.checkNotModified(metadata.eTag(), toEpochMilli(metadata.lastModified()))) {
+                    return ResponseEntity.status(HttpStatus.NOT_MODIFIED).build();
+                }
+            }
+            ResponseInputStream<GetObjectResponse> responseFromS3 = storage.openObject(objectKey);
             GetObjectResponse objectResponse = responseFromS3.response();
 
             HttpHeaders headers = new HttpHeaders();
             headers.setContentType(MediaType.parseMediaType(objectResponse.contentType()));
             headers.setContentLength(objectResponse.contentLength());
+            setValidators(headers, fileName, objectResponse.eTag(), objectResponse.lastModified());
 
             return new ResponseEntity<>(new InputStreamResource(responseFromS3), headers, HttpStatus.OK);
+        } catch (CallNotPermittedException e) {
+            return storageUnavailable();
         } catch (Exception e) {
             log.error("Error streaming album art '{}' for user {}: {}", fileName, authentication.getName(), e.getMessage());
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
@@ -152,71 +213,245 @@ public class AudioStreamingController {
     }
 
     /**
-     * Streams an audio file directly from storage.
+     * Streams one of the caller's own audio files, approved or pending, directly from storage.
+     * Honours a single {@code Range} header (optionally guarded by {@code If-Range}) so a
+     * player seek only fetches the bytes it needs from storage. In redirect delivery mode the
+     * request is only authorized here and answered with a 302 to a presigned storage URL.
      *
      * @param fileName       The name of the audio file.
+     * @param delivery       The optional delivery mode (proxy or redirect); defaults per endpoint from configuration.
+     * @param rangeHeader    The optional HTTP Range header.
+     * @param ifRangeHeader  The optional HTTP If-Range header.
+     * @param seekSeconds    The optional playback position to start from, mapped to a byte range via the song's seek table.
+     * @param webRequest     The current request, used to evaluate conditional headers.
      * @param authentication The authentication object containing user details.
-     * @return A ResponseEntity containing the audio file as an InputStreamResource.
+     * @return A ResponseEntity streaming the audio file (or the requested part of it), a redirect to it, 304 Not Modified,
+     * or 404 if it is not one of the caller's songs.
      */
     @Operation(summary = "Stream audio directly",
-            description = "Streams an audio file directly from storage using its file name.")
+            description = "Streams an audio file directly from storage using its file name. Supports byte-range requests and redirect delivery.")
     @GetMapping("/stream-direct/{fileName}")
-    public ResponseEntity<InputStreamResource> streamAudio(
+    public ResponseEntity<StreamingResponseBody> streamAudio(
             @Parameter(description = "The file name of the audio to stream.")
             @PathVariable String fileName,
+            @Parameter(description = "Delivery mode: 'proxy' streams through this service, 'redirect' answers 302 to a presigned storage URL.")
+            @RequestParam(name = "delivery", required = false) String delivery,
+            @Parameter(description = "Start playback at this many seconds; ignored when a Range header is sent or in redirect mode.")
+            @RequestParam(name = "t", required = false) Double seekSeconds,
+            @Parameter(hidden = true) @RequestHeader(value = HttpHeaders.RANGE, required = false) String rangeHeader,
+            @Parameter(hidden = true) @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRangeHeader,
+            @Parameter(hidden = true) WebRequest webRequest,
             @Parameter(hidden = true) Authentication authentication) {
         try {
-            ResponseInputStream<GetObjectResponse> responseFromS3 = r2Service.streamSong(fileName, authentication.getName());
-            GetObjectResponse objectResponse = responseFromS3.response();
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType(objectResponse.contentType()));
-            headers.setContentLength(objectResponse.contentLength());
-            headers.set("Accept-Ranges", "bytes");
-
-            return new ResponseEntity<>(new InputStreamResource(responseFromS3), headers, HttpStatus.OK);
+            if (!songAccessService.isOwnSong(authentication.getName(), fileName)) {
+                return ResponseEntity.notFound().build();
+            }
+            DeliveryMode mode = DeliveryMode.fromParameter(delivery, streamingProperties.getDelivery().getStreamDirect());
+            if (mode == DeliveryMode.REDIRECT && storage.supportsPresignedUrls()) {
+                return redirectTo(presignedUrlService.presignSong(authentication.getName(), fileName, authentication.getName()));
+            }
+            return paced(streamSongRange(fileName, authentication.getName(), rangeHeader, ifRangeHeader, seekSeconds,
+                    webRequest, new HttpHeaders()), authentication.getName(), fileName, authentication.getName());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (CallNotPermittedException e) {
+            return storageUnavailable();
         } catch (Exception e) {
             log.error("Error streaming audio direct '{}' for user {}: {}", fileName, authentication.getName(), e.getMessage());
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
     }
 
+    /**
+     * Returns a presigned storage URL for one of the caller's own audio files, for clients that
+     * prefer fetching from R2/MinIO themselves over following a redirect.
+     *
+     * @param fileName       The name of the audio file.
+     * @param authentication The authentication object containing user details.
+     * @return A ResponseEntity containing the presigned URL and its expiry, 404 if the file is not one of the caller's
+     * songs, or 501 if the storage backend cannot presign.
+     */
+    @Operation(summary = "Get a direct stream manifest",
+            description = "Authorizes access to an audio file and returns a short-lived presigned storage URL for it.")
+    @GetMapping("/stream-direct/{fileName}/manifest")
+    public ResponseEntity<StreamManifest> streamAudioManifest(
+            @Parameter(description = "The file name of the audio to stream.")
+            @PathVariable String fileName,
+            @Parameter(hidden = true) Authentication authentication) {
+        if (!storage.supportsPresignedUrls()) {
+            return ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED).build();
+        }
+        try {
+            if (!songAccessService.isOwnSong(authentication.getName(), fileName)) {
+                return ResponseEntity.notFound().build();
+            }
+            return ResponseEntity.ok(presignedUrlService.presignSong(authentication.getName(), fileName, authentication.getName()));
+        } catch (Exception e) {
+            log.error("Error presigning audio direct '{}' for user {}: {}", fileName, authentication.getName(), e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
     /**
      * Streams an approved audio file. This endpoint is typically used for playing approved songs.
+     * Honours a single {@code Range} header (optionally guarded by {@code If-Range}). In redirect
+     * delivery mode the request is answered with a 302 to a presigned storage URL.
      *
      * @param uploaderEmail    The email of the user who uploaded the song.
      * @param songTitle        The title of the song.
      * @param storageAccessKey The storage access key for the audio file.
-     * @return A ResponseEntity containing the audio file as an InputStreamResource.
+     * @param delivery         The optional delivery mode (proxy or redirect); defaults per endpoint from configuration.
+     * @param rangeHeader      The optional HTTP Range header.
+     * @param ifRangeHeader    The optional HTTP If-Range header.
+     * @param seekSeconds      The optional playback position to start from, mapped to a byte range via the song's seek table.
+     * @param webRequest       The current request, used to evaluate conditional headers.
+     * @param authentication   The authentication object containing user details.
+     * @return A ResponseEntity streaming the audio file (or the requested part of it), a redirect to it, or 304 Not Modified.
      */
     @Operation(summary = "Stream approved audio",
-            description = "Streams an audio file that has been approved, identified by uploader email, song title, and storage key.")
+            description = "Streams an audio file that has been approved, identified by uploader email, song title, and storage key. Supports byte-range requests and redirect delivery.")
     @GetMapping("/stream")
-    public ResponseEntity<InputStreamResource> streamApprovedAudio(
+    public ResponseEntity<StreamingResponseBody> streamApprovedAudio(
             @Parameter(description = "The email of the user who uploaded the song.")
             @RequestParam("email") String uploaderEmail,
             @Parameter(description = "The title of the song.")
             @RequestParam("title") String songTitle,
             @Parameter(description = "The storage access key for the audio file.")
-            @RequestParam("key") String storageAccessKey) {
+            @RequestParam("key") String storageAccessKey,
+            @Parameter(description = "Delivery mode: 'proxy' streams through this service, 'redirect' answers 302 to a presigned storage URL.")
+            @RequestParam(name = "delivery", required = false) String delivery,
+            @Parameter(description = "Start playback at this many seconds; ignored when a Range header is sent or in redirect mode.")
+            @RequestParam(name = "t", required = false) Double seekSeconds,
+            @Parameter(hidden = true) @RequestHeader(value = HttpHeaders.RANGE, required = false) String rangeHeader,
+            @Parameter(hidden = true) @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRangeHeader,
+            @Parameter(hidden = true) WebRequest webRequest,
+            @Parameter(hidden = true) Authentication authentication) {
         try {
             log.info("Streaming approved audio for song '{}' by '{}' with key '{}'", songTitle, uploaderEmail, storageAccessKey);
-            ResponseInputStream<GetObjectResponse> responseFromS3 = r2Service.streamSong(storageAccessKey, uploaderEmail);
-            GetObjectResponse objectResponse = responseFromS3.response();
-
+            DeliveryMode mode = DeliveryMode.fromParameter(delivery, streamingProperties.getDelivery().getStream());
+            if (mode == DeliveryMode.REDIRECT && storage.supportsPresignedUrls()) {
+                return redirectTo(presignedUrlService.presignSong(authentication.getName(), storageAccessKey, uploaderEmail));
+            }
             HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType(objectResponse.contentType()));
-            headers.setContentLength(objectResponse.contentLength());
-            headers.set("Accept-Ranges", "bytes");
             headers.setContentDispositionFormData("attachment", songTitle + ".mp3");
-
-            return new ResponseEntity<>(new InputStreamResource(responseFromS3), headers, HttpStatus.OK);
+            return paced(streamSongRange(storageAccessKey, uploaderEmail, rangeHeader, ifRangeHeader, seekSeconds,
+                    webRequest, headers), authentication.getName(), storageAccessKey, uploaderEmail);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (CallNotPermittedException e) {
+            return storageUnavailable();
         } catch (Exception e) {
             log.error("Error streaming approved audio for song '{}' by '{}' with key '{}': {}", songTitle, uploaderEmail, storageAccessKey, e.getMessage());
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
     }
 
+    /**
+     * Returns a presigned storage URL for an approved song, for clients that prefer fetching
+     * from R2/MinIO themselves over following a redirect.
+     *
+     * @param uploaderEmail    The email of the user who uploaded the song.
+     * @param storageAccessKey The storage access key for the audio file.
+     * @param authentication   The authentication object containing user details.
+     * @return A ResponseEntity containing the presigned URL and its expiry, or 501 if the storage backend cannot presign.
+     */
+    @Operation(summary = "Get an approved audio stream manifest",
+            description = "Returns a short-lived presigned storage URL for an approved song.")
+    @GetMapping("/stream/manifest")
+    public ResponseEntity<StreamManifest> streamApprovedAudioManifest(
+            @Parameter(description = "The email of the user who uploaded the song.")
+            @RequestParam("email") String uploaderEmail,
+            @Parameter(description = "The storage access key for the audio file.")
+            @RequestParam("key") String storageAccessKey,
+            @Parameter(hidden = true) Authentication authentication) {
+        if (!storage.supportsPresignedUrls()) {
+            return ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED).build();
+        }
+        try {
+            return ResponseEntity.ok(presignedUrlService.presignSong(authentication.getName(), storageAccessKey, uploaderEmail));
+        } catch (Exception e) {
+            log.error("Error presigning approved audio by '{}' with key '{}': {}", uploaderEmail, storageAccessKey, e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Serves the HLS playlist of an approved song. Its segment URIs are relative, so they resolve to
+     * {@link #streamHlsSegment} under the same path. Songs approved before segmentation existed are
+     * segmented on first request and answer 404 until then - clients fall back to {@code /stream}.
+     * Anything else, e.g. a pending song, answers 404 without being segmented.
+     *
+     * @param uploaderEmail    The email of the user who uploaded the song.
+     * @param storageAccessKey The storage access key for the audio file.
+     * @param webRequest       The current request, used to evaluate conditional headers.
+     * @param authentication   The authentication object containing user details.
+     * @return A ResponseEntity streaming the playlist, 304 Not Modified, or 404 if the song is not segmented (yet).
+     */
+    @Operation(summary = "Get an HLS playlist",
+            description = "Returns the HLS (packed audio) VOD playlist of an approved song. Supports conditional requests.")
+    @GetMapping("/hls/{email}/{key}/index.m3u8")
+    public ResponseEntity<StreamingResponseBody> streamHlsPlaylist(
+            @Parameter(description = "The email of the user who uploaded the song.")
+            @PathVariable("email") String uploaderEmail,
+            @Parameter(description = "The storage access key for the audio file.")
+            @PathVariable("key") String storageAccessKey,
+            @Parameter(hidden = true) WebRequest webRequest,
+            @Parameter(hidden = true) Authentication authentication) {
+        try {
+            String playlistKey = hlsSegmentService.playlistKey(storageAccessKey, uploaderEmail);
+            if (!storage.objectExists(playlistKey)) {
+                // a playlist is only ever written for an approved song, so only a missing one needs checking
+                if (songAccessService.isApproved(uploaderEmail, storageAccessKey)) {
+                    hlsSegmentService.segmentInBackground(storageAccessKey, uploaderEmail);
+                }
+                return ResponseEntity.notFound().build();
+            }
+            return streamObject(playlistKey, storageAccessKey, webRequest);
+        } catch (NoSuchKeyException e) {
+            return ResponseEntity.notFound().build();
+        } catch (CallNotPermittedException e) {
+            return storageUnavailable();
+        } catch (Exception e) {
+            log.error("Error streaming HLS playlist by '{}' with key '{}': {}", uploaderEmail, storageAccessKey, e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Serves one HLS segment of an approved song. Segments never change once written, so they are
+     * cached by the local disk cache and, for content-addressed songs, by clients for good.
+     *
+     * @param uploaderEmail    The email of the user who uploaded the song.
+     * @param storageAccessKey The storage access key for the audio file.
+     * @param segment          The segment number, as listed in the playlist.
+     * @param webRequest       The current request, used to evaluate conditional headers.
+     * @param authentication   The authentication object containing user details.
+     * @return A ResponseEntity streaming the segment, 304 Not Modified, or 404.
+     */
+    @Operation(summary = "Get an HLS segment",
+            description = "Returns one segment of an approved song's HLS playlist. Supports conditional requests.")
+    @GetMapping("/hls/{email}/{key}/{segment:\\d+}.mp3")
+    public ResponseEntity<StreamingResponseBody> streamHlsSegment(
+            @Parameter(description = "The email of the user who uploaded the song.")
+            @PathVariable("email") String uploaderEmail,
+            @Parameter(description = "The storage access key for the audio file.")
+            @PathVariable("key") String storageAccessKey,
+            @Parameter(description = "The segment number.")
+            @PathVariable("segment") int segment,
+            @Parameter(hidden = true) WebRequest webRequest,
+            @Parameter(hidden = true) Authentication authentication) {
+        try {
+            return streamObject(hlsSegmentService.segmentKey(storageAccessKey, uploaderEmail, segment), storageAccessKey, webRequest);
+        } catch (NoSuchKeyException e) {
+            return ResponseEntity.notFound().build();
+        } catch (CallNotPermittedException e) {
+            return storageUnavailable();
+        } catch (Exception e) {
+            log.error("Error streaming HLS segment {} by '{}' with key '{}': {}", segment, uploaderEmail, storageAccessKey, e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
     /**
      * Approves a pending song. Once approved, the song becomes available for streaming.
      *
@@ -237,8 +472,14 @@ public class AudioStreamingController {
             Song songToApprove = approvalService.getPendingApproval(uploaderEmail, songTitle);
 
             if (songToApprove != null) {
-                songsRepository.save(songToApprove);
+                // searchable before the caches below are dropped, or a search could cache the catalog without it
+                songsRepository.save(songToApprove, RefreshPolicy.WAIT_UNTIL);
+                songIndexManager.dualWrite(songToApprove);
+                searchCache.invalidate();
+                suggestionIndex.songApproved(songToApprove);
+                facetService.songApproved(songToApprove);
                 approvalService.removePendingApproval(uploaderEmail, songTitle);
+                hlsSegmentService.segmentInBackground(songToApprove.getStorageAccessKey(), uploaderEmail);
                 emailService.sendSongApprovedEmail(uploaderEmail, songTitle);
                 log.info("Song '{}' by '{}' approved successfully. StorageAccessKey: {}", songTitle, uploaderEmail, songToApprove.getStorageAccessKey());
                 return ResponseEntity.ok("Song '" + songTitle + "' by '" + uploaderEmail + "' approved successfully.");
@@ -279,4 +520,304 @@ public class AudioStreamingController {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("An unexpected error occurred during denial.");
         }
     }
+
+    /**
+     * Fetches a song (or a byte range of it) and builds a 200, 206 or 416 response.
+     * When the local disk cache holds every block of the request it is served without touching R2 at
+     * all. Otherwise the Range header is passed straight through to the ranged GetObject so only the
+     * requested bytes leave R2, and whatever is read, whole or ranged, is teed into the disk cache.
+     * How the storage read is done (R2 or a local file) is up to the StorageBackend.
+     * A malformed or multi-range header is ignored and the full song is served.
+     * A {@code ?t=} seek without a Range header becomes an open-ended range starting at the frame
+     * for that time, whose exact start time is reported in {@value #SEEK_TIME_HEADER}.
+     * Conditional requests are settled before any body is opened: against the cached copy's validators,
+     * or the object's metadata (in memory, or a HEAD) when there is none. Known metadata also lets an
+     * unsatisfiable range or a stale If-Range be handled without a wasted GET.
+     */
+    private ResponseEntity<StreamingResponseBody> streamSongRange(String fileName, String userName,
+                                                                  String rangeHeader, String ifRangeHeader,
+                                                                  Double seekSeconds, WebRequest webRequest,
+                                                                  HttpHeaders headers) {
+        String objectKey = storage.songKey(fileName, userName);
+        ByteRange range = ByteRange.parse(rangeHeader);
+        if (seekSeconds != null && range == null) {
+            if (seekSeconds.isNaN() || seekSeconds < 0) {
+                throw new IllegalArgumentException("Invalid seek position: " + seekSeconds);
+            }
+            SeekTable seekTable = seekIndexService.seekTable(fileName, userName);
+            if (seekTable != null) {
+                int point = seekTable.pointAt(seekSeconds);
+                if (point < 0) {
+                    return rangeNotSatisfiable(storage.songMetadata(fileName, userName).contentLength());
+                }
+                range = ByteRange.from(seekTable.offset(point));
+                headers.set(SEEK_TIME_HEADER, String.valueOf(seekTable.seconds(point)));
+            }
+        }
+
+        AudioDiskCache.CachedObject cached = diskCache.get(objectKey);
+        if (isConditional(webRequest)) {
+            boolean notModified;
+            if (cached != null) {
+                notModified = webRequest.checkNotModified(cached.eTag(), toEpochMilli(cached.lastModified()));
+            } else {
+                ObjectMetadata metadata = storage.songMetadata(fileName, userName);
+                notModified = webRequest.checkNotModified(metadata.eTag(), toEpochMilli(metadata.lastModified()));
+            }
+            if (notModified) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).build();
+            }
+        }
+        if (cached != null) {
+            try {
+                ResponseEntity<StreamingResponseBody> response = streamCachedRange(fileName, cached, range, ifRangeHeader, headers);
+                if (response != null) {
+                    return response;
+                }
+            } catch (IOException e) {
+                log.warn("Cached copy of '{}' unreadable, falling back to storage: {}", objectKey, e.getMessage());
+                diskCache.invalidate(objectKey);
+            }
+        }
+
+        ObjectMetadata known = storage.cachedSongMetadata(fileName, userName);
+        if (known != null && range != null) {
+            if (ifRangeHeader != null && !ifRangeMatches(ifRangeHeader, known.eTag(), known.lastModified())) {
+                range = null;
+            } else if (!range.isSatisfiable(known.contentLength())) {
+                return rangeNotSatisfiable(known.contentLength());
+            }
+        }
+
+        ObjectStream responseFromS3;
+        try {
+            ByteRange requested = range;
+            responseFromS3 = coalescingFetcher.open(objectKey, requested, () -> storage.openSong(fileName, userName, requested));
+        } catch (S3Exception e) {
+            if (range == null || e.statusCode() != HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value()) {
+                throw e;
+            }
+            return rangeNotSatisfiable(storage.songMetadata(fileName, userName).contentLength());
+        }
+
+        GetObjectResponse objectResponse = responseFromS3.response();
+        if (range != null && ifRangeHeader != null
+                && !ifRangeMatches(ifRangeHeader, objectResponse.eTag(), objectResponse.lastModified())) {
+            // The client's cached copy is stale, so a partial body would corrupt it - send everything.
+            responseFromS3.abort();
+            range = null;
+            responseFromS3 = coalescingFetcher.open(objectKey, null, () -> storage.openSong(fileName, userName, null));
+            objectResponse = responseFromS3.response();
+        }
+
+        headers.setContentType(MediaType.parseMediaType(objectResponse.contentType()));
+        headers.setContentLength(objectResponse.contentLength());
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        setValidators(headers, fileName, objectResponse.eTag(), objectResponse.lastModified());
+
+        ObjectStream body = responseFromS3;
+        // a shared fetch fills the disk cache itself
+        AudioDiskCache.CacheFill fill = coalescingFetcher.fillsCache(range) ? null : diskCache.beginFill(objectKey, objectResponse);
+        if (range != null && objectResponse.contentRange() != null) {
+            headers.set(HttpHeaders.CONTENT_RANGE, objectResponse.contentRange());
+            return new ResponseEntity<>(out -> body.writeTo(out, fill), headers, HttpStatus.PARTIAL_CONTENT);
+        }
+        return new ResponseEntity<>(out -> body.writeTo(out, fill), headers, HttpStatus.OK);
+    }
+
+    /**
+     * Serves a song from the local disk cache. The file channel is opened up front so that an
+     * eviction racing with this request cannot pull the file away once the response is committed.
+     *
+     * @return the response, or null if the cache lacks some of the blocks it needs.
+     */
+    private ResponseEntity<StreamingResponseBody> streamCachedRange(String fileName, AudioDiskCache.CachedObject cached,
+                                                                    ByteRange range, String ifRangeHeader,
+                                                                    HttpHeaders headers) throws IOException {
+        long length = cached.length();
+        if (range != null && ifRangeHeader != null && !ifRangeMatches(ifRangeHeader, cached.eTag(), cached.lastModified())) {
+            range = null;
+        }
+        if (range != null && !range.isSatisfiable(length)) {
+            return rangeNotSatisfiable(length);
+        }
+
+        long start = range != null ? range.start(length) : 0;
+        long end = range != null ? range.end(length) : length - 1;
+        if (!diskCache.covers(cached, start, end)) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(cached.dataFile(), StandardOpenOption.READ);
+
+        headers.setContentType(cached.contentType() != null
+                ? MediaType.parseMediaType(cached.contentType())
+                : MediaType.APPLICATION_OCTET_STREAM);
+        headers.setContentLength(end - start + 1);
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        setValidators(headers, fileName, cached.eTag(), cached.lastModified());
+        StreamingResponseBody body = out -> transferFile(channel, start, end - start + 1, out);
+        if (range != null) {
+            headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            return new ResponseEntity<>(body, headers, HttpStatus.PARTIAL_CONTENT);
+        }
+        return new ResponseEntity<>(body, headers, HttpStatus.OK);
+    }
+
+    /**
+     * Serves a whole, small object (an HLS playlist or segment) through the local disk cache.
+     * Validators and caching headers follow the song it was derived from.
+     */
+    private ResponseEntity<StreamingResponseBody> streamObject(String objectKey, String fileName, WebRequest webRequest) {
+        AudioDiskCache.CachedObject cached = diskCache.get(objectKey);
+        if (isConditional(webRequest)) {
+            boolean notModified;
+            if (cached != null) {
+                notModified = webRequest.checkNotModified(cached.eTag(), toEpochMilli(cached.lastModified()));
+            } else {
+                ObjectMetadata metadata = storage.objectMetadata(objectKey);
+                notModified = webRequest.checkNotModified(metadata.eTag(), toEpochMilli(metadata.lastModified()));
+            }
+            if (notModified) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).build();
+            }
+        }
+        HttpHeaders headers = new HttpHeaders();
+        if (cached != null) {
+            try {
+                ResponseEntity<StreamingResponseBody> response = streamCachedRange(fileName, cached, null, null, headers);
+                if (response != null) {
+                    return response;
+                }
+            } catch (IOException e) {
+                log.warn("Cached copy of '{}' unreadable, falling back to storage: {}", objectKey, e.getMessage());
+                diskCache.invalidate(objectKey);
+            }
+        }
+
+        ObjectStream body = coalescingFetcher.open(objectKey, null, () -> ObjectStream.blocking(storage.openObject(objectKey)));
+        GetObjectResponse objectResponse = body.response();
+        headers.setContentType(MediaType.parseMediaType(objectResponse.contentType()));
+        headers.setContentLength(objectResponse.contentLength());
+        setValidators(headers, fileName, objectResponse.eTag(), objectResponse.lastModified());
+
+        AudioDiskCache.CacheFill fill = coalescingFetcher.fillsCache(null) ? null : diskCache.beginFill(objectKey, objectResponse);
+        return new ResponseEntity<>(out -> body.writeTo(out, fill), headers, HttpStatus.OK);
+    }
+
+    /**
+     * Holds a song body to the listener's fair share of this pod's egress (see StreamScheduler).
+     * Responses without a body (304, 416) have nothing to pace.
+     */
+    private ResponseEntity<StreamingResponseBody> paced(ResponseEntity<StreamingResponseBody> response, String listener,
+                                                        String fileName, String userName) {
+        StreamingResponseBody body = response.getBody();
+        if (body == null || !streamScheduler.isEnabled()) {
+            return response;
+        }
+        long bitrate = seekIndexService.cachedBitrate(fileName, userName);
+        StreamingResponseBody pacedBody = out -> {
+            try (StreamScheduler.PacedStream stream = streamScheduler.open(listener, fileName, bitrate)) {
+                body.writeTo(stream.wrap(out));
+            }
+        };
+        return new ResponseEntity<>(pacedBody, response.getHeaders(), response.getStatusCode());
+    }
+
+    /**
+     * The 302 may be cached by the client for as long as the presigned URL stays in our own cache.
+     */
+    private ResponseEntity<StreamingResponseBody> redirectTo(StreamManifest manifest) {
+        Duration maxAge = Duration.between(Instant.now(), manifest.expiresAt())
+                .minus(streamingProperties.getDelivery().getPresignRefreshMargin());
+        return ResponseEntity.status(HttpStatus.FOUND)
+                .location(URI.create(manifest.url()))
+                .cacheControl(maxAge.isNegative() ? CacheControl.noStore() : CacheControl.maxAge(maxAge).cachePrivate())
+                .build();
+    }
+
+    /**
+     * Every body carries the stored object's ETag and Last-Modified so clients can revalidate with a
+     * conditional GET. The bytes behind a content-addressed name can never change, so those clients
+     * may also keep them for good; responses stay private since every audio endpoint sits behind
+     * authentication.
+     */
+    private void setValidators(HttpHeaders headers, String fileName, String eTag, Instant lastModified) {
+        if (eTag != null) {
+            headers.setETag(eTag);
+        }
+        if (lastModified != null) {
+            headers.setLastModified(lastModified);
+        }
+        if (ContentAddress.isContentAddressed(fileName)) {
+            headers.setCacheControl(IMMUTABLE_CACHE_CONTROL);
+        }
+    }
+
+    /**
+     * Validators are only looked up (which may cost a HEAD) when the client actually sent some.
+     */
+    private boolean isConditional(WebRequest webRequest) {
+        return webRequest.getHeader(HttpHeaders.IF_NONE_MATCH) != null
+                || webRequest.getHeader(HttpHeaders.IF_MODIFIED_SINCE) != null;
+    }
+
+    private long toEpochMilli(Instant instant) {
+        return instant != null ? instant.toEpochMilli() : -1;
+    }
+
+    /**
+     * Storage is failing fast behind an open circuit breaker - tell the client to come back later
+     * rather than reporting an error of our own.
+     */
+    private <T> ResponseEntity<T> storageUnavailable() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "30")
+                .build();
+    }
+
+    private ResponseEntity<StreamingResponseBody> rangeNotSatisfiable(long length) {
+        return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length)
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .build();
+    }
+
+    /**
+     * FileChannel.transferTo lets the kernel move the bytes (mapped or sendfile-backed, depending
+     * on the target) instead of pulling them through a heap buffer like InputStreamResource does.
+     */
+    private void transferFile(FileChannel channel, long position, long count, OutputStream out) throws IOException {
+        try (channel) {
+            WritableByteChannel target = Channels.newChannel(out);
+            long remaining = count;
+            while (remaining > 0) {
+                long sent = channel.transferTo(position, remaining, target);
+                if (sent <= 0) {
+                    throw new EOFException("Cached file ended " + remaining + " bytes early");
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        }
+    }
+
+    /**
+     * If-Range carries either an entity tag or an HTTP-date. Per RFC 9110 only a strong ETag
+     * match or an exact Last-Modified match allows the range to be honoured.
+     */
+    private boolean ifRangeMatches(String ifRangeHeader, String eTag, Instant lastModified) {
+        String ifRange = ifRangeHeader.trim();
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(eTag);
+        }
+        if (ifRange.startsWith("W/") || lastModified == null) {
+            return false;
+        }
+        try {
+            Instant date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            return date.getEpochSecond() == lastModified.getEpochSecond();
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
 }
@@ -1,21 +1,40 @@
 package com.audio.casse.controller;
 
-import com.audio.casse.models.Song;
-import com.audio.casse.repository.SongsRepository;
+import com.audio.casse.dto.Facets;
+import com.audio.casse.dto.SongPage;
+import com.audio.casse.dto.Suggestion;
+import com.audio.casse.models.SongField;
+import com.audio.casse.service.FacetService;
+import com.audio.casse.service.SearchCache;
+import com.audio.casse.service.SongExportService;
+import com.audio.casse.service.SongSearchService;
+import com.audio.casse.service.SuggestionIndex;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import lombok.AllArgsConstructor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * REST controller for searching songs based on various criteria.
  * Provides endpoints for general search, and specific searches by title, artists, album, composer, tags, and email.
+ * Every endpoint returns one page of songs; the page's {@code nextCursor}, sent back with the same
+ * query, fetches the next one. A {@code fields} parameter trims the songs down to the fields a view
+ * needs, which Elasticsearch then does not fetch either.
  */
 @RestController
 @RequestMapping("/api/music")
@@ -23,25 +42,106 @@ import java.util.List;
 @Tag(name = "Songs Search", description = "Operations related to searching for songs")
 public class SongsSearchController {
 
-    private final SongsRepository songsRepository;
+    private final SongSearchService songSearchService;
+    private final SongExportService songExportService;
+    private final SearchCache searchCache;
+    private final SuggestionIndex suggestionIndex;
+    private final FacetService facetService;
 
     /**
      * Searches for songs based on a general query string.
-     * If the query is empty or null, all songs are returned.
+     * If the query is empty or null, all songs are paged through.
      *
-     * @param query The search query string.
-     * @return A list of songs matching the query.
+     * @param query  The search query string.
+     * @param size   The number of songs per page.
+     * @param cursor The previous page's next cursor, or null for the first page.
+     * @param fields The song fields to return, or null for all of them.
+     * @return A page of songs matching the query.
      */
     @Operation(summary = "Search for songs",
-               description = "Searches for songs across various fields. Returns all songs if no query is provided.")
+               description = "Searches for songs across various fields. Pages through all songs if no query is provided.")
     @GetMapping("/search")
-    public List<Song> searchMusic(
+    public SongPage searchMusic(
             @Parameter(description = "The search query string. If empty, all songs are returned.")
-            @RequestParam(name = "q", required = false) String query) {
-        if (query == null || query.trim().isEmpty()) {
-            return (List<Song>) songsRepository.findAll();
-        }
-        return songsRepository.searchAny(query);
+            @RequestParam(name = "q", required = false) String query,
+            @Parameter(description = "The number of songs per page.")
+            @RequestParam(name = "size", required = false) Integer size,
+            @Parameter(description = "The nextCursor of the previous page, to fetch the page after it.")
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @Parameter(description = "The song fields to return, comma-separated, e.g. title,artists,album,albumArt. All of them if omitted.")
+            @RequestParam(name = "fields", required = false) List<String> fields) {
+        List<String> source = songSearchService.sourceFields(fields);
+        return searchCache.get("search", query, false, size, source, cursor, () -> {
+            if (query == null || query.trim().isEmpty()) {
+                return songSearchService.search(songSearchService.matchAll(), size, cursor, source);
+            }
+            return songSearchService.search(songSearchService.matchAny(query), size, cursor, source);
+        });
+    }
+
+    /**
+     * Searches for songs by any combination of criteria in one query: free text, scored across all
+     * fields, narrowed down by exact values. A song must match one of the values given for each
+     * field, e.g. {@code artists=Queen&tags=rock&tags=pop} finds Queen's rock or pop songs.
+     *
+     * @param query    Free text to search for, or null to only filter.
+     * @param title    Exact titles, any of which may match.
+     * @param artists  Exact artists, any of which may match.
+     * @param album    Exact albums, any of which may match.
+     * @param composer Exact composers, any of which may match.
+     * @param tags     Exact tags, any of which may match.
+     * @param email    Exact uploader emails, any of which may match.
+     * @param size     The number of songs per page.
+     * @param cursor   The previous page's next cursor, or null for the first page.
+     * @param fields   The song fields to return, or null for all of them.
+     * @return A page of songs matching every given criterion.
+     */
+    @Operation(summary = "Search songs by several criteria",
+               description = "Combines free text with exact values per field; exact values are applied as cacheable filters.")
+    @GetMapping("/search/filtered")
+    public SongPage searchFiltered(
+            @Parameter(description = "Free text to search for across all fields.")
+            @RequestParam(name = "q", required = false) String query,
+            @Parameter(description = "Exact titles; repeat for any of several.")
+            @RequestParam(name = "title", required = false) List<String> title,
+            @Parameter(description = "Exact artists; repeat for any of several.")
+            @RequestParam(name = "artists", required = false) List<String> artists,
+            @Parameter(description = "Exact albums; repeat for any of several.")
+            @RequestParam(name = "album", required = false) List<String> album,
+            @Parameter(description = "Exact composers; repeat for any of several.")
+            @RequestParam(name = "composer", required = false) List<String> composer,
+            @Parameter(description = "Exact tags; repeat for any of several.")
+            @RequestParam(name = "tags", required = false) List<String> tags,
+            @Parameter(description = "Exact uploader emails; repeat for any of several.")
+            @RequestParam(name = "email", required = false) List<String> email,
+            @Parameter(description = "The number of songs per page.")
+            @RequestParam(name = "size", required = false) Integer size,
+            @Parameter(description = "The nextCursor of the previous page, to fetch the page after it.")
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @Parameter(description = "The song fields to return, comma-separated, e.g. title,artists,album,albumArt. All of them if omitted.")
+            @RequestParam(name = "fields", required = false) List<String> fields) {
+        List<String> source = songSearchService.sourceFields(fields);
+        Map<SongField, List<String>> filters = new EnumMap<>(SongField.class);
+        filters.put(SongField.TITLE, title);
+        filters.put(SongField.ARTISTS, artists);
+        filters.put(SongField.ALBUM, album);
+        filters.put(SongField.COMPOSER, composer);
+        filters.put(SongField.TAGS, tags);
+        filters.put(SongField.EMAIL, email);
+        filters.values().removeIf(values -> values == null || values.isEmpty());
+        return searchCache.get("filtered", cacheKey(query, filters), true, size, source, cursor, () ->
+                songSearchService.search(songSearchService.filtered(query, filters), size, cursor, source));
+    }
+
+    /**
+     * The same criteria in any order make the same key. The key is cached as an exact match, so
+     * the free text, which is analyzed, has its spacing folded here; the exact values keep theirs.
+     */
+    private static String cacheKey(String query, Map<SongField, List<String>> filters) {
+        StringBuilder key = new StringBuilder(query == null ? "" : query.trim().replaceAll("\\s+", " "));
+        filters.forEach((field, values) -> key.append('\u0001').append(field.getName()).append('=')
+                .append(values.stream().sorted().distinct().collect(Collectors.joining("\u0000"))));
+        return key.toString();
     }
 
     /**
@@ -49,20 +149,28 @@ public class SongsSearchController {
      *
      * @param title The title to search for.
      * @param exactMatch If true, performs an exact match search; otherwise, performs a partial match.
-     * @return A list of songs matching the title.
+     * @param size The number of songs per page.
+     * @param cursor The previous page's next cursor, or null for the first page.
+     * @param fields The song fields to return, or null for all of them.
+     * @return A page of songs matching the title.
      */
     @Operation(summary = "Search songs by title",
                description = "Searches for songs based on their title, with an option for exact matching.")
     @GetMapping("/search/title")
-    public List<Song> searchByTitle(
+    public SongPage searchByTitle(
             @Parameter(description = "The title of the song to search for.")
             @RequestParam(name = "q") String title,
             @Parameter(description = "If true, performs an exact match search; otherwise, performs a partial match.")
-            @RequestParam(name = "exact-match", defaultValue = "false") boolean exactMatch) {
-        if (exactMatch) {
-            return songsRepository.findByTitle(title);
-        }
-        return songsRepository.searchByTitle(title);
+            @RequestParam(name = "exact-match", defaultValue = "false") boolean exactMatch,
+            @Parameter(description = "The number of songs per page.")
+            @RequestParam(name = "size", required = false) Integer size,
+            @Parameter(description = "The nextCursor of the previous page, to fetch the page after it.")
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @Parameter(description = "The song fields to return, comma-separated, e.g. title,artists,album,albumArt. All of them if omitted.")
+            @RequestParam(name = "fields", required = false) List<String> fields) {
+        List<String> source = songSearchService.sourceFields(fields);
+        return searchCache.get("title", title, exactMatch, size, source, cursor, () ->
+                songSearchService.search(songSearchService.matchField(SongField.TITLE, title, exactMatch), size, cursor, source));
     }
 
     /**
@@ -70,20 +178,28 @@ public class SongsSearchController {
      *
      * @param artists The artists' names to search for.
      * @param exactMatch If true, performs an exact match search; otherwise, performs a partial match.
-     * @return A list of songs matching the artists.
+     * @param size The number of songs per page.
+     * @param cursor The previous page's next cursor, or null for the first page.
+     * @param fields The song fields to return, or null for all of them.
+     * @return A page of songs matching the artists.
      */
     @Operation(summary = "Search songs by artists",
                description = "Searches for songs based on their artists, with an option for exact matching.")
     @GetMapping("/search/artists")
-    public List<Song> searchByArtists(
+    public SongPage searchByArtists(
             @Parameter(description = "The artists' names to search for.")
             @RequestParam(name = "q") String artists,
             @Parameter(description = "If true, performs an exact match search; otherwise, performs a partial match.")
-            @RequestParam(name = "exact-match", defaultValue = "false") boolean exactMatch) {
-        if (exactMatch) {
-            return songsRepository.findByArtists(artists);
-        }
-        return songsRepository.searchByArtists(artists);
+            @RequestParam(name = "exact-match", defaultValue = "false") boolean exactMatch,
+            @Parameter(description = "The number of songs per page.")
+            @RequestParam(name = "size", required = false) Integer size,
+            @Parameter(description = "The nextCursor of the previous page, to fetch the page after it.")
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @Parameter(description = "The song fields to return, comma-separated, e.g. title,artists,album,albumArt. All of them if omitted.")
+            @RequestParam(name = "fields", required = false) List<String> fields) {
+        List<String> source = songSearchService.sourceFields(fields);
+        return searchCache.get("artists", artists, exactMatch, size, source, cursor, () ->
+                songSearchService.search(songSearchService.matchField(SongField.ARTISTS, artists, exactMatch), size, cursor, source));
     }
 
     /**
@@ -91,20 +207,28 @@ public class SongsSearchController {
      *
      * @param album The album name to search for.
      * @param exactMatch If true, performs an exact match search; otherwise, performs a partial match.
-     * @return A list of songs matching the album.
+     * @param size The number of songs per page.
+     * @param cursor The previous page's next cursor, or null for the first page.
+     * @param fields The song fields to return, or null for all of them.
+     * @return A page of songs matching the album.
      */
     @Operation(summary = "Search songs by album",
                description = "Searches for songs based on their album, with an option for exact matching.")
     @GetMapping("/search/album")
-    public List<Song> searchByAlbum(
+    public SongPage searchByAlbum(
             @Parameter(description = "The album name to search for.")
             @RequestParam(name = "q") String album,
             @Parameter(description = "If true, performs an exact match search; otherwise, performs a partial match.")
-            @RequestParam(name = "exact-match", defaultValue = "false") boolean exactMatch) {
-        if (exactMatch) {
-            return songsRepository.findByAlbum(album);
-        }
-        return songsRepository.searchByAlbum(album);
+            @RequestParam(name = "exact-match", defaultValue = "false") boolean exactMatch,
+            @Parameter(description = "The number of songs per page.")
+            @RequestParam(name = "size", required = false) Integer size,
+            @Parameter(description = "The nextCursor of the previous page, to fetch the page after it.")
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @Parameter(description = "The song fields to return, comma-separated, e.g. title,artists,album,albumArt. All of them if omitted.")
+            @RequestParam(name = "fields", required = false) List<String> fields) {
+        List<String> source = songSearchService.sourceFields(fields);
+        return searchCache.get("album", album, exactMatch, size, source, cursor, () ->
+                songSearchService.search(songSearchService.matchField(SongField.ALBUM, album, exactMatch), size, cursor, source));
     }
 
     /**
@@ -112,20 +236,28 @@ public class SongsSearchController {
      *
      * @param composer The composer's name to search for.
      * @param exactMatch If true, performs an exact match search; otherwise, performs a partial match.
-     * @return A list of songs matching the composer.
+     * @param size The number of songs per page.
+     * @param cursor The previous page's next cursor, or null for the first page.
+     * @param fields The song fields to return, or null for all of them.
+     * @return A page of songs matching the composer.
      */
     @Operation(summary = "Search songs by composer",
                description = "Searches for songs based on their composer, with an option for exact matching.")
     @GetMapping("/search/composer")
-    public List<Song> searchByComposer(
+    public SongPage searchByComposer(
             @Parameter(description = "The composer's name to search for.")
             @RequestParam(name = "q") String composer,
             @Parameter(description = "If true, performs an exact match search; otherwise, performs a partial match.")
-            @RequestParam(name = "exact-match", defaultValue = "false") boolean exactMatch) {
-        if (exactMatch) {
-            return songsRepository.findByComposer(composer);
-        }
-        return songsRepository.searchByComposer(composer);
+            @RequestParam(name = "exact-match", defaultValue = "false") boolean exactMatch,
+            @Parameter(description = "The number of songs per page.")
+            @RequestParam(name = "size", required = false) Integer size,
+            @Parameter(description = "The nextCursor of the previous page, to fetch the page after it.")
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @Parameter(description = "The song fields to return, comma-separated, e.g. title,artists,album,albumArt. All of them if omitted.")
+            @RequestParam(name = "fields", required = false) List<String> fields) {
+        List<String> source = songSearchService.sourceFields(fields);
+        return searchCache.get("composer", composer, exactMatch, size, source, cursor, () ->
+                songSearchService.search(songSearchService.matchField(SongField.COMPOSER, composer, exactMatch), size, cursor, source));
     }
 
     /**
@@ -133,20 +265,28 @@ public class SongsSearchController {
      *
      * @param tags The tags to search for.
      * @param exactMatch If true, performs an exact match search; otherwise, performs a partial match.
-     * @return A list of songs matching the tags.
+     * @param size The number of songs per page.
+     * @param cursor The previous page's next cursor, or null for the first page.
+     * @param fields The song fields to return, or null for all of them.
+     * @return A page of songs matching the tags.
      */
     @Operation(summary = "Search songs by tags",
                description = "Searches for songs based on their tags, with an option for exact matching.")
     @GetMapping("/search/tags")
-    public List<Song> searchByTags(
+    public SongPage searchByTags(
             @Parameter(description = "The tags to search for.")
             @RequestParam(name = "q") String tags,
             @Parameter(description = "If true, performs an exact match search; otherwise, performs a partial match.")
-            @RequestParam(name = "exact-match", defaultValue = "false") boolean exactMatch) {
-        if (exactMatch) {
-            return songsRepository.findByTags(tags);
-        }
-        return songsRepository.searchByTags(tags);
+            @RequestParam(name = "exact-match", defaultValue = "false") boolean exactMatch,
+            @Parameter(description = "The number of songs per page.")
+            @RequestParam(name = "size", required = false) Integer size,
+            @Parameter(description = "The nextCursor of the previous page, to fetch the page after it.")
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @Parameter(description = "The song fields to return, comma-separated, e.g. title,artists,album,albumArt. All of them if omitted.")
+            @RequestParam(name = "fields", required = false) List<String> fields) {
+        List<String> source = songSearchService.sourceFields(fields);
+        return searchCache.get("tags", tags, exactMatch, size, source, cursor, () ->
+                songSearchService.search(songSearchService.matchField(SongField.TAGS, tags, exactMatch), size, cursor, source));
     }
 
     /**
@@ -154,19 +294,103 @@ public class SongsSearchController {
      *
      * @param email The email to search for.
      * @param exactMatch If true, performs an exact match search; otherwise, performs a partial match.
-     * @return A list of songs matching the email.
+     * @param size The number of songs per page.
+     * @param cursor The previous page's next cursor, or null for the first page.
+     * @param fields The song fields to return, or null for all of them.
+     * @return A page of songs matching the email.
      */
     @Operation(summary = "Search songs by email",
                description = "Searches for songs based on the associated email, with an option for exact matching.")
     @GetMapping("/search/email")
-    public List<Song> searchByEmail(
+    public SongPage searchByEmail(
             @Parameter(description = "The email to search for.")
             @RequestParam(name = "q") String email,
             @Parameter(description = "If true, performs an exact match search; otherwise, performs a partial match.")
-            @RequestParam(name = "exact-match", defaultValue = "false") boolean exactMatch) {
-        if (exactMatch) {
-            return songsRepository.findByEmail(email);
+            @RequestParam(name = "exact-match", defaultValue = "false") boolean exactMatch,
+            @Parameter(description = "The number of songs per page.")
+            @RequestParam(name = "size", required = false) Integer size,
+            @Parameter(description = "The nextCursor of the previous page, to fetch the page after it.")
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @Parameter(description = "The song fields to return, comma-separated, e.g. title,artists,album,albumArt. All of them if omitted.")
+            @RequestParam(name = "fields", required = false) List<String> fields) {
+        List<String> source = songSearchService.sourceFields(fields);
+        return searchCache.get("email", email, exactMatch, size, source, cursor, () ->
+                songSearchService.search(songSearchService.matchField(SongField.EMAIL, email, exactMatch), size, cursor, source));
+    }
+
+    /**
+     * Suggests titles, artists, albums and composers as the user types, answered from memory
+     * rather than by Elasticsearch.
+     *
+     * @param prefix The text typed so far; matched against the start of any word.
+     * @param field  Only suggest values of this field (title, artists, album or composer), or all if null.
+     * @param limit  The number of suggestions.
+     * @return Suggestions, those shared by the most songs first, or 400 for a field without suggestions.
+     */
+    @Operation(summary = "Suggest search terms",
+               description = "Typeahead suggestions for titles, artists, albums and composers, ranked by how many songs have them.")
+    @GetMapping("/suggest")
+    public ResponseEntity<List<Suggestion>> suggest(
+            @Parameter(description = "The text typed so far.")
+            @RequestParam(name = "q") String prefix,
+            @Parameter(description = "Only suggest values of this field: title, artists, album or composer.")
+            @RequestParam(name = "field", required = false) String field,
+            @Parameter(description = "The number of suggestions.")
+            @RequestParam(name = "limit", defaultValue = "10") int limit) {
+        SongField songField = field == null || field.isBlank() ? null : SongField.fromName(field);
+        if (field != null && !field.isBlank() && (songField == null || !suggestionIndex.covers(songField))) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(suggestionIndex.suggest(prefix, songField, limit));
+    }
+
+    /**
+     * Counts songs by tag, artist, album and release year, for browse screens.
+     *
+     * @param query Free text the counted songs must match, or null to count every song.
+     * @param size  The number of values per facet.
+     * @return The most common values of each facet with their song counts.
+     */
+    @Operation(summary = "Count songs by tag, artist, album and year",
+               description = "Aggregates song counts per value, over all songs or those matching the query. Cached briefly.")
+    @GetMapping("/facets")
+    public Facets facets(
+            @Parameter(description = "Free text the counted songs must match. If empty, all songs are counted.")
+            @RequestParam(name = "q", required = false) String query,
+            @Parameter(description = "The number of values per facet.")
+            @RequestParam(name = "size", required = false) Integer size) {
+        return facetService.facets(query, size);
+    }
+
+    /**
+     * Exports the whole catalog as NDJSON, one song per line, for analytics jobs that need every song.
+     * Gzip-compressed when the client accepts it.
+     *
+     * @param acceptEncoding The Accept-Encoding request header.
+     * @return A streamed response with one JSON document per line.
+     */
+    @Operation(summary = "Export all songs",
+               description = "Streams every song as newline-delimited JSON, gzip-compressed if the client accepts gzip.")
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> exportSongs(
+            @Parameter(hidden = true) @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        boolean gzip = acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+        StreamingResponseBody body = out -> {
+            if (!gzip) {
+                songExportService.export(out);
+                return;
+            }
+            GZIPOutputStream compressed = new GZIPOutputStream(out, 64 * 1024);
+            songExportService.export(compressed);
+            // finish rather than close, which would close the response stream too
+            compressed.finish();
+        };
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/x-ndjson"))
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
         }
-        return songsRepository.searchByEmail(email);
+        return response.body(body);
     }
 }
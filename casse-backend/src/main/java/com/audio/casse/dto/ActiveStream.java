@@ -0,0 +1,10 @@
+package com.audio.casse.dto;
+
+import java.time.Instant;
+
+/**
+ * @param allocatedBytesPerSecond the stream's current share of bandwidth, or null if unlimited.
+ * @param throughputBytesPerSecond what it actually sent over its last second or so.
+ */
+public record ActiveStream(long id, String user, String song, String phase, Instant startedAt, long bytesSent,
+                           Long allocatedBytesPerSecond, long throughputBytesPerSecond) {}
@@ -0,0 +1,9 @@
+package com.audio.casse.dto;
+
+import java.util.List;
+
+/**
+ * @param buckets    the most common values, most songs first (newest first for years).
+ * @param otherSongs songs whose value did not make the list.
+ */
+public record Facet(List<FacetBucket> buckets, long otherSongs) {}
@@ -0,0 +1,7 @@
+package com.audio.casse.dto;
+
+/**
+ * @param value the value as indexed in the keyword field: lowercased, accents folded.
+ * @param songs how many songs have it.
+ */
+public record FacetBucket(String value, long songs) {}
@@ -0,0 +1,6 @@
+package com.audio.casse.dto;
+
+/**
+ * Song counts by value of the fields browse screens group by.
+ */
+public record Facets(Facet tags, Facet artists, Facet albums, Facet years) {}
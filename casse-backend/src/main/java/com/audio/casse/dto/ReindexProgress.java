@@ -0,0 +1,17 @@
+package com.audio.casse.dto;
+
+import java.time.Instant;
+
+/**
+ * A copy of the songs into a new index version, as last reported by Elasticsearch.
+ *
+ * @param state              RUNNING, CATCHING_UP (the alias points at {@code target}, which is being given the
+ *                           songs approved while it moved), DONE, FAILED or CANCELLED.
+ * @param copied             documents handled so far: created, plus those skipped because an approval
+ *                           had already written them to the target.
+ * @param documentsPerSecond {@code copied} over the time since {@code started}.
+ * @param requestsPerSecond  the throttle, -1 if there is none.
+ */
+public record ReindexProgress(String state, String source, String target, String task, Instant started, Instant finished,
+                              long total, long copied, long batches, double percent, double documentsPerSecond,
+                              float requestsPerSecond, String failure) {}
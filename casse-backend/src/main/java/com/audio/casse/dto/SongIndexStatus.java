@@ -0,0 +1,8 @@
+package com.audio.casse.dto;
+
+/**
+ * @param alias   the name songs are read and written through.
+ * @param index   the index it points at; the alias itself while it is still a plain index.
+ * @param reindex the running reindex, or the last one; null if there never was one.
+ */
+public record SongIndexStatus(String alias, String index, ReindexProgress reindex) {}
@@ -0,0 +1,10 @@
+package com.audio.casse.dto;
+
+import com.audio.casse.models.Song;
+
+import java.util.List;
+
+/**
+ * @param nextCursor pass as {@code cursor}, with the same query, for the next page; null on the last page.
+ */
+public record SongPage(List<Song> songs, String nextCursor) {}
@@ -0,0 +1,5 @@
+package com.audio.casse.dto;
+
+import java.time.Instant;
+
+public record StreamManifest(String url, Instant expiresAt) {}
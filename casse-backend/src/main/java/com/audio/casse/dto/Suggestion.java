@@ -0,0 +1,7 @@
+package com.audio.casse.dto;
+
+/**
+ * @param field which field of the songs the text comes from: title, artists, album or composer.
+ * @param songs how many songs have it, which is what suggestions are ranked by.
+ */
+public record Suggestion(String text, String field, long songs) {}
@@ -22,6 +22,18 @@ public class ApiExceptionHandler {
                 .body(Map.of("error", "unsupported_provider", "message", ex.getMessage()));
     }
 
+    @ExceptionHandler(InvalidSearchCursorException.class)
+    public ResponseEntity<Map<String, String>> handleInvalidCursor(InvalidSearchCursorException ex) {
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .body(Map.of("error", "invalid_cursor", "message", ex.getMessage()));
+    }
+
+    @ExceptionHandler(InvalidSearchFieldsException.class)
+    public ResponseEntity<Map<String, String>> handleInvalidFields(InvalidSearchFieldsException ex) {
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .body(Map.of("error", "invalid_fields", "message", ex.getMessage()));
+    }
+
     @ExceptionHandler(IllegalArgumentException.class)
     public ResponseEntity<Map<String, String>> handleBadEnum(IllegalArgumentException ex) {
         // thrown by OAuthProviderType.valueOf() on an unrecognized {provider} path segment
@@ -0,0 +1,6 @@
+package com.audio.casse.exceptions;
+
+public class InvalidSearchCursorException extends RuntimeException {
+    public InvalidSearchCursorException(String message) { super(message); }
+    public InvalidSearchCursorException(String message, Throwable cause) { super(message, cause); }
+}
@@ -0,0 +1,5 @@
+package com.audio.casse.exceptions;
+
+public class InvalidSearchFieldsException extends RuntimeException {
+    public InvalidSearchFieldsException(String message) { super(message); }
+}
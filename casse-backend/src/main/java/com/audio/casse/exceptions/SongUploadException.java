@@ -0,0 +1,27 @@
+package com.audio.casse.exceptions;
+
+/**
+ * A song upload that did not make it, with the code /home shows for it ({@code ?error=}).
+ */
+public class SongUploadException extends RuntimeException {
+
+    public static final String NO_FILE_SELECTED = "no_file_selected";
+    public static final String FILE_UPLOAD_FAILED = "file_upload_failed";
+    public static final String ALBUM_ART_UPLOAD_FAILED = "album_art_upload_failed";
+
+    private final String error;
+
+    public SongUploadException(String error) {
+        super(error);
+        this.error = error;
+    }
+
+    public SongUploadException(String error, Throwable cause) {
+        super(error, cause);
+        this.error = error;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
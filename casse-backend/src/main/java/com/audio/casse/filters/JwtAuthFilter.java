@@ -8,20 +8,36 @@ import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
-import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Component
-@RequiredArgsConstructor
 public class JwtAuthFilter extends OncePerRequestFilter {
 
+    // the only role there is: the people who approve uploads, who may also use the actuator endpoints
+    public static final String APPROVER = "APPROVER";
+
     private final JwtService jwtService;
+    private final Set<String> approverEmails;
+
+    public JwtAuthFilter(JwtService jwtService, @Value("${casse.approvers}") String approvers) {
+        this.jwtService = jwtService;
+        this.approverEmails = Arrays.stream(approvers.split(","))
+                .map(email -> email.trim().toLowerCase(Locale.ROOT))
+                .filter(email -> !email.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+    }
 
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
@@ -42,7 +58,11 @@ public class JwtAuthFilter extends OncePerRequestFilter {
                         claims.get("name", String.class),
                         claims.get("picture", String.class)
                 );
-                var auth = new UsernamePasswordAuthenticationToken(principal, null, List.of());
+                String email = principal.email();
+                var authorities = email != null && approverEmails.contains(email.toLowerCase(Locale.ROOT))
+                        ? List.of(new SimpleGrantedAuthority("ROLE_" + APPROVER))
+                        : List.<SimpleGrantedAuthority>of();
+                var auth = new UsernamePasswordAuthenticationToken(principal, null, authorities);
                 SecurityContextHolder.getContext().setAuthentication(auth);
             } catch (JwtException ignored) {
                 // invalid/expired token -> leave context empty; protected routes will 401
@@ -0,0 +1,90 @@
+package com.audio.casse.models;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A single HTTP byte range as sent in a {@code Range: bytes=...} request header.
+ * Either {@code first} is set (with an optional {@code last}, e.g. {@code bytes=500-} or
+ * {@code bytes=500-999}), or only {@code suffixLength} is set (e.g. {@code bytes=-500},
+ * the final 500 bytes of the object).
+ *
+ * Multi-range requests are deliberately not modelled - an audio player never needs
+ * multipart/byteranges, and RFC 9110 lets a server ignore a Range header it won't honour.
+ */
+public record ByteRange(Long first, Long last, Long suffixLength) {
+
+    private static final Pattern SINGLE_RANGE = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+
+    /**
+     * @return the parsed range, or null if the header is absent, malformed, or asks for
+     * more than one range - in all of those cases the caller should serve the full object.
+     */
+    public static ByteRange parse(String header) {
+        if (header == null) {
+            return null;
+        }
+        Matcher matcher = SINGLE_RANGE.matcher(header.trim());
+        if (!matcher.matches()) {
+            return null;
+        }
+        String first = matcher.group(1);
+        String last = matcher.group(2);
+        try {
+            if (first.isEmpty()) {
+                if (last.isEmpty()) {
+                    return null;
+                }
+                return new ByteRange(null, null, Long.parseLong(last));
+            }
+            long start = Long.parseLong(first);
+            if (last.isEmpty()) {
+                return new ByteRange(start, null, null);
+            }
+            long end = Long.parseLong(last);
+            return end < start ? null : new ByteRange(start, end, null);
+        } catch (NumberFormatException e) {
+            return null; // digits overflowing a long - treat like any other unusable header
+        }
+    }
+
+    public static ByteRange from(long first) {
+        return new ByteRange(first, null, null);
+    }
+
+    public boolean isSuffix() {
+        return first == null;
+    }
+
+    /**
+     * A range is unsatisfiable when it starts at or past the end of the object, or is
+     * an empty suffix ({@code bytes=-0}).
+     */
+    public boolean isSatisfiable(long length) {
+        if (isSuffix()) {
+            return suffixLength > 0 && length > 0;
+        }
+        return first < length;
+    }
+
+    public long start(long length) {
+        return isSuffix() ? Math.max(0, length - suffixLength) : first;
+    }
+
+    public long end(long length) {
+        if (isSuffix() || last == null) {
+            return length - 1;
+        }
+        return Math.min(last, length - 1);
+    }
+
+    /**
+     * Same syntax as the incoming header, which is also what S3's GetObject range expects.
+     */
+    public String toHeaderValue() {
+        if (isSuffix()) {
+            return "bytes=-" + suffixLength;
+        }
+        return "bytes=" + first + "-" + (last != null ? last : "");
+    }
+}
@@ -0,0 +1,66 @@
+package com.audio.casse.models;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.regex.Pattern;
+
+/**
+ * Storage name derived from an object's content: the SHA-256 of its bytes plus the original
+ * extension, e.g. {@code 9f86d0...0a08.mp3}. Identical files get identical names no matter who
+ * uploads them or what the song is called, and the bytes behind a name can never change.
+ */
+public record ContentAddress(String sha256, String extension) {
+
+    private static final Pattern CONTENT_ADDRESSED_NAME = Pattern.compile("^[0-9a-f]{64}(\\.[A-Za-z0-9]+)?$");
+
+    /**
+     * Hashes the stream to the end (and closes it).
+     *
+     * @param originalFilename used only for its extension; may be null.
+     */
+    public static ContentAddress of(InputStream content, String originalFilename) throws IOException {
+        MessageDigest digest = newDigest();
+        try (DigestInputStream in = new DigestInputStream(content, digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return of(digest, originalFilename);
+    }
+
+    /**
+     * For content hashed on its way somewhere else.
+     *
+     * @param digest from {@link #newDigest()}, fed every byte of the content.
+     */
+    public static ContentAddress of(MessageDigest digest, String originalFilename) {
+        String extension = "";
+        if (originalFilename != null && originalFilename.contains(".")) {
+            extension = originalFilename.substring(originalFilename.lastIndexOf(".")).toLowerCase();
+        }
+        return new ContentAddress(HexFormat.of().formatHex(digest.digest()), extension);
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Names written before content addressing ({@code <title>.mp3}) stay valid and keep their
+     * per-user storage location; only names of this shape are shared and immutable.
+     */
+    public static boolean isContentAddressed(String fileName) {
+        return fileName != null && CONTENT_ADDRESSED_NAME.matcher(fileName).matches();
+    }
+
+    public String fileName() {
+        return sha256 + extension;
+    }
+}
@@ -0,0 +1,21 @@
+package com.audio.casse.models;
+
+/**
+ * How an audio endpoint hands the bytes to the client.
+ * PROXY pipes the object through this service; REDIRECT answers 302 to a short-lived presigned
+ * storage URL so the client downloads straight from R2/MinIO and no servlet thread is held.
+ */
+public enum DeliveryMode {
+    PROXY,
+    REDIRECT;
+
+    /**
+     * @return the mode named by a request parameter (case-insensitive), or the fallback if none was given.
+     */
+    public static DeliveryMode fromParameter(String value, DeliveryMode fallback) {
+        if (value == null || value.isBlank()) {
+            return fallback;
+        }
+        return DeliveryMode.valueOf(value.trim().toUpperCase());
+    }
+}
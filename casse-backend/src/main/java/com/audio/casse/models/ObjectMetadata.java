@@ -0,0 +1,37 @@
+package com.audio.casse.models;
+
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+import java.time.Instant;
+
+/**
+ * What storage reports about an object without its bytes - enough to set Content-Type and
+ * Content-Length, validate a Range and answer a conditional GET.
+ *
+ * @param contentLength the length of the whole object, also when learnt from a ranged GET.
+ * @param lastModified  null when only known from our own upload, which does not report it.
+ */
+public record ObjectMetadata(String contentType, long contentLength, String eTag, Instant lastModified) {
+
+    public static ObjectMetadata from(HeadObjectResponse head) {
+        return new ObjectMetadata(head.contentType(), head.contentLength(), head.eTag(), head.lastModified());
+    }
+
+    /**
+     * For a 206 the object length is taken from the {@code Content-Range: bytes a-b/length} header,
+     * since {@code Content-Length} only covers the range.
+     */
+    public static ObjectMetadata from(GetObjectResponse get) {
+        long contentLength = get.contentLength();
+        String contentRange = get.contentRange();
+        if (contentRange != null) {
+            String total = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+            if (total.equals("*")) {
+                return null;
+            }
+            contentLength = Long.parseLong(total);
+        }
+        return new ObjectMetadata(get.contentType(), contentLength, get.eTag(), get.lastModified());
+    }
+}
@@ -0,0 +1,124 @@
+package com.audio.casse.models;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Time-to-byte map of an MP3: {@code offsets[i]} is where the frame starting at
+ * {@code i * samplesPerPoint} samples begins. Points fall on frame boundaries, so a ranged read
+ * from one decodes cleanly and starts at a known time even in a VBR file.
+ *
+ * Serialized as a small header followed by varint-encoded gaps between offsets, typically well
+ * under 10KB for a whole song.
+ *
+ * @param totalSamples the decoded length of the song, for rejecting seeks past its end.
+ */
+public record SeekTable(int sampleRate, int samplesPerPoint, long totalSamples, long[] offsets) {
+
+    private static final int MAGIC = 0x43534b31; // "CSK1"
+
+    /**
+     * Stored and cached for a file that is not MPEG audio, so it is not scanned again.
+     */
+    public static final SeekTable NONE = new SeekTable(0, 0, 0, new long[0]);
+
+    public boolean isEmpty() {
+        return offsets.length == 0;
+    }
+
+    /**
+     * @return the index of the last point at or before {@code seconds}, or -1 if that is past the end.
+     */
+    public int pointAt(double seconds) {
+        long sample = (long) (seconds * sampleRate);
+        if (sample >= totalSamples || offsets.length == 0) {
+            return -1;
+        }
+        return (int) Math.min(sample / samplesPerPoint, offsets.length - 1);
+    }
+
+    public long offset(int point) {
+        return offsets[point];
+    }
+
+    public double seconds(int point) {
+        return (double) point * samplesPerPoint / sampleRate;
+    }
+
+    public double durationSeconds() {
+        return (double) totalSamples / sampleRate;
+    }
+
+    /**
+     * @return the average bitrate of the audio between the first and last point in bits per
+     * second, or 0 if there are too few points to tell.
+     */
+    public long averageBitrate() {
+        int last = offsets.length - 1;
+        if (last < 1) {
+            return 0;
+        }
+        return Math.round((offsets[last] - offsets[0]) * 8 / seconds(last));
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + offsets.length * 2);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(sampleRate);
+            out.writeInt(samplesPerPoint);
+            out.writeLong(totalSamples);
+            out.writeInt(offsets.length);
+            long previous = 0;
+            for (long offset : offsets) {
+                writeVarLong(out, offset - previous);
+                previous = offset;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // cannot happen writing to memory
+        }
+        return bytes.toByteArray();
+    }
+
+    public static SeekTable fromBytes(byte[] bytes) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a seek table");
+            }
+            int sampleRate = in.readInt();
+            int samplesPerPoint = in.readInt();
+            long totalSamples = in.readLong();
+            long[] offsets = new long[in.readInt()];
+            long previous = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                previous += readVarLong(in);
+                offsets[i] = previous;
+            }
+            return new SeekTable(sampleRate, samplesPerPoint, totalSamples, offsets);
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed seek table");
+    }
+}
@@ -1,5 +1,7 @@
 package com.audio.casse.models;
 
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -7,11 +9,14 @@ import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.elasticsearch.annotations.*;
 
+import java.util.List;
+
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
-@Document(indexName = "music_id3")
+@Document(indexName = "#{@searchProperties.index}", createIndex = false) // an alias, see SongIndexManager
 @JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true) // e.g. the _class Spring Data stores with each document
 public class Song {
 
     @Id
@@ -33,7 +38,9 @@ public class Song {
                     @InnerField(suffix = "keyword", type = FieldType.Keyword, normalizer = "lowercase_fold")
             }
     )
-    private String artists;
+    // one per artist; a song indexed before the migration to arrays still holds a ", "-joined string, read as one value
+    @JsonFormat(with = JsonFormat.Feature.ACCEPT_SINGLE_VALUE_AS_ARRAY)
+    private List<String> artists;
 
     @MultiField(
             mainField = @Field(type = FieldType.Text, analyzer = "standard"),
@@ -60,7 +67,9 @@ public class Song {
                     @InnerField(suffix = "keyword", type = FieldType.Keyword, normalizer = "lowercase_fold")
             }
     )
-    private String tags;
+    // one per tag, read like artists
+    @JsonFormat(with = JsonFormat.Feature.ACCEPT_SINGLE_VALUE_AS_ARRAY)
+    private List<String> tags;
 
     @Field(type = FieldType.Keyword, normalizer = "lowercase_fold")
     private String email;
@@ -0,0 +1,45 @@
+package com.audio.casse.models;
+
+/**
+ * The searchable fields of a Song and the index fields behind them (see music_id3_mapping.json):
+ * exact matches go to the normalized keyword sub-field, partial ones to the edge n-gram one.
+ * {@code email} is a keyword only, so both go to the field itself.
+ */
+public enum SongField {
+    TITLE("title"),
+    ARTISTS("artists"),
+    ALBUM("album"),
+    COMPOSER("composer"),
+    TAGS("tags"),
+    EMAIL("email");
+
+    private final String name;
+
+    SongField(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the field with this name (case-insensitive), or null if there is none.
+     */
+    public static SongField fromName(String name) {
+        for (SongField field : values()) {
+            if (field.name.equalsIgnoreCase(name.trim())) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String exactField() {
+        return this == EMAIL ? name : name + ".keyword";
+    }
+
+    public String partialField() {
+        return this == EMAIL ? name : name + ".autocomplete";
+    }
+}
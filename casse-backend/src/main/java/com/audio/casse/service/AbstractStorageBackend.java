@@ -0,0 +1,263 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.AlbumArtProperties;
+import com.audio.casse.models.ByteRange;
+import com.audio.casse.models.ContentAddress;
+import com.audio.casse.models.ObjectMetadata;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * What every backend shares: the key layout, reference counting of content-addressed files, and
+ * cleaning up what was derived from a file when it goes. Subclasses only move bytes.
+ */
+@Slf4j
+public abstract class AbstractStorageBackend implements StorageBackend {
+
+    private final AudioDiskCache diskCache;
+    private final ObjectReferenceService objectReferenceService;
+    private final List<Integer> thumbnailSizes;
+    private final ExecutorService fileUploadExecutor;
+
+    protected AbstractStorageBackend(AudioDiskCache diskCache, ObjectReferenceService objectReferenceService,
+                                     AlbumArtProperties albumArtProperties, int uploadThreads) {
+        this.diskCache = diskCache;
+        this.objectReferenceService = objectReferenceService;
+        this.thumbnailSizes = albumArtProperties.getThumbnailSizes();
+        this.fileUploadExecutor = Executors.newFixedThreadPool(uploadThreads);
+    }
+
+    protected void shutdown() {
+        fileUploadExecutor.shutdown();
+    }
+
+    /**
+     * Stores an uploaded file under {@code objectKey}, replacing any object already there.
+     *
+     * @param size the exact number of bytes {@code content} holds.
+     */
+    protected abstract void putFile(InputStream content, long size, String contentType, String objectKey) throws IOException;
+
+    /**
+     * Opens an upload to a temporary object; see StagedUpload.
+     */
+    protected abstract StagedUpload stage(String contentType) throws IOException;
+
+    /**
+     * @param range the bytes to read, or null for the whole object.
+     * @throws software.amazon.awssdk.services.s3.model.NoSuchKeyException if there is no such object.
+     * @throws software.amazon.awssdk.services.s3.model.S3Exception with status 416 if the range is unsatisfiable.
+     */
+    protected abstract ResponseInputStream<GetObjectResponse> getObject(String objectKey, ByteRange range);
+
+    /**
+     * @return the object's metadata, or null if there is no such object.
+     */
+    protected abstract ObjectMetadata headIfExists(String objectKey);
+
+    protected abstract void deleteObject(String objectKey);
+
+    /**
+     * Deletes whichever of these objects exist.
+     */
+    protected abstract void deleteObjects(List<String> objectKeys);
+
+    protected abstract List<String> listKeys(String prefix);
+
+    private void uploadFile(String userName, String fileName, FileType fileType, ObjectWriter writer) throws IOException {
+        String objectKey = objectKey(userName, fileName, fileType);
+        if (ContentAddress.isContentAddressed(fileName)) {
+            // Take the reference before checking, so a concurrent release of the last
+            // reference cannot delete the object between our check and our caller's use of it.
+            if (objectReferenceService.retain(objectKey) > 1 && headIfExists(objectKey) != null) {
+                log.info("Skipping upload of '{}', identical content is already stored", objectKey);
+                return;
+            }
+            try {
+                writer.write(objectKey);
+            } catch (IOException | RuntimeException e) {
+                objectReferenceService.release(objectKey);
+                throw e;
+            }
+            return;
+        }
+        writer.write(objectKey);
+    }
+
+    @Override
+    public StagedUpload stageSong(String contentType) throws IOException {
+        return stage(contentType);
+    }
+
+    @Override
+    public void storeSong(StagedUpload upload, String userName, String fileName) throws IOException {
+        try (upload) {
+            uploadFile(userName, fileName, FileType.SONG, upload::storeAs);
+        }
+    }
+
+    @Override
+    public void uploadAlbumArt(byte[] content, String contentType, String userName, String fileName) throws IOException {
+        uploadFile(userName, fileName, FileType.ALBUM_ART,
+                objectKey -> putFile(new ByteArrayInputStream(content), content.length, contentType, objectKey));
+    }
+
+    @Override
+    public CompletableFuture<Void> uploadAlbumArtAsync(byte[] content, String contentType, String userName, String fileName) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                uploadAlbumArt(content, contentType, userName, fileName);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, fileUploadExecutor);
+    }
+
+    @Override
+    public ResponseInputStream<GetObjectResponse> openObject(String objectKey) {
+        return getObject(objectKey, null);
+    }
+
+    @Override
+    public ResponseInputStream<GetObjectResponse> streamSong(String fileName, String userName) {
+        return streamSong(fileName, userName, null);
+    }
+
+    @Override
+    public ResponseInputStream<GetObjectResponse> streamSong(String fileName, String userName, ByteRange range) {
+        return getObject(songKey(fileName, userName), range);
+    }
+
+    @Override
+    public ResponseInputStream<GetObjectResponse> streamAlbumArt(String fileName, String userName) {
+        return getObject(albumArtKey(fileName, userName), null);
+    }
+
+    @Override
+    public ObjectMetadata songMetadata(String fileName, String userName) {
+        return objectMetadata(songKey(fileName, userName));
+    }
+
+    @Override
+    public String songKey(String fileName, String userName) {
+        return objectKey(userName, fileName, FileType.SONG);
+    }
+
+    @Override
+    public String albumArtKey(String fileName, String userName) {
+        return objectKey(userName, fileName, FileType.ALBUM_ART);
+    }
+
+    /**
+     * Thumbnails sit next to their original, e.g. {@code album-art/<sha256>_256.jpg}, so they share
+     * its location (per user or shared) and its lifetime.
+     */
+    @Override
+    public String albumArtThumbnailKey(String fileName, String userName, int size) {
+        return siblingKey(albumArtKey(fileName, userName), "_" + size + ".jpg");
+    }
+
+    /**
+     * The song's seek table, e.g. {@code songs/<sha256>.seek}.
+     */
+    @Override
+    public String songSeekTableKey(String fileName, String userName) {
+        return siblingKey(songKey(fileName, userName), ".seek");
+    }
+
+    /**
+     * Folder holding the song's HLS playlist ({@code index.m3u8}) and segments, e.g. {@code songs/<sha256>.hls/}.
+     */
+    @Override
+    public String songHlsPrefix(String fileName, String userName) {
+        return siblingKey(songKey(fileName, userName), ".hls/");
+    }
+
+    private String siblingKey(String objectKey, String suffix) {
+        int extension = objectKey.lastIndexOf('.');
+        String base = extension > objectKey.lastIndexOf('/') ? objectKey.substring(0, extension) : objectKey;
+        return base + suffix;
+    }
+
+    /**
+     * Content-addressed files live in one shared folder ({@code songs/<sha256>.mp3}) since the same
+     * bytes are the same object whoever uploaded them; legacy names stay under the uploader's folder.
+     */
+    private String objectKey(String userName, String fileName, FileType fileType) {
+        if (ContentAddress.isContentAddressed(fileName)) {
+            return fileType.getFolder() + "/" + fileName;
+        }
+        return userName + "/" + fileType.getFolder() + "/" + fileName;
+    }
+
+    /**
+     * Deletes a file - or, for a content-addressed one, drops one reference to it and only deletes
+     * the shared object once nothing else refers to it.
+     */
+    private void deleteFile(String userName, String fileName, FileType fileType) {
+        String objectKey = objectKey(userName, fileName, fileType);
+        if (ContentAddress.isContentAddressed(fileName) && !objectReferenceService.release(objectKey)) {
+            log.info("Keeping '{}', it is still referenced by other songs", objectKey);
+            return;
+        }
+        deleteObject(objectKey);
+        diskCache.invalidate(objectKey);
+
+        List<String> derivatives = derivativeKeys(userName, fileName, fileType);
+        deleteObjects(derivatives);
+        derivatives.forEach(diskCache::invalidate);
+    }
+
+    /**
+     * Objects generated from a file (album art thumbnails, a song's seek table) that go when it goes.
+     */
+    private List<String> derivativeKeys(String userName, String fileName, FileType fileType) {
+        if (fileType == FileType.ALBUM_ART) {
+            return thumbnailSizes.stream().map(size -> albumArtThumbnailKey(fileName, userName, size)).toList();
+        }
+        List<String> keys = new ArrayList<>(listKeys(songHlsPrefix(fileName, userName)));
+        keys.add(songSeekTableKey(fileName, userName));
+        return keys;
+    }
+
+    @Override
+    public void deleteSong(String fileName, String userName) {
+        deleteFile(userName, fileName, FileType.SONG);
+    }
+
+    @Override
+    public void deleteAlbumArt(String fileName, String userName) {
+        deleteFile(userName, fileName, FileType.ALBUM_ART);
+    }
+
+    @FunctionalInterface
+    private interface ObjectWriter {
+        void write(String objectKey) throws IOException;
+    }
+
+    private enum FileType {
+        SONG("songs"),
+        ALBUM_ART("album-art");
+
+        private final String folder;
+
+        FileType(String folder) {
+            this.folder = folder;
+        }
+
+        public String getFolder() {
+            return folder;
+        }
+    }
+}
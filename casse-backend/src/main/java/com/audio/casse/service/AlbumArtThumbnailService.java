@@ -0,0 +1,245 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.AlbumArtProperties;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Generates JPEG thumbnails of album art in the configured sizes and stores them next to the original.
+ *
+ * Thumbnails are produced right after upload, and lazily the first time a missing one is requested.
+ * All work runs on a small bounded pool, one job per original image: the original is read and
+ * decoded once and every missing size is rendered from it.
+ */
+@Service
+@Slf4j
+public class AlbumArtThumbnailService {
+
+    private static final String THUMBNAIL_CONTENT_TYPE = "image/jpeg";
+
+    private final StorageBackend storage;
+    private final AlbumArtProperties properties;
+    private final List<Integer> sizes;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, CompletableFuture<Void>> inProgress = new ConcurrentHashMap<>();
+
+    public AlbumArtThumbnailService(StorageBackend storage, AlbumArtProperties properties) {
+        this.storage = storage;
+        this.properties = properties;
+        this.sizes = properties.getThumbnailSizes().stream().sorted().toList();
+        this.executor = new ThreadPoolExecutor(properties.getThreads(), properties.getThreads(),
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(properties.getQueueCapacity()),
+                new CustomizableThreadFactory("album-art-thumbnails-"));
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Queues thumbnail generation for freshly uploaded album art. Never blocks the upload: when the
+     * pool is saturated the thumbnails are simply made on first request instead.
+     */
+    public void generateInBackground(String fileName, String userName) {
+        generate(fileName, userName).whenComplete((done, error) -> {
+            if (error != null) {
+                log.warn("Could not generate thumbnails for album art '{}': {}", fileName, error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * The storage key to serve for a {@code ?size=} request: the smallest thumbnail at least that
+     * large (generated now if missing), or the original when no size was asked for or the thumbnail
+     * cannot be had within {@code lazy-timeout}.
+     */
+    public String resolveKey(String fileName, String userName, Integer requestedSize) {
+        String originalKey = storage.albumArtKey(fileName, userName);
+        if (requestedSize == null || sizes.isEmpty()) {
+            return originalKey;
+        }
+        String thumbnailKey = storage.albumArtThumbnailKey(fileName, userName, thumbnailSize(requestedSize));
+        if (storage.objectExists(thumbnailKey)) {
+            return thumbnailKey;
+        }
+        try {
+            generate(fileName, userName).get(properties.getLazyTimeout().toMillis(), TimeUnit.MILLISECONDS);
+            return thumbnailKey;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Serving original album art '{}', thumbnail unavailable: {}", fileName, e.toString());
+        }
+        return originalKey;
+    }
+
+    private int thumbnailSize(int requestedSize) {
+        return sizes.stream()
+                .filter(size -> size >= requestedSize)
+                .findFirst()
+                .orElse(sizes.get(sizes.size() - 1));
+    }
+
+    /**
+     * Concurrent callers for the same image share one job.
+     */
+    private CompletableFuture<Void> generate(String fileName, String userName) {
+        String originalKey = storage.albumArtKey(fileName, userName);
+        CompletableFuture<Void> job = new CompletableFuture<>();
+        CompletableFuture<Void> running = inProgress.putIfAbsent(originalKey, job);
+        if (running != null) {
+            return running;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    render(fileName, userName);
+                    inProgress.remove(originalKey, job);
+                    job.complete(null);
+                } catch (Throwable e) {
+                    inProgress.remove(originalKey, job);
+                    job.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inProgress.remove(originalKey, job);
+            job.completeExceptionally(e);
+        }
+        return job;
+    }
+
+    private void render(String fileName, String userName) throws IOException {
+        List<Integer> missing = sizes.stream()
+                .filter(size -> !storage.objectExists(storage.albumArtThumbnailKey(fileName, userName, size)))
+                .toList();
+        if (missing.isEmpty()) {
+            return;
+        }
+        BufferedImage original;
+        try (ResponseInputStream<GetObjectResponse> in = storage.streamAlbumArt(fileName, userName)) {
+            original = decode(in, Collections.max(missing));
+        }
+        for (int size : missing) {
+            byte[] jpeg = encodeJpeg(scale(original, size));
+            storage.putObject(storage.albumArtThumbnailKey(fileName, userName, size), jpeg, THUMBNAIL_CONTENT_TYPE);
+        }
+        log.info("Generated {} thumbnail(s) for album art '{}'", missing.size(), fileName);
+    }
+
+    /**
+     * Checks the dimensions before decoding, and lets the decoder skip pixels of originals far larger
+     * than the biggest thumbnail - a 4000px cover then never materializes at full size on the heap.
+     */
+    private BufferedImage decode(ResponseInputStream<GetObjectResponse> in, int largestSize) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > properties.getMaxSourcePixels()) {
+                    throw new IOException("Image of " + width + "x" + height + " is too large");
+                }
+                // keep at least twice the target resolution so the final scaling step still has detail to work with
+                int subsampling = Math.max(1, Math.min(width, height) / (2 * largestSize));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Fits the image into a {@code size} x {@code size} box (never enlarging it), halving at most
+     * per step since a single bilinear pass over a much larger image drops most of its pixels.
+     */
+    private BufferedImage scale(BufferedImage source, int size) {
+        double ratio = Math.min(1.0, (double) size / Math.max(source.getWidth(), source.getHeight()));
+        int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * ratio));
+
+        BufferedImage current = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            current = draw(current, width, height);
+        } while (width != targetWidth || height != targetHeight);
+        return current;
+    }
+
+    /**
+     * Draws onto an opaque RGB canvas, as JPEG has no alpha channel.
+     */
+    private BufferedImage draw(BufferedImage source, int width, int height) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+
+    private byte[] encodeJpeg(BufferedImage image) {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(properties.getJpegQuality());
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,461 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.R2CacheProperties;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Node-local, size-capped disk cache for audio objects pulled from R2, kept in fixed-size blocks
+ * ({@code cloudflare.r2.cache.block-size}). Any read from storage, whole or ranged, writes the
+ * blocks it fully covers, so a seek or a resumed play caches what it fetched and a later read is
+ * served from disk as soon as every block it needs is there.
+ *
+ * Each object is stored as a sparse {@code .data} file of the object's full length plus a
+ * {@code .meta} properties sidecar carrying the original key, response headers and which blocks
+ * are present, so the index can be rebuilt from the directory after a restart. The in-memory index
+ * is a Caffeine cache weighted by the bytes present; its eviction policy (W-TinyLFU) decides what
+ * leaves the disk, and the removal listener deletes the files.
+ *
+ * File names carry a per-entry id so a refill of the same key never collides with the files of the
+ * entry it replaces - Caffeine notifies removals asynchronously.
+ */
+@Service
+@Slf4j
+public class AudioDiskCache {
+
+    private static final String DATA_SUFFIX = ".data";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private final R2CacheProperties properties;
+    private final MeterRegistry meterRegistry;
+
+    private Cache<String, CachedObject> index;
+    private Counter blockMisses;
+
+    public AudioDiskCache(R2CacheProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        Files.createDirectories(properties.getDirectory());
+        index = Caffeine.newBuilder()
+                .maximumWeight(properties.getMaxSize().toBytes())
+                .weigher((String key, CachedObject object) -> (int) Math.min(Integer.MAX_VALUE, object.cachedBytes()))
+                .removalListener((String key, CachedObject object, RemovalCause cause) -> {
+                    // a replacement holding more blocks of the same files keeps them
+                    if (object != null && !isCurrent(object)) {
+                        object.deleteFiles();
+                    }
+                })
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, index, "audio-disk-cache");
+        blockMisses = Counter.builder("audio.disk.cache.block.misses")
+                .description("Reads of a cached object that lacked some of the blocks asked for")
+                .register(meterRegistry);
+
+        reindex();
+    }
+
+    public boolean isEnabled() {
+        return index != null;
+    }
+
+    /**
+     * @return the cached object, which may hold only some of its blocks, or null on a miss (or when
+     * the cache is disabled).
+     */
+    public CachedObject get(String objectKey) {
+        if (!isEnabled()) {
+            return null;
+        }
+        CachedObject object = index.getIfPresent(objectKey);
+        if (object != null && !Files.exists(object.dataFile())) {
+            // someone cleaned the directory under us - drop the stale entry and treat as a miss
+            index.invalidate(objectKey);
+            return null;
+        }
+        return object;
+    }
+
+    /**
+     * @return whether {@code object} holds every byte from {@code start} to {@code end}, inclusive;
+     * if not, the read goes to storage and is counted as a block miss.
+     */
+    public boolean covers(CachedObject object, long start, long end) {
+        if (object.covers(start, end)) {
+            return true;
+        }
+        blockMisses.increment();
+        return false;
+    }
+
+    public void invalidate(String objectKey) {
+        if (isEnabled()) {
+            index.invalidate(objectKey);
+        }
+    }
+
+    /**
+     * Starts writing a storage response, whole or ranged ({@code Content-Range}), into the cache.
+     * Whatever is written is published block by block when the fill is committed or closed, so a
+     * read cut short still caches the blocks it got through.
+     *
+     * @return the fill, or null if the cache is disabled, the object could never fit, or the
+     * response holds no block the cache does not have yet.
+     */
+    public CacheFill beginFill(String objectKey, GetObjectResponse response) {
+        if (!isEnabled() || response.contentLength() == null) {
+            return null;
+        }
+        long start = 0;
+        long length = response.contentLength();
+        if (response.contentRange() != null) {
+            Matcher matcher = CONTENT_RANGE.matcher(response.contentRange());
+            if (!matcher.matches()) {
+                return null;
+            }
+            start = Long.parseLong(matcher.group(1));
+            length = Long.parseLong(matcher.group(3));
+        }
+        if (length == 0 || length > properties.getMaxSize().toBytes()) {
+            return null;
+        }
+
+        CachedObject current = index.policy().getIfPresentQuietly(objectKey);
+        CachedObject object;
+        if (current != null && current.length() == length && Objects.equals(current.eTag(), response.eTag())
+                && Files.exists(current.dataFile())) {
+            if (current.covers(start, start + response.contentLength() - 1)) {
+                return null;
+            }
+            object = current;
+        } else {
+            String fileId = fileId(objectKey) + "." + UUID.randomUUID();
+            object = new CachedObject(objectKey,
+                    properties.getDirectory().resolve(fileId + DATA_SUFFIX),
+                    properties.getDirectory().resolve(fileId + META_SUFFIX),
+                    length, response.contentType(), response.eTag(), response.lastModified(),
+                    (int) properties.getBlockSize().toBytes(), new BitSet());
+        }
+        try {
+            FileChannel channel = FileChannel.open(object.dataFile(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (channel.size() < length) {
+                // sized up front, so blocks can land anywhere; the gaps take no disk space
+                channel.write(ByteBuffer.allocate(1), length - 1);
+            }
+            return new CacheFill(object, channel, start);
+        } catch (IOException e) {
+            log.warn("Could not start caching '{}': {}", objectKey, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Adds the blocks a fill wrote to its entry and records them in the sidecar.
+     */
+    private void addBlocks(CachedObject filled, BitSet blocks) {
+        CachedObject merged = index.asMap().compute(filled.objectKey(), (key, current) -> {
+            BitSet union = (BitSet) blocks.clone();
+            if (current != null && current.dataFile().equals(filled.dataFile())) {
+                union.or(current.blocks());
+            }
+            return filled.withBlocks(union);
+        });
+        try {
+            writeMeta(merged);
+        } catch (IOException e) {
+            // the blocks are served until evicted, just not restored after a restart
+            log.warn("Could not record cached blocks of '{}': {}", filled.objectKey(), e.getMessage());
+        }
+    }
+
+    private boolean isCurrent(CachedObject object) {
+        CachedObject current = index.policy().getIfPresentQuietly(object.objectKey());
+        return current != null && current.dataFile().equals(object.dataFile());
+    }
+
+    private void writeMeta(CachedObject object) throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty("key", object.objectKey());
+        meta.setProperty("length", Long.toString(object.length()));
+        meta.setProperty("blockSize", Integer.toString(object.blockSize()));
+        meta.setProperty("blocks", Base64.getEncoder().encodeToString(object.blocks().toByteArray()));
+        if (object.contentType() != null) {
+            meta.setProperty("contentType", object.contentType());
+        }
+        if (object.eTag() != null) {
+            meta.setProperty("eTag", object.eTag());
+        }
+        if (object.lastModified() != null) {
+            meta.setProperty("lastModified", object.lastModified().toString());
+        }
+        // fills of the same entry may finish together, so each writes its own temp file
+        Path tempFile = object.metaFile().resolveSibling(object.metaFile().getFileName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+        try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            meta.store(writer, null);
+        }
+        Files.move(tempFile, object.metaFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Rebuilds the index from the sidecar files left by a previous run. Oldest files are loaded
+     * first so, if the directory is over budget, they are the first to be evicted.
+     */
+    private void reindex() throws IOException {
+        List<Path> metaFiles = new ArrayList<>();
+        Set<Path> dataFiles = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(properties.getDirectory())) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(path); // a sidecar write interrupted by the shutdown
+                } else if (name.endsWith(META_SUFFIX)) {
+                    metaFiles.add(path);
+                } else if (name.endsWith(DATA_SUFFIX)) {
+                    dataFiles.add(path);
+                }
+            }
+        }
+        metaFiles.sort(Comparator.comparing(AudioDiskCache::lastModifiedTime));
+
+        int restored = 0;
+        for (Path metaFile : metaFiles) {
+            CachedObject object = readMeta(metaFile);
+            if (object == null || !Files.exists(object.dataFile()) || Files.size(object.dataFile()) != object.length()) {
+                Files.deleteIfExists(metaFile);
+                if (object != null) {
+                    Files.deleteIfExists(object.dataFile());
+                }
+                continue;
+            }
+            index.put(object.objectKey(), object);
+            dataFiles.remove(object.dataFile());
+            restored++;
+        }
+        // the first blocks of an object were still being written at the shutdown
+        for (Path orphan : dataFiles) {
+            Files.deleteIfExists(orphan);
+        }
+        log.info("Audio disk cache at '{}' restored {} objects", properties.getDirectory(), restored);
+    }
+
+    private CachedObject readMeta(Path metaFile) {
+        Properties meta = new Properties();
+        try (Reader reader = Files.newBufferedReader(metaFile, StandardCharsets.UTF_8)) {
+            meta.load(reader);
+            String name = metaFile.getFileName().toString();
+            String fileId = name.substring(0, name.length() - META_SUFFIX.length());
+            long length = Long.parseLong(meta.getProperty("length"));
+            String lastModified = meta.getProperty("lastModified");
+            String blockSize = meta.getProperty("blockSize");
+            String blocks = meta.getProperty("blocks");
+            CachedObject object = new CachedObject(meta.getProperty("key"),
+                    metaFile.resolveSibling(fileId + DATA_SUFFIX),
+                    metaFile,
+                    length,
+                    meta.getProperty("contentType"),
+                    meta.getProperty("eTag"),
+                    lastModified != null ? Instant.parse(lastModified) : null,
+                    blockSize != null ? Integer.parseInt(blockSize) : (int) properties.getBlockSize().toBytes(),
+                    blocks != null ? BitSet.valueOf(Base64.getDecoder().decode(blocks)) : new BitSet());
+            // sidecars written before block caching only ever described whole objects
+            return blocks != null ? object : object.withBlocks(object.allBlocks());
+        } catch (Exception e) {
+            log.warn("Ignoring unreadable cache sidecar '{}': {}", metaFile, e.getMessage());
+            return null;
+        }
+    }
+
+    private static Instant lastModifiedTime(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toInstant();
+        } catch (IOException e) {
+            return Instant.EPOCH;
+        }
+    }
+
+    private static String fileId(String objectKey) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(objectKey.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * An object on local disk, or the blocks of it fetched so far, together with the R2 headers it
+     * was served with. Never changed once built: adding blocks builds a new one over the same files.
+     *
+     * @param blocks block {@code i} holds bytes {@code i * blockSize} up to the next block or the end.
+     */
+    public record CachedObject(String objectKey, Path dataFile, Path metaFile, long length,
+                               String contentType, String eTag, Instant lastModified,
+                               int blockSize, BitSet blocks) {
+
+        public boolean isComplete() {
+            return blocks.cardinality() == blockCount();
+        }
+
+        /**
+         * @return whether every byte from {@code start} to {@code end}, inclusive, is on disk.
+         */
+        public boolean covers(long start, long end) {
+            int first = (int) (start / blockSize);
+            int last = (int) (Math.min(end, length - 1) / blockSize);
+            return blocks.nextClearBit(first) > last;
+        }
+
+        private int blockCount() {
+            return (int) ((length + blockSize - 1) / blockSize);
+        }
+
+        private long cachedBytes() {
+            return Math.min(length, (long) blocks.cardinality() * blockSize);
+        }
+
+        private BitSet allBlocks() {
+            BitSet all = new BitSet();
+            all.set(0, blockCount());
+            return all;
+        }
+
+        /**
+         * @return the blocks lying wholly within bytes {@code from} (inclusive) to {@code to} (exclusive).
+         */
+        private BitSet blocksWithin(long from, long to) {
+            BitSet within = new BitSet();
+            for (long block = (from + blockSize - 1) / blockSize; Math.min((block + 1) * blockSize, length) <= to
+                    && block < blockCount(); block++) {
+                within.set((int) block);
+            }
+            return within;
+        }
+
+        private CachedObject withBlocks(BitSet blocks) {
+            return new CachedObject(objectKey, dataFile, metaFile, length, contentType, eTag, lastModified, blockSize, blocks);
+        }
+
+        private void deleteFiles() {
+            try {
+                Files.deleteIfExists(metaFile);
+                Files.deleteIfExists(dataFile);
+            } catch (IOException e) {
+                log.warn("Could not delete cached files for '{}': {}", objectKey, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write side of a cache entry, starting at the offset of the response being copied. Write
+     * failures (e.g. a full disk) are swallowed and only stop the fill, so teeing a client stream
+     * into the cache can never break the stream.
+     */
+    public class CacheFill implements AutoCloseable {
+
+        private final CachedObject object;
+        private final FileChannel channel;
+        private final long start;
+        private long written;
+        private boolean failed;
+        private boolean done;
+
+        private CacheFill(CachedObject object, FileChannel channel, long start) {
+            this.object = object;
+            this.channel = channel;
+            this.start = start;
+        }
+
+        public void write(byte[] buffer, int offset, int length) {
+            if (failed || done) {
+                return;
+            }
+            try {
+                ByteBuffer source = ByteBuffer.wrap(buffer, offset, length);
+                long position = start + written;
+                while (source.hasRemaining()) {
+                    position += channel.write(source, position);
+                }
+                written += length;
+            } catch (IOException e) {
+                log.warn("Caching '{}' failed while writing: {}", object.objectKey(), e.getMessage());
+                failed = true;
+            }
+        }
+
+        /**
+         * Publishes the blocks written so far; nothing may be written after.
+         */
+        public void commit() {
+            if (done) {
+                return;
+            }
+            done = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Could not close cache file of '{}': {}", object.objectKey(), e.getMessage());
+                return;
+            }
+            BitSet blocks = object.blocksWithin(start, start + written);
+            if (!blocks.isEmpty()) {
+                addBlocks(object, blocks);
+            } else if (!isCurrent(object)) {
+                object.deleteFiles();
+            }
+        }
+
+        /**
+         * Same as commit(): a read cut short still caches the blocks it got through.
+         */
+        @Override
+        public void close() {
+            commit();
+        }
+    }
+
+}
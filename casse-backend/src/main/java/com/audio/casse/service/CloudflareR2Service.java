@@ -1,73 +1,260 @@
 package com.audio.casse.service;
 
+import com.audio.casse.config.properties.AlbumArtProperties;
+import com.audio.casse.config.properties.R2MetadataProperties;
+import com.audio.casse.config.properties.R2ResilienceProperties;
+import com.audio.casse.config.properties.R2UploadProperties;
+import com.audio.casse.dto.StreamManifest;
+import com.audio.casse.models.ByteRange;
+import com.audio.casse.models.ObjectMetadata;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PreDestroy;
 import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3Configuration;
 import software.amazon.awssdk.services.s3.model.*;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedGetObjectRequest;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
 import static software.amazon.awssdk.core.sync.RequestBody.fromInputStream;
 
-
+/**
+ * The storage backend for Cloudflare R2, or any S3-compatible store such as MinIO.
+ */
 @Service
+@ConditionalOnProperty(name = "casse.storage.backend", havingValue = "r2", matchIfMissing = true)
 @Getter
-public class CloudflareR2Service {
+@Slf4j
+public class CloudflareR2Service extends AbstractStorageBackend {
 
     private final S3Client s3Client;
+    private final S3Presigner s3Presigner;
     private final String bucketName;
     private final String endpoint;
     private final Environment environment;
+    private final R2UploadProperties uploadProperties;
+    private final ExecutorService partUploadExecutor;
+    private final Cache<String, ObjectMetadata> metadataCache;
+    private final StorageCallPolicy callPolicy;
+    private final Duration uploadAttemptTimeout;
+    private final StorageReplicas replicas;
 
     public CloudflareR2Service(
             @Value("${cloudflare.r2.access-key}") String accessKey,
             @Value("${cloudflare.r2.secret-key}") String secretKey,
             @Value("${cloudflare.r2.endpoint}") String endpoint,
             @Value("${cloudflare.r2.bucket-name}") String bucketName,
-            Environment environment) {
+            Environment environment,
+            AudioDiskCache diskCache,
+            R2UploadProperties uploadProperties,
+            ObjectReferenceService objectReferenceService,
+            R2MetadataProperties metadataProperties,
+            AlbumArtProperties albumArtProperties,
+            R2ResilienceProperties resilienceProperties,
+            StorageReplicas replicas,
+            MeterRegistry meterRegistry) {
 
+        super(diskCache, objectReferenceService, albumArtProperties, uploadProperties.getThreads());
         this.bucketName = bucketName;
         this.endpoint = endpoint;
         this.environment = environment;
+        this.uploadProperties = uploadProperties;
+        // parts and whole files run on separate pools: a file task blocks until its parts are done,
+        // so sharing one pool could fill it with file tasks waiting on parts that never get a thread
+        this.partUploadExecutor = Executors.newFixedThreadPool(uploadProperties.getThreads());
+        this.metadataCache = Caffeine.newBuilder()
+                .maximumSize(metadataProperties.getMaxEntries())
+                .expireAfterWrite(metadataProperties.getTtl())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, metadataCache, "r2-object-metadata");
+        this.callPolicy = new StorageCallPolicy("r2", resilienceProperties, meterRegistry);
+        this.uploadAttemptTimeout = resilienceProperties.getUploadAttemptTimeout();
+        this.replicas = replicas;
+
+        // without an attempt timeout one stuck connection holds a request until the socket gives up
+        ClientOverrideConfiguration overrides = ClientOverrideConfiguration.builder()
+                .apiCallAttemptTimeout(resilienceProperties.getAttemptTimeout())
+                .retryPolicy(RetryPolicy.builder().numRetries(resilienceProperties.getMaxAttempts() - 1).build())
+                .build();
 
         this.s3Client = S3Client.builder()
                 .endpointOverride(java.net.URI.create(endpoint))
                 .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create(accessKey, secretKey)))
                 .region(Region.US_EAST_1) // MinIO and R2 both work with this
                 .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build()) // Required for MinIO
+                .overrideConfiguration(overrides)
+                .build();
+
+        this.s3Presigner = S3Presigner.builder()
+                .endpointOverride(java.net.URI.create(endpoint))
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create(accessKey, secretKey)))
+                .region(Region.US_EAST_1)
+                .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build())
                 .build();
     }
 
-    private void uploadFile(MultipartFile file, String userName, String fileName, FileType fileType) throws IOException {
-        String objectKey = userName + "/" + fileType.getFolder() + "/" + fileName;
-        PutObjectRequest request = PutObjectRequest.builder()
+    @PreDestroy
+    @Override
+    protected void shutdown() {
+        super.shutdown();
+        partUploadExecutor.shutdown();
+        callPolicy.shutdown();
+    }
+
+    @Override
+    protected void putFile(InputStream content, long size, String contentType, String objectKey) throws IOException {
+        String eTag;
+        if (size > uploadProperties.getPartSize().toBytes()) {
+            eTag = multipartUpload(objectKey, contentType, content);
+        } else {
+            PutObjectRequest request = PutObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(objectKey)
+                    .contentLength(size)
+                    .contentType(contentType)
+                    .overrideConfiguration(o -> o.apiCallAttemptTimeout(uploadAttemptTimeout))
+                    .build();
+
+            try (content) {
+                eTag = callPolicy.upload(() -> s3Client.putObject(request, fromInputStream(content, size)).eTag());
+            }
+        }
+        // a PUT does not report Last-Modified; the first HEAD or GET fills it in
+        metadataCache.put(objectKey, new ObjectMetadata(contentType, size, eTag, null));
+        replicas.recordWrite(objectKey);
+    }
+
+    @Override
+    protected StagedUpload stage(String contentType) {
+        return new StagedMultipartUpload(contentType);
+    }
+
+    /**
+     * Streams the input into an S3 multipart upload, uploading up to {@code max-in-flight-parts}
+     * parts in parallel while the next one is being read. Memory per upload is bounded by
+     * part-size * max-in-flight-parts regardless of the file size. Any failure aborts the upload,
+     * so R2 does not keep (and bill for) orphaned parts.
+     *
+     * @return the ETag of the completed object.
+     */
+    private String multipartUpload(String objectKey, String contentType, InputStream input) throws IOException {
+        String uploadId = callPolicy.upload(() -> s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
                 .bucket(bucketName)
                 .key(objectKey)
-                .contentLength(file.getSize())
-                .contentType(file.getContentType())
-                .build();
+                .contentType(contentType)
+                .build()).uploadId());
+
+        int partSize = (int) uploadProperties.getPartSize().toBytes();
+        Semaphore inFlight = new Semaphore(uploadProperties.getMaxInFlightParts());
+        List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+        try (InputStream in = input) {
+            int partNumber = 1;
+            byte[] part;
+            while ((part = in.readNBytes(partSize)).length > 0) {
+                inFlight.acquire();
+                if (parts.stream().anyMatch(CompletableFuture::isCompletedExceptionally)) {
+                    inFlight.release();
+                    break; // the join below rethrows the failure
+                }
+                parts.add(uploadPart(objectKey, uploadId, partNumber++, part)
+                        .whenComplete((completed, error) -> inFlight.release()));
+            }
+
+            List<CompletedPart> completedParts = parts.stream().map(CompletableFuture::join).toList();
+            return callPolicy.upload(() -> s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(objectKey)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                    .build()).eTag());
+        } catch (Exception e) {
+            parts.forEach(future -> future.cancel(true));
+            abortMultipartUpload(objectKey, uploadId);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Multipart upload of '" + objectKey + "' failed", e);
+        }
+    }
 
-        s3Client.putObject(request, fromInputStream(file.getInputStream(), file.getSize()));
+    private CompletableFuture<CompletedPart> uploadPart(String objectKey, String uploadId, int partNumber, byte[] part) {
+        return CompletableFuture.supplyAsync(() -> {
+            UploadPartRequest request = UploadPartRequest.builder()
+                    .bucket(bucketName)
+                    .key(objectKey)
+                    .uploadId(uploadId)
+                    .partNumber(partNumber)
+                    .contentLength((long) part.length)
+                    .overrideConfiguration(o -> o.apiCallAttemptTimeout(uploadAttemptTimeout))
+                    .build();
+            // fromInputStream rather than fromBytes, which would copy the part a second time
+            String eTag = callPolicy.upload(() ->
+                    s3Client.uploadPart(request, fromInputStream(new ByteArrayInputStream(part), part.length)).eTag());
+            return CompletedPart.builder().partNumber(partNumber).eTag(eTag).build();
+        }, partUploadExecutor);
     }
 
-    public void uploadSong(MultipartFile file, String userName, String fileName) throws IOException {
-        uploadFile(file, userName, fileName, FileType.SONG);
+    private void abortMultipartUpload(String objectKey, String uploadId) {
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(objectKey)
+                    .uploadId(uploadId)
+                    .build());
+        } catch (Exception e) {
+            log.warn("Could not abort multipart upload '{}' of '{}': {}", uploadId, objectKey, e.getMessage());
+        }
     }
 
-    public void uploadAlbumArt(MultipartFile file, String userName, String fileName) throws IOException {
-        uploadFile(file, userName, fileName, FileType.ALBUM_ART);
+    @Override
+    public void putObject(String objectKey, byte[] content, String contentType) {
+        PutObjectRequest request = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(objectKey)
+                .contentLength((long) content.length)
+                .contentType(contentType)
+                .overrideConfiguration(o -> o.apiCallAttemptTimeout(uploadAttemptTimeout))
+                .build();
+
+        String eTag = callPolicy.upload(() ->
+                s3Client.putObject(request, fromInputStream(new ByteArrayInputStream(content), content.length)).eTag());
+        metadataCache.put(objectKey, new ObjectMetadata(contentType, content.length, eTag, null));
+        replicas.recordWrite(objectKey);
     }
 
+    @Override
     public List<String> listFiles(String userName) {
         ListObjectsV2Request request = ListObjectsV2Request.builder()
                 .bucket(bucketName)
@@ -81,54 +268,288 @@ public class CloudflareR2Service {
                 .collect(Collectors.toList());
     }
 
-    private ResponseInputStream<GetObjectResponse> streamFile(String userName, String fileName, FileType fileType) {
-        String objectKey = userName + "/" + fileType.getFolder() + "/" + fileName;
-        GetObjectRequest request = GetObjectRequest.builder()
+    private GetObjectRequest getObjectRequest(String objectKey, ByteRange range) {
+        GetObjectRequest.Builder request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(objectKey);
+        if (range != null) {
+            // R2 and MinIO answer with 206 + Content-Range, or a 416 S3Exception if unsatisfiable
+            request.range(range.toHeaderValue());
+        }
+        return request.build();
+    }
+
+    /**
+     * Reads from the primary bucket or, with replication enabled, whichever bucket is fastest (see StorageReplicas).
+     */
+    @Override
+    protected ResponseInputStream<GetObjectResponse> getObject(String objectKey, ByteRange range) {
+        GetObjectRequest request = getObjectRequest(objectKey, range);
+        ResponseInputStream<GetObjectResponse> response = replicas.read(
+                () -> callPolicy.read(() -> s3Client.getObject(request), ResponseInputStream::abort),
+                replica -> replica.getObject(request));
+        rememberMetadata(objectKey, ObjectMetadata.from(response.response()));
+        return response;
+    }
+
+    /**
+     * Reads the whole object from the primary bucket, the source ReplicationWorker copies from.
+     */
+    ResponseInputStream<GetObjectResponse> getFromPrimary(String objectKey) {
+        GetObjectRequest request = getObjectRequest(objectKey, null);
+        return callPolicy.call(() -> s3Client.getObject(request));
+    }
+
+    @Override
+    public boolean supportsPresignedUrls() {
+        return true;
+    }
+
+    /**
+     * Signing is local (no round trip), but callers should still cache the result - see PresignedUrlService.
+     */
+    @Override
+    public StreamManifest presignGet(String objectKey, Duration signatureDuration) {
+        GetObjectPresignRequest request = GetObjectPresignRequest.builder()
+                .signatureDuration(signatureDuration)
+                .getObjectRequest(get -> get.bucket(bucketName).key(objectKey))
+                .build();
+
+        PresignedGetObjectRequest presigned = s3Presigner.presignGetObject(request);
+        return new StreamManifest(presigned.url().toString(), presigned.expiration());
+    }
+
+    @Override
+    protected ObjectMetadata headIfExists(String objectKey) {
+        try {
+            return head(objectKey);
+        } catch (NoSuchKeyException e) {
+            return null;
+        } catch (S3Exception e) {
+            if (e.statusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private ObjectMetadata head(String objectKey) {
+        HeadObjectRequest request = HeadObjectRequest.builder()
                 .bucket(bucketName)
                 .key(objectKey)
                 .build();
 
-        return s3Client.getObject(request);
+        ObjectMetadata metadata = ObjectMetadata.from(callPolicy.call(() -> s3Client.headObject(request)));
+        metadataCache.put(objectKey, metadata);
+        return metadata;
+    }
+
+    private void rememberMetadata(String objectKey, ObjectMetadata metadata) {
+        if (metadata != null) {
+            metadataCache.put(objectKey, metadata);
+        }
+    }
+
+    /**
+     * Metadata from the in-memory cache, falling back to a HEAD (whose result is then cached).
+     */
+    @Override
+    public ObjectMetadata objectMetadata(String objectKey) {
+        ObjectMetadata metadata = metadataCache.getIfPresent(objectKey);
+        return metadata != null ? metadata : head(objectKey);
+    }
+
+    @Override
+    public boolean objectExists(String objectKey) {
+        return metadataCache.getIfPresent(objectKey) != null || headIfExists(objectKey) != null;
     }
 
-    public ResponseInputStream<GetObjectResponse> streamSong(String fileName, String userName) {
-        return streamFile(userName, fileName, FileType.SONG);
+    @Override
+    public ObjectStream openSong(String fileName, String userName, ByteRange range) {
+        return ObjectStream.blocking(streamSong(fileName, userName, range));
     }
 
-    public ResponseInputStream<GetObjectResponse> streamAlbumArt(String fileName, String userName) {
-        return streamFile(userName, fileName, FileType.ALBUM_ART);
+    /**
+     * Song metadata only if it is already known in memory - never costs a round trip to R2.
+     */
+    @Override
+    public ObjectMetadata cachedSongMetadata(String fileName, String userName) {
+        return metadataCache.getIfPresent(songKey(fileName, userName));
     }
 
-    private void deleteFile(String userName, String fileName, FileType fileType) {
-        String objectKey = userName + "/" + fileType.getFolder() + "/" + fileName;
+    @Override
+    protected void deleteObject(String objectKey) {
         DeleteObjectRequest request = DeleteObjectRequest.builder()
                 .bucket(bucketName)
                 .key(objectKey)
                 .build();
 
-        s3Client.deleteObject(request);
+        callPolicy.run(() -> s3Client.deleteObject(request));
+        metadataCache.invalidate(objectKey);
+        replicas.recordWrite(objectKey);
     }
 
-    public void deleteSong(String fileName, String userName) {
-        deleteFile(userName, fileName, FileType.SONG);
+    @Override
+    protected List<String> listKeys(String prefix) {
+        return s3Client.listObjectsV2Paginator(ListObjectsV2Request.builder()
+                        .bucket(bucketName)
+                        .prefix(prefix)
+                        .build())
+                .contents().stream()
+                .map(S3Object::key)
+                .toList();
     }
 
-    public void deleteAlbumArt(String fileName, String userName) {
-        deleteFile(userName, fileName, FileType.ALBUM_ART);
+    @Override
+    protected void deleteObjects(List<String> objectKeys) {
+        List<ObjectIdentifier> objects = objectKeys.stream()
+                .map(key -> ObjectIdentifier.builder().key(key).build())
+                .toList();
+        // deleting one that was never generated is not an error for S3
+        callPolicy.run(() -> s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                .bucket(bucketName)
+                .delete(Delete.builder().objects(objects).quiet(true).build())
+                .build()));
+        objectKeys.forEach(metadataCache::invalidate);
+        objectKeys.forEach(replicas::recordWrite);
     }
 
-    private enum FileType {
-        SONG("songs"),
-        ALBUM_ART("album-art");
+    /**
+     * Uploaded in parts to {@code uploads/<uuid>} as the bytes arrive, with at most
+     * {@code max-in-flight-parts} parts in flight as in multipartUpload, then copied to the file's
+     * key inside R2 and deleted. A file no bigger than one part stays in memory until it is PUT
+     * straight to its key. Multipart uploads a crash leaves incomplete are aborted by the bucket's
+     * lifecycle rules.
+     */
+    private final class StagedMultipartUpload extends StagedUpload {
+
+        private static final String STAGING_PREFIX = "uploads/";
+
+        private final String contentType;
+        private final String stagingKey = STAGING_PREFIX + UUID.randomUUID();
+        private final int partSize = (int) uploadProperties.getPartSize().toBytes();
+        private final Semaphore inFlight = new Semaphore(uploadProperties.getMaxInFlightParts());
+        private final List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+        private byte[] part = new byte[partSize];
+        private int filled;
+        private String uploadId;
+        private boolean stored;
+
+        private StagedMultipartUpload(String contentType) {
+            this.contentType = contentType;
+        }
+
+        @Override
+        protected void append(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                int copied = Math.min(length, partSize - filled);
+                System.arraycopy(bytes, offset, part, filled, copied);
+                filled += copied;
+                offset += copied;
+                length -= copied;
+                if (filled == partSize) {
+                    sendPart();
+                }
+            }
+        }
+
+        private void sendPart() throws IOException {
+            if (uploadId == null) {
+                uploadId = callPolicy.upload(() -> s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                        .bucket(bucketName)
+                        .key(stagingKey)
+                        .contentType(contentType)
+                        .build()).uploadId());
+            }
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a part of '" + stagingKey + "'");
+            }
+            if (parts.stream().anyMatch(CompletableFuture::isCompletedExceptionally)) {
+                inFlight.release();
+                completedParts(); // rethrows the failure
+            }
+            byte[] full = filled == part.length ? part : Arrays.copyOf(part, filled);
+            parts.add(uploadPart(stagingKey, uploadId, parts.size() + 1, full)
+                    .whenComplete((completed, error) -> inFlight.release()));
+            // the array just handed over is read by its upload
+            part = new byte[partSize];
+            filled = 0;
+        }
+
+        private List<CompletedPart> completedParts() throws IOException {
+            try {
+                return parts.stream().map(CompletableFuture::join).toList();
+            } catch (CompletionException e) {
+                throw new IOException("Upload of a part of '" + stagingKey + "' failed", e.getCause());
+            }
+        }
 
-        private final String folder;
+        @Override
+        protected void storeAs(String objectKey) throws IOException {
+            String eTag;
+            if (uploadId == null) {
+                PutObjectRequest request = PutObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(objectKey)
+                        .contentLength((long) filled)
+                        .contentType(contentType)
+                        .overrideConfiguration(o -> o.apiCallAttemptTimeout(uploadAttemptTimeout))
+                        .build();
+                eTag = callPolicy.upload(() ->
+                        s3Client.putObject(request, fromInputStream(new ByteArrayInputStream(part, 0, filled), filled)).eTag());
+            } else {
+                if (filled > 0) {
+                    sendPart();
+                }
+                List<CompletedPart> completed = completedParts();
+                callPolicy.upload(() -> s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                        .bucket(bucketName)
+                        .key(stagingKey)
+                        .uploadId(uploadId)
+                        .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+                        .build()));
+                // complete, so there is nothing left to abort; the staging object is deleted below
+                uploadId = null;
+                try {
+                    eTag = callPolicy.upload(() -> s3Client.copyObject(CopyObjectRequest.builder()
+                            .sourceBucket(bucketName)
+                            .sourceKey(stagingKey)
+                            .destinationBucket(bucketName)
+                            .destinationKey(objectKey)
+                            .build()).copyObjectResult().eTag());
+                } finally {
+                    deleteStagingObject();
+                }
+            }
+            stored = true;
+            metadataCache.put(objectKey, new ObjectMetadata(contentType, size(), eTag, null));
+            replicas.recordWrite(objectKey);
+        }
 
-        FileType(String folder) {
-            this.folder = folder;
+        private void deleteStagingObject() {
+            try {
+                callPolicy.run(() -> s3Client.deleteObject(DeleteObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(stagingKey)
+                        .build()));
+            } catch (RuntimeException e) {
+                log.warn("Could not delete staged upload '{}': {}", stagingKey, e.getMessage());
+            }
         }
 
-        public String getFolder() {
-            return folder;
+        @Override
+        public void close() {
+            if (stored) {
+                return;
+            }
+            parts.forEach(future -> future.cancel(true));
+            if (uploadId != null) {
+                abortMultipartUpload(stagingKey, uploadId);
+                uploadId = null;
+            }
         }
     }
 }
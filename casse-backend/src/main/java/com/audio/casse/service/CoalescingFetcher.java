@@ -0,0 +1,392 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.R2CoalescingProperties;
+import com.audio.casse.models.ByteRange;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent GETs of the same object (and range) into one upstream fetch.
+ *
+ * The first request opens the object on R2 and a background thread copies its body into a spool
+ * file as fast as storage delivers it (teeing it into the disk cache when it is a whole object).
+ * Every request - the first one included - tails that file through its own channel, so each
+ * client is served at its own pace: a slow one only falls behind in the file and never holds up
+ * the fetch or the other listeners. The fetch is retired once complete, and its spool file deleted
+ * when its last reader is done. If every reader leaves before the body is in, the fetch is
+ * cancelled rather than left downloading a song nobody is listening to.
+ *
+ * Ranged requests are mostly seeks, each to its own offset, and would only pay for a spool file
+ * nobody else reads; they go straight to storage. The exception is a range from the start of the
+ * object ({@code bytes=0-}), which is how browsers open audio and so what a release-day rush sends.
+ */
+@Service
+@Slf4j
+public class CoalescingFetcher {
+
+    private static final ByteRange FROM_START = ByteRange.from(0);
+
+    private final R2CoalescingProperties properties;
+    private final AudioDiskCache diskCache;
+    private final ConcurrentMap<String, CompletableFuture<SharedFetch>> inFlight = new ConcurrentHashMap<>();
+    private final Counter upstreamFetches;
+    private final Counter coalescedFetches;
+
+    private ThreadPoolExecutor fetchExecutor;
+
+    public CoalescingFetcher(R2CoalescingProperties properties, AudioDiskCache diskCache, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.diskCache = diskCache;
+        this.upstreamFetches = Counter.builder("r2.object.fetches")
+                .description("Object GETs served by this node, by whether they joined another request's R2 fetch")
+                .tag("coalesced", "false")
+                .register(meterRegistry);
+        this.coalescedFetches = Counter.builder("r2.object.fetches")
+                .description("Object GETs served by this node, by whether they joined another request's R2 fetch")
+                .tag("coalesced", "true")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        Files.createDirectories(properties.getSpoolDirectory());
+        // nothing survives a restart - any spool file left behind belongs to a fetch that died with us
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(properties.getSpoolDirectory(), "*.spool")) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        fetchExecutor = new ThreadPoolExecutor(0, properties.getMaxConcurrentFetches(),
+                60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new CustomizableThreadFactory("r2-shared-fetch-"));
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (fetchExecutor != null) {
+            fetchExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return fetchExecutor != null;
+    }
+
+    /**
+     * @return whether open() shares the fetch of {@code range} and so fills the disk cache with it.
+     */
+    public boolean fillsCache(ByteRange range) {
+        return isEnabled() && (range == null || range.equals(FROM_START));
+    }
+
+    /**
+     * Opens {@code objectKey} (or the given range of it), joining a fetch already in flight for
+     * exactly that if there is one. A shared fetch fills the disk cache itself, so callers must not
+     * start their own fill for it; see fillsCache.
+     *
+     * @param upstream opens the object on storage; only called when no fetch can be joined.
+     */
+    public ObjectStream open(String objectKey, ByteRange range, Supplier<ObjectStream> upstream) {
+        if (!isEnabled()) {
+            return upstream.get();
+        }
+        if (range != null && !range.equals(FROM_START)) {
+            upstreamFetches.increment();
+            return upstream.get();
+        }
+        String key = range == null ? objectKey : objectKey + "|" + range.toHeaderValue();
+        while (true) {
+            CompletableFuture<SharedFetch> created = new CompletableFuture<>();
+            CompletableFuture<SharedFetch> existing = inFlight.putIfAbsent(key, created);
+            if (existing == null) {
+                return start(key, objectKey, range, upstream, created);
+            }
+            SharedFetch fetch;
+            try {
+                fetch = existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    // the other request could not spool and streamed on its own; so do we
+                    return upstream.get();
+                }
+                // the object could not be opened (404, 416, ...) - it would fail the same way for us
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+            ObjectStream reader = fetch.newReader();
+            if (reader != null) {
+                coalescedFetches.increment();
+                return reader;
+            }
+            // the fetch finished and was retired between our lookup and joining it - start over
+        }
+    }
+
+    private ObjectStream start(String key, String objectKey, ByteRange range, Supplier<ObjectStream> upstream,
+                               CompletableFuture<SharedFetch> created) {
+        Path spoolFile;
+        try {
+            spoolFile = Files.createTempFile(properties.getSpoolDirectory(), "fetch-", ".spool");
+        } catch (IOException e) {
+            log.warn("Could not create a spool file, streaming '{}' uncoalesced: {}", objectKey, e.getMessage());
+            inFlight.remove(key, created);
+            created.completeExceptionally(new UncheckedIOException(e));
+            return upstream.get();
+        }
+
+        ObjectStream body;
+        try {
+            body = upstream.get();
+        } catch (RuntimeException e) {
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+            deleteSpoolFile(spoolFile);
+            throw e;
+        }
+        upstreamFetches.increment();
+
+        SharedFetch fetch = new SharedFetch(key, created, body.response(), spoolFile);
+        ObjectStream reader = fetch.newReader();
+        AudioDiskCache.CacheFill fill = diskCache.beginFill(objectKey, body.response());
+        try {
+            fetchExecutor.execute(() -> fetch.run(body, fill));
+        } catch (RejectedExecutionException e) {
+            // too many fetches running: this request streams straight from storage, and anyone
+            // already waiting on it opens their own
+            log.warn("Shared fetch pool full, streaming '{}' uncoalesced", objectKey);
+            inFlight.remove(key, created);
+            created.completeExceptionally(new UncheckedIOException(new IOException("Shared fetch pool full", e)));
+            if (fill != null) {
+                fill.close();
+            }
+            deleteSpoolFile(spoolFile);
+            return body;
+        }
+        created.complete(fetch);
+        return reader;
+    }
+
+    private static void deleteSpoolFile(Path spoolFile) {
+        try {
+            Files.deleteIfExists(spoolFile);
+        } catch (IOException e) {
+            log.warn("Could not delete spool file {}: {}", spoolFile, e.getMessage());
+        }
+    }
+
+    /**
+     * One upstream fetch and its readers. All state is guarded by the fetch's monitor, which is
+     * also what readers wait on for new bytes.
+     */
+    private final class SharedFetch {
+
+        private final String key;
+        private final CompletableFuture<SharedFetch> registration;
+        private final GetObjectResponse response;
+        private final Path spoolFile;
+
+        private long written;
+        private boolean done;
+        private Throwable failure;
+        private int readers;
+        private boolean cancelled;
+        private boolean deleted;
+
+        private SharedFetch(String key, CompletableFuture<SharedFetch> registration, GetObjectResponse response,
+                            Path spoolFile) {
+            this.key = key;
+            this.registration = registration;
+            this.response = response;
+            this.spoolFile = spoolFile;
+        }
+
+        void run(ObjectStream body, AudioDiskCache.CacheFill fill) {
+            Throwable error = null;
+            try (FileChannel channel = FileChannel.open(spoolFile, StandardOpenOption.WRITE)) {
+                body.writeTo(new SpoolOutputStream(channel), fill);
+            } catch (Throwable e) {
+                error = e;
+                if (isCancelled()) {
+                    log.debug("Shared fetch of '{}' cancelled, no readers left", key);
+                } else {
+                    log.warn("Shared fetch of '{}' failed: {}", key, e.getMessage());
+                }
+            }
+            // new requests must start their own fetch (or hit the disk cache) from here on
+            inFlight.remove(key, registration);
+            synchronized (this) {
+                done = true;
+                failure = error;
+                notifyAll();
+                deleteIfUnused();
+            }
+        }
+
+        /**
+         * @return a reader, or null if the fetch is over or cancelled and its spool file already gone.
+         */
+        synchronized ObjectStream newReader() {
+            if (deleted || cancelled) {
+                return null;
+            }
+            readers++;
+            return new Reader();
+        }
+
+        private synchronized void appended(long bytes) {
+            written += bytes;
+            notifyAll();
+        }
+
+        private synchronized void releaseReader() {
+            readers--;
+            if (readers == 0 && !done && !cancelled) {
+                // the fetch thread stops at its next write; new requests start a fetch of their own
+                cancelled = true;
+                inFlight.remove(key, registration);
+            }
+            deleteIfUnused();
+        }
+
+        private synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void deleteIfUnused() {
+            if ((done || cancelled) && readers == 0 && !deleted) {
+                deleted = true;
+                deleteSpoolFile(spoolFile);
+            }
+        }
+
+        /**
+         * Blocks until there are bytes past {@code position}.
+         *
+         * @return how many bytes of the body are spooled, or -1 once {@code position} is its end.
+         */
+        private synchronized long awaitBytes(long position) throws IOException {
+            long timeout = properties.getReadTimeout().toNanos();
+            long deadline = System.nanoTime() + timeout;
+            while (written <= position && !done && failure == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IOException("No data from storage for " + properties.getReadTimeout());
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for storage");
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Storage stream failed", failure);
+            }
+            return written > position ? written : -1;
+        }
+
+        private final class SpoolOutputStream extends OutputStream {
+
+            private final FileChannel channel;
+
+            private SpoolOutputStream(FileChannel channel) {
+                this.channel = channel;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                if (isCancelled()) {
+                    // fails the body's copy, which releases the storage connection
+                    throw new IOException("Shared fetch of '" + key + "' cancelled");
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                appended(length);
+            }
+        }
+
+        private final class Reader implements ObjectStream {
+
+            private final AtomicBoolean released = new AtomicBoolean();
+
+            @Override
+            public GetObjectResponse response() {
+                return response;
+            }
+
+            /**
+             * The fetch fills the disk cache itself, so {@code fill} is only discarded here.
+             */
+            @Override
+            public void writeTo(OutputStream out, AudioDiskCache.CacheFill fill) throws IOException {
+                if (fill != null) {
+                    fill.close();
+                }
+                try (FileChannel channel = FileChannel.open(spoolFile, StandardOpenOption.READ)) {
+                    WritableByteChannel target = Channels.newChannel(out);
+                    long position = 0;
+                    long available;
+                    while ((available = awaitBytes(position)) >= 0) {
+                        while (position < available) {
+                            long sent = channel.transferTo(position, available - position, target);
+                            if (sent <= 0) {
+                                throw new IOException("Spool file of '" + key + "' ended early");
+                            }
+                            position += sent;
+                        }
+                    }
+                } finally {
+                    abort();
+                }
+            }
+
+            @Override
+            public void abort() {
+                if (released.compareAndSet(false, true)) {
+                    releaseReader();
+                }
+            }
+        }
+    }
+}
@@ -13,7 +13,7 @@ public class DenialService {
 
     private final EmailService emailService;
     private final PendingApprovalService pendingApprovalService;
-    private final CloudflareR2Service cloudflareR2Service;
+    private final StorageBackend storageBackend;
 
     public void denySong(String uploaderEmail, String songTitle) {
         try {
@@ -24,10 +24,10 @@ public class DenialService {
                 log.info("Deleted Redis entry for song '{}' by '{}'", songTitle, uploaderEmail);
 
                 // 2. Delete S3 objects
-                cloudflareR2Service.deleteSong(song.getStorageAccessKey(), uploaderEmail);
+                storageBackend.deleteSong(song.getStorageAccessKey(), uploaderEmail);
                 log.info("Deleted S3 object for song '{}' by '{}' with key '{}'", songTitle, uploaderEmail, song.getStorageAccessKey());
                 if (song.getAlbumArt() != null && !song.getAlbumArt().isEmpty()) {
-                    cloudflareR2Service.deleteAlbumArt(song.getAlbumArt(), uploaderEmail);
+                    storageBackend.deleteAlbumArt(song.getAlbumArt(), uploaderEmail);
                     log.info("Deleted S3 object for album art of song '{}' by '{}' with key '{}'", songTitle, uploaderEmail, song.getAlbumArt());
                 }
 
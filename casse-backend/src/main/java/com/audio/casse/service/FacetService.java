@@ -0,0 +1,255 @@
+package com.audio.casse.service;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregate;
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregation;
+import co.elastic.clients.elasticsearch._types.aggregations.CalendarInterval;
+import co.elastic.clients.elasticsearch._types.aggregations.DateHistogramBucket;
+import co.elastic.clients.elasticsearch._types.aggregations.StringTermsAggregate;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import com.audio.casse.config.properties.SearchProperties;
+import com.audio.casse.dto.Facet;
+import com.audio.casse.dto.FacetBucket;
+import com.audio.casse.dto.Facets;
+import com.audio.casse.models.Song;
+import com.audio.casse.models.SongField;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * Counts songs by tag, artist, album and release year, with terms aggregations on the keyword
+ * fields and a yearly date histogram, over every song or only those matching a query.
+ *
+ * Counts are cached per node for {@code casse.search.facets.ttl}. An approval is announced on a
+ * Redis channel, and every node then adds the song to its counts over every song in place, since
+ * those are what browse screens ask for most; counts scoped by a query are dropped, as telling
+ * whether the song matches would take a search. If the song's value is not among the cached
+ * top values, it is counted under {@code otherSongs} until the counts are next recomputed.
+ */
+@Service
+@Slf4j
+public class FacetService {
+
+    private static final String APPROVALS_CHANNEL = "facets:approvals";
+    private static final String TAGS = "tags";
+    private static final String ARTISTS = "artists";
+    private static final String ALBUMS = "albums";
+    private static final String YEARS = "years";
+    // indexed by the catalog import; songs uploaded through the app have none
+    private static final String RELEASE_DATE = "release_date";
+    private static final Pattern ACCENTS = Pattern.compile("\\p{M}+");
+
+    private final ElasticsearchClient client;
+    private final SongSearchService songSearchService;
+    private final SearchProperties searchProperties;
+    private final SearchProperties.Facets properties;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final Cache<Key, Facets> cache;
+
+    public FacetService(ElasticsearchClient client, SongSearchService songSearchService, SearchProperties searchProperties,
+                        StringRedisTemplate redisTemplate, RedisMessageListenerContainer redisMessageListenerContainer,
+                        ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.client = client;
+        this.songSearchService = songSearchService;
+        this.searchProperties = searchProperties;
+        this.properties = searchProperties.getFacets();
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = redisMessageListenerContainer;
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(properties.getMaxEntries())
+                .expireAfterWrite(properties.getTtl())
+                .build();
+    }
+
+    @PostConstruct
+    void subscribe() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            try {
+                add(objectMapper.readValue(message.getBody(), Song.class));
+            } catch (IOException e) {
+                log.warn("Could not read an approved song for the facet counts: {}", e.getMessage());
+            }
+        }, new ChannelTopic(APPROVALS_CHANNEL));
+    }
+
+    /**
+     * @param query free text the songs must match, or null to count every song.
+     * @param size  values per facet; the configured default if null, and capped at the configured maximum.
+     */
+    public Facets facets(String query, Integer size) {
+        int facetSize = size == null ? properties.getDefaultSize() : Math.max(1, Math.min(size, properties.getMaxSize()));
+        // every field's analyzer or normalizer ignores case and spacing, so the counts do too
+        String normalized = query == null ? "" : query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        boolean[] computed = {false};
+        // concurrent misses on one key wait for a single aggregation
+        Facets facets = cache.get(new Key(normalized, facetSize), key -> {
+            computed[0] = true;
+            return aggregate(normalized.isEmpty() ? songSearchService.matchAll() : songSearchService.matchAny(normalized), facetSize);
+        });
+        requests(computed[0] ? "miss" : "hit").increment();
+        return facets;
+    }
+
+    /**
+     * Counts a newly approved song, on every node.
+     */
+    public void songApproved(Song song) {
+        try {
+            redisTemplate.convertAndSend(APPROVALS_CHANNEL, objectMapper.writeValueAsString(song));
+        } catch (JsonProcessingException | RuntimeException e) {
+            // other nodes catch up when their counts expire
+            log.warn("Could not announce an approval to the facet counts: {}", e.getMessage());
+            add(song);
+        }
+    }
+
+    private void add(Song song) {
+        for (Key key : cache.asMap().keySet()) {
+            if (key.query().isEmpty()) {
+                cache.asMap().computeIfPresent(key, (k, facets) -> new Facets(
+                        add(facets.tags(), song.getTags(), k.size()),
+                        add(facets.artists(), song.getArtists(), k.size()),
+                        add(facets.albums(), Collections.singletonList(song.getAlbum()), k.size()),
+                        facets.years()));
+            } else {
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    private static Facet add(Facet facet, List<String> values, int size) {
+        if (values == null) {
+            return facet;
+        }
+        Facet counted = facet;
+        // a song counts once per distinct value, as in a terms aggregation
+        for (String indexed : values.stream().filter(Objects::nonNull).map(FacetService::normalize).distinct().toList()) {
+            counted = add(counted, indexed, size);
+        }
+        return counted;
+    }
+
+    private static Facet add(Facet facet, String indexed, int size) {
+        List<FacetBucket> buckets = new ArrayList<>(facet.buckets().size() + 1);
+        boolean found = false;
+        for (FacetBucket bucket : facet.buckets()) {
+            if (!found && bucket.value().equals(indexed)) {
+                buckets.add(new FacetBucket(indexed, bucket.songs() + 1));
+                found = true;
+            } else {
+                buckets.add(bucket);
+            }
+        }
+        if (found) {
+            // stable, so ties keep Elasticsearch's order
+            buckets.sort(Comparator.comparingLong(FacetBucket::songs).reversed());
+            return new Facet(buckets, facet.otherSongs());
+        }
+        if (buckets.size() < size && facet.otherSongs() == 0) {
+            // every value was listed, so this one is new
+            buckets.add(new FacetBucket(indexed, 1));
+            return new Facet(buckets, 0);
+        }
+        return new Facet(buckets, facet.otherSongs() + 1);
+    }
+
+    private Facets aggregate(Query query, int size) {
+        SearchResponse<Void> response;
+        try {
+            response = client.search(search -> search
+                    .index(searchProperties.getIndex())
+                    .query(query)
+                    .size(0)
+                    .trackTotalHits(total -> total.enabled(false))
+                    // size-0 searches are what the shard request cache holds; said explicitly all the same
+                    .requestCache(true)
+                    .aggregations(TAGS, terms(SongField.TAGS, size))
+                    .aggregations(ARTISTS, terms(SongField.ARTISTS, size))
+                    .aggregations(ALBUMS, terms(SongField.ALBUM, size))
+                    .aggregations(YEARS, Aggregation.of(aggregation -> aggregation.dateHistogram(histogram -> histogram
+                            .field(RELEASE_DATE)
+                            .calendarInterval(CalendarInterval.Year)
+                            .format("yyyy")
+                            .minDocCount(1)))),
+                    Void.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Facets(
+                facet(response.aggregations().get(TAGS)),
+                facet(response.aggregations().get(ARTISTS)),
+                facet(response.aggregations().get(ALBUMS)),
+                years(response.aggregations().get(YEARS), size));
+    }
+
+    private static Aggregation terms(SongField field, int size) {
+        return Aggregation.of(aggregation -> aggregation.terms(terms -> terms.field(field.exactField()).size(size)));
+    }
+
+    private static Facet facet(Aggregate aggregate) {
+        StringTermsAggregate terms = aggregate.sterms();
+        List<FacetBucket> buckets = terms.buckets().array().stream()
+                .map(bucket -> new FacetBucket(bucket.key().stringValue(), bucket.docCount()))
+                .toList();
+        return new Facet(buckets, terms.sumOtherDocCount() != null ? terms.sumOtherDocCount() : 0);
+    }
+
+    private static Facet years(Aggregate aggregate, int size) {
+        List<DateHistogramBucket> histogram = aggregate.dateHistogram().buckets().array();
+        List<FacetBucket> buckets = new ArrayList<>();
+        long otherSongs = 0;
+        // oldest first from Elasticsearch; the newest years are the ones kept
+        for (int i = histogram.size() - 1; i >= 0; i--) {
+            DateHistogramBucket bucket = histogram.get(i);
+            if (buckets.size() < size) {
+                buckets.add(new FacetBucket(bucket.keyAsString(), bucket.docCount()));
+            } else {
+                otherSongs += bucket.docCount();
+            }
+        }
+        return new Facet(buckets, otherSongs);
+    }
+
+    /**
+     * Close to what the {@code lowercase_fold} normalizer makes of a value.
+     */
+    private static String normalize(String value) {
+        return ACCENTS.matcher(Normalizer.normalize(value, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    private Counter requests(String result) {
+        return Counter.builder("search.facets.requests")
+                .description("Facet requests, by whether the counts were cached")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private record Key(String query, int size) {}
+}
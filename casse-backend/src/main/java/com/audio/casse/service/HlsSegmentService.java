@@ -0,0 +1,175 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.HlsProperties;
+import com.audio.casse.models.SeekTable;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cuts approved songs into HLS packed-audio segments with a VOD playlist, stored in R2 under
+ * {@code <song>.hls/}.
+ *
+ * Segment boundaries are taken from the song's seek table, so every segment starts on a frame and
+ * its exact start time is known. As HLS requires for packed audio, each segment begins with an ID3
+ * tag carrying that start time as an MPEG-TS timestamp. The playlist is written last, so its
+ * presence means the segments are complete.
+ */
+@Service
+@Slf4j
+public class HlsSegmentService {
+
+    public static final String PLAYLIST_NAME = "index.m3u8";
+    public static final String PLAYLIST_CONTENT_TYPE = "application/vnd.apple.mpegurl";
+    public static final String SEGMENT_CONTENT_TYPE = "audio/mpeg";
+
+    private static final String TIMESTAMP_OWNER = "com.apple.streaming.transportStreamTimestamp";
+    private static final int MPEG_TS_CLOCK = 90_000;
+
+    private final StorageBackend storage;
+    private final SeekIndexService seekIndexService;
+    private final HlsProperties properties;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+
+    public HlsSegmentService(StorageBackend storage, SeekIndexService seekIndexService, HlsProperties properties) {
+        this.storage = storage;
+        this.seekIndexService = seekIndexService;
+        this.properties = properties;
+        this.executor = new ThreadPoolExecutor(properties.getThreads(), properties.getThreads(),
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(properties.getQueueCapacity()),
+                new CustomizableThreadFactory("hls-segmenter-"));
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    public String playlistKey(String fileName, String userName) {
+        return storage.songHlsPrefix(fileName, userName) + PLAYLIST_NAME;
+    }
+
+    public String segmentKey(String fileName, String userName, int segment) {
+        return storage.songHlsPrefix(fileName, userName) + segmentName(segment);
+    }
+
+    /**
+     * Queues segmentation of a song; a no-op if it is already segmented or being segmented.
+     */
+    public void segmentInBackground(String fileName, String userName) {
+        String playlistKey = playlistKey(fileName, userName);
+        if (!inProgress.add(playlistKey)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    segment(fileName, userName);
+                } catch (Exception e) {
+                    log.warn("Could not segment '{}' for HLS: {}", fileName, e.getMessage());
+                } finally {
+                    inProgress.remove(playlistKey);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inProgress.remove(playlistKey);
+            log.warn("HLS segmenter busy, '{}' will be segmented on first playlist request", fileName);
+        }
+    }
+
+    private void segment(String fileName, String userName) throws IOException {
+        String playlistKey = playlistKey(fileName, userName);
+        if (storage.objectExists(playlistKey)) {
+            return;
+        }
+        // already off the request threads, so the song is indexed here if it has to be
+        SeekTable seekTable = seekIndexService.buildSeekTable(fileName, userName);
+        if (seekTable == null) {
+            log.info("'{}' is not MPEG audio, not segmenting it", fileName);
+            return;
+        }
+        long songLength = storage.songMetadata(fileName, userName).contentLength();
+        int points = seekTable.offsets().length;
+        double pointSeconds = seekTable.seconds(1);
+        int pointsPerSegment = Math.max(1, (int) Math.round(properties.getSegmentDuration().toMillis() / 1000.0 / pointSeconds));
+
+        StringBuilder playlist = new StringBuilder();
+        double longestSegment = 0;
+        int segment = 0;
+        try (ResponseInputStream<GetObjectResponse> in = storage.streamSong(fileName, userName)) {
+            // leading ID3 tags and the Xing/Info frame are not part of any segment
+            in.skipNBytes(seekTable.offset(0));
+            for (int start = 0; start < points; start += pointsPerSegment, segment++) {
+                int next = start + pointsPerSegment;
+                long end = next < points ? seekTable.offset(next) : songLength;
+                byte[] audio = in.readNBytes((int) (end - seekTable.offset(start)));
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream(audio.length + 80);
+                body.write(timestampTag(Math.round(seekTable.seconds(start) * MPEG_TS_CLOCK)));
+                body.write(audio);
+                storage.putObject(segmentKey(fileName, userName, segment), body.toByteArray(), SEGMENT_CONTENT_TYPE);
+
+                double duration = (next < points ? seekTable.seconds(next) : seekTable.durationSeconds()) - seekTable.seconds(start);
+                longestSegment = Math.max(longestSegment, duration);
+                playlist.append(String.format(Locale.ROOT, "#EXTINF:%.3f,\n%s\n", duration, segmentName(segment)));
+            }
+        }
+
+        String header = "#EXTM3U\n"
+                + "#EXT-X-VERSION:3\n"
+                + "#EXT-X-PLAYLIST-TYPE:VOD\n"
+                + "#EXT-X-INDEPENDENT-SEGMENTS\n"
+                + "#EXT-X-TARGETDURATION:" + (long) Math.ceil(longestSegment) + "\n"
+                + "#EXT-X-MEDIA-SEQUENCE:0\n";
+        byte[] content = (header + playlist + "#EXT-X-ENDLIST\n").getBytes(StandardCharsets.UTF_8);
+        storage.putObject(playlistKey, content, PLAYLIST_CONTENT_TYPE);
+        log.info("Segmented '{}' into {} HLS segment(s)", fileName, segment);
+    }
+
+    private static String segmentName(int segment) {
+        return String.format(Locale.ROOT, "%05d.mp3", segment);
+    }
+
+    /**
+     * An ID3v2.4 tag with the single PRIV frame HLS uses to place a packed-audio segment on the
+     * timeline: owner {@value #TIMESTAMP_OWNER}, then the 33-bit 90kHz timestamp in 8 bytes.
+     */
+    private static byte[] timestampTag(long pts) {
+        byte[] owner = TIMESTAMP_OWNER.getBytes(StandardCharsets.ISO_8859_1);
+        int frameDataLength = owner.length + 1 + 8;
+        int tagDataLength = 10 + frameDataLength;
+
+        ByteArrayOutputStream tag = new ByteArrayOutputStream(10 + tagDataLength);
+        tag.writeBytes(new byte[]{'I', 'D', '3', 4, 0, 0});
+        tag.writeBytes(syncsafe(tagDataLength));
+        tag.writeBytes(new byte[]{'P', 'R', 'I', 'V'});
+        tag.writeBytes(syncsafe(frameDataLength));
+        tag.writeBytes(new byte[]{0, 0});
+        tag.writeBytes(owner);
+        tag.write(0);
+        long timestamp = pts & 0x1FFFFFFFFL;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            tag.write((int) (timestamp >>> shift));
+        }
+        return tag.toByteArray();
+    }
+
+    private static byte[] syncsafe(int value) {
+        return new byte[]{(byte) (value >>> 21 & 0x7F), (byte) (value >>> 14 & 0x7F), (byte) (value >>> 7 & 0x7F), (byte) (value & 0x7F)};
+    }
+}
@@ -0,0 +1,53 @@
+package com.audio.casse.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Orders storage endpoints by an exponentially weighted moving average of their recent read
+ * latency. An endpoint not measured yet comes first, so it gets measured; now and then a random
+ * other endpoint is put first, so one that was slow (or failing) gets a chance to show it is
+ * fast again.
+ */
+final class LatencyRouter {
+
+    private final double weight;
+    private final double explorationRate;
+    // nanoseconds; absent until the first sample
+    private final Map<String, Double> averages = new LinkedHashMap<>();
+    private final List<String> endpoints;
+
+    LatencyRouter(Collection<String> endpoints, double weight, double explorationRate) {
+        this.endpoints = List.copyOf(endpoints);
+        this.weight = weight;
+        this.explorationRate = explorationRate;
+    }
+
+    synchronized List<String> order() {
+        List<String> order = new ArrayList<>(endpoints);
+        order.sort(Comparator.comparingDouble(endpoint -> averages.getOrDefault(endpoint, 0.0)));
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (order.size() > 1 && random.nextDouble() < explorationRate) {
+            Collections.swap(order, 0, 1 + random.nextInt(order.size() - 1));
+        }
+        return order;
+    }
+
+    synchronized void record(String endpoint, long nanos) {
+        Double average = averages.get(endpoint);
+        averages.put(endpoint, average == null ? nanos : weight * nanos + (1 - weight) * average);
+    }
+
+    /**
+     * @return the endpoint's average read latency in milliseconds, or 0 if not measured yet.
+     */
+    synchronized double averageMillis(String endpoint) {
+        return averages.getOrDefault(endpoint, 0.0) / 1_000_000;
+    }
+}
@@ -0,0 +1,479 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.AlbumArtProperties;
+import com.audio.casse.config.properties.StorageProperties;
+import com.audio.casse.dto.StreamManifest;
+import com.audio.casse.models.ByteRange;
+import com.audio.casse.models.ObjectMetadata;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Stores objects as plain files under {@code casse.storage.local.root}, at their storage keys, for
+ * on-prem and test deployments that have no object store.
+ *
+ * Songs are served straight from the file through FileChannel.transferTo: no storage round trip,
+ * no connection pool and no heap buffer per stream. Writes go to a temporary file first and are
+ * moved into place atomically, so a reader never sees half an object.
+ *
+ * There is no metadata store: the content type follows from the key's extension, and the ETag from
+ * the file's size and modification time. Nothing can be presigned, so redirect delivery falls back
+ * to proxying. The R2 disk cache (cloudflare.r2.cache) only duplicates these files and is best left
+ * disabled with this backend.
+ */
+@Service
+@ConditionalOnProperty(name = "casse.storage.backend", havingValue = "local")
+@Slf4j
+public class LocalStorageBackend extends AbstractStorageBackend {
+
+    // uploads are written here and then moved into place; the same file system, so the move is atomic
+    private static final String TEMP_DIRECTORY = ".tmp";
+    private static final Map<String, String> CONTENT_TYPES = Map.of(
+            "mp3", "audio/mpeg",
+            "m3u8", HlsSegmentService.PLAYLIST_CONTENT_TYPE,
+            "jpg", "image/jpeg",
+            "jpeg", "image/jpeg",
+            "png", "image/png",
+            "webp", "image/webp");
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    private final Path root;
+    private final Path tempDirectory;
+
+    public LocalStorageBackend(StorageProperties storageProperties, AudioDiskCache diskCache,
+                               ObjectReferenceService objectReferenceService, AlbumArtProperties albumArtProperties) {
+        super(diskCache, objectReferenceService, albumArtProperties, storageProperties.getLocal().getUploadThreads());
+        this.root = storageProperties.getLocal().getRoot().toAbsolutePath().normalize();
+        this.tempDirectory = root.resolve(TEMP_DIRECTORY);
+        try {
+            Files.createDirectories(tempDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create local storage under " + root, e);
+        }
+        log.info("Storing objects on local disk under {}", root);
+    }
+
+    @PreDestroy
+    @Override
+    protected void shutdown() {
+        super.shutdown();
+    }
+
+    @Override
+    protected void putFile(InputStream content, long size, String contentType, String objectKey) throws IOException {
+        Path temp = Files.createTempFile(tempDirectory, "upload-", ".tmp");
+        try (content) {
+            Files.copy(content, temp, StandardCopyOption.REPLACE_EXISTING);
+            moveIntoPlace(temp, objectKey);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    protected StagedUpload stage(String contentType) throws IOException {
+        return new LocalStagedUpload(Files.createTempFile(tempDirectory, "upload-", ".tmp"));
+    }
+
+    @Override
+    public void putObject(String objectKey, byte[] content, String contentType) {
+        try {
+            Path temp = Files.createTempFile(tempDirectory, "put-", ".tmp");
+            try {
+                Files.write(temp, content);
+                moveIntoPlace(temp, objectKey);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not store '" + objectKey + "'", e);
+        }
+    }
+
+    private void moveIntoPlace(Path temp, String objectKey) throws IOException {
+        Path target = resolve(objectKey);
+        Files.createDirectories(target.getParent());
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    protected ResponseInputStream<GetObjectResponse> getObject(String objectKey, ByteRange range) {
+        OpenFile file = open(objectKey, range);
+        try {
+            file.channel().position(file.start());
+        } catch (IOException e) {
+            file.close();
+            throw new UncheckedIOException(e);
+        }
+        InputStream in = new LimitedInputStream(Channels.newInputStream(file.channel()), file.count());
+        return new ResponseInputStream<>(file.response(), AbortableInputStream.create(in, file::close));
+    }
+
+    @Override
+    public ObjectStream openSong(String fileName, String userName, ByteRange range) {
+        return new FileObjectStream(open(songKey(fileName, userName), range));
+    }
+
+    /**
+     * Opens the file up front, so a delete racing with the request cannot pull it away once the
+     * response headers have been sent.
+     */
+    private OpenFile open(String objectKey, ByteRange range) {
+        Path path = resolve(objectKey);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw noSuchKey(objectKey);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            ObjectMetadata metadata = metadata(path);
+            long length = metadata.contentLength();
+            GetObjectResponse.Builder response = GetObjectResponse.builder()
+                    .contentType(metadata.contentType())
+                    .eTag(metadata.eTag())
+                    .lastModified(metadata.lastModified())
+                    .acceptRanges("bytes");
+            if (range == null) {
+                return new OpenFile(channel, response.contentLength(length).build(), 0, length);
+            }
+            if (!range.isSatisfiable(length)) {
+                // the same answer R2 and MinIO give
+                throw (S3Exception) S3Exception.builder()
+                        .statusCode(416)
+                        .message("The requested range is not satisfiable")
+                        .build();
+            }
+            long start = range.start(length);
+            long end = range.end(length);
+            response.contentLength(end - start + 1)
+                    .contentRange("bytes " + start + "-" + end + "/" + length);
+            return new OpenFile(channel, response.build(), start, end - start + 1);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<String> listFiles(String userName) {
+        Path userDirectory = resolve(userName);
+        return walk(userDirectory).stream()
+                .map(path -> toKey(userDirectory, path))
+                .toList();
+    }
+
+    @Override
+    protected List<String> listKeys(String prefix) {
+        Path directory = resolve(prefix.substring(0, prefix.lastIndexOf('/') + 1));
+        return walk(directory).stream()
+                .map(path -> toKey(root, path))
+                .filter(key -> key.startsWith(prefix))
+                .toList();
+    }
+
+    private List<Path> walk(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(path -> !path.startsWith(tempDirectory))
+                    .toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public ObjectMetadata objectMetadata(String objectKey) {
+        ObjectMetadata metadata = headIfExists(objectKey);
+        if (metadata == null) {
+            throw noSuchKey(objectKey);
+        }
+        return metadata;
+    }
+
+    @Override
+    protected ObjectMetadata headIfExists(String objectKey) {
+        try {
+            return metadata(resolve(objectKey));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean objectExists(String objectKey) {
+        return Files.isRegularFile(resolve(objectKey));
+    }
+
+    /**
+     * A stat is as cheap as a cache lookup here.
+     */
+    @Override
+    public ObjectMetadata cachedSongMetadata(String fileName, String userName) {
+        return headIfExists(songKey(fileName, userName));
+    }
+
+    @Override
+    public boolean supportsPresignedUrls() {
+        return false;
+    }
+
+    @Override
+    public StreamManifest presignGet(String objectKey, Duration signatureDuration) {
+        throw new UnsupportedOperationException("Local storage cannot hand out presigned URLs");
+    }
+
+    @Override
+    protected void deleteObject(String objectKey) {
+        try {
+            Files.deleteIfExists(resolve(objectKey));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not delete '" + objectKey + "'", e);
+        }
+    }
+
+    /**
+     * Also removes the directories left empty, such as a song's {@code .hls/} folder.
+     */
+    @Override
+    protected void deleteObjects(List<String> objectKeys) {
+        for (String objectKey : objectKeys) {
+            deleteObject(objectKey);
+        }
+        objectKeys.stream()
+                .map(key -> resolve(key).getParent())
+                .distinct()
+                .filter(directory -> !directory.equals(root))
+                .forEach(directory -> {
+                    try {
+                        Files.deleteIfExists(directory);
+                    } catch (DirectoryNotEmptyException e) {
+                        // still holds other objects
+                    } catch (IOException e) {
+                        log.warn("Could not remove empty directory {}: {}", directory, e.getMessage());
+                    }
+                });
+    }
+
+    private Path resolve(String objectKey) {
+        Path path = root.resolve(objectKey).normalize();
+        if (!path.startsWith(root) || path.startsWith(tempDirectory)) {
+            throw new IllegalArgumentException("Invalid object key: " + objectKey);
+        }
+        return path;
+    }
+
+    private static String toKey(Path base, Path path) {
+        return base.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private static ObjectMetadata metadata(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!attributes.isRegularFile()) {
+            throw new NoSuchFileException(path.toString());
+        }
+        Instant modified = attributes.lastModifiedTime().toInstant();
+        // a strong validator: a rewrite changes the modification time (and usually the size)
+        String eTag = "\"" + Long.toHexString(attributes.size()) + "-" + Long.toHexString(modified.toEpochMilli()) + "\"";
+        return new ObjectMetadata(contentType(path), attributes.size(), eTag, modified.truncatedTo(ChronoUnit.SECONDS));
+    }
+
+    private static String contentType(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String type = dot >= 0 ? CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase()) : null;
+        return type != null ? type : DEFAULT_CONTENT_TYPE;
+    }
+
+    private static NoSuchKeyException noSuchKey(String objectKey) {
+        return (NoSuchKeyException) NoSuchKeyException.builder()
+                .statusCode(404)
+                .message("No such object: " + objectKey)
+                .build();
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Could not close file channel: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * An opened object: the file, the headers a GET for it would have returned, and the bytes to send.
+     */
+    private record OpenFile(FileChannel channel, GetObjectResponse response, long start, long count) {
+
+        void close() {
+            closeQuietly(channel);
+        }
+    }
+
+    private static final class FileObjectStream implements ObjectStream {
+
+        private final OpenFile file;
+
+        private FileObjectStream(OpenFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public GetObjectResponse response() {
+            return file.response();
+        }
+
+        /**
+         * The file already is on local disk, so {@code fill} is only discarded.
+         */
+        @Override
+        public void writeTo(OutputStream out, AudioDiskCache.CacheFill fill) throws IOException {
+            if (fill != null) {
+                fill.close();
+            }
+            try (FileChannel channel = file.channel()) {
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = file.start();
+                long remaining = file.count();
+                while (remaining > 0) {
+                    long sent = channel.transferTo(position, remaining, target);
+                    if (sent <= 0) {
+                        throw new EOFException("File ended " + remaining + " bytes early");
+                    }
+                    position += sent;
+                    remaining -= sent;
+                }
+            }
+        }
+
+        @Override
+        public void abort() {
+            file.close();
+        }
+    }
+
+    /**
+     * Ends after {@code remaining} bytes, for ranged reads through an InputStream.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        private LimitedInputStream(InputStream in, long remaining) {
+            super(in);
+            this.remaining = remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+
+    /**
+     * Written to a temporary file, which is moved into place like any other upload.
+     */
+    private final class LocalStagedUpload extends StagedUpload {
+
+        private final Path temp;
+        private final OutputStream out;
+
+        private LocalStagedUpload(Path temp) throws IOException {
+            this.temp = temp;
+            this.out = Files.newOutputStream(temp);
+        }
+
+        @Override
+        protected void append(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        protected void storeAs(String objectKey) throws IOException {
+            out.close();
+            moveIntoPlace(temp, objectKey);
+        }
+
+        @Override
+        public void close() {
+            try {
+                out.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                log.warn("Could not delete staged upload {}: {}", temp, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.audio.casse.service;
+
+import com.audio.casse.models.SeekTable;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds a {@link SeekTable} from an MP3 in one forward pass, without decoding any audio.
+ *
+ * Skips leading ID3v2 tags, then walks the MPEG frame headers: each header gives the frame's
+ * length and it always holds the same number of samples, so the position of every frame in time
+ * is exact whatever the bitrate does. A Xing/Info or VBRI header in the first frame is not audio
+ * and is left out of the timeline; its table of contents is only used when the frames themselves
+ * cannot be walked.
+ */
+final class Mp3FrameIndexer {
+
+    // roughly how far apart seek points are; ~4-8KB of table for a typical song
+    private static final double POINT_INTERVAL_SECONDS = 0.25;
+    // give up after this much garbage between frames, e.g. a trailing APE tag or a non-MP3 file
+    private static final int MAX_RESYNC_BYTES = 64 * 1024;
+    private static final int MAX_FRAME_LENGTH = 4096;
+
+    private static final int[][] BITRATES_KBPS = {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448}, // MPEG-1 layer I
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},    // MPEG-1 layer II
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},     // MPEG-1 layer III
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},    // MPEG-2/2.5 layer I
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},         // MPEG-2/2.5 layer II & III
+    };
+    private static final int[][] SAMPLE_RATES = {
+            {11025, 12000, 8000},  // MPEG-2.5
+            {},                    // reserved
+            {22050, 24000, 16000}, // MPEG-2
+            {44100, 48000, 32000}, // MPEG-1
+    };
+
+    private final InputStream in;
+    private long position;
+
+    private Mp3FrameIndexer(InputStream in) {
+        this.in = new BufferedInputStream(in);
+    }
+
+    /**
+     * Reads the stream to the end of the last MP3 frame (the caller still owns and closes it).
+     *
+     * @return the seek table, or null if the stream holds no MPEG audio frames.
+     */
+    static SeekTable index(InputStream in) throws IOException {
+        return new Mp3FrameIndexer(in).index();
+    }
+
+    private SeekTable index() throws IOException {
+        skipId3v2Tags();
+
+        byte[] frame = new byte[MAX_FRAME_LENGTH];
+        Frame first = null;
+        long[] offsets = new long[1024];
+        int points = 0;
+        int framesPerPoint = 1;
+        long audioFrames = 0;
+        TocHeader toc = null;
+
+        int header;
+        try {
+            header = readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        int skipped = 0;
+        while (true) {
+            Frame current = Frame.parse(header);
+            if (current == null || (first != null && !current.sameStreamAs(first))) {
+                if (++skipped > MAX_RESYNC_BYTES) {
+                    break;
+                }
+                int next = in.read();
+                if (next < 0) {
+                    break;
+                }
+                position++;
+                header = (header << 8) | next;
+                continue;
+            }
+            skipped = 0;
+            long frameStart = position - 4;
+            if (first == null) {
+                first = current;
+                framesPerPoint = Math.max(1, (int) Math.round(POINT_INTERVAL_SECONDS * first.sampleRate / first.samplesPerFrame));
+                if (!readFully(frame, 4, current.length - 4)) {
+                    break;
+                }
+                toc = TocHeader.parse(frame, current, frameStart);
+                if (toc != null) {
+                    // the Xing/Info/VBRI frame holds no audio
+                    try {
+                        header = readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    continue;
+                }
+            } else if (!skipFully(current.length - 4)) {
+                break;
+            }
+            if (audioFrames % framesPerPoint == 0) {
+                if (points == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, points * 2);
+                }
+                offsets[points++] = frameStart;
+            }
+            audioFrames++;
+            try {
+                header = readInt();
+            } catch (EOFException e) {
+                break;
+            }
+        }
+
+        if (first == null) {
+            return null;
+        }
+        if (audioFrames == 0) {
+            return toc != null ? toc.toSeekTable(first) : null;
+        }
+        return new SeekTable(first.sampleRate, framesPerPoint * first.samplesPerFrame,
+                audioFrames * first.samplesPerFrame, Arrays.copyOf(offsets, points));
+    }
+
+    /**
+     * ID3v2: "ID3", version, flags, then a 28-bit "syncsafe" size that excludes the 10 byte header
+     * (and the optional 10 byte footer). Some taggers write more than one tag in a row.
+     */
+    private void skipId3v2Tags() throws IOException {
+        while (true) {
+            in.mark(10);
+            byte[] tag = new byte[10];
+            int read = in.readNBytes(tag, 0, 10);
+            if (read < 10 || tag[0] != 'I' || tag[1] != 'D' || tag[2] != '3') {
+                in.reset();
+                return;
+            }
+            int size = (tag[6] & 0x7F) << 21 | (tag[7] & 0x7F) << 14 | (tag[8] & 0x7F) << 7 | (tag[9] & 0x7F);
+            boolean footer = (tag[5] & 0x10) != 0;
+            position += 10;
+            if (!skipFully(size + (footer ? 10 : 0))) {
+                return;
+            }
+        }
+    }
+
+    private int readInt() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value = (value << 8) | b;
+        }
+        position += 4;
+        return value;
+    }
+
+    private boolean readFully(byte[] buffer, int offset, int length) throws IOException {
+        int read = in.readNBytes(buffer, offset, length);
+        position += read;
+        return read == length;
+    }
+
+    private boolean skipFully(long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    break;
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+            position += skipped;
+        }
+        return remaining == 0;
+    }
+
+    private record Frame(int version, int layer, int sampleRate, boolean mono, int length, int samplesPerFrame) {
+
+        private static final int MPEG_1 = 3;
+        private static final int LAYER_1 = 3;
+        private static final int LAYER_2 = 2;
+
+        /**
+         * @return the decoded header, or null if these four bytes are not a usable frame header
+         * (no sync word, reserved values, or free-format bitrate).
+         */
+        static Frame parse(int header) {
+            if ((header >>> 21 & 0x7FF) != 0x7FF) {
+                return null;
+            }
+            int version = header >>> 19 & 0x3;
+            int layer = header >>> 17 & 0x3;
+            int bitrateIndex = header >>> 12 & 0xF;
+            int sampleRateIndex = header >>> 10 & 0x3;
+            if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+                return null;
+            }
+            int padding = header >>> 9 & 0x1;
+            boolean mono = (header >>> 6 & 0x3) == 3;
+            int sampleRate = SAMPLE_RATES[version][sampleRateIndex];
+
+            int table = version == MPEG_1 ? 3 - layer : (layer == LAYER_1 ? 3 : 4);
+            int bitrate = BITRATES_KBPS[table][bitrateIndex] * 1000;
+
+            int samplesPerFrame;
+            int length;
+            if (layer == LAYER_1) {
+                samplesPerFrame = 384;
+                length = (12 * bitrate / sampleRate + padding) * 4;
+            } else if (layer == LAYER_2 || version == MPEG_1) {
+                samplesPerFrame = 1152;
+                length = 144 * bitrate / sampleRate + padding;
+            } else {
+                samplesPerFrame = 576;
+                length = 72 * bitrate / sampleRate + padding;
+            }
+            if (length <= 4 || length > MAX_FRAME_LENGTH) {
+                return null;
+            }
+            return new Frame(version, layer, sampleRate, mono, length, samplesPerFrame);
+        }
+
+        boolean sameStreamAs(Frame other) {
+            return version == other.version && layer == other.layer && sampleRate == other.sampleRate;
+        }
+
+        /**
+         * Xing/Info headers follow the layer III side information, whose size depends on version and channels.
+         */
+        int sideInfoLength() {
+            if (version == MPEG_1) {
+                return mono ? 17 : 32;
+            }
+            return mono ? 9 : 17;
+        }
+    }
+
+    /**
+     * The encoder's own table of contents from a Xing/Info or VBRI header: coarse (100 points at
+     * most) and not frame aligned, but enough to seek in a file whose frames we could not walk.
+     */
+    private record TocHeader(long totalSamples, int samplesPerPoint, long[] offsets) {
+
+        static TocHeader parse(byte[] frame, Frame header, long frameStart) {
+            long audioStart = frameStart + header.length;
+            int xing = 4 + header.sideInfoLength();
+            if (matches(frame, xing, "Xing") || matches(frame, xing, "Info")) {
+                return parseXing(frame, xing + 4, header, audioStart);
+            }
+            if (matches(frame, 36, "VBRI")) {
+                return parseVbri(frame, 40, header, audioStart);
+            }
+            return null;
+        }
+
+        private static TocHeader parseXing(byte[] frame, int at, Frame header, long audioStart) {
+            int flags = readInt(frame, at, 4);
+            at += 4;
+            long frames = (flags & 0x1) != 0 ? readInt(frame, at, 4) & 0xFFFFFFFFL : 0;
+            at += (flags & 0x1) != 0 ? 4 : 0;
+            long bytes = (flags & 0x2) != 0 ? readInt(frame, at, 4) & 0xFFFFFFFFL : 0;
+            at += (flags & 0x2) != 0 ? 4 : 0;
+            long totalSamples = frames * header.samplesPerFrame;
+            if ((flags & 0x4) == 0 || frames == 0 || bytes == 0 || at + 100 > header.length) {
+                return new TocHeader(totalSamples, 0, new long[0]);
+            }
+            // entry i is the byte position, in 256ths of the audio, at i percent of the duration
+            long[] offsets = new long[100];
+            for (int i = 0; i < 100; i++) {
+                offsets[i] = audioStart + (frame[at + i] & 0xFF) * bytes / 256;
+            }
+            return new TocHeader(totalSamples, (int) Math.max(1, totalSamples / 100), offsets);
+        }
+
+        private static TocHeader parseVbri(byte[] frame, int at, Frame header, long audioStart) {
+            long frames = readInt(frame, at + 10, 4) & 0xFFFFFFFFL;
+            int entries = readInt(frame, at + 14, 2);
+            int scale = readInt(frame, at + 16, 2);
+            int entrySize = readInt(frame, at + 18, 2);
+            int framesPerEntry = readInt(frame, at + 20, 2);
+            long totalSamples = frames * header.samplesPerFrame;
+            int tocStart = at + 22;
+            if (entries == 0 || framesPerEntry == 0 || entrySize < 1 || entrySize > 4
+                    || tocStart + entries * entrySize > header.length) {
+                return new TocHeader(totalSamples, 0, new long[0]);
+            }
+            // entry i is the byte length of the i-th run of framesPerEntry frames
+            long[] offsets = new long[entries + 1];
+            offsets[0] = audioStart;
+            for (int i = 0; i < entries; i++) {
+                offsets[i + 1] = offsets[i] + (long) readInt(frame, tocStart + i * entrySize, entrySize) * scale;
+            }
+            return new TocHeader(totalSamples, framesPerEntry * header.samplesPerFrame, offsets);
+        }
+
+        SeekTable toSeekTable(Frame header) {
+            if (offsets.length == 0) {
+                return null;
+            }
+            return new SeekTable(header.sampleRate, samplesPerPoint, totalSamples, offsets);
+        }
+
+        private static boolean matches(byte[] frame, int at, String tag) {
+            return at + 4 <= frame.length
+                    && new String(frame, at, 4, StandardCharsets.ISO_8859_1).equals(tag);
+        }
+
+        private static int readInt(byte[] frame, int at, int length) {
+            int value = 0;
+            for (int i = 0; i < length; i++) {
+                value = (value << 8) | (frame[at + i] & 0xFF);
+            }
+            return value;
+        }
+    }
+}
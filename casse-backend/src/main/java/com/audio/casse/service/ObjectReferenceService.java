@@ -0,0 +1,52 @@
+package com.audio.casse.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+
+/**
+ * Reference counts for content-addressed storage objects, kept in Redis next to the pending approvals.
+ * One reference is taken per submitted song (or album art) pointing at an object; the object may
+ * only be deleted from storage once the last reference is released.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ObjectReferenceService {
+
+    private static final String OBJECT_REFS_PREFIX = "object-refs:";
+    // DECR and, for the last reference, DEL in one step: a retain landing between the two would
+    // otherwise have its reference deleted with the key
+    private static final RedisScript<Long> RELEASE = new DefaultRedisScript<>("""
+            local refs = redis.call('DECR', KEYS[1])
+            if refs <= 0 then
+                redis.call('DEL', KEYS[1])
+            end
+            return refs
+            """, Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+
+    /**
+     * @return the number of references after taking this one.
+     */
+    public long retain(String objectKey) {
+        Long refs = redisTemplate.opsForValue().increment(OBJECT_REFS_PREFIX + objectKey);
+        log.debug("Retained '{}', now {} reference(s)", objectKey, refs);
+        return refs != null ? refs : 1;
+    }
+
+    /**
+     * @return true if that was the last reference, i.e. the caller should delete the object.
+     */
+    public boolean release(String objectKey) {
+        Long refs = redisTemplate.execute(RELEASE, List.of(OBJECT_REFS_PREFIX + objectKey));
+        log.debug("Released '{}', now {} reference(s)", objectKey, refs);
+        return refs == null || refs <= 0;
+    }
+}
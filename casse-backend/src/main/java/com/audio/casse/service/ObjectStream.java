@@ -0,0 +1,71 @@
+package com.audio.casse.service;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An object body opened on storage, whose headers are already known but whose bytes have not been
+ * read yet. Hides whether the bytes come from S3Client, a coalesced upstream read or a local file.
+ */
+public interface ObjectStream {
+
+    int COPY_BUFFER_SIZE = 64 * 1024;
+
+    GetObjectResponse response();
+
+    /**
+     * Copies the whole body to {@code out}, and to {@code fill} when it is not null - the fill is
+     * committed once the body has been read to the end. Always releases the storage connection.
+     */
+    void writeTo(OutputStream out, AudioDiskCache.CacheFill fill) throws IOException;
+
+    /**
+     * Releases the storage connection without reading the body.
+     */
+    void abort();
+
+    static ObjectStream blocking(ResponseInputStream<GetObjectResponse> in) {
+        return new Blocking(in);
+    }
+
+    final class Blocking implements ObjectStream {
+
+        private final ResponseInputStream<GetObjectResponse> in;
+
+        private Blocking(ResponseInputStream<GetObjectResponse> in) {
+            this.in = in;
+        }
+
+        @Override
+        public GetObjectResponse response() {
+            return in.response();
+        }
+
+        @Override
+        public void writeTo(OutputStream out, AudioDiskCache.CacheFill fill) throws IOException {
+            if (fill == null) {
+                try (in) {
+                    in.transferTo(out);
+                }
+                return;
+            }
+            try (in; fill) {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    fill.write(buffer, 0, read);
+                }
+                fill.commit();
+            }
+        }
+
+        @Override
+        public void abort() {
+            in.abort();
+        }
+    }
+}
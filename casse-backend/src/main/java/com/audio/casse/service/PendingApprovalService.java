@@ -1,36 +1,131 @@
 package com.audio.casse.service;
 
 import com.audio.casse.config.properties.PendingApprovalProperties;
+import com.audio.casse.models.ContentAddress;
 import com.audio.casse.models.Song;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Songs waiting for an approver, kept in Redis under {@code pending-approval:<email>:<title>} for
+ * {@code casse.pending.approval.ttl}.
+ *
+ * A submission holds references to its content-addressed files (see ObjectReferenceService), and
+ * a key that expires takes the song, and with it the names of those files, along. So every pending
+ * song is also kept, without a TTL, in a hash next to a sorted set of when its key expires; the
+ * sweep releases the files of those past their expiry and drops them from both.
+ */
 @Service
 @AllArgsConstructor
 @Slf4j
 public class PendingApprovalService {
 
     private static final String PENDING_APPROVAL_PREFIX = "pending-approval:";
+    private static final String PENDING_SONGS = "pending-approval-songs";
+    private static final String PENDING_EXPIRIES = "pending-approval-expiries";
+    private static final int SWEEP_BATCH = 100;
+    // characters with a meaning in a MATCH pattern, escaped where an email is matched literally
+    private static final Pattern GLOB_SPECIAL = Pattern.compile("[*?\\[\\]\\\\]");
+    // SET with the TTL, returning the song it replaces (a resubmission under the same title) -
+    // also one that expired but was not swept yet, whose files would otherwise never be released
+    private static final RedisScript<String> REPLACE = new DefaultRedisScript<>("""
+            local previous = redis.call('GET', KEYS[1]) or redis.call('HGET', KEYS[2], KEYS[1])
+            redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2])
+            redis.call('HSET', KEYS[2], KEYS[1], ARGV[1])
+            redis.call('ZADD', KEYS[3], ARGV[3], KEYS[1])
+            return previous
+            """, String.class);
+    private static final RedisScript<Long> REMOVE = new DefaultRedisScript<>("""
+            redis.call('ZREM', KEYS[3], KEYS[1])
+            redis.call('HDEL', KEYS[2], KEYS[1])
+            return redis.call('DEL', KEYS[1])
+            """, Long.class);
+    // takes the songs whose key expired before ARGV[1] out of the hash, so only one node releases
+    // each; a key still there (its expiry was computed on a clock ahead of Redis') is put back
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> TAKE_EXPIRED = new DefaultRedisScript<>("""
+            local expired = redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2])
+            local songs = {}
+            for _, key in ipairs(expired) do
+                local ttl = redis.call('PTTL', key)
+                if ttl > 0 then
+                    redis.call('ZADD', KEYS[2], ARGV[3] + ttl, key)
+                else
+                    local song = redis.call('HGET', KEYS[1], key)
+                    redis.call('ZREM', KEYS[2], key)
+                    redis.call('HDEL', KEYS[1], key)
+                    if song then
+                        table.insert(songs, song)
+                    end
+                end
+            end
+            return songs
+            """, List.class);
 
     private final StringRedisTemplate redisTemplate;
     private final ObjectMapper objectMapper;
     private final PendingApprovalProperties pendingApprovalProperties;
     private final EmailService emailService;
+    private final StorageBackend storage;
 
     public void storePendingApproval(String principalEmail, Song song) throws JsonProcessingException {
         String key = PENDING_APPROVAL_PREFIX + principalEmail + ":" + song.getTitle();
         String value = objectMapper.writeValueAsString(song);
-        redisTemplate.opsForValue().set(key, value, pendingApprovalProperties.getTtl());
+        long ttl = pendingApprovalProperties.getTtl().toMillis();
+        String replaced = redisTemplate.execute(REPLACE, List.of(key, PENDING_SONGS, PENDING_EXPIRIES),
+                value, String.valueOf(ttl), String.valueOf(System.currentTimeMillis() + ttl));
         log.info("Storing pending approval for song '{}' by '{}'. StorageAccessKey: {}", song.getTitle(), principalEmail, song.getStorageAccessKey());
+        if (replaced != null) {
+            releaseReplaced(principalEmail, objectMapper.readValue(replaced, Song.class), song);
+        }
 
         // Send approval email
         emailService.sendApprovalEmail(principalEmail, song.getTitle(), song.getStorageAccessKey());
     }
 
+    /**
+     * Releases the files of a pending song overwritten by a new submission of the same title. The
+     * new submission took references of its own, even to the very same files, so the old ones would
+     * otherwise never be released and their objects never deleted.
+     */
+    private void releaseReplaced(String principalEmail, Song replaced, Song song) {
+        log.info("Song '{}' by '{}' replaces a pending submission. Releasing StorageAccessKey: {}", song.getTitle(), principalEmail, replaced.getStorageAccessKey());
+        try {
+            if (isReleasable(replaced.getStorageAccessKey(), song.getStorageAccessKey())) {
+                storage.deleteSong(replaced.getStorageAccessKey(), principalEmail);
+            }
+            if (isReleasable(replaced.getAlbumArt(), song.getAlbumArt())) {
+                storage.deleteAlbumArt(replaced.getAlbumArt(), principalEmail);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not release the files of the replaced submission of '{}' by '{}': {}", song.getTitle(), principalEmail, e.getMessage());
+        }
+    }
+
+    /**
+     * A content-addressed file is reference counted, so it is released even when the new
+     * submission points at it too; a legacy name is the file itself and only goes if unused.
+     */
+    private static boolean isReleasable(String replacedFile, String newFile) {
+        return replacedFile != null
+                && (ContentAddress.isContentAddressed(replacedFile) || !replacedFile.equals(newFile));
+    }
+
     public Song getPendingApproval(String uploaderEmail, String songTitle) throws JsonProcessingException {
         String key = PENDING_APPROVAL_PREFIX + uploaderEmail + ":" + songTitle;
         String songJson = redisTemplate.opsForValue().get(key);
@@ -43,9 +138,72 @@ public class PendingApprovalService {
         return null;
     }
 
+    /**
+     * Every song the uploader has waiting for approval, read from the hash of pending songs rather
+     * than by scanning the whole keyspace. A song whose key expired is listed until it is swept.
+     */
+    public List<Song> getPendingApprovals(String uploaderEmail) throws JsonProcessingException {
+        String email = GLOB_SPECIAL.matcher(uploaderEmail).replaceAll(special -> Matcher.quoteReplacement("\\" + special.group()));
+        ScanOptions options = ScanOptions.scanOptions().match(PENDING_APPROVAL_PREFIX + email + ":*").count(1000).build();
+        List<Song> songs = new ArrayList<>();
+        try (Cursor<Map.Entry<Object, Object>> entries = redisTemplate.opsForHash().scan(PENDING_SONGS, options)) {
+            while (entries.hasNext()) {
+                songs.add(objectMapper.readValue((String) entries.next().getValue(), Song.class));
+            }
+        }
+        return songs;
+    }
+
     public void removePendingApproval(String principalEmail, String songTitle) {
         String key = PENDING_APPROVAL_PREFIX + principalEmail + ":" + songTitle;
-        redisTemplate.delete(key);
+        redisTemplate.execute(REMOVE, List.of(key, PENDING_SONGS, PENDING_EXPIRIES));
         log.info("Removed pending approval for song '{}' by '{}'", songTitle, principalEmail);
     }
+
+    /**
+     * Releases the files of submissions that expired without being approved or denied, as denying
+     * them would have. Runs on every node; each expired song is taken by one of them.
+     */
+    @Scheduled(fixedDelayString = "${casse.pending.approval.sweep-interval:1m}")
+    public void releaseExpired() {
+        long now = System.currentTimeMillis();
+        String expiredBefore = String.valueOf(now - pendingApprovalProperties.getReleaseDelay().toMillis());
+        List<?> expired;
+        do {
+            try {
+                expired = redisTemplate.execute(TAKE_EXPIRED, List.of(PENDING_SONGS, PENDING_EXPIRIES),
+                        expiredBefore, String.valueOf(SWEEP_BATCH), String.valueOf(now));
+            } catch (RuntimeException e) {
+                log.warn("Could not look for expired pending approvals: {}", e.getMessage());
+                return;
+            }
+            if (expired == null) {
+                return;
+            }
+            for (Object songJson : expired) {
+                releaseExpired((String) songJson);
+            }
+        } while (expired.size() == SWEEP_BATCH);
+    }
+
+    private void releaseExpired(String songJson) {
+        Song song;
+        try {
+            song = objectMapper.readValue(songJson, Song.class);
+        } catch (JsonProcessingException e) {
+            log.error("Could not read an expired pending approval, its files stay: {}", e.getMessage());
+            return;
+        }
+        log.info("Pending approval of song '{}' by '{}' expired. Releasing StorageAccessKey: {}", song.getTitle(), song.getEmail(), song.getStorageAccessKey());
+        try {
+            if (song.getStorageAccessKey() != null) {
+                storage.deleteSong(song.getStorageAccessKey(), song.getEmail());
+            }
+            if (song.getAlbumArt() != null && !song.getAlbumArt().isEmpty()) {
+                storage.deleteAlbumArt(song.getAlbumArt(), song.getEmail());
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not release the files of the expired submission of '{}' by '{}': {}", song.getTitle(), song.getEmail(), e.getMessage());
+        }
+    }
 }
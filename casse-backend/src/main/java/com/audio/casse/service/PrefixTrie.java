@@ -0,0 +1,99 @@
+package com.audio.casse.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An immutable radix trie (a trie whose single-child chains are collapsed into one edge) that
+ * answers "the k heaviest entries starting with this prefix" in time proportional to the prefix
+ * alone: every node stores its subtree's top k, worked out once when the trie is built.
+ */
+final class PrefixTrie {
+
+    private static final int[] NONE = new int[0];
+
+    private final Node root;
+
+    /**
+     * @param keys    sorted; {@code ids[i]} is the entry {@code keys[i]} leads to. An entry may have several keys.
+     * @param weights by entry id, higher first in results.
+     * @param k       how many entries each prefix keeps.
+     */
+    PrefixTrie(String[] keys, int[] ids, long[] weights, int k) {
+        Comparator<Integer> heaviestFirst = Comparator.<Integer>comparingLong(id -> weights[id]).reversed()
+                .thenComparingInt(id -> id);
+        this.root = keys.length == 0 ? null : build(keys, ids, 0, keys.length, 0, "", heaviestFirst, k);
+    }
+
+    /**
+     * @return ids of the heaviest entries with a key starting with {@code prefix}, heaviest first.
+     */
+    int[] top(String prefix) {
+        Node node = root;
+        int position = 0;
+        while (node != null && position < prefix.length()) {
+            int child = Arrays.binarySearch(node.firstChars, prefix.charAt(position));
+            if (child < 0) {
+                return NONE;
+            }
+            node = node.children[child];
+            int length = Math.min(node.label.length(), prefix.length() - position);
+            if (!prefix.regionMatches(position, node.label, 0, length)) {
+                return NONE;
+            }
+            position += length;
+        }
+        return node != null ? node.top : NONE;
+    }
+
+    /**
+     * Builds the node for {@code keys[from, to)}, which all share their first {@code depth} characters.
+     */
+    private static Node build(String[] keys, int[] ids, int from, int to, int depth, String label,
+                              Comparator<Integer> heaviestFirst, int k) {
+        Set<Integer> candidates = new LinkedHashSet<>();
+        int i = from;
+        // sorted, so keys ending right here come first
+        while (i < to && keys[i].length() == depth) {
+            candidates.add(ids[i++]);
+        }
+        List<Node> children = new ArrayList<>();
+        while (i < to) {
+            char first = keys[i].charAt(depth);
+            int end = i + 1;
+            while (end < to && keys[end].charAt(depth) == first) {
+                end++;
+            }
+            // in a sorted run, the first and last keys share exactly what all of them share
+            int shared = commonPrefixLength(keys[i], keys[end - 1]);
+            Node child = build(keys, ids, i, end, shared, keys[i].substring(depth, shared), heaviestFirst, k);
+            children.add(child);
+            for (int id : child.top) {
+                candidates.add(id);
+            }
+            i = end;
+        }
+
+        int[] top = candidates.stream().sorted(heaviestFirst).limit(k).mapToInt(Integer::intValue).toArray();
+        char[] firstChars = new char[children.size()];
+        for (int c = 0; c < firstChars.length; c++) {
+            firstChars[c] = children.get(c).label.charAt(0);
+        }
+        return new Node(label, firstChars, children.toArray(Node[]::new), top);
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < length && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private record Node(String label, char[] firstChars, Node[] children, int[] top) {}
+}
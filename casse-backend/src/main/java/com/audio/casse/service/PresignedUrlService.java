@@ -0,0 +1,46 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.StreamingProperties;
+import com.audio.casse.dto.StreamManifest;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.stereotype.Service;
+
+/**
+ * Hands out presigned storage URLs for the redirect delivery mode.
+ *
+ * URLs are cached per (requesting user, object key) and dropped {@code presign-refresh-margin} before
+ * they expire, so a user replaying a song gets the same URL back (which their HTTP cache can also reuse)
+ * and never one with only a few seconds left on it.
+ */
+@Service
+public class PresignedUrlService {
+
+    private static final int MAX_CACHED_URLS = 10_000;
+
+    private final StorageBackend storage;
+    private final StreamingProperties.Delivery delivery;
+    private final Cache<PresignKey, StreamManifest> presignedUrls;
+
+    public PresignedUrlService(StorageBackend storage, StreamingProperties streamingProperties,
+                               MeterRegistry meterRegistry) {
+        this.storage = storage;
+        this.delivery = streamingProperties.getDelivery();
+        this.presignedUrls = Caffeine.newBuilder()
+                .maximumSize(MAX_CACHED_URLS)
+                .expireAfterWrite(delivery.getPresignTtl().minus(delivery.getPresignRefreshMargin()))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, presignedUrls, "presigned-urls");
+    }
+
+    public StreamManifest presignSong(String requester, String fileName, String userName) {
+        String objectKey = storage.songKey(fileName, userName);
+        return presignedUrls.get(new PresignKey(requester, objectKey),
+                key -> storage.presignGet(key.objectKey(), delivery.getPresignTtl()));
+    }
+
+    private record PresignKey(String requester, String objectKey) {}
+}
@@ -0,0 +1,245 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.R2ReplicationProperties;
+import com.audio.casse.models.ObjectMetadata;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Copies what was written to the primary bucket to every replica, working through the
+ * replication log StorageReplicas appends to.
+ *
+ * The log is a Redis stream read through a consumer group, so every pod can run a worker and
+ * each entry goes to one of them. An entry only names a key: the worker makes each replica hold
+ * whatever the primary holds under it now (the object, or nothing), which makes replaying an
+ * entry, or handling them out of order, harmless. An entry is acknowledged once every replica is
+ * in line; one left unacknowledged past {@code retry-delay} is claimed by whichever worker polls
+ * next, until {@code max-attempts}.
+ */
+@Component
+@ConditionalOnExpression("${cloudflare.r2.replication.enabled:false} and '${casse.storage.backend:r2}' == 'r2'")
+@Slf4j
+public class ReplicationWorker {
+
+    private static final String GROUP = "replicators";
+
+    private final R2ReplicationProperties properties;
+    private final CloudflareR2Service storage;
+    private final StorageReplicas replicas;
+    private final StringRedisTemplate redisTemplate;
+    private final StreamOperations<String, Object, Object> replicationLog;
+    private final MeterRegistry meterRegistry;
+    private final String consumer = System.getenv().getOrDefault("HOSTNAME", UUID.randomUUID().toString());
+
+    // refreshed by every poll, so scraping metrics costs no round trip to Redis
+    private volatile double lagSeconds;
+    private volatile long pending;
+
+    public ReplicationWorker(R2ReplicationProperties properties, CloudflareR2Service storage, StorageReplicas replicas,
+                             StringRedisTemplate redisTemplate, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.storage = storage;
+        this.replicas = replicas;
+        this.redisTemplate = redisTemplate;
+        this.replicationLog = redisTemplate.opsForStream();
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("storage.replication.lag", this, worker -> worker.lagSeconds)
+                .description("Age of the oldest write not yet copied to every replica")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        Gauge.builder("storage.replication.pending", this, worker -> worker.pending)
+                .description("Replication log entries handed to a worker and not yet acknowledged")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    void createGroup() {
+        try {
+            // from the start of the log, so entries written while no worker ran are not skipped
+            replicationLog.createGroup(properties.getLogKey(), ReadOffset.from("0"), GROUP);
+        } catch (DataAccessException e) {
+            String message = NestedExceptionUtils.getMostSpecificCause(e).getMessage();
+            if (message == null || !message.contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${cloudflare.r2.replication.poll-interval:1s}")
+    public void poll() {
+        try {
+            retryStalled();
+            List<MapRecord<String, Object, Object>> entries = replicationLog.read(Consumer.from(GROUP, consumer),
+                    StreamReadOptions.empty().count(properties.getBatchSize()),
+                    StreamOffset.create(properties.getLogKey(), ReadOffset.lastConsumed()));
+            if (entries != null) {
+                entries.forEach(this::replicate);
+            }
+            measureLag();
+            trim();
+        } catch (RuntimeException e) {
+            log.warn("Replication poll failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Takes over entries some worker was handed but never acknowledged - because copying failed,
+     * or because its pod went away mid-copy.
+     */
+    private void retryStalled() {
+        PendingMessages stalled = replicationLog.pending(properties.getLogKey(), GROUP, Range.unbounded(), properties.getBatchSize());
+        Map<RecordId, Long> deliveries = new HashMap<>();
+        for (PendingMessage message : stalled) {
+            if (message.getElapsedTimeSinceLastDelivery().compareTo(properties.getRetryDelay()) >= 0) {
+                deliveries.put(message.getId(), message.getTotalDeliveryCount());
+            }
+        }
+        if (deliveries.isEmpty()) {
+            return;
+        }
+        // only returns those still idle, so two workers never retry the same entry at once
+        List<MapRecord<String, Object, Object>> claimed = replicationLog.claim(properties.getLogKey(), GROUP, consumer,
+                properties.getRetryDelay(), deliveries.keySet().toArray(RecordId[]::new));
+        for (MapRecord<String, Object, Object> entry : claimed) {
+            if (deliveries.get(entry.getId()) >= properties.getMaxAttempts()) {
+                log.error("Giving up on replicating '{}' after {} attempts", entry.getValue().get(StorageReplicas.KEY_FIELD),
+                        deliveries.get(entry.getId()));
+                replicationLog.add(properties.getLogKey() + ":dead", entry.getValue());
+                replicationLog.acknowledge(properties.getLogKey(), GROUP, entry.getId());
+            } else {
+                replicate(entry);
+            }
+        }
+    }
+
+    private void replicate(MapRecord<String, Object, Object> entry) {
+        String objectKey = (String) entry.getValue().get(StorageReplicas.KEY_FIELD);
+        boolean inLine = true;
+        for (StorageReplica replica : replicas.replicas()) {
+            try {
+                count(replica, sync(objectKey, replica));
+            } catch (RuntimeException e) {
+                log.warn("Could not replicate '{}' to '{}': {}", objectKey, replica.name(), e.getMessage());
+                count(replica, "failed");
+                inLine = false;
+            }
+        }
+        if (inLine) {
+            replicationLog.acknowledge(properties.getLogKey(), GROUP, entry.getId());
+        }
+    }
+
+    /**
+     * Makes the replica hold what the primary holds under {@code objectKey}.
+     *
+     * @return what it took: "copied", "deleted" or "skipped" (already in line).
+     */
+    private String sync(String objectKey, StorageReplica replica) {
+        ObjectMetadata source = storage.headIfExists(objectKey);
+        if (source != null && source.eTag().equals(replica.sourceETag(objectKey))) {
+            return "skipped";
+        }
+        if (source != null) {
+            try (ResponseInputStream<GetObjectResponse> content = storage.getFromPrimary(objectKey)) {
+                replica.put(objectKey, content);
+                return "copied";
+            } catch (NoSuchKeyException e) {
+                // deleted since the HEAD
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        replica.delete(objectKey);
+        return "deleted";
+    }
+
+    private void count(StorageReplica replica, String outcome) {
+        Counter.builder("storage.replication.objects")
+                .description("Replication log entries applied to a replica, by outcome")
+                .tag("replica", replica.name())
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    /**
+     * Entries are handed out in log order, so the oldest not yet acknowledged is the oldest
+     * pending one - or, with none pending, the first not handed out yet.
+     */
+    private void measureLag() {
+        PendingMessagesSummary summary = replicationLog.pending(properties.getLogKey(), GROUP);
+        pending = summary.getTotalPendingMessages();
+        String oldest = pending > 0 ? summary.minMessageId() : firstUndelivered();
+        lagSeconds = oldest == null ? 0 : Math.max(0, (System.currentTimeMillis() - RecordId.of(oldest).getTimestamp()) / 1000.0);
+    }
+
+    private String firstUndelivered() {
+        RecordId last = RecordId.of(lastDeliveredId());
+        String next = last.getTimestamp() + "-" + (last.getSequence() + 1);
+        List<MapRecord<String, Object, Object>> entries = replicationLog.range(properties.getLogKey(),
+                Range.rightUnbounded(Range.Bound.inclusive(next)), Limit.limit().count(1));
+        return entries == null || entries.isEmpty() ? null : entries.get(0).getId().getValue();
+    }
+
+    private String lastDeliveredId() {
+        return replicationLog.groups(properties.getLogKey()).stream()
+                .filter(group -> group.groupName().equals(GROUP))
+                .map(group -> group.lastDeliveredId())
+                .findFirst()
+                .orElse("0-0");
+    }
+
+    /**
+     * Trims the log once it is longer than {@code retained-entries}, but only below the entries a
+     * replica may still need: the oldest one pending (retrying it claims its fields from the log)
+     * and anything not handed out yet. A plain MAXLEN would drop those as soon as replication fell
+     * far enough behind. The group's position is read before its pending entries, so an entry
+     * handed out in between is above it and kept.
+     */
+    private void trim() {
+        String logKey = properties.getLogKey();
+        Long length = replicationLog.size(logKey);
+        if (length == null || length <= properties.getRetainedEntries()) {
+            return;
+        }
+        String lastDelivered = lastDeliveredId();
+        PendingMessagesSummary summary = replicationLog.pending(logKey, GROUP);
+        String keepFrom = summary.getTotalPendingMessages() > 0 ? summary.minMessageId() : lastDelivered;
+        redisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XTRIM",
+                logKey.getBytes(StandardCharsets.UTF_8), "MINID".getBytes(StandardCharsets.UTF_8),
+                "~".getBytes(StandardCharsets.UTF_8), keepFrom.getBytes(StandardCharsets.UTF_8)));
+    }
+}
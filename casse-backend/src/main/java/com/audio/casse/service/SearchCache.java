@@ -0,0 +1,228 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.SearchProperties;
+import com.audio.casse.dto.SongPage;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Caches the first page of song searches in two tiers: a small, short-lived one in this node's
+ * memory and a shared one in Redis.
+ *
+ * Entries are filed under a generation number kept in Redis. Whenever the index changes (a song
+ * is approved or removed) the generation is bumped and announced on a pub/sub channel; every node
+ * then drops its local entries and looks up shared ones under the new generation, leaving the old
+ * ones to expire. Only first pages are cached: a later page is asked for with a cursor that is
+ * only ever used once or twice.
+ *
+ * Reported per endpoint: {@code search.cache.requests} by result (local, shared or miss), the
+ * time misses spend in Elasticsearch, and {@code search.cache.time.saved}, the time hits are
+ * estimated to have saved at the endpoint's average miss time.
+ */
+@Service
+@Slf4j
+public class SearchCache {
+
+    private static final String GENERATION_KEY = "search-cache:generation";
+    private static final String ENTRY_PREFIX = "search-cache:";
+    private static final String INVALIDATION_CHANNEL = "search-cache:invalidations";
+
+    private final SearchProperties properties;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final Cache<String, SongPage> local;
+    private final AtomicLong generation = new AtomicLong();
+
+    public SearchCache(SearchProperties properties, StringRedisTemplate redisTemplate,
+                       RedisMessageListenerContainer redisMessageListenerContainer, ObjectMapper objectMapper,
+                       MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = redisMessageListenerContainer;
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        this.local = Caffeine.newBuilder()
+                .maximumSize(properties.getCache().getLocalMaxEntries())
+                .expireAfterWrite(properties.getCache().getLocalTtl())
+                .build();
+    }
+
+    @PostConstruct
+    void subscribe() {
+        if (!properties.getCache().isEnabled()) {
+            return;
+        }
+        listenerContainer.addMessageListener((message, pattern) ->
+                advanceTo(Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(INVALIDATION_CHANNEL));
+        try {
+            String current = redisTemplate.opsForValue().get(GENERATION_KEY);
+            advanceTo(current != null ? Long.parseLong(current) : 0);
+        } catch (RuntimeException e) {
+            log.warn("Could not read the search cache generation: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * The page for this search, from the cache if it is there; otherwise {@code search} is run and
+     * its result cached. Pages asked for with a cursor are never cached.
+     *
+     * @param endpoint names the endpoint in metrics, and is part of the key.
+     * @param size     the page size asked for, or null for the default.
+     * @param fields   the song fields the page holds.
+     */
+    public SongPage get(String endpoint, String query, boolean exactMatch, Integer size, List<String> fields,
+                        String cursor, Supplier<SongPage> search) {
+        if (!properties.getCache().isEnabled() || cursor != null) {
+            return search.get();
+        }
+        String key = ENTRY_PREFIX + generation.get() + ":" + hash(endpoint, query, exactMatch, size, fields);
+
+        SongPage page = local.getIfPresent(key);
+        if (page != null) {
+            hit(endpoint, "local");
+            return page;
+        }
+        page = readShared(key);
+        if (page != null) {
+            local.put(key, page);
+            hit(endpoint, "shared");
+            return page;
+        }
+
+        Timer.Sample sample = Timer.start(meterRegistry);
+        page = search.get();
+        sample.stop(missTimer(endpoint));
+        requests(endpoint, "miss").increment();
+        local.put(key, page);
+        writeShared(key, page);
+        return page;
+    }
+
+    /**
+     * Drops every cached search, on every node. Call whenever songs are added to or removed from the index.
+     */
+    public void invalidate() {
+        if (!properties.getCache().isEnabled()) {
+            return;
+        }
+        try {
+            Long next = redisTemplate.opsForValue().increment(GENERATION_KEY);
+            if (next != null) {
+                advanceTo(next);
+                redisTemplate.convertAndSend(INVALIDATION_CHANNEL, String.valueOf(next));
+            }
+        } catch (RuntimeException e) {
+            // without Redis other nodes keep their entries until the local TTL runs out
+            log.warn("Could not invalidate the shared search cache: {}", e.getMessage());
+            local.invalidateAll();
+        }
+    }
+
+    /**
+     * Moves on whenever the index changes, on every node; constant while the cache is disabled.
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * How long after its search a cached page may still be handed out: up to the shared TTL from
+     * Redis, then up to the local TTL from a node that read it there.
+     */
+    public Duration maxAge() {
+        if (!properties.getCache().isEnabled()) {
+            return Duration.ZERO;
+        }
+        return properties.getCache().getSharedTtl().plus(properties.getCache().getLocalTtl());
+    }
+
+    private void advanceTo(long next) {
+        if (generation.getAndAccumulate(next, Math::max) < next) {
+            local.invalidateAll();
+        }
+    }
+
+    /**
+     * Search text is lowercased by every field's analyzer or normalizer, so differences in case do
+     * not make a different search. Spacing only does not for analyzed text, which is split into
+     * words; an exact match is a term query on a keyword field, where it is part of the value.
+     */
+    private String hash(String endpoint, String query, boolean exactMatch, Integer size, List<String> fields) {
+        String text = query == null ? "" : exactMatch ? query : query.trim().replaceAll("\\s+", " ");
+        // one code point at a time, as Lucene's lowercase filter does, unlike String.toLowerCase
+        String normalized = text.codePoints().map(Character::toLowerCase)
+                .collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append).toString();
+        int pageSize = size == null ? properties.getDefaultSize() : Math.max(1, Math.min(size, properties.getMaxSize()));
+        String key = endpoint + "\n" + exactMatch + "\n" + pageSize + "\n" + String.join(",", fields) + "\n" + normalized;
+        return DigestUtils.md5DigestAsHex(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private SongPage readShared(String key) {
+        try {
+            String json = redisTemplate.opsForValue().get(key);
+            return json != null ? objectMapper.readValue(json, SongPage.class) : null;
+        } catch (JsonProcessingException | RuntimeException e) {
+            log.warn("Could not read cached search '{}': {}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeShared(String key, SongPage page) {
+        try {
+            redisTemplate.opsForValue().set(key, objectMapper.writeValueAsString(page),
+                    properties.getCache().getSharedTtl().toMillis(), TimeUnit.MILLISECONDS);
+        } catch (JsonProcessingException | RuntimeException e) {
+            log.warn("Could not cache search '{}': {}", key, e.getMessage());
+        }
+    }
+
+    private void hit(String endpoint, String tier) {
+        requests(endpoint, tier).increment();
+        Timer misses = missTimer(endpoint);
+        if (misses.count() > 0) {
+            Counter.builder("search.cache.time.saved")
+                    .description("Elasticsearch time saved by cache hits, estimated at the average miss time")
+                    .baseUnit("seconds")
+                    .tag("endpoint", endpoint)
+                    .register(meterRegistry)
+                    .increment(misses.mean(TimeUnit.SECONDS));
+        }
+    }
+
+    private Counter requests(String endpoint, String result) {
+        return Counter.builder("search.cache.requests")
+                .description("Cacheable searches, by where the page came from")
+                .tag("endpoint", endpoint)
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private Timer missTimer(String endpoint) {
+        return Timer.builder("search.cache.miss.latency")
+                .description("Time spent in Elasticsearch by searches the cache could not answer")
+                .tag("endpoint", endpoint)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,193 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.SeekIndexProperties;
+import com.audio.casse.models.ContentAddress;
+import com.audio.casse.models.SeekTable;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Seek tables for time-based seeking ({@code ?t=}), stored in R2 next to each song as
+ * {@code <song>.seek}. They are built at upload time as the file streams in; songs uploaded before
+ * that are indexed in the background the first time someone seeks in them, and play from the
+ * start until then.
+ *
+ * A file that is not MPEG audio gets an empty table (SeekTable.NONE), stored and cached like any
+ * other, so it is scanned once rather than on every seek.
+ */
+@Service
+@Slf4j
+public class SeekIndexService {
+
+    private static final String SEEK_TABLE_CONTENT_TYPE = "application/octet-stream";
+    // tables are a few KB, so this holds thousands of songs
+    private static final long MAX_CACHED_BYTES = 32L * 1024 * 1024;
+
+    private final StorageBackend storage;
+    private final Cache<String, SeekTable> seekTables;
+    private final ThreadPoolExecutor executor;
+    // seek table keys being built, so a burst of seeks queues one build
+    private final Set<String> building = ConcurrentHashMap.newKeySet();
+
+    public SeekIndexService(StorageBackend storage, SeekIndexProperties properties, MeterRegistry meterRegistry) {
+        this.storage = storage;
+        this.seekTables = Caffeine.newBuilder()
+                .maximumWeight(MAX_CACHED_BYTES)
+                .weigher((String key, SeekTable table) -> 64 + table.offsets().length * Long.BYTES)
+                .expireAfterAccess(Duration.ofHours(1))
+                .recordStats()
+                .build();
+        this.executor = new ThreadPoolExecutor(properties.getThreads(), properties.getThreads(),
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(properties.getQueueCapacity()),
+                new CustomizableThreadFactory("seek-indexer-"));
+        CaffeineCacheMetrics.monitor(meterRegistry, seekTables, "seek-tables");
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Stores the seek table of a just-uploaded song, built by Mp3FrameIndexer as the upload streamed
+     * past. Failure only costs time-based seeking in that song, so it is logged rather than failing
+     * the upload.
+     *
+     * @param indexed the table, or null if the file held no MPEG audio frames.
+     */
+    public void indexUpload(SeekTable indexed, String fileName, String userName) {
+        String key = storage.songSeekTableKey(fileName, userName);
+        try {
+            if (ContentAddress.isContentAddressed(fileName) && storage.objectExists(key)) {
+                return;
+            }
+            SeekTable table = indexed != null ? indexed : SeekTable.NONE;
+            storage.putObject(key, table.toBytes(), SEEK_TABLE_CONTENT_TYPE);
+            seekTables.put(key, table);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not build a seek table for '{}': {}", fileName, e.getMessage());
+        }
+    }
+
+    /**
+     * For request threads: never reads more than the stored table. If there is none yet, the song
+     * is indexed in the background and null returned meanwhile.
+     *
+     * @return the song's seek table, or null if it is not MPEG audio or not indexed yet.
+     */
+    public SeekTable seekTable(String fileName, String userName) {
+        String key = storage.songSeekTableKey(fileName, userName);
+        SeekTable table = seekTables.getIfPresent(key);
+        if (table == null && !building.contains(key)) {
+            table = readStored(key);
+            if (table != null) {
+                seekTables.put(key, table);
+            } else {
+                buildInBackground(key, fileName, userName);
+            }
+        }
+        return table == null || table.isEmpty() ? null : table;
+    }
+
+    /**
+     * For background work that needs the table whatever it costs: indexes the song on the calling
+     * thread if it has no table yet.
+     *
+     * @return the song's seek table, or null if it is not MPEG audio.
+     */
+    public SeekTable buildSeekTable(String fileName, String userName) {
+        String key = storage.songSeekTableKey(fileName, userName);
+        SeekTable table = seekTables.get(key, k -> {
+            SeekTable stored = readStored(k);
+            return stored != null ? stored : build(k, fileName, userName);
+        });
+        return table.isEmpty() ? null : table;
+    }
+
+    /**
+     * The song's average bitrate, only if its seek table is already in memory: this is asked on
+     * every stream and must not cost a storage read.
+     *
+     * @return bits per second, or 0 if not known.
+     */
+    public long cachedBitrate(String fileName, String userName) {
+        SeekTable table = seekTables.getIfPresent(storage.songSeekTableKey(fileName, userName));
+        return table != null ? table.averageBitrate() : 0;
+    }
+
+    private void buildInBackground(String key, String fileName, String userName) {
+        if (!building.add(key)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    seekTables.get(key, k -> build(k, fileName, userName));
+                } catch (RuntimeException e) {
+                    log.warn("Could not build a seek table for '{}': {}", fileName, e.getMessage());
+                } finally {
+                    building.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            building.remove(key);
+            log.warn("Seek indexer busy, '{}' will be indexed on a later seek", fileName);
+        }
+    }
+
+    /**
+     * @return the stored table, or null if there is none.
+     */
+    private SeekTable readStored(String key) {
+        try (ResponseInputStream<GetObjectResponse> in = storage.openObject(key)) {
+            return SeekTable.fromBytes(in.readAllBytes());
+        } catch (NoSuchKeyException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private SeekTable build(String key, String fileName, String userName) {
+        log.info("No seek table for '{}' yet, indexing it from storage", fileName);
+        try {
+            SeekTable table;
+            try (ResponseInputStream<GetObjectResponse> in = storage.streamSong(fileName, userName)) {
+                table = index(in, fileName);
+            }
+            storage.putObject(key, table.toBytes(), SEEK_TABLE_CONTENT_TYPE);
+            return table;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static SeekTable index(InputStream in, String fileName) throws IOException {
+        SeekTable table = Mp3FrameIndexer.index(in);
+        if (table == null) {
+            log.info("No MPEG audio frames in '{}', storing an empty seek table", fileName);
+            return SeekTable.NONE;
+        }
+        return table;
+    }
+}
@@ -0,0 +1,41 @@
+package com.audio.casse.service;
+
+import com.audio.casse.models.ContentAddress;
+import com.audio.casse.repository.SongsRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+/**
+ * Which song files a user may read by file name alone, and which songs are approved.
+ *
+ * A content-addressed file is stored once for everyone who uploads the same bytes (see
+ * AbstractStorageBackend), so its name says nothing about whose it is, and knowing it must not be
+ * enough to play it: only the songs pointing at it do. Legacy names resolve under the folder of
+ * the user asking, so they can only ever reach that user's own files.
+ */
+@Service
+@RequiredArgsConstructor
+public class SongAccessService {
+
+    private final SongsRepository songsRepository;
+    private final PendingApprovalService pendingApprovalService;
+
+    /**
+     * @return true if {@code fileName} is the file of one of the user's songs, approved or still pending.
+     */
+    public boolean isOwnSong(String email, String fileName) throws JsonProcessingException {
+        if (!ContentAddress.isContentAddressed(fileName)) {
+            return true;
+        }
+        return isApproved(email, fileName)
+                || pendingApprovalService.getPendingApprovals(email).stream().anyMatch(song -> fileName.equals(song.getStorageAccessKey()));
+    }
+
+    /**
+     * @return true if {@code storageAccessKey} is the file of one of the uploader's approved songs.
+     */
+    public boolean isApproved(String uploaderEmail, String storageAccessKey) {
+        return songsRepository.findByEmail(uploaderEmail).stream().anyMatch(song -> storageAccessKey.equals(song.getStorageAccessKey()));
+    }
+}
@@ -0,0 +1,171 @@
+package com.audio.casse.service;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.SortOptions;
+import co.elastic.clients.elasticsearch._types.SortOrder;
+import co.elastic.clients.elasticsearch._types.Time;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import com.audio.casse.config.properties.SearchProperties;
+import com.audio.casse.models.Song;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes the whole song catalog out as NDJSON, one document per line, in constant memory.
+ *
+ * The index is read through one point in time, split into {@code casse.search.export.slices}
+ * slices that are paged through in parallel with search_after on {@code _shard_doc}. Pages go
+ * through a bounded queue to the thread writing the response, which serializes each song
+ * straight onto the output stream. A slow client therefore slows the readers down instead of
+ * letting pages pile up, and memory is bounded by buffered-pages * page-size songs whatever the
+ * size of the index.
+ */
+@Service
+public class SongExportService {
+
+    private static final List<SortOptions> SORT = List.of(
+            SortOptions.of(sort -> sort.field(field -> field.field("_shard_doc").order(SortOrder.Asc))));
+    // what a slice puts on the queue once it has read everything
+    private static final Page DONE = new Page(null, null);
+
+    private final ElasticsearchClient client;
+    private final SongSearchService songSearchService;
+    private final SearchProperties.Export properties;
+    private final ObjectWriter writer;
+    private final Time keepAlive;
+
+    public SongExportService(ElasticsearchClient client, SongSearchService songSearchService,
+                             SearchProperties searchProperties, ObjectMapper objectMapper) {
+        this.client = client;
+        this.songSearchService = songSearchService;
+        this.properties = searchProperties.getExport();
+        // flushing after every song would defeat the response (and gzip) buffering
+        this.writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        this.keepAlive = SongSearchService.keepAlive(properties.getKeepAlive());
+    }
+
+    /**
+     * Writes every song to {@code out}. If reading the index fails halfway, the output ends early
+     * and an IOException is thrown; by then the response status is long gone, so clients should
+     * check they got as many lines as they expected.
+     */
+    public void export(OutputStream out) throws IOException {
+        JsonGenerator generator = writer.getFactory().createGenerator(out);
+        // no separator between documents: each one ends with its own newline
+        generator.setPrettyPrinter(new MinimalPrettyPrinter(""));
+        forEachPage(songs -> {
+            for (Song song : songs) {
+                writer.writeValue(generator, song);
+                generator.writeRaw('\n');
+            }
+        });
+        generator.flush();
+    }
+
+    /**
+     * Hands every song in the index to {@code handler}, a page at a time, on the calling thread.
+     */
+    public void forEachPage(PageHandler handler) throws IOException {
+        int slices = Math.max(1, properties.getSlices());
+        BlockingQueue<Page> pages = new ArrayBlockingQueue<>(Math.max(1, properties.getBufferedPages()));
+        String pitId = songSearchService.openPointInTime(properties.getKeepAlive());
+        // readers block on the index and on the queue, which is what virtual threads are for
+        ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            for (int slice = 0; slice < slices; slice++) {
+                int id = slice;
+                readers.execute(() -> readSlice(pitId, id, slices, pages));
+            }
+
+            int reading = slices;
+            while (reading > 0) {
+                Page page = pages.take();
+                if (page.failure() != null) {
+                    throw new IOException("Reading the song index failed", page.failure());
+                }
+                if (page == DONE) {
+                    reading--;
+                    continue;
+                }
+                handler.accept(page.songs());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading songs");
+        } finally {
+            // stops the readers if the handler gave up (e.g. the client went away) or a slice failed
+            readers.shutdownNow();
+            songSearchService.closePointInTime(pitId);
+        }
+    }
+
+    private void readSlice(String pitId, int slice, int slices, BlockingQueue<Page> pages) {
+        List<String> fields = songSearchService.sourceFields(null);
+        try {
+            String pit = pitId;
+            List<FieldValue> after = null;
+            while (true) {
+                String currentPit = pit;
+                List<FieldValue> searchAfter = after;
+                SearchResponse<Song> response = client.search(search -> {
+                    search.pit(p -> p.id(currentPit).keepAlive(keepAlive))
+                            .query(query -> query.matchAll(all -> all))
+                            .size(properties.getPageSize())
+                            .sort(SORT)
+                            .source(source -> source.filter(filter -> filter.includes(fields)))
+                            .trackTotalHits(total -> total.enabled(false));
+                    if (slices > 1) {
+                        search.slice(s -> s.id(String.valueOf(slice)).max(slices));
+                    }
+                    if (searchAfter != null) {
+                        search.searchAfter(searchAfter);
+                    }
+                    return search;
+                }, Song.class);
+
+                List<Hit<Song>> hits = response.hits().hits();
+                if (!hits.isEmpty()) {
+                    pages.put(new Page(hits.stream().map(SongSearchService::song).filter(Objects::nonNull).toList(), null));
+                }
+                if (hits.size() < properties.getPageSize()) {
+                    break;
+                }
+                after = hits.get(hits.size() - 1).sort();
+                pit = response.pitId() != null ? response.pitId() : pit;
+            }
+            pages.put(DONE);
+        } catch (InterruptedException e) {
+            // the export was abandoned
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            try {
+                pages.put(new Page(null, e));
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface PageHandler {
+        void accept(List<Song> songs) throws IOException;
+    }
+
+    private record Page(List<Song> songs, Exception failure) {}
+}
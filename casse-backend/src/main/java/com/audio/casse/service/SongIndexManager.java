@@ -0,0 +1,468 @@
+package com.audio.casse.service;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.Conflicts;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.OpType;
+import co.elastic.clients.elasticsearch._types.SlicesCalculation;
+import co.elastic.clients.elasticsearch.core.ReindexResponse;
+import co.elastic.clients.elasticsearch.tasks.GetTasksResponse;
+import com.audio.casse.config.properties.SearchProperties;
+import com.audio.casse.dto.ReindexProgress;
+import com.audio.casse.dto.SongIndexStatus;
+import com.audio.casse.models.Song;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.json.JsonArray;
+import jakarta.json.JsonNumber;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonString;
+import jakarta.json.JsonValue;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the songs behind an alias ({@code casse.search.index}) that everything reads and writes
+ * through, and moves them to a new index version, {@code <alias>_v<n>}, when the mapping changes,
+ * with neither search nor approvals going down.
+ *
+ * A reindex creates the next version from the mapping on the classpath and has Elasticsearch copy
+ * the current one into it, in the background, with a sliced and throttled _reindex task. While it
+ * runs, approvals are written to both indices; the copy uses op_type create, so it never replaces
+ * a song an approval already wrote with an older copy. Once the task is done, the alias is moved
+ * to the new index in a single _aliases call. The old index is kept for rolling back, except one
+ * that has the alias's own name (from before indices were versioned), which the same call deletes,
+ * as the alias cannot take its name otherwise.
+ *
+ * An approval saved through the alias just before it moved, whose dual write then found the
+ * reindex over, would be in the old index only. So the cut-over ends with a second copy, started
+ * once the alias has moved: again with op_type create, it only adds the songs the new index is
+ * missing, and nothing can be written to the old index through the alias any more. The reindex is
+ * done once that copy is.
+ *
+ * The reindex is tracked in Redis, so every node dual-writes and any node can finish a reindex
+ * another started. It is started, throttled and cancelled through {@code /actuator/songindex},
+ * which also reports its progress; so do {@code search.reindex.progress} and
+ * {@code search.reindex.throughput}.
+ */
+@Service
+@Slf4j
+public class SongIndexManager {
+
+    private static final String STATE_KEY = "search-index:reindex";
+    // held while a reindex is started or cut over, so two nodes never do either at once
+    private static final String LOCK_KEY = "search-index:lock";
+    private static final Duration LOCK_TTL = Duration.ofMinutes(1);
+    private static final String MAPPING = "elasticsearch/music_id3_mapping.json";
+    private static final String RUNNING = "RUNNING";
+    // the alias points at the target, and the songs the first copy and the dual writes missed are copied
+    private static final String CATCHING_UP = "CATCHING_UP";
+    private static final String DONE = "DONE";
+    private static final String FAILED = "FAILED";
+    private static final String CANCELLED = "CANCELLED";
+
+    private final ElasticsearchClient client;
+    private final ElasticsearchOperations elasticsearchOperations;
+    private final StringRedisTemplate redisTemplate;
+    private final SearchCache searchCache;
+    private final SearchProperties.Reindex properties;
+    private final String alias;
+    // as of this node's last poll, for the gauges
+    private volatile double progress = Double.NaN;
+    private volatile double throughput = Double.NaN;
+
+    public SongIndexManager(ElasticsearchClient client, ElasticsearchOperations elasticsearchOperations,
+                            StringRedisTemplate redisTemplate, SearchCache searchCache, SearchProperties searchProperties,
+                            MeterRegistry meterRegistry) {
+        this.client = client;
+        this.elasticsearchOperations = elasticsearchOperations;
+        this.redisTemplate = redisTemplate;
+        this.searchCache = searchCache;
+        this.properties = searchProperties.getReindex();
+        this.alias = searchProperties.getIndex();
+        Gauge.builder("search.reindex.progress", this, manager -> manager.progress)
+                .description("Share of the songs a running reindex has copied")
+                .register(meterRegistry);
+        Gauge.builder("search.reindex.throughput", this, manager -> manager.throughput)
+                .description("Songs a running reindex copies per second, on average")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Creates the first version and its alias on an empty cluster. An existing plain index stays
+     * as it is until the first reindex.
+     */
+    @PostConstruct
+    void ensureIndex() {
+        try {
+            if (client.indices().existsAlias(exists -> exists.name(alias)).value()) {
+                return;
+            }
+            if (client.indices().exists(exists -> exists.index(alias)).value()) {
+                log.info("The songs are in a plain index named {}; a reindex moves them behind an alias", alias);
+                return;
+            }
+            String first = alias + "_v1";
+            createIndex(first);
+            client.indices().putAlias(put -> put.index(first).name(alias));
+            log.info("Created {} behind the alias {}", first, alias);
+        } catch (IOException | RuntimeException e) {
+            // e.g. another node just created it
+            log.warn("Could not set up the song index {}: {}", alias, e.getMessage());
+        }
+    }
+
+    public SongIndexStatus status() {
+        Map<String, String> state = state();
+        try {
+            return new SongIndexStatus(alias, currentIndex(), state.isEmpty() ? null : progress(state));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Starts copying the songs into a new index version, or, if a copy is running, changes its throttle.
+     *
+     * @param requestsPerSecond documents per second across all slices, -1 for no limit; the configured one if null.
+     */
+    public SongIndexStatus reindex(Float requestsPerSecond) {
+        float throttle = requestsPerSecond != null ? requestsPerSecond : properties.getRequestsPerSecond();
+        try {
+            Map<String, String> state = state();
+            if (isCopying(state)) {
+                rethrottle(state.get("task"), throttle);
+                return status();
+            }
+            if (!lock()) {
+                throw new IllegalStateException("Another node is starting or finishing a reindex");
+            }
+            try {
+                if (!isCopying(state())) {
+                    start(throttle);
+                }
+            } finally {
+                unlock();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return status();
+    }
+
+    /**
+     * Stops a running reindex and deletes the half-filled index. The alias stays where it was; once
+     * it has moved, the reindex can no longer be cancelled.
+     */
+    public SongIndexStatus cancel() {
+        Map<String, String> state = state();
+        if (!RUNNING.equals(state.get("state"))) {
+            return status();
+        }
+        // first, so approvals stop going to the index about to be deleted
+        finish(CANCELLED, null);
+        try {
+            if (state.get("task") != null) {
+                client.tasks().cancel(cancel -> cancel.taskId(state.get("task")));
+            }
+            client.indices().delete(delete -> delete.index(state.get("target")));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.info("Cancelled the reindex into {}", state.get("target"));
+        return status();
+    }
+
+    /**
+     * Writes an approved song to the index a running reindex copies into, too. Call after saving it
+     * through the alias. Once the alias has moved there is nothing left to do: the song was either
+     * saved to the new index, or is copied there by the cut-over's catch-up.
+     */
+    public void dualWrite(Song song) {
+        String target;
+        try {
+            List<String> state = redisTemplate.<String, String>opsForHash().multiGet(STATE_KEY, List.of("state", "target"));
+            if (!RUNNING.equals(state.get(0))) {
+                return;
+            }
+            target = state.get(1);
+        } catch (RuntimeException e) {
+            log.error("Could not tell whether a reindex is running; song {} may be missing from a new index version: {}",
+                    song.get_id(), e.getMessage());
+            return;
+        }
+        try {
+            elasticsearchOperations.save(song, IndexCoordinates.of(target));
+        } catch (RuntimeException e) {
+            log.error("Could not write song {} to {}; cancel the reindex and start it again: {}",
+                    song.get_id(), target, e.getMessage());
+        }
+    }
+
+    /**
+     * Records how far a running reindex got, and moves the alias once it is done.
+     */
+    @Scheduled(fixedDelayString = "${casse.search.reindex.poll-interval:5s}")
+    public void poll() {
+        Map<String, String> state = state();
+        if (!isCopying(state) || state.get("task") == null) {
+            progress = Double.NaN;
+            throughput = Double.NaN;
+            return;
+        }
+        try {
+            GetTasksResponse task = client.tasks().get(get -> get.taskId(state.get("task")));
+            JsonObject status = task.task().status() != null
+                    ? task.task().status().toJson().asJsonObject()
+                    : JsonValue.EMPTY_JSON_OBJECT;
+            Map<String, String> snapshot = new HashMap<>();
+            snapshot.put("total", String.valueOf(number(status, "total")));
+            // songs an approval already wrote to the target are skipped as conflicts, but count as copied
+            snapshot.put("copied", String.valueOf(number(status, "created") + number(status, "updated")
+                    + number(status, "version_conflicts")));
+            snapshot.put("batches", String.valueOf(number(status, "batches")));
+            redisTemplate.opsForHash().putAll(STATE_KEY, snapshot);
+            state.putAll(snapshot);
+            ReindexProgress current = progress(state);
+            progress = current.percent() / 100;
+            throughput = current.documentsPerSecond();
+
+            if (!task.completed()) {
+                return;
+            }
+            String failure = failure(task);
+            if (CATCHING_UP.equals(state.get("state"))) {
+                caughtUp(state, failure);
+                return;
+            }
+            if (failure != null) {
+                finish(FAILED, failure);
+                log.warn("Reindexing {} into {} failed, the alias stays on {}: {}",
+                        state.get("source"), state.get("target"), state.get("source"), failure);
+                return;
+            }
+            if (!lock()) {
+                return;
+            }
+            try {
+                if (RUNNING.equals(state().get("state"))) {
+                    cutOver(state.get("source"), state.get("target"), Float.parseFloat(state.getOrDefault("requestsPerSecond", "-1")));
+                }
+            } finally {
+                unlock();
+            }
+        } catch (ElasticsearchException e) {
+            if (e.status() == 404) {
+                finish(FAILED, CATCHING_UP.equals(state.get("state"))
+                        ? "The catch-up task is gone, most likely with the node that ran it; songs approved during the cut-over may be missing"
+                        : "The reindex task is gone, most likely with the node that ran it");
+            } else {
+                log.warn("Could not check the reindex into {}: {}", state.get("target"), e.getMessage());
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not check the reindex into {}: {}", state.get("target"), e.getMessage());
+        }
+    }
+
+    private void start(float throttle) throws IOException {
+        String source = currentIndex();
+        String target = alias + "_v" + (latestVersion() + 1);
+        createIndex(target);
+
+        Map<String, String> state = new HashMap<>();
+        state.put("state", RUNNING);
+        state.put("source", source);
+        state.put("target", target);
+        state.put("started", Instant.now().toString());
+        state.put("requestsPerSecond", String.valueOf(throttle));
+        redisTemplate.delete(STATE_KEY);
+        // from here on approvals go to both indices, so whatever the copy misses is written anyway
+        redisTemplate.opsForHash().putAll(STATE_KEY, state);
+
+        try {
+            redisTemplate.opsForHash().put(STATE_KEY, "task", copy(source, target, throttle));
+        } catch (IOException | RuntimeException e) {
+            finish(FAILED, e.getMessage());
+            client.indices().delete(delete -> delete.index(target));
+            throw e;
+        }
+        log.info("Reindexing {} into {} at {} documents per second", source, target, throttle);
+    }
+
+    /**
+     * Starts copying every song {@code target} does not have yet from {@code source}, in the background.
+     *
+     * @return the id of the reindex task.
+     */
+    private String copy(String source, String target, float throttle) throws IOException {
+        ReindexResponse response = client.reindex(reindex -> reindex
+                .waitForCompletion(false)
+                .slices(slices -> properties.getSlices() > 0
+                        ? slices.value(properties.getSlices())
+                        : slices.computed(SlicesCalculation.Auto))
+                .requestsPerSecond(throttle)
+                .conflicts(Conflicts.Proceed)
+                .source(from -> from.index(source).size(properties.getBatchSize()))
+                .dest(to -> to.index(target).opType(OpType.Create)));
+        return response.task();
+    }
+
+    private void rethrottle(String task, float throttle) throws IOException {
+        if (task == null) {
+            throw new IllegalStateException("The reindex is still starting");
+        }
+        client.reindexRethrottle(rethrottle -> rethrottle.taskId(task).requestsPerSecond(throttle));
+        redisTemplate.opsForHash().put(STATE_KEY, "requestsPerSecond", String.valueOf(throttle));
+    }
+
+    private void cutOver(String source, String target, float throttle) throws IOException {
+        client.indices().refresh(refresh -> refresh.index(target));
+        boolean plainIndex = source.equals(alias);
+        client.indices().updateAliases(update -> {
+            update.actions(action -> action.add(add -> add.index(target).alias(alias)));
+            if (plainIndex) {
+                update.actions(action -> action.removeIndex(remove -> remove.index(source)));
+            } else {
+                update.actions(action -> action.remove(remove -> remove.index(source).alias(alias)));
+            }
+            return update;
+        });
+        // cached first pages carry cursors on the old index
+        searchCache.invalidate();
+        log.info("{} now points at {}{}", alias, target, plainIndex ? "" : "; " + source + " is kept for rolling back");
+        if (plainIndex) {
+            // it went with the alias's move, so there is nothing to catch up from; only ever the
+            // case once, moving off the index from before versioning
+            finish(DONE, null);
+            return;
+        }
+
+        // no task until the catch-up starts, so polls wait for it
+        redisTemplate.opsForHash().delete(STATE_KEY, "task");
+        redisTemplate.opsForHash().put(STATE_KEY, "state", CATCHING_UP);
+        try {
+            // what was saved through the alias before it moved is visible to the copy
+            client.indices().refresh(refresh -> refresh.index(source));
+            redisTemplate.opsForHash().put(STATE_KEY, "task", copy(source, target, throttle));
+        } catch (IOException | RuntimeException e) {
+            finish(FAILED, "Could not copy the songs approved during the cut-over: " + e.getMessage());
+            throw e;
+        }
+        log.info("Copying the songs approved while {} moved from {} to {}", alias, source, target);
+    }
+
+    private void caughtUp(Map<String, String> state, String failure) {
+        if (failure != null) {
+            finish(FAILED, "Songs approved during the cut-over may be missing from " + state.get("target") + ": " + failure);
+            log.warn("Catching {} up with {} failed, the alias points at {} regardless: {}",
+                    state.get("target"), state.get("source"), state.get("target"), failure);
+            return;
+        }
+        finish(DONE, null);
+        searchCache.invalidate();
+        log.info("{} caught up with {}", state.get("target"), state.get("source"));
+    }
+
+    private static boolean isCopying(Map<String, String> state) {
+        return RUNNING.equals(state.get("state")) || CATCHING_UP.equals(state.get("state"));
+    }
+
+    private void finish(String result, String failure) {
+        Map<String, String> state = new HashMap<>();
+        state.put("state", result);
+        state.put("finished", Instant.now().toString());
+        if (failure != null) {
+            state.put("failure", failure);
+        }
+        redisTemplate.opsForHash().putAll(STATE_KEY, state);
+    }
+
+    private static String failure(GetTasksResponse task) {
+        if (task.error() != null) {
+            return task.error().reason();
+        }
+        if (task.response() == null) {
+            return null;
+        }
+        JsonObject response = task.response().toJson().asJsonObject();
+        if (response.get("failures") instanceof JsonArray failures && !failures.isEmpty()) {
+            return failures.size() + " songs could not be copied, e.g. " + failures.get(0);
+        }
+        if (response.get("canceled") instanceof JsonString reason) {
+            return "Cancelled: " + reason.getString();
+        }
+        return null;
+    }
+
+    private String currentIndex() throws IOException {
+        if (!client.indices().existsAlias(exists -> exists.name(alias)).value()) {
+            return alias;
+        }
+        return client.indices().getAlias(get -> get.name(alias)).result().keySet().iterator().next();
+    }
+
+    private int latestVersion() throws IOException {
+        Pattern version = Pattern.compile(Pattern.quote(alias) + "_v(\\d+)");
+        return client.indices().get(get -> get.index(alias + "_v*")).result().keySet().stream()
+                .map(version::matcher)
+                .filter(Matcher::matches)
+                .mapToInt(matcher -> Integer.parseInt(matcher.group(1)))
+                .max()
+                .orElse(0);
+    }
+
+    private void createIndex(String name) throws IOException {
+        try (InputStream mapping = new ClassPathResource(MAPPING).getInputStream()) {
+            client.indices().create(create -> create.withJson(mapping).index(name));
+        }
+    }
+
+    private Map<String, String> state() {
+        return new HashMap<>(redisTemplate.<String, String>opsForHash().entries(STATE_KEY));
+    }
+
+    private ReindexProgress progress(Map<String, String> state) {
+        long total = Long.parseLong(state.getOrDefault("total", "0"));
+        long copied = Long.parseLong(state.getOrDefault("copied", "0"));
+        Instant started = state.get("started") != null ? Instant.parse(state.get("started")) : null;
+        Instant finished = state.get("finished") != null ? Instant.parse(state.get("finished")) : null;
+        double seconds = started != null
+                ? Duration.between(started, finished != null ? finished : Instant.now()).toMillis() / 1000.0
+                : 0;
+        return new ReindexProgress(state.get("state"), state.get("source"), state.get("target"), state.get("task"),
+                started, finished, total, copied, Long.parseLong(state.getOrDefault("batches", "0")),
+                total > 0 ? 100.0 * copied / total : 0,
+                seconds > 0 ? copied / seconds : 0,
+                Float.parseFloat(state.getOrDefault("requestsPerSecond", "-1")),
+                state.get("failure"));
+    }
+
+    private static long number(JsonObject json, String key) {
+        return json.get(key) instanceof JsonNumber number ? number.longValue() : 0;
+    }
+
+    private boolean lock() {
+        return Boolean.TRUE.equals(redisTemplate.opsForValue().setIfAbsent(LOCK_KEY, "locked", LOCK_TTL));
+    }
+
+    private void unlock() {
+        redisTemplate.delete(LOCK_KEY);
+    }
+}
@@ -0,0 +1,345 @@
+package com.audio.casse.service;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.SortOptions;
+import co.elastic.clients.elasticsearch._types.SortOrder;
+import co.elastic.clients.elasticsearch._types.Time;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import com.audio.casse.config.properties.SearchProperties;
+import com.audio.casse.dto.SongPage;
+import com.audio.casse.exceptions.InvalidSearchCursorException;
+import com.audio.casse.exceptions.InvalidSearchFieldsException;
+import com.audio.casse.models.Song;
+import com.audio.casse.models.SongField;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Searches the song index one page at a time.
+ *
+ * Every page, the first included, is searched within a point in time (PIT), sorted by score with
+ * {@code _shard_doc} as the tiebreaker, the order Elasticsearch breaks ties in anyway. A page's
+ * cursor carries the PIT id and its last hit's sort values, which become the next query's
+ * search_after, so paging costs the same however deep it goes and every page of a search comes
+ * from the same snapshot, even while songs are approved or deleted: nothing is listed twice or
+ * skipped.
+ *
+ * A PIT per search would soon run into {@code search.max_open_pit_context}, as most searches never
+ * ask for a second page. So first pages share one PIT per node, replaced once it is
+ * {@code casse.search.pit-rotation} old or the index changed (the search cache's generation moved).
+ * A replaced PIT is not closed, since cursors handed out from it may still be followed; it expires
+ * after {@code casse.search.keep-alive} without a request, plus however long the search cache may
+ * still hand out a first page pointing at it. A node therefore holds only a few PITs open at a
+ * time, and a first page is at most one rotation behind the index.
+ *
+ * Only the song fields asked for are fetched: they become the search's {@code _source} includes,
+ * so Elasticsearch neither loads nor sends the rest (and never the {@code lyrics} or
+ * {@code comment} some documents carry, which Song has no field for). The fields left out stay
+ * null and are not serialized.
+ */
+@Service
+@Slf4j
+public class SongSearchService {
+
+    private static final List<String> ANY_FIELDS = Arrays.stream(SongField.values()).map(SongField::getName).toList();
+    // _shard_doc only exists within a PIT
+    private static final List<SortOptions> SORT = List.of(
+            SortOptions.of(sort -> sort.score(score -> score.order(SortOrder.Desc))),
+            SortOptions.of(sort -> sort.field(field -> field.field("_shard_doc").order(SortOrder.Asc))));
+    // the fields of Song a search can return; _id comes with every hit
+    private static final List<String> SOURCE_FIELDS = List.of(
+            "title", "artists", "album", "composer", "tags", "email", "storageAccessKey", "albumArt");
+
+    private final ElasticsearchClient client;
+    private final SearchProperties properties;
+    private final ObjectMapper objectMapper;
+    private final SearchCache searchCache;
+    // the PIT first pages are searched in, null until the first search
+    private final AtomicReference<SharedPit> firstPagePit = new AtomicReference<>();
+
+    public SongSearchService(ElasticsearchClient client, SearchProperties properties, ObjectMapper objectMapper,
+                             SearchCache searchCache) {
+        this.client = client;
+        this.properties = properties;
+        this.objectMapper = objectMapper;
+        this.searchCache = searchCache;
+    }
+
+    public Query matchAll() {
+        return Query.of(q -> q.matchAll(all -> all));
+    }
+
+    /**
+     * Full-text search across every searchable field.
+     */
+    public Query matchAny(String text) {
+        return Query.of(q -> q.multiMatch(match -> match.query(text).fields(ANY_FIELDS)));
+    }
+
+    /**
+     * An exact match is a filter on the keyword field: it does not score, so Elasticsearch can
+     * cache it per segment. A partial match scores against the autocomplete field.
+     */
+    public Query matchField(SongField field, String text, boolean exact) {
+        if (exact) {
+            return Query.of(q -> q.bool(bool -> bool.filter(termsFilter(field, List.of(text)))));
+        }
+        return Query.of(q -> q.multiMatch(match -> match.query(text).fields(field.partialField())));
+    }
+
+    /**
+     * Free text, scored across every field, narrowed down by exact values: a song must have one of
+     * the given values for every field in {@code filters}. The filters run in filter context.
+     *
+     * @param text    may be blank, leaving only the filters.
+     * @param filters values by field; a field with no values is ignored.
+     */
+    public Query filtered(String text, Map<SongField, List<String>> filters) {
+        List<Query> clauses = new ArrayList<>();
+        filters.forEach((field, values) -> {
+            if (values != null && !values.isEmpty()) {
+                clauses.add(termsFilter(field, values));
+            }
+        });
+        boolean hasText = text != null && !text.isBlank();
+        if (!hasText && clauses.isEmpty()) {
+            return matchAll();
+        }
+        return Query.of(q -> q.bool(bool -> {
+            if (hasText) {
+                bool.must(matchAny(text));
+            }
+            return bool.filter(clauses);
+        }));
+    }
+
+    // keyword fields apply their normalizer to term queries too, so case and accents do not matter
+    private static Query termsFilter(SongField field, List<String> values) {
+        if (values.size() == 1) {
+            return Query.of(q -> q.term(term -> term.field(field.exactField()).value(values.get(0))));
+        }
+        List<FieldValue> terms = values.stream().map(FieldValue::of).toList();
+        return Query.of(q -> q.terms(term -> term.field(field.exactField()).terms(t -> t.value(terms))));
+    }
+
+    /**
+     * Checks the fields a client asked for against those a song has.
+     *
+     * @param requested field names, matched case-insensitively; entries may themselves be comma-separated.
+     * @return the canonical names in a stable order, or every field if none were asked for.
+     * @throws InvalidSearchFieldsException if a name is not a field of Song.
+     */
+    public List<String> sourceFields(List<String> requested) {
+        if (requested == null) {
+            return SOURCE_FIELDS;
+        }
+        Set<String> wanted = new LinkedHashSet<>();
+        for (String entry : requested) {
+            for (String name : entry.split(",")) {
+                if (!name.isBlank()) {
+                    wanted.add(name.trim().toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        if (wanted.isEmpty()) {
+            return SOURCE_FIELDS;
+        }
+        List<String> fields = SOURCE_FIELDS.stream().filter(field -> wanted.remove(field.toLowerCase(Locale.ROOT))).toList();
+        if (!wanted.isEmpty()) {
+            throw new InvalidSearchFieldsException("Unknown fields " + wanted + ", expected some of " + SOURCE_FIELDS);
+        }
+        return fields;
+    }
+
+    /**
+     * @param size   songs per page; the configured default if null, and capped at the configured maximum.
+     * @param cursor the previous page's {@code nextCursor}, or null for the first page.
+     * @param fields the song fields to fetch, as returned by {@link #sourceFields}.
+     * @throws InvalidSearchCursorException if the cursor is malformed or its PIT has expired.
+     */
+    public SongPage search(Query query, Integer size, String cursor, List<String> fields) {
+        int pageSize = size == null ? properties.getDefaultSize() : Math.max(1, Math.min(size, properties.getMaxSize()));
+        if (cursor != null) {
+            Cursor after = decode(cursor);
+            try {
+                return page(query, pageSize, fields, after.pit(), after.sortValues());
+            } catch (ElasticsearchException e) {
+                if (e.status() == 404) {
+                    throw new InvalidSearchCursorException("The cursor has expired, start the search again", e);
+                }
+                throw e;
+            }
+        }
+        SharedPit pit = firstPagePointInTime();
+        try {
+            return page(query, pageSize, fields, pit.id(), List.of());
+        } catch (ElasticsearchException e) {
+            if (e.status() != 404) {
+                throw e;
+            }
+            // e.g. the index it was opened on was deleted after a reindex; no cursor is at fault
+            firstPagePit.compareAndSet(pit, null);
+            return page(query, pageSize, fields, firstPagePointInTime().id(), List.of());
+        }
+    }
+
+    private SongPage page(Query query, int pageSize, List<String> fields, String pitId, List<FieldValue> searchAfter) {
+        SearchResponse<Song> response;
+        try {
+            response = client.search(search -> {
+                search.query(query)
+                        .pit(pit -> pit.id(pitId).keepAlive(keepAlive()))
+                        .sort(SORT)
+                        .size(pageSize)
+                        .source(source -> source.filter(filter -> filter.includes(fields)))
+                        .trackTotalHits(total -> total.enabled(false));
+                if (!searchAfter.isEmpty()) {
+                    search.searchAfter(searchAfter);
+                }
+                return search;
+            }, Song.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        List<Hit<Song>> hits = response.hits().hits();
+        List<Song> songs = hits.stream().map(SongSearchService::song).filter(Objects::nonNull).toList();
+        if (hits.size() < pageSize) {
+            return new SongPage(songs, null);
+        }
+        // the PIT id may change between pages; the latest one is the one to pass on
+        String nextPitId = response.pitId() != null ? response.pitId() : pitId;
+        return new SongPage(songs, encode(new Cursor(nextPitId, hits.get(hits.size() - 1).sort())));
+    }
+
+    /**
+     * The PIT to search a first page in: the shared one, or a new one if it is due for replacement.
+     */
+    private SharedPit firstPagePointInTime() {
+        long generation = searchCache.generation();
+        SharedPit pit = firstPagePit.get();
+        if (pit != null && pit.isCurrent(generation, properties.getPitRotation())) {
+            return pit;
+        }
+        synchronized (firstPagePit) {
+            pit = firstPagePit.get();
+            if (pit == null || !pit.isCurrent(generation, properties.getPitRotation())) {
+                pit = new SharedPit(openPointInTime(), generation, System.nanoTime());
+                firstPagePit.set(pit);
+            }
+            return pit;
+        }
+    }
+
+    static Song song(Hit<Song> hit) {
+        Song song = hit.source();
+        if (song != null) {
+            song.set_id(hit.id());
+        }
+        return song;
+    }
+
+    // a cached first page may be handed out a while after it was searched, and its cursor must still work then
+    Time keepAlive() {
+        return keepAlive(properties.getKeepAlive().plus(searchCache.maxAge()));
+    }
+
+    static Time keepAlive(Duration keepAlive) {
+        return Time.of(time -> time.time(keepAlive.toSeconds() + "s"));
+    }
+
+    String openPointInTime() {
+        return openPointInTime(properties.getKeepAlive().plus(searchCache.maxAge()));
+    }
+
+    String openPointInTime(Duration keepAlive) {
+        try {
+            return client.openPointInTime(open -> open.index(properties.getIndex()).keepAlive(keepAlive(keepAlive))).id();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void closePointInTime(String pitId) {
+        try {
+            client.closePointInTime(close -> close.id(pitId));
+        } catch (IOException | RuntimeException e) {
+            // it expires on its own after the keep-alive
+            log.debug("Could not close point in time: {}", e.getMessage());
+        }
+    }
+
+    String encode(Cursor cursor) {
+        List<Object> values = new ArrayList<>();
+        for (FieldValue value : cursor.sortValues()) {
+            values.add(switch (value._kind()) {
+                case Double -> value.doubleValue();
+                case Long -> value.longValue();
+                case Boolean -> value.booleanValue();
+                case String -> value.stringValue();
+                default -> throw new IllegalStateException("Unexpected sort value " + value);
+            });
+        }
+        try {
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(objectMapper.writeValueAsBytes(new EncodedCursor(cursor.pit(), values)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    Cursor decode(String cursor) {
+        EncodedCursor encoded;
+        try {
+            encoded = objectMapper.readValue(Base64.getUrlDecoder().decode(cursor), EncodedCursor.class);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new InvalidSearchCursorException("Malformed cursor", e);
+        }
+        if (encoded.pit() == null || encoded.after() == null) {
+            throw new InvalidSearchCursorException("Malformed cursor");
+        }
+        List<FieldValue> sortValues = new ArrayList<>();
+        for (Object value : encoded.after()) {
+            sortValues.add(switch (value) {
+                case Integer i -> FieldValue.of(i.longValue());
+                case Long l -> FieldValue.of(l);
+                case Double d -> FieldValue.of(d);
+                case Boolean b -> FieldValue.of(b);
+                case String s -> FieldValue.of(s);
+                case null, default -> throw new InvalidSearchCursorException("Malformed cursor");
+            });
+        }
+        return new Cursor(encoded.pit(), sortValues);
+    }
+
+    record Cursor(String pit, List<FieldValue> sortValues) {}
+
+    // the cursor as handed to clients, base64url-encoded JSON
+    private record EncodedCursor(String pit, List<Object> after) {}
+
+    private record SharedPit(String id, long generation, long openedAt) {
+
+        boolean isCurrent(long currentGeneration, Duration rotation) {
+            return generation == currentGeneration && System.nanoTime() - openedAt < rotation.toNanos();
+        }
+    }
+}
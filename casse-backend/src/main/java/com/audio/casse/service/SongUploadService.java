@@ -0,0 +1,235 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.AlbumArtProperties;
+import com.audio.casse.exceptions.SongUploadException;
+import com.audio.casse.models.ContentAddress;
+import com.audio.casse.models.SeekTable;
+import com.audio.casse.models.Song;
+import jakarta.servlet.MultipartConfigElement;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.fileupload2.core.DiskFileItem;
+import org.apache.commons.fileupload2.core.DiskFileItemFactory;
+import org.apache.commons.fileupload2.core.FileItemInput;
+import org.apache.commons.fileupload2.core.FileItemInputIterator;
+import org.apache.commons.fileupload2.jakarta.servlet6.JakartaServletFileUpload;
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.core.convert.support.DefaultConversionService;
+import org.springframework.stereotype.Service;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.bind.WebDataBinder;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Reads a song upload off the request as it arrives. The multipart body is parsed lazily
+ * (spring.servlet.multipart.resolve-lazily), so neither file is spooled to disk first: the audio
+ * passes once through SHA-256 for its content address and Mp3FrameIndexer for its seek table on
+ * its way into a StagedUpload, which is stored under the content address once the last byte is in.
+ *
+ * Album art is small enough to hold in memory. It goes up on the upload pool while the audio
+ * streams, provided the form sends it first.
+ */
+@Service
+@Slf4j
+public class SongUploadService {
+
+    private static final String AUDIO_FILE = "audioFile";
+    private static final String ALBUM_ART_FILE = "albumArtFile";
+    // set by the server, never by the form
+    private static final String[] DISALLOWED_FIELDS = {"_id", "email", "storageAccessKey", "albumArt"};
+
+    private final StorageBackend storage;
+    private final SeekIndexService seekIndexService;
+    private final AlbumArtProperties albumArtProperties;
+    private final JakartaServletFileUpload<DiskFileItem, DiskFileItemFactory> fileUpload;
+
+    public SongUploadService(StorageBackend storage, SeekIndexService seekIndexService,
+                             AlbumArtProperties albumArtProperties, MultipartConfigElement multipartConfig) {
+        this.storage = storage;
+        this.seekIndexService = seekIndexService;
+        this.albumArtProperties = albumArtProperties;
+        // no factory: items are only ever streamed
+        this.fileUpload = new JakartaServletFileUpload<>();
+        this.fileUpload.setSizeMax(multipartConfig.getMaxRequestSize());
+        this.fileUpload.setFileSizeMax(multipartConfig.getMaxFileSize());
+    }
+
+    /**
+     * Stores the uploaded song, its seek table and album art.
+     *
+     * @return the song, bound from the form's fields, ready to be submitted for approval.
+     * @throws SongUploadException if nothing was stored; whatever had been is deleted again.
+     */
+    public Song upload(HttpServletRequest request, String email) {
+        Charset charset = request.getCharacterEncoding() != null
+                ? Charset.forName(request.getCharacterEncoding()) : StandardCharsets.UTF_8;
+        MultiValueMap<String, String> fields = new LinkedMultiValueMap<>();
+        String fileName = null;
+        String albumArtName = null;
+        CompletableFuture<Void> albumArtUpload = CompletableFuture.completedFuture(null);
+        try {
+            FileItemInputIterator items = fileUpload.getItemIterator(request);
+            while (items.hasNext()) {
+                FileItemInput item = items.next();
+                if (item.isFormField()) {
+                    try (InputStream in = item.getInputStream()) {
+                        fields.add(item.getFieldName(), new String(in.readAllBytes(), charset));
+                    }
+                } else if (item.getName() == null || item.getName().isEmpty()) {
+                    // a file input left empty; the iterator skips its (empty) body
+                } else if (AUDIO_FILE.equals(item.getFieldName()) && fileName == null) {
+                    fileName = storeSong(item, email);
+                } else if (ALBUM_ART_FILE.equals(item.getFieldName()) && albumArtName == null) {
+                    byte[] content = readAlbumArt(item);
+                    if (content.length > 0) {
+                        albumArtName = ContentAddress.of(new ByteArrayInputStream(content), item.getName()).fileName();
+                        albumArtUpload = storage.uploadAlbumArtAsync(content, item.getContentType(), email, albumArtName);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("File upload failed for user {}: {}", email, e.getMessage());
+            discard(fileName, albumArtName, albumArtUpload, email);
+            throw new SongUploadException(SongUploadException.FILE_UPLOAD_FAILED, e);
+        }
+
+        if (fileName == null) {
+            log.warn("No file selected for upload by user {}", email);
+            discard(null, albumArtName, albumArtUpload, email);
+            throw new SongUploadException(SongUploadException.NO_FILE_SELECTED);
+        }
+        try {
+            albumArtUpload.join();
+        } catch (CompletionException e) {
+            log.error("Album art upload failed for user {}: {}", email, e.getCause().getMessage());
+            storage.deleteSong(fileName, email);
+            throw new SongUploadException(SongUploadException.ALBUM_ART_UPLOAD_FAILED, e.getCause());
+        }
+
+        Song song = new Song();
+        bind(song, fields);
+        song.setEmail(email);
+        song.setStorageAccessKey(fileName);
+        song.setAlbumArt(albumArtName);
+        return song;
+    }
+
+    /**
+     * @return the song's storage name, or null if the file was empty.
+     */
+    private String storeSong(FileItemInput item, String email) throws IOException {
+        MessageDigest digest = ContentAddress.newDigest();
+        SeekTable seekTable;
+        String fileName;
+        try (StagedUpload staged = storage.stageSong(item.getContentType());
+             InputStream in = new CopyingInputStream(new DigestInputStream(item.getInputStream(), digest), staged)) {
+            seekTable = Mp3FrameIndexer.index(in);
+            // whatever follows the last frame, e.g. an ID3v1 tag, or all of a file that is not MP3
+            in.transferTo(OutputStream.nullOutputStream());
+            if (staged.size() == 0) {
+                return null;
+            }
+            fileName = ContentAddress.of(digest, item.getName()).fileName();
+            storage.storeSong(staged, email, fileName);
+        }
+        log.info("Stored song '{}' for user {}", fileName, email);
+        seekIndexService.indexUpload(seekTable, fileName, email);
+        return fileName;
+    }
+
+    private byte[] readAlbumArt(FileItemInput item) throws IOException {
+        int maxSize = (int) albumArtProperties.getMaxSize().toBytes();
+        try (InputStream in = item.getInputStream()) {
+            byte[] content = in.readNBytes(maxSize + 1);
+            if (content.length > maxSize) {
+                throw new IOException("Album art is larger than " + albumArtProperties.getMaxSize());
+            }
+            return content;
+        }
+    }
+
+    /**
+     * Deletes what an upload that failed had already stored. The album art may still be on its
+     * way up, so it is waited for first.
+     */
+    private void discard(String fileName, String albumArtName, CompletableFuture<Void> albumArtUpload, String email) {
+        if (fileName != null) {
+            storage.deleteSong(fileName, email);
+        }
+        if (albumArtName != null) {
+            try {
+                albumArtUpload.join();
+                storage.deleteAlbumArt(albumArtName, email);
+            } catch (CompletionException ignored) {
+                // the upload already cleaned up after itself
+            }
+        }
+    }
+
+    private static void bind(Song song, MultiValueMap<String, String> fields) {
+        MutablePropertyValues values = new MutablePropertyValues();
+        fields.forEach((name, value) -> values.add(name, value.size() == 1 ? value.get(0) : value.toArray(String[]::new)));
+        WebDataBinder binder = new WebDataBinder(song, "song");
+        binder.setConversionService(DefaultConversionService.getSharedInstance());
+        binder.setDisallowedFields(DISALLOWED_FIELDS);
+        binder.bind(values);
+    }
+
+    /**
+     * Writes every byte read, or skipped, to {@code copy}, so a reader that skips (as
+     * BufferedInputStream does over a tag) cannot keep bytes from it.
+     */
+    private static final class CopyingInputStream extends FilterInputStream {
+
+        private final OutputStream copy;
+
+        private CopyingInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = in.read(bytes, offset, length);
+            if (read > 0) {
+                copy.write(bytes, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            return Math.max(read(buffer, 0, buffer.length), 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.audio.casse.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A file being streamed into storage before its name is known, e.g. a song whose content address
+ * is only known once every byte has been hashed. What is written goes to a temporary object, which
+ * StorageBackend.storeSong then moves under the file's name. Closing an upload that was not stored
+ * throws away what was written.
+ */
+public abstract class StagedUpload extends OutputStream {
+
+    private long size;
+
+    /**
+     * @return how many bytes were written.
+     */
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        append(bytes, offset, length);
+        size += length;
+    }
+
+    protected abstract void append(byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * Stores what was written under {@code objectKey}, replacing any object already there. Nothing
+     * may be written after.
+     */
+    protected abstract void storeAs(String objectKey) throws IOException;
+
+    /**
+     * Throws away what was written, unless it was stored.
+     */
+    @Override
+    public abstract void close();
+}
@@ -0,0 +1,108 @@
+package com.audio.casse.service;
+
+import com.audio.casse.dto.StreamManifest;
+import com.audio.casse.models.ByteRange;
+import com.audio.casse.models.ObjectMetadata;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where songs, album art and everything derived from them are stored. Selected with
+ * {@code casse.storage.backend}: {@code r2} (CloudflareR2Service, any S3-compatible store) or
+ * {@code local} (LocalStorageBackend, a directory on this machine).
+ *
+ * Every backend lays objects out under the same keys (see AbstractStorageBackend) and speaks the
+ * S3 SDK's response and exception types - {@link GetObjectResponse} for headers, a 404
+ * {@code NoSuchKeyException} for a missing object, a 416 {@code S3Exception} for an unsatisfiable
+ * range - so callers handle all of them alike.
+ */
+public interface StorageBackend {
+
+    /**
+     * Starts uploading a song whose name is only known once all of it has been read; see StagedUpload.
+     */
+    StagedUpload stageSong(String contentType) throws IOException;
+
+    /**
+     * Stores a staged song under its name. When the name is content-addressed and that content is
+     * already stored, only a reference to it is taken and the upload is thrown away. Either way the
+     * upload is closed.
+     */
+    void storeSong(StagedUpload upload, String userName, String fileName) throws IOException;
+
+    void uploadAlbumArt(byte[] content, String contentType, String userName, String fileName) throws IOException;
+
+    /**
+     * Uploads album art on the upload pool so it can run while the song itself is being uploaded.
+     */
+    CompletableFuture<Void> uploadAlbumArtAsync(byte[] content, String contentType, String userName, String fileName);
+
+    /**
+     * Stores a small, fully in-memory object such as an album art thumbnail.
+     */
+    void putObject(String objectKey, byte[] content, String contentType);
+
+    ResponseInputStream<GetObjectResponse> openObject(String objectKey);
+
+    /**
+     * Opens a song (or a byte range of it) for streaming to a client. Waits only for the response
+     * headers; the body is read when the ObjectStream is written out.
+     */
+    ObjectStream openSong(String fileName, String userName, ByteRange range);
+
+    ResponseInputStream<GetObjectResponse> streamSong(String fileName, String userName);
+
+    ResponseInputStream<GetObjectResponse> streamSong(String fileName, String userName, ByteRange range);
+
+    ResponseInputStream<GetObjectResponse> streamAlbumArt(String fileName, String userName);
+
+    List<String> listFiles(String userName);
+
+    /**
+     * @throws software.amazon.awssdk.services.s3.model.NoSuchKeyException if there is no such object.
+     */
+    ObjectMetadata objectMetadata(String objectKey);
+
+    boolean objectExists(String objectKey);
+
+    ObjectMetadata songMetadata(String fileName, String userName);
+
+    /**
+     * Song metadata only if it can be had without a round trip to storage.
+     */
+    ObjectMetadata cachedSongMetadata(String fileName, String userName);
+
+    /**
+     * Whether clients can be handed a URL to fetch objects from storage themselves (redirect delivery).
+     */
+    boolean supportsPresignedUrls();
+
+    /**
+     * Signs a GET for the object so the client can fetch it without going through us.
+     *
+     * @throws UnsupportedOperationException if {@link #supportsPresignedUrls()} is false.
+     */
+    StreamManifest presignGet(String objectKey, Duration signatureDuration);
+
+    void deleteSong(String fileName, String userName);
+
+    void deleteAlbumArt(String fileName, String userName);
+
+    /**
+     * The storage key of a song - also what the local disk cache indexes it by.
+     */
+    String songKey(String fileName, String userName);
+
+    String albumArtKey(String fileName, String userName);
+
+    String albumArtThumbnailKey(String fileName, String userName, int size);
+
+    String songSeekTableKey(String fileName, String userName);
+
+    String songHlsPrefix(String fileName, String userName);
+}
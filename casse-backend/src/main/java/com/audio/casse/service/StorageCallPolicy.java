@@ -0,0 +1,255 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.R2ResilienceProperties;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.core.exception.AbortedException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Resilience around the calls to one storage backend: circuit breakers that fail calls fast
+ * while the backend is erroring or slow, and hedged reads that cut tail latency.
+ *
+ * Uploads go through a breaker of their own. A PUT takes as long as its body does, so a few
+ * large uploads over a slow link would otherwise count as slow calls and cut off reads from a
+ * backend that is serving them fine; and an upload path that is failing should not stop playback.
+ *
+ * A hedged read sends a second, identical GET once the first has been waiting longer than a
+ * percentile of recent reads, and takes whichever response arrives first; the other one is closed
+ * as soon as it shows up. Per-attempt timeouts and retries are left to the SDK client.
+ *
+ * A 4xx from storage (missing key, unsatisfiable range) is an answer, not a failure, and does not
+ * count against the breaker.
+ */
+@Slf4j
+public class StorageCallPolicy {
+
+    private static final int LATENCY_WINDOW = 1024;
+
+    private final R2ResilienceProperties.Hedge hedge;
+    private final CircuitBreaker circuitBreaker;
+    private final CircuitBreaker uploadCircuitBreaker;
+    // attempts block on I/O for their whole duration, which is exactly what virtual threads are for
+    private final ExecutorService attemptExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final LatencyWindow readLatencies = new LatencyWindow(LATENCY_WINDOW);
+    private final Counter hedgedReads;
+    private final Counter hedgeWins;
+
+    public StorageCallPolicy(String backend, R2ResilienceProperties properties, MeterRegistry meterRegistry) {
+        this.hedge = properties.getHedge();
+        CircuitBreakerRegistry registry = CircuitBreakerRegistry.ofDefaults();
+        this.circuitBreaker = circuitBreaker(registry, backend, properties.getCircuitBreaker());
+        this.uploadCircuitBreaker = circuitBreaker(registry, backend + "-uploads", properties.getUploadCircuitBreaker());
+        TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(registry).bindTo(meterRegistry);
+
+        this.hedgedReads = Counter.builder("storage.reads.hedged")
+                .description("Reads for which a second, hedging request was sent")
+                .tag("backend", backend)
+                .register(meterRegistry);
+        this.hedgeWins = Counter.builder("storage.reads.hedge.wins")
+                .description("Hedged reads answered first by the hedging request")
+                .tag("backend", backend)
+                .register(meterRegistry);
+    }
+
+    private static CircuitBreaker circuitBreaker(CircuitBreakerRegistry registry, String name,
+                                                 R2ResilienceProperties.CircuitBreaker breaker) {
+        CircuitBreakerConfig config = CircuitBreakerConfig.custom()
+                .failureRateThreshold(breaker.getFailureRateThreshold())
+                .slowCallRateThreshold(breaker.getSlowCallRateThreshold())
+                .slowCallDurationThreshold(breaker.getSlowCallDuration())
+                .slidingWindowSize(breaker.getSlidingWindowSize())
+                .minimumNumberOfCalls(breaker.getMinimumNumberOfCalls())
+                .waitDurationInOpenState(breaker.getWaitInOpenState())
+                .permittedNumberOfCallsInHalfOpenState(breaker.getPermittedCallsInHalfOpenState())
+                .recordException(e -> !(e instanceof S3Exception s3 && s3.statusCode() < 500))
+                .build();
+        CircuitBreaker circuitBreaker = registry.circuitBreaker(name, config);
+        circuitBreaker.getEventPublisher().onStateTransition(event ->
+                log.warn("Storage circuit breaker '{}': {}", name, event.getStateTransition()));
+        return circuitBreaker;
+    }
+
+    public void shutdown() {
+        attemptExecutor.shutdownNow();
+    }
+
+    /**
+     * Runs a call through the circuit breaker.
+     *
+     * @throws io.github.resilience4j.circuitbreaker.CallNotPermittedException while the breaker is open.
+     */
+    public <T> T call(Supplier<T> call) {
+        return circuitBreaker.executeSupplier(call);
+    }
+
+    public void run(Runnable call) {
+        circuitBreaker.executeRunnable(call);
+    }
+
+    /**
+     * Runs a write that carries an object's body (PUT, multipart upload or part) through the
+     * upload circuit breaker.
+     *
+     * @throws io.github.resilience4j.circuitbreaker.CallNotPermittedException while that breaker is open.
+     */
+    public <T> T upload(Supplier<T> call) {
+        return uploadCircuitBreaker.executeSupplier(call);
+    }
+
+    /**
+     * Runs a read through the circuit breaker, hedging it when enabled.
+     *
+     * @param discard releases a response that lost the race (e.g. aborts its stream).
+     */
+    public <T> T read(Supplier<T> call, Consumer<T> discard) {
+        if (!hedge.isEnabled()) {
+            return call(call);
+        }
+        return circuitBreaker.executeSupplier(() -> hedged(call, discard));
+    }
+
+    private <T> T hedged(Supplier<T> call, Consumer<T> discard) {
+        long started = System.nanoTime();
+        CompletableFuture<T> first = CompletableFuture.supplyAsync(call, attemptExecutor);
+        try {
+            T result = first.get(hedgeDelay().toNanos(), TimeUnit.NANOSECONDS);
+            readLatencies.record(System.nanoTime() - started);
+            return result;
+        } catch (TimeoutException e) {
+            // slower than usual - hedge below
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            first.thenAccept(discard);
+            throw AbortedException.builder().message("Interrupted while waiting for storage").build();
+        }
+
+        hedgedReads.increment();
+        CompletableFuture<T> second = CompletableFuture.supplyAsync(call, attemptExecutor);
+        T result;
+        try {
+            result = firstSuccessful(first, second).get();
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            first.thenAccept(discard);
+            second.thenAccept(discard);
+            throw AbortedException.builder().message("Interrupted while waiting for storage").build();
+        }
+        if (second.getNow(null) == result) {
+            hedgeWins.increment();
+        }
+        first.thenAccept(response -> {
+            if (response != result) {
+                discard.accept(response);
+            }
+        });
+        second.thenAccept(response -> {
+            if (response != result) {
+                discard.accept(response);
+            }
+        });
+        readLatencies.record(System.nanoTime() - started);
+        return result;
+    }
+
+    private Duration hedgeDelay() {
+        if (readLatencies.count() < hedge.getMinSamples()) {
+            return hedge.getInitialDelay();
+        }
+        Duration percentile = Duration.ofNanos(readLatencies.percentile(hedge.getPercentile()));
+        return percentile.compareTo(hedge.getMinDelay()) < 0 ? hedge.getMinDelay() : percentile;
+    }
+
+    /**
+     * Completes with the first successful result, or with the last failure if both fail.
+     */
+    private static <T> CompletableFuture<T> firstSuccessful(CompletableFuture<T> first, CompletableFuture<T> second) {
+        CompletableFuture<T> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (CompletableFuture<T> attempt : Arrays.asList(first, second)) {
+            attempt.whenComplete((result, error) -> {
+                if (error == null) {
+                    winner.complete(result);
+                } else if (failures.incrementAndGet() == 2) {
+                    winner.completeExceptionally(error);
+                }
+            });
+        }
+        return winner;
+    }
+
+    private static RuntimeException unwrap(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof RuntimeException runtime) {
+            return runtime;
+        }
+        if (cause instanceof Error fatal) {
+            throw fatal;
+        }
+        return new CompletionException(cause);
+    }
+
+    /**
+     * The last {@code size} read latencies. The percentile is only re-sorted every so many samples,
+     * as it moves slowly and is asked for on every read.
+     */
+    private static final class LatencyWindow {
+
+        private static final int RECOMPUTE_EVERY = 64;
+
+        private final long[] samples;
+        private int next;
+        private int count;
+        private long percentile = -1;
+        private double percentileOf;
+        private int sinceComputed;
+
+        private LatencyWindow(int size) {
+            this.samples = new long[size];
+        }
+
+        synchronized void record(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+            sinceComputed++;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized long percentile(double p) {
+            if (percentile < 0 || percentileOf != p || sinceComputed >= RECOMPUTE_EVERY) {
+                long[] sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                percentile = sorted[Math.max(0, Math.min(count - 1, (int) Math.ceil(p * count) - 1))];
+                percentileOf = p;
+                sinceComputed = 0;
+            }
+            return percentile;
+        }
+    }
+}
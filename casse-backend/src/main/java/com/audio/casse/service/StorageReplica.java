@@ -0,0 +1,142 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.R2ReplicationProperties;
+import com.audio.casse.config.properties.R2ResilienceProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+
+import static software.amazon.awssdk.core.sync.RequestBody.fromInputStream;
+
+/**
+ * One mirror bucket of the primary R2 bucket, filled in the background by ReplicationWorker.
+ *
+ * A copy gets its own ETag and Last-Modified, so the primary's are stored with it as user
+ * metadata and put back on every response: clients see the same validators whichever bucket
+ * served them, and a conditional GET or If-Range keeps working across buckets.
+ */
+final class StorageReplica {
+
+    private static final String SOURCE_ETAG = "source-etag";
+    private static final String SOURCE_LAST_MODIFIED = "source-last-modified";
+
+    private final String name;
+    private final String bucketName;
+    private final S3Client s3Client;
+    private final StorageCallPolicy callPolicy;
+    private final Duration uploadAttemptTimeout;
+
+    StorageReplica(R2ReplicationProperties.Replica replica, R2ResilienceProperties resilienceProperties,
+                   MeterRegistry meterRegistry) {
+        this.name = replica.getName();
+        this.bucketName = replica.getBucketName();
+        this.callPolicy = new StorageCallPolicy(name, resilienceProperties, meterRegistry);
+        this.uploadAttemptTimeout = resilienceProperties.getUploadAttemptTimeout();
+        this.s3Client = S3Client.builder()
+                .endpointOverride(URI.create(replica.getEndpoint()))
+                .credentialsProvider(StaticCredentialsProvider.create(
+                        AwsBasicCredentials.create(replica.getAccessKey(), replica.getSecretKey())))
+                .region(Region.US_EAST_1)
+                .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build())
+                .overrideConfiguration(ClientOverrideConfiguration.builder()
+                        .apiCallAttemptTimeout(resilienceProperties.getAttemptTimeout())
+                        .retryPolicy(RetryPolicy.builder().numRetries(resilienceProperties.getMaxAttempts() - 1).build())
+                        .build())
+                .build();
+    }
+
+    String name() {
+        return name;
+    }
+
+    void shutdown() {
+        callPolicy.shutdown();
+        s3Client.close();
+    }
+
+    /**
+     * The same GET as {@code request} (key, range), against this bucket.
+     *
+     * @throws NoSuchKeyException if the object has not been replicated yet.
+     */
+    ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) {
+        GetObjectRequest replicaRequest = request.toBuilder().bucket(bucketName).build();
+        ResponseInputStream<GetObjectResponse> response =
+                callPolicy.read(() -> s3Client.getObject(replicaRequest), ResponseInputStream::abort);
+        GetObjectResponse headers = response.response();
+        String eTag = headers.metadata().get(SOURCE_ETAG);
+        if (eTag == null) {
+            return response;
+        }
+        String lastModified = headers.metadata().get(SOURCE_LAST_MODIFIED);
+        GetObjectResponse sourceHeaders = headers.toBuilder()
+                .eTag(eTag)
+                .lastModified(lastModified != null ? Instant.parse(lastModified) : headers.lastModified())
+                .build();
+        return new ResponseInputStream<>(sourceHeaders, AbortableInputStream.create(response, response::abort));
+    }
+
+    /**
+     * @return the primary's ETag of the object this bucket holds under {@code objectKey}, or null
+     * if it holds none.
+     */
+    String sourceETag(String objectKey) {
+        try {
+            return callPolicy.call(() -> s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(objectKey)
+                    .build())).metadata().get(SOURCE_ETAG);
+        } catch (NoSuchKeyException e) {
+            return null;
+        } catch (S3Exception e) {
+            if (e.statusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Copies an object read from the primary into this bucket, body and validators.
+     */
+    void put(String objectKey, ResponseInputStream<GetObjectResponse> source) {
+        GetObjectResponse headers = source.response();
+        PutObjectRequest request = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(objectKey)
+                .contentLength(headers.contentLength())
+                .contentType(headers.contentType())
+                .metadata(headers.lastModified() == null
+                        ? Map.of(SOURCE_ETAG, headers.eTag())
+                        : Map.of(SOURCE_ETAG, headers.eTag(), SOURCE_LAST_MODIFIED, headers.lastModified().toString()))
+                .overrideConfiguration(o -> o.apiCallAttemptTimeout(uploadAttemptTimeout))
+                .build();
+        callPolicy.upload(() -> s3Client.putObject(request, fromInputStream(source, headers.contentLength())));
+    }
+
+    void delete(String objectKey) {
+        callPolicy.run(() -> s3Client.deleteObject(DeleteObjectRequest.builder()
+                .bucket(bucketName)
+                .key(objectKey)
+                .build()));
+    }
+}
@@ -0,0 +1,160 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.R2ReplicationProperties;
+import com.audio.casse.config.properties.R2ResilienceProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The mirror buckets of the primary R2 bucket (see {@code cloudflare.r2.replication}), and which
+ * of all the buckets a read goes to.
+ *
+ * Writes go to the primary only and are logged to a Redis stream, from which ReplicationWorker
+ * copies them to every replica. Reads go to whichever bucket has had the lowest time to headers
+ * lately (see LatencyRouter) and fail over to the next on an error. A replica that does not have
+ * an object yet is skipped and penalized like a failed read, so a replica lagging behind loses
+ * reads until it catches up; only the primary's 404 means there is no such object.
+ */
+@Component
+@Slf4j
+public class StorageReplicas {
+
+    static final String PRIMARY = "r2";
+    static final String KEY_FIELD = "key";
+
+    private final R2ReplicationProperties properties;
+    private final StringRedisTemplate redisTemplate;
+    private final Map<String, StorageReplica> replicas = new LinkedHashMap<>();
+    private final LatencyRouter router;
+    private final long penaltyNanos;
+    private final Map<String, Counter> replicaMisses = new HashMap<>();
+
+    public StorageReplicas(R2ReplicationProperties properties, R2ResilienceProperties resilienceProperties,
+                           StringRedisTemplate redisTemplate, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.redisTemplate = redisTemplate;
+        if (properties.isEnabled()) {
+            for (R2ReplicationProperties.Replica replica : properties.getReplicas()) {
+                if (PRIMARY.equals(replica.getName()) || replicas.containsKey(replica.getName())) {
+                    throw new IllegalStateException("Replica name '" + replica.getName() + "' is not unique");
+                }
+                replicas.put(replica.getName(), new StorageReplica(replica, resilienceProperties, meterRegistry));
+            }
+        }
+        List<String> endpoints = new ArrayList<>();
+        endpoints.add(PRIMARY);
+        endpoints.addAll(replicas.keySet());
+        this.router = new LatencyRouter(endpoints,
+                properties.getRouting().getEwmaWeight(), properties.getRouting().getExplorationRate());
+        // a failed read counts as one that took the whole attempt timeout
+        this.penaltyNanos = resilienceProperties.getAttemptTimeout().toNanos();
+
+        for (String endpoint : endpoints) {
+            Gauge.builder("storage.read.latency.average", router, r -> r.averageMillis(endpoint))
+                    .description("Moving average of the time to response headers of reads, by bucket")
+                    .baseUnit("milliseconds")
+                    .tag("endpoint", endpoint)
+                    .register(meterRegistry);
+        }
+        for (String replica : replicas.keySet()) {
+            replicaMisses.put(replica, Counter.builder("storage.read.replica.misses")
+                    .description("Reads sent to a replica that did not have the object yet")
+                    .tag("endpoint", replica)
+                    .register(meterRegistry));
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        replicas.values().forEach(StorageReplica::shutdown);
+    }
+
+    public boolean isEnabled() {
+        return !replicas.isEmpty();
+    }
+
+    Iterable<StorageReplica> replicas() {
+        return replicas.values();
+    }
+
+    /**
+     * Reads from the bucket that has been fastest lately, failing over to the others.
+     *
+     * @param primary the read against the primary bucket.
+     * @param replica the same read against a replica.
+     */
+    <T> T read(Supplier<T> primary, Function<StorageReplica, T> replica) {
+        if (replicas.isEmpty()) {
+            return primary.get();
+        }
+        RuntimeException failure = null;
+        for (String endpoint : router.order()) {
+            boolean isPrimary = PRIMARY.equals(endpoint);
+            long started = System.nanoTime();
+            try {
+                T result = isPrimary ? primary.get() : replica.apply(replicas.get(endpoint));
+                router.record(endpoint, System.nanoTime() - started);
+                return result;
+            } catch (S3Exception e) {
+                if (e.statusCode() == 416 || isPrimary && isNotFound(e)) {
+                    throw e;
+                }
+                if (isNotFound(e)) {
+                    // not replicated yet: as costly to the reader as a failure, so routed around
+                    // like one until the replica has caught up
+                    router.record(endpoint, penaltyNanos);
+                    replicaMisses.get(endpoint).increment();
+                    failure = failure != null ? failure : e;
+                    continue;
+                }
+                failure = failover(endpoint, e);
+            } catch (RuntimeException e) {
+                failure = failover(endpoint, e);
+            }
+        }
+        throw failure;
+    }
+
+    private RuntimeException failover(String endpoint, RuntimeException e) {
+        log.warn("Read from '{}' failed, trying the next bucket: {}", endpoint, e.getMessage());
+        router.record(endpoint, penaltyNanos);
+        return e;
+    }
+
+    private static boolean isNotFound(S3Exception e) {
+        return e instanceof NoSuchKeyException || e.statusCode() == 404;
+    }
+
+    /**
+     * Logs that the object under {@code objectKey} was written or deleted in the primary bucket,
+     * for ReplicationWorker to bring the replicas in line.
+     *
+     * A failure to log is not the writer's problem: the write itself succeeded, and reads of an
+     * object a replica lacks fall back to the primary.
+     */
+    void recordWrite(String objectKey) {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        try {
+            redisTemplate.opsForStream().add(properties.getLogKey(), Map.of(KEY_FIELD, objectKey));
+        } catch (RuntimeException e) {
+            log.error("Could not log '{}' for replication, replicas will miss it: {}", objectKey, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.StreamingProperties;
+import com.audio.casse.dto.ActiveStream;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces proxied song bodies so that a few clients pulling at full speed cannot take a pod's whole
+ * egress from everyone else.
+ *
+ * Every stream has its own token bucket. For its first few seconds of audio (the initial burst
+ * that fills the player's buffer) a stream wants as much bandwidth as it can get; after that only
+ * a multiple of the song's bitrate. Whenever a stream starts, ends or leaves its burst, the pod's
+ * bandwidth is shared out max-min fairly: first between listeners, each capped at the per-user
+ * limit, then between each listener's streams. Whatever paced streams leave over goes to those
+ * still bursting.
+ *
+ * A paced stream holds its streaming thread for about its playback time divided by the rate
+ * multiple, so casse.streaming.max-concurrent-streams has to allow for that.
+ */
+@Service
+public class StreamScheduler {
+
+    // writes are paced in pieces of at most this, so a big write cannot overdraw a slow bucket by much
+    private static final int CHUNK_BYTES = 16 * 1024;
+    // a bucket holds this much of its rate, the most a stream can send at once after idling
+    private static final double BUCKET_SECONDS = 0.25;
+    private static final long THROUGHPUT_SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final StreamingProperties.Pacing properties;
+    private final Set<PacedStream> streams = new LinkedHashSet<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final DistributionSummary throughput;
+
+    public StreamScheduler(StreamingProperties streamingProperties, MeterRegistry meterRegistry) {
+        this.properties = streamingProperties.getPacing();
+        this.throughput = DistributionSummary.builder("audio.stream.throughput")
+                .description("Bytes per second sent by each proxied stream, sampled about once a second")
+                .baseUnit("bytes")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        Gauge.builder("audio.streams.active", this, scheduler -> scheduler.count(false))
+                .description("Proxied song streams being written, by pacing phase")
+                .tag("phase", "burst")
+                .register(meterRegistry);
+        Gauge.builder("audio.streams.active", this, scheduler -> scheduler.count(true))
+                .description("Proxied song streams being written, by pacing phase")
+                .tag("phase", "paced")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    /**
+     * Registers a stream; it must be closed once its body is written.
+     *
+     * @param bitrate the song's bitrate in bits per second, or 0 if not known.
+     */
+    public PacedStream open(String user, String song, long bitrate) {
+        double bytesPerSecond = (bitrate > 0 ? bitrate : properties.getDefaultBitrate()) / 8.0;
+        PacedStream stream = new PacedStream(ids.incrementAndGet(), user, song,
+                bytesPerSecond * properties.getRateMultiple(),
+                (long) (bytesPerSecond * properties.getInitialBurst().toMillis() / 1000));
+        synchronized (this) {
+            streams.add(stream);
+            reallocate();
+        }
+        return stream;
+    }
+
+    public synchronized List<ActiveStream> activeStreams() {
+        List<ActiveStream> active = new ArrayList<>(streams.size());
+        for (PacedStream stream : streams) {
+            active.add(stream.describe());
+        }
+        return active;
+    }
+
+    private synchronized int count(boolean paced) {
+        int count = 0;
+        for (PacedStream stream : streams) {
+            if (stream.paced == paced) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private synchronized void startPacing(PacedStream stream) {
+        stream.paced = true;
+        reallocate();
+    }
+
+    private synchronized void close(PacedStream stream) {
+        if (streams.remove(stream)) {
+            reallocate();
+        }
+    }
+
+    /**
+     * Hands out the pod's bandwidth between listeners and then between each listener's streams,
+     * both max-min fairly (see {@link #fairShares}).
+     */
+    private void reallocate() {
+        Map<String, List<PacedStream>> byUser = new HashMap<>();
+        for (PacedStream stream : streams) {
+            byUser.computeIfAbsent(stream.user, user -> new ArrayList<>()).add(stream);
+        }
+        List<List<PacedStream>> users = new ArrayList<>(byUser.values());
+        double userLimit = limit(properties.getMaxUserBandwidth());
+
+        double[] userDemands = new double[users.size()];
+        for (int i = 0; i < users.size(); i++) {
+            double demand = 0;
+            for (PacedStream stream : users.get(i)) {
+                demand += stream.demand();
+            }
+            userDemands[i] = Math.min(demand, userLimit);
+        }
+        double[] userShares = fairShares(userDemands, limit(properties.getMaxPodBandwidth()));
+
+        for (int i = 0; i < users.size(); i++) {
+            List<PacedStream> userStreams = users.get(i);
+            double[] demands = new double[userStreams.size()];
+            for (int j = 0; j < demands.length; j++) {
+                demands[j] = userStreams.get(j).demand();
+            }
+            double[] shares = fairShares(demands, userShares[i]);
+            for (int j = 0; j < shares.length; j++) {
+                userStreams.get(j).rate = shares[j];
+            }
+        }
+    }
+
+    /**
+     * Max-min fair shares of {@code capacity} ("water filling"): nobody gets more than they ask
+     * for, and what the modest ones leave is split evenly among the rest.
+     */
+    private static double[] fairShares(double[] demands, double capacity) {
+        if (capacity == Double.POSITIVE_INFINITY) {
+            return demands.clone();
+        }
+        Integer[] order = new Integer[demands.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> demands[i]));
+        double[] shares = new double[demands.length];
+        double remaining = capacity;
+        for (int k = 0; k < order.length; k++) {
+            int i = order[k];
+            shares[i] = Math.min(demands[i], remaining / (order.length - k));
+            remaining -= shares[i];
+        }
+        return shares;
+    }
+
+    private static double limit(DataSize bandwidth) {
+        return bandwidth == null || bandwidth.toBytes() <= 0 ? Double.POSITIVE_INFINITY : bandwidth.toBytes();
+    }
+
+    /**
+     * One stream's token bucket. Only the thread writing the body touches the bucket itself; the
+     * scheduler only ever changes its rate.
+     */
+    public final class PacedStream implements Closeable {
+
+        private final long id;
+        private final String user;
+        private final String song;
+        private final double pacedRate;
+        private final long burstBytes;
+        private final Instant startedAt = Instant.now();
+
+        // only changed under the scheduler's lock
+        private volatile boolean paced;
+        // bytes per second, set by the scheduler
+        private volatile double rate = Double.POSITIVE_INFINITY;
+
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+        private volatile long sent;
+        private long sampleStartedAt = refilledAt;
+        private long sampleBytes;
+        private volatile double lastThroughput;
+
+        private PacedStream(long id, String user, String song, double pacedRate, long burstBytes) {
+            this.id = id;
+            this.user = user;
+            this.song = song;
+            this.pacedRate = pacedRate;
+            this.burstBytes = burstBytes;
+        }
+
+        /**
+         * The response body's stream, paced. Closing it leaves {@code out} to the servlet container.
+         */
+        public OutputStream wrap(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    acquire(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    while (length > 0) {
+                        int chunk = Math.min(length, CHUNK_BYTES);
+                        acquire(chunk);
+                        out.write(bytes, offset, chunk);
+                        offset += chunk;
+                        length -= chunk;
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            StreamScheduler.this.close(this);
+        }
+
+        private double demand() {
+            return paced ? pacedRate : Double.POSITIVE_INFINITY;
+        }
+
+        /**
+         * Takes {@code bytes} tokens, sleeping off any overdraft at the current rate.
+         */
+        private void acquire(int bytes) throws InterruptedIOException {
+            double currentRate = rate;
+            long now = System.nanoTime();
+            if (currentRate != Double.POSITIVE_INFINITY) {
+                double capacity = Math.max(bytes, currentRate * BUCKET_SECONDS);
+                tokens = Math.min(capacity, tokens + (now - refilledAt) * currentRate / 1e9) - bytes;
+                if (tokens < 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep((long) (-tokens / currentRate * 1e9));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while pacing a stream");
+                    }
+                }
+            }
+            refilledAt = now;
+            account(bytes);
+        }
+
+        private void account(int bytes) {
+            sent += bytes;
+            sampleBytes += bytes;
+            long now = System.nanoTime();
+            if (now - sampleStartedAt >= THROUGHPUT_SAMPLE_NANOS) {
+                lastThroughput = sampleBytes * 1e9 / (now - sampleStartedAt);
+                throughput.record(lastThroughput);
+                sampleStartedAt = now;
+                sampleBytes = 0;
+            }
+            if (sent >= burstBytes && !paced) {
+                startPacing(this);
+            }
+        }
+
+        private ActiveStream describe() {
+            double currentRate = rate;
+            return new ActiveStream(id, user, song, paced ? "paced" : "burst", startedAt, sent,
+                    currentRate == Double.POSITIVE_INFINITY ? null : Math.round(currentRate),
+                    Math.round(lastThroughput));
+        }
+    }
+}
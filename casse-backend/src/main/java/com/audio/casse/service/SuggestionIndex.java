@@ -0,0 +1,313 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.SearchProperties;
+import com.audio.casse.dto.Suggestion;
+import com.audio.casse.models.Song;
+import com.audio.casse.models.SongField;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Typeahead suggestions for titles, artists, albums and composers, answered from memory.
+ *
+ * Every distinct value of those fields is counted (how many songs have it) and put in a
+ * PrefixTrie per field under each of its words, so "beat" suggests "The Beatles" just like the
+ * {@code *.autocomplete} fields match it. Text is folded the way those fields' analyzers fold it:
+ * lowercased, accents stripped, split on anything but letters and digits.
+ *
+ * The index is rebuilt from Elasticsearch at startup and every {@code rebuild-interval}. An
+ * approval is announced on a Redis channel, as for FacetService, and every node adds the song on
+ * a thread of its own: rebuilding the tries takes a while on a large catalog, and approvals that
+ * arrive meanwhile are added together. Approvals added while a rebuild reads the index are added
+ * again to the rebuilt counts, since its snapshot may predate them; one that made it into the
+ * snapshot is then counted twice until the next rebuild. Until the first build finishes, there
+ * are no suggestions.
+ */
+@Service
+@Slf4j
+public class SuggestionIndex {
+
+    private static final String APPROVALS_CHANNEL = "suggest:approvals";
+    private static final List<SongField> FIELDS = List.of(SongField.TITLE, SongField.ARTISTS, SongField.ALBUM, SongField.COMPOSER);
+    // keys are cut to this, which bounds the trie's depth; longer prefixes are matched on their start
+    private static final int MAX_KEY_LENGTH = 64;
+    private static final Pattern ACCENTS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final SongExportService songExportService;
+    private final SearchProperties.Suggest properties;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final ObjectMapper objectMapper;
+    private final ThreadPoolExecutor updater = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), new CustomizableThreadFactory("suggestion-updates-"));
+    private final Queue<Song> approved = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean updateQueued = new AtomicBoolean();
+
+    // distinct values by field and folded text; replaced by a rebuild, guarded by this
+    private Map<SongField, Map<String, Term>> terms = emptyTerms();
+    // songs added while a rebuild runs, to add to its counts too; null otherwise, guarded by this
+    private List<Song> addedDuringRebuild;
+    private volatile Map<SongField, FieldIndex> index = Map.of();
+
+    public SuggestionIndex(SongExportService songExportService, SearchProperties searchProperties,
+                           StringRedisTemplate redisTemplate, RedisMessageListenerContainer redisMessageListenerContainer,
+                           ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.songExportService = songExportService;
+        this.properties = searchProperties.getSuggest();
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = redisMessageListenerContainer;
+        this.objectMapper = objectMapper;
+        Gauge.builder("search.suggest.entries", this, SuggestionIndex::size)
+                .description("Distinct titles, artists, albums and composers in the typeahead index")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    void subscribe() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            try {
+                add(objectMapper.readValue(message.getBody(), Song.class));
+            } catch (IOException e) {
+                log.warn("Could not read an approved song for the suggestion index: {}", e.getMessage());
+            }
+        }, new ChannelTopic(APPROVALS_CHANNEL));
+    }
+
+    @PreDestroy
+    void shutdown() {
+        updater.shutdown();
+    }
+
+    /**
+     * Re-reads every song from Elasticsearch, so changes made behind our back (bulk imports,
+     * deletions) show up too.
+     */
+    @Scheduled(fixedDelayString = "${casse.search.suggest.rebuild-interval:1h}")
+    public void rebuild() {
+        Map<SongField, Map<String, Term>> counted = emptyTerms();
+        long started = System.nanoTime();
+        synchronized (this) {
+            addedDuringRebuild = new ArrayList<>();
+        }
+        try {
+            songExportService.forEachPage(songs -> songs.forEach(song -> count(counted, song)));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not rebuild the suggestion index, keeping the current one: {}", e.getMessage());
+            synchronized (this) {
+                addedDuringRebuild = null;
+            }
+            return;
+        }
+        synchronized (this) {
+            addedDuringRebuild.forEach(song -> count(counted, song));
+            addedDuringRebuild = null;
+            terms = counted;
+            publish();
+        }
+        log.info("Rebuilt the suggestion index with {} entries in {} ms", size(), (System.nanoTime() - started) / 1_000_000);
+    }
+
+    /**
+     * Adds a newly indexed song, on every node.
+     */
+    public void songApproved(Song song) {
+        try {
+            redisTemplate.convertAndSend(APPROVALS_CHANNEL, objectMapper.writeValueAsString(song));
+        } catch (JsonProcessingException | RuntimeException e) {
+            // other nodes catch up at their next rebuild
+            log.warn("Could not announce an approval to the suggestion index: {}", e.getMessage());
+            add(song);
+        }
+    }
+
+    private void add(Song song) {
+        approved.add(song);
+        if (updateQueued.compareAndSet(false, true)) {
+            try {
+                updater.execute(this::addApproved);
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                updateQueued.set(false);
+            }
+        }
+    }
+
+    /**
+     * Adds every song approved since the last call, then rebuilds the tries from the counts in
+     * memory, without a round trip to Elasticsearch.
+     */
+    private void addApproved() {
+        updateQueued.set(false);
+        synchronized (this) {
+            boolean added = false;
+            Song song;
+            while ((song = approved.poll()) != null) {
+                count(terms, song);
+                if (addedDuringRebuild != null) {
+                    addedDuringRebuild.add(song);
+                }
+                added = true;
+            }
+            if (added) {
+                publish();
+            }
+        }
+    }
+
+    /**
+     * @param field only suggest values of this field, or null for all of them.
+     * @return at most {@code limit} suggestions, most songs first.
+     */
+    public List<Suggestion> suggest(String prefix, SongField field, int limit) {
+        String key = fold(prefix);
+        if (key.isEmpty()) {
+            return List.of();
+        }
+        if (key.length() > MAX_KEY_LENGTH) {
+            key = key.substring(0, MAX_KEY_LENGTH);
+        }
+        int max = Math.max(1, Math.min(limit, properties.getMaxSuggestions()));
+        Map<SongField, FieldIndex> current = index;
+        List<Suggestion> suggestions = new ArrayList<>();
+        for (SongField candidate : field != null ? List.of(field) : FIELDS) {
+            FieldIndex fieldIndex = current.get(candidate);
+            if (fieldIndex == null) {
+                continue;
+            }
+            for (int id : fieldIndex.trie().top(key)) {
+                suggestions.add(fieldIndex.suggestions()[id]);
+                if (field != null && suggestions.size() == max) {
+                    return suggestions;
+                }
+            }
+        }
+        suggestions.sort(Comparator.comparingLong(Suggestion::songs).reversed());
+        return suggestions.size() > max ? suggestions.subList(0, max) : suggestions;
+    }
+
+    public boolean covers(SongField field) {
+        return FIELDS.contains(field);
+    }
+
+    private int size() {
+        return index.values().stream().mapToInt(fieldIndex -> fieldIndex.suggestions().length).sum();
+    }
+
+    private static Map<SongField, Map<String, Term>> emptyTerms() {
+        Map<SongField, Map<String, Term>> terms = new EnumMap<>(SongField.class);
+        FIELDS.forEach(field -> terms.put(field, new HashMap<>()));
+        return terms;
+    }
+
+    private static void count(Map<SongField, Map<String, Term>> terms, Song song) {
+        for (SongField field : FIELDS) {
+            for (String value : values(song, field)) {
+                if (value == null || value.isBlank()) {
+                    continue;
+                }
+                String key = fold(value);
+                if (!key.isEmpty()) {
+                    terms.get(field).computeIfAbsent(key, k -> new Term(value.trim())).songs++;
+                }
+            }
+        }
+    }
+
+    private static List<String> values(Song song, SongField field) {
+        List<String> values = switch (field) {
+            case TITLE -> Collections.singletonList(song.getTitle());
+            case ARTISTS -> song.getArtists();
+            case ALBUM -> Collections.singletonList(song.getAlbum());
+            case COMPOSER -> Collections.singletonList(song.getComposer());
+            default -> null;
+        };
+        return values != null ? values : List.of();
+    }
+
+    /**
+     * Rebuilds every field's trie from the counts. Called with the lock held.
+     */
+    private void publish() {
+        Map<SongField, FieldIndex> built = new EnumMap<>(SongField.class);
+        for (SongField field : FIELDS) {
+            built.put(field, build(field, terms.get(field)));
+        }
+        index = built;
+    }
+
+    private FieldIndex build(SongField field, Map<String, Term> fieldTerms) {
+        Suggestion[] suggestions = new Suggestion[fieldTerms.size()];
+        long[] weights = new long[suggestions.length];
+        List<Map.Entry<String, Integer>> keys = new ArrayList<>();
+        int id = 0;
+        for (Map.Entry<String, Term> term : fieldTerms.entrySet()) {
+            suggestions[id] = new Suggestion(term.getValue().text, field.getName(), term.getValue().songs);
+            weights[id] = term.getValue().songs;
+            // one key per word, so a prefix of any word finds the value
+            String folded = term.getKey();
+            int start = 0;
+            while (start >= 0) {
+                String key = folded.substring(start);
+                keys.add(Map.entry(key.length() > MAX_KEY_LENGTH ? key.substring(0, MAX_KEY_LENGTH) : key, id));
+                int space = folded.indexOf(' ', start);
+                start = space < 0 ? -1 : space + 1;
+            }
+            id++;
+        }
+        keys.sort(Map.Entry.comparingByKey());
+        String[] sortedKeys = keys.stream().map(Map.Entry::getKey).toArray(String[]::new);
+        int[] ids = keys.stream().mapToInt(Map.Entry::getValue).toArray();
+        return new FieldIndex(new PrefixTrie(sortedKeys, ids, weights, properties.getMaxSuggestions()), suggestions);
+    }
+
+    static String fold(String text) {
+        if (text == null) {
+            return "";
+        }
+        String stripped = ACCENTS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+        return SEPARATORS.matcher(stripped.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+    }
+
+    private static final class Term {
+
+        private final String text;
+        private long songs;
+
+        private Term(String text) {
+            this.text = text;
+        }
+    }
+
+    private record FieldIndex(PrefixTrie trie, Suggestion[] suggestions) {}
+}
@@ -0,0 +1,137 @@
+package com.audio.casse.config;
+
+import com.audio.casse.config.properties.StreamingProperties;
+import com.audio.casse.service.JwtService;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * The actuator endpoints besides health are for approvers only. The real endpoints are not part of
+ * an MVC slice, so stand-ins at their paths check what the security chain lets through.
+ */
+@WebMvcTest(controllers = ActuatorSecurityTest.StandInEndpoints.class,
+        properties = "casse.approvers=approver@casse.music, other-approver@casse.music")
+@Import({SecurityConfig.class, ActuatorSecurityTest.StandInEndpoints.class})
+class ActuatorSecurityTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockitoBean
+    private JwtService jwtService;
+
+    @BeforeEach
+    void tokens() {
+        Claims approver = claims("Approver@Casse.music");
+        Claims listener = claims("listener@casse.music");
+        doThrow(new JwtException("invalid")).when(jwtService).parse(anyString());
+        doReturn(approver).when(jwtService).parse("approver-token");
+        doReturn(listener).when(jwtService).parse("listener-token");
+    }
+
+    @Test
+    void healthIsPublic() throws Exception {
+        mockMvc.perform(get("/actuator/health")).andExpect(status().isOk());
+    }
+
+    @Test
+    void listenersCannotSeeStreams() throws Exception {
+        mockMvc.perform(get("/actuator/streams").header("Authorization", "Bearer listener-token"))
+                .andExpect(status().isForbidden());
+    }
+
+    @Test
+    void listenersCannotStartOrCancelReindexing() throws Exception {
+        mockMvc.perform(get("/actuator/songindex").header("Authorization", "Bearer listener-token"))
+                .andExpect(status().isForbidden());
+        mockMvc.perform(post("/actuator/songindex").header("Authorization", "Bearer listener-token"))
+                .andExpect(status().isForbidden());
+        mockMvc.perform(delete("/actuator/songindex").header("Authorization", "Bearer listener-token"))
+                .andExpect(status().isForbidden());
+    }
+
+    @Test
+    void anonymousCallersAreTurnedAway() throws Exception {
+        mockMvc.perform(post("/actuator/songindex")).andExpect(status().is4xxClientError());
+        mockMvc.perform(get("/actuator/streams").header("Authorization", "Bearer forged-token"))
+                .andExpect(status().is4xxClientError());
+    }
+
+    @Test
+    void approversMayUseEveryEndpoint() throws Exception {
+        mockMvc.perform(get("/actuator/streams").header("Authorization", "Bearer approver-token"))
+                .andExpect(status().isOk());
+        mockMvc.perform(get("/actuator/songindex").header("Authorization", "Bearer approver-token"))
+                .andExpect(status().isOk());
+        mockMvc.perform(post("/actuator/songindex").header("Authorization", "Bearer approver-token"))
+                .andExpect(status().isOk());
+        mockMvc.perform(delete("/actuator/songindex").header("Authorization", "Bearer approver-token"))
+                .andExpect(status().isOk());
+    }
+
+    private static Claims claims(String email) {
+        Claims claims = mock(Claims.class);
+        when(claims.getSubject()).thenReturn("google:" + email);
+        when(claims.get("provider", String.class)).thenReturn("google");
+        when(claims.get("email", String.class)).thenReturn(email);
+        return claims;
+    }
+
+    @RestController
+    static class StandInEndpoints {
+
+        @GetMapping("/actuator/health")
+        String health() {
+            return "UP";
+        }
+
+        @GetMapping("/actuator/streams")
+        String streams() {
+            return "[]";
+        }
+
+        @GetMapping("/actuator/songindex")
+        String songIndex() {
+            return "{}";
+        }
+
+        @PostMapping("/actuator/songindex")
+        String reindex() {
+            return "{}";
+        }
+
+        @DeleteMapping("/actuator/songindex")
+        String cancel() {
+            return "{}";
+        }
+    }
+
+    // StreamingConfig is an MVC configurer, so the slice picks it up
+    @TestConfiguration
+    @EnableConfigurationProperties(StreamingProperties.class)
+    static class Properties {
+    }
+}
@@ -0,0 +1,104 @@
+package com.audio.casse.controller;
+
+import com.audio.casse.dto.StreamManifest;
+import com.audio.casse.service.HlsSegmentService;
+import com.audio.casse.service.PresignedUrlService;
+import com.audio.casse.service.SongAccessService;
+import com.audio.casse.service.StorageBackend;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.Authentication;
+
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Content-addressed file names are shared by everyone who uploads the same bytes, so the direct
+ * endpoints must not serve or presign a file for a user none of whose songs point at it.
+ */
+@ExtendWith(MockitoExtension.class)
+class AudioStreamingControllerTest {
+
+    private static final String SONG = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08.mp3";
+    private static final Authentication OWNER = new TestingAuthenticationToken("alice@casse.music", null);
+    private static final Authentication OTHER = new TestingAuthenticationToken("mallory@casse.music", null);
+
+    @Mock
+    private StorageBackend storage;
+    @Mock
+    private PresignedUrlService presignedUrlService;
+    @Mock
+    private SongAccessService songAccessService;
+    @Mock
+    private HlsSegmentService hlsSegmentService;
+    @InjectMocks
+    private AudioStreamingController controller;
+
+    @Test
+    void anotherUsersFileIsNotStreamed() throws Exception {
+        when(songAccessService.isOwnSong(OTHER.getName(), SONG)).thenReturn(false);
+
+        ResponseEntity<?> response = controller.streamAudio(SONG, "redirect", null, null, null, null, OTHER);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+        verifyNoInteractions(storage, presignedUrlService);
+    }
+
+    @Test
+    void anotherUsersFileIsNotPresigned() throws Exception {
+        when(storage.supportsPresignedUrls()).thenReturn(true);
+        when(songAccessService.isOwnSong(OTHER.getName(), SONG)).thenReturn(false);
+
+        ResponseEntity<StreamManifest> response = controller.streamAudioManifest(SONG, OTHER);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+        verify(presignedUrlService, never()).presignSong(anyString(), anyString(), anyString());
+    }
+
+    @Test
+    void ownFileIsPresigned() throws Exception {
+        StreamManifest manifest = new StreamManifest("https://storage.example/" + SONG, Instant.EPOCH);
+        when(storage.supportsPresignedUrls()).thenReturn(true);
+        when(songAccessService.isOwnSong(OWNER.getName(), SONG)).thenReturn(true);
+        when(presignedUrlService.presignSong(OWNER.getName(), SONG, OWNER.getName())).thenReturn(manifest);
+
+        ResponseEntity<StreamManifest> response = controller.streamAudioManifest(SONG, OWNER);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getBody()).isEqualTo(manifest);
+    }
+
+    @Test
+    void pendingSongIsNotSegmented() {
+        when(hlsSegmentService.playlistKey(SONG, OWNER.getName())).thenReturn("hls/" + SONG + "/index.m3u8");
+        when(songAccessService.isApproved(OWNER.getName(), SONG)).thenReturn(false);
+
+        ResponseEntity<?> response = controller.streamHlsPlaylist(OWNER.getName(), SONG, null, OTHER);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+        verify(hlsSegmentService, never()).segmentInBackground(anyString(), anyString());
+    }
+
+    @Test
+    void approvedSongIsSegmentedOnFirstRequest() {
+        when(hlsSegmentService.playlistKey(SONG, OWNER.getName())).thenReturn("hls/" + SONG + "/index.m3u8");
+        when(songAccessService.isApproved(OWNER.getName(), SONG)).thenReturn(true);
+
+        ResponseEntity<?> response = controller.streamHlsPlaylist(OWNER.getName(), SONG, null, OTHER);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+        verify(hlsSegmentService).segmentInBackground(SONG, OWNER.getName());
+    }
+}
@@ -0,0 +1,91 @@
+package com.audio.casse.models;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ByteRangeTest {
+
+    private static final long LENGTH = 1000;
+
+    @Test
+    void closedRangeIsServedAsAsked() {
+        ByteRange range = ByteRange.parse("bytes=100-199");
+
+        assertThat(range.isSatisfiable(LENGTH)).isTrue();
+        assertThat(range.start(LENGTH)).isEqualTo(100);
+        assertThat(range.end(LENGTH)).isEqualTo(199);
+        assertThat(range.toHeaderValue()).isEqualTo("bytes=100-199");
+    }
+
+    @Test
+    void openRangeRunsToTheEnd() {
+        ByteRange range = ByteRange.parse("bytes=500-");
+
+        assertThat(range.start(LENGTH)).isEqualTo(500);
+        assertThat(range.end(LENGTH)).isEqualTo(999);
+        assertThat(range.toHeaderValue()).isEqualTo("bytes=500-");
+        assertThat(range).isEqualTo(ByteRange.from(500));
+    }
+
+    @Test
+    void lastPastTheEndIsCutToTheEnd() {
+        ByteRange range = ByteRange.parse("bytes=900-5000");
+
+        assertThat(range.isSatisfiable(LENGTH)).isTrue();
+        assertThat(range.end(LENGTH)).isEqualTo(999);
+    }
+
+    @Test
+    void singleByteRanges() {
+        assertThat(ByteRange.parse("bytes=0-0").end(LENGTH)).isZero();
+        assertThat(ByteRange.parse("bytes=999-999").isSatisfiable(LENGTH)).isTrue();
+    }
+
+    @Test
+    void suffixIsTheLastBytes() {
+        ByteRange range = ByteRange.parse("bytes=-100");
+
+        assertThat(range.isSuffix()).isTrue();
+        assertThat(range.start(LENGTH)).isEqualTo(900);
+        assertThat(range.end(LENGTH)).isEqualTo(999);
+        assertThat(range.toHeaderValue()).isEqualTo("bytes=-100");
+    }
+
+    @Test
+    void suffixLongerThanTheObjectIsAllOfIt() {
+        ByteRange range = ByteRange.parse("bytes=-5000");
+
+        assertThat(range.isSatisfiable(LENGTH)).isTrue();
+        assertThat(range.start(LENGTH)).isZero();
+        assertThat(range.end(LENGTH)).isEqualTo(999);
+    }
+
+    @Test
+    void rangesThatCannotBeServedAreUnsatisfiable() {
+        // answered with 416
+        assertThat(ByteRange.parse("bytes=1000-").isSatisfiable(LENGTH)).isFalse();
+        assertThat(ByteRange.parse("bytes=1000-1999").isSatisfiable(LENGTH)).isFalse();
+        assertThat(ByteRange.parse("bytes=-0").isSatisfiable(LENGTH)).isFalse();
+        assertThat(ByteRange.parse("bytes=-100").isSatisfiable(0)).isFalse();
+        assertThat(ByteRange.parse("bytes=0-").isSatisfiable(0)).isFalse();
+    }
+
+    @Test
+    void unusableHeadersAreIgnored() {
+        // the full object is served with 200
+        assertThat(ByteRange.parse(null)).isNull();
+        assertThat(ByteRange.parse("")).isNull();
+        assertThat(ByteRange.parse("bytes=-")).isNull();
+        assertThat(ByteRange.parse("bytes=200-100")).isNull();
+        assertThat(ByteRange.parse("bytes=0-99,200-299")).isNull();
+        assertThat(ByteRange.parse("items=0-99")).isNull();
+        assertThat(ByteRange.parse("bytes=a-b")).isNull();
+        assertThat(ByteRange.parse("bytes=99999999999999999999-")).isNull();
+    }
+
+    @Test
+    void surroundingWhitespaceIsAllowed() {
+        assertThat(ByteRange.parse("  bytes=10-20 ")).isEqualTo(new ByteRange(10L, 20L, null));
+    }
+}
@@ -0,0 +1,67 @@
+package com.audio.casse.models;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class SeekTableTest {
+
+    // 44.1kHz, a point every 10 frames of 1152 samples (~0.26s)
+    private static final SeekTable TABLE = new SeekTable(44100, 11520, 11520 * 4 + 500,
+            new long[]{10, 4180, 8350, 1_000_000_000_000L});
+
+    @Test
+    void survivesSerialization() throws IOException {
+        SeekTable read = SeekTable.fromBytes(TABLE.toBytes());
+
+        assertThat(read.sampleRate()).isEqualTo(44100);
+        assertThat(read.samplesPerPoint()).isEqualTo(11520);
+        assertThat(read.totalSamples()).isEqualTo(TABLE.totalSamples());
+        assertThat(read.offsets()).containsExactly(TABLE.offsets());
+    }
+
+    @Test
+    void emptyTableSurvivesSerialization() throws IOException {
+        assertThat(SeekTable.fromBytes(SeekTable.NONE.toBytes()).isEmpty()).isTrue();
+    }
+
+    @Test
+    void rejectsWhatIsNotASeekTable() {
+        assertThatThrownBy(() -> SeekTable.fromBytes(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}))
+                .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void seeksToTheLastPointAtOrBeforeTheTime() {
+        double interval = 11520 / 44100.0;
+
+        assertThat(TABLE.pointAt(0)).isZero();
+        assertThat(TABLE.pointAt(interval - 0.01)).isZero();
+        assertThat(TABLE.pointAt(interval + 0.001)).isEqualTo(1);
+        assertThat(TABLE.seconds(2)).isCloseTo(2 * interval, within(1e-9));
+        assertThat(TABLE.offset(2)).isEqualTo(8350);
+    }
+
+    @Test
+    void seekPastTheLastPointStaysOnIt() {
+        assertThat(TABLE.pointAt(TABLE.durationSeconds() - 0.001)).isEqualTo(3);
+    }
+
+    @Test
+    void seekPastTheEndHasNoPoint() {
+        assertThat(TABLE.pointAt(TABLE.durationSeconds() + 0.001)).isEqualTo(-1);
+        assertThat(SeekTable.NONE.pointAt(0)).isEqualTo(-1);
+    }
+
+    @Test
+    void averageBitrateSpansFirstToLastPoint() {
+        SeekTable table = new SeekTable(44100, 44100, 44100 * 3, new long[]{0, 16000, 32000});
+
+        assertThat(table.averageBitrate()).isEqualTo(128_000);
+        assertThat(SeekTable.NONE.averageBitrate()).isZero();
+    }
+}
@@ -0,0 +1,203 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.R2CacheProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AudioDiskCacheTest {
+
+    private static final String KEY = "songs/abc.mp3";
+    // ten blocks of 100 bytes
+    private static final int LENGTH = 1000;
+
+    @TempDir
+    Path directory;
+
+    private R2CacheProperties properties;
+    private AudioDiskCache cache;
+    private byte[] content;
+
+    @BeforeEach
+    void setUp() {
+        properties = new R2CacheProperties();
+        properties.setEnabled(true);
+        properties.setDirectory(directory);
+        properties.setBlockSize(DataSize.ofBytes(100));
+        cache = newCache();
+        content = new byte[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            content[i] = (byte) i;
+        }
+    }
+
+    @Test
+    void wholeObjectIsServedFromDisk() throws IOException {
+        fill(whole("\"v1\""), 0, LENGTH);
+
+        AudioDiskCache.CachedObject cached = cache.get(KEY);
+
+        assertThat(cached.isComplete()).isTrue();
+        assertThat(cached.eTag()).isEqualTo("\"v1\"");
+        assertThat(cache.covers(cached, 0, LENGTH - 1)).isTrue();
+        assertThat(read(cached, 0, LENGTH)).isEqualTo(content);
+    }
+
+    @Test
+    void rangedReadCachesTheBlocksItFullyCovers() throws IOException {
+        // bytes 150-449 cover blocks 2 and 3 whole, 1 and 4 only in part
+        fill(ranged(150, 449, "\"v1\""), 150, 300);
+
+        AudioDiskCache.CachedObject cached = cache.get(KEY);
+
+        assertThat(cached.isComplete()).isFalse();
+        assertThat(cached.blocks().stream().toArray()).containsExactly(2, 3);
+        assertThat(cache.covers(cached, 200, 399)).isTrue();
+        assertThat(cache.covers(cached, 150, 399)).isFalse();
+        assertThat(read(cached, 200, 200)).isEqualTo(slice(200, 200));
+    }
+
+    @Test
+    void laterReadsAddTheirBlocks() throws IOException {
+        fill(ranged(0, 499, "\"v1\""), 0, 500);
+        fill(ranged(500, 999, "\"v1\""), 500, 500);
+
+        AudioDiskCache.CachedObject cached = cache.get(KEY);
+
+        assertThat(cached.isComplete()).isTrue();
+        assertThat(read(cached, 0, LENGTH)).isEqualTo(content);
+    }
+
+    @Test
+    void lastBlockMayBeShort() {
+        // 950 bytes end in a block of 50
+        AudioDiskCache.CacheFill fill = cache.beginFill(KEY, GetObjectResponse.builder()
+                .contentLength(50L).contentRange("bytes 900-949/950").eTag("\"v1\"").build());
+        fill.write(content, 900, 50);
+        fill.commit();
+
+        AudioDiskCache.CachedObject cached = cache.get(KEY);
+
+        assertThat(cached.blocks().stream().toArray()).containsExactly(9);
+        assertThat(cache.covers(cached, 900, 949)).isTrue();
+    }
+
+    @Test
+    void readCutShortKeepsWhatItGotThrough() {
+        try (AudioDiskCache.CacheFill fill = cache.beginFill(KEY, whole("\"v1\""))) {
+            fill.write(content, 0, 250);
+            // the client went away
+        }
+
+        AudioDiskCache.CachedObject cached = cache.get(KEY);
+
+        assertThat(cached.blocks().stream().toArray()).containsExactly(0, 1);
+    }
+
+    @Test
+    void readOfBlocksAlreadyCachedWritesNothing() {
+        fill(whole("\"v1\""), 0, LENGTH);
+
+        assertThat(cache.beginFill(KEY, ranged(100, 299, "\"v1\""))).isNull();
+    }
+
+    @Test
+    void changedObjectReplacesTheCachedOne() {
+        fill(whole("\"v1\""), 0, LENGTH);
+
+        fill(ranged(0, 99, "\"v2\""), 0, 100);
+
+        AudioDiskCache.CachedObject cached = cache.get(KEY);
+        assertThat(cached.eTag()).isEqualTo("\"v2\"");
+        assertThat(cached.blocks().stream().toArray()).containsExactly(0);
+    }
+
+    @Test
+    void objectsTooLargeForTheCacheAreNotFilled() {
+        properties.setMaxSize(DataSize.ofBytes(LENGTH - 1));
+        AudioDiskCache small = newCache();
+
+        assertThat(small.beginFill(KEY, whole("\"v1\""))).isNull();
+    }
+
+    @Test
+    void blocksSurviveARestart() throws IOException {
+        fill(ranged(0, 299, "\"v1\""), 0, 300);
+        Path orphan = Files.createFile(directory.resolve("interrupted.data"));
+
+        AudioDiskCache restarted = newCache();
+
+        AudioDiskCache.CachedObject cached = restarted.get(KEY);
+        assertThat(cached.blocks().stream().toArray()).containsExactly(0, 1, 2);
+        assertThat(cached.eTag()).isEqualTo("\"v1\"");
+        assertThat(read(cached, 0, 300)).isEqualTo(slice(0, 300));
+        assertThat(Files.exists(orphan)).isFalse();
+    }
+
+    @Test
+    void disabledCacheMissesAndFillsNothing() {
+        properties.setEnabled(false);
+        AudioDiskCache disabled = newCache();
+
+        assertThat(disabled.isEnabled()).isFalse();
+        assertThat(disabled.get(KEY)).isNull();
+        assertThat(disabled.beginFill(KEY, whole("\"v1\""))).isNull();
+    }
+
+    private AudioDiskCache newCache() {
+        AudioDiskCache diskCache = new AudioDiskCache(properties, new SimpleMeterRegistry());
+        try {
+            diskCache.init();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return diskCache;
+    }
+
+    private void fill(GetObjectResponse response, int from, int length) {
+        AudioDiskCache.CacheFill fill = cache.beginFill(KEY, response);
+        fill.write(content, from, length);
+        fill.commit();
+    }
+
+    private static GetObjectResponse whole(String eTag) {
+        return GetObjectResponse.builder().contentLength((long) LENGTH).contentType("audio/mpeg").eTag(eTag).build();
+    }
+
+    private static GetObjectResponse ranged(int start, int end, String eTag) {
+        return GetObjectResponse.builder()
+                .contentLength((long) (end - start + 1))
+                .contentRange("bytes " + start + "-" + end + "/" + LENGTH)
+                .contentType("audio/mpeg")
+                .eTag(eTag)
+                .build();
+    }
+
+    private static byte[] read(AudioDiskCache.CachedObject cached, long from, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(cached.dataFile(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) >= 0) {
+                // keep reading
+            }
+            return buffer.array();
+        }
+    }
+
+    private byte[] slice(int from, int length) {
+        byte[] slice = new byte[length];
+        System.arraycopy(content, from, slice, 0, length);
+        return slice;
+    }
+}
@@ -0,0 +1,303 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.R2CoalescingProperties;
+import com.audio.casse.models.ByteRange;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+class CoalescingFetcherTest {
+
+    private static final String KEY = "songs/abc.mp3";
+
+    @TempDir
+    Path spoolDirectory;
+
+    private R2CoalescingProperties properties;
+    private CoalescingFetcher fetcher;
+    private final ExecutorService clients = Executors.newCachedThreadPool();
+    private final AtomicInteger upstreamCalls = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        properties = new R2CoalescingProperties();
+        properties.setEnabled(true);
+        properties.setSpoolDirectory(spoolDirectory);
+        properties.setReadTimeout(Duration.ofSeconds(5));
+        fetcher = newFetcher();
+    }
+
+    @AfterEach
+    void tearDown() {
+        fetcher.shutdown();
+        clients.shutdownNow();
+    }
+
+    @Test
+    void concurrentRequestsShareOneFetch() throws Exception {
+        FakeUpstream upstream = new FakeUpstream();
+
+        ObjectStream first = fetcher.open(KEY, null, () -> opened(upstream));
+        ObjectStream second = fetcher.open(KEY, null, () -> opened(new FakeUpstream()));
+        Future<byte[]> firstBody = read(first);
+        Future<byte[]> secondBody = read(second);
+        upstream.send("hello ").send("world").end();
+
+        assertThat(upstreamCalls.get()).isEqualTo(1);
+        assertThat(firstBody.get(5, TimeUnit.SECONDS)).isEqualTo(bytes("hello world"));
+        assertThat(secondBody.get(5, TimeUnit.SECONDS)).isEqualTo(bytes("hello world"));
+        assertThat(spoolFiles()).isZero();
+    }
+
+    @Test
+    void requestFromTheStartJoinsToo() throws Exception {
+        FakeUpstream upstream = new FakeUpstream();
+
+        ObjectStream first = fetcher.open(KEY, ByteRange.from(0), () -> opened(upstream));
+        ObjectStream second = fetcher.open(KEY, ByteRange.from(0), () -> opened(new FakeUpstream()));
+        Future<byte[]> secondBody = read(second);
+        Future<byte[]> firstBody = read(first);
+        upstream.send("song").end();
+
+        assertThat(upstreamCalls.get()).isEqualTo(1);
+        assertThat(firstBody.get(5, TimeUnit.SECONDS)).isEqualTo(bytes("song"));
+        assertThat(secondBody.get(5, TimeUnit.SECONDS)).isEqualTo(bytes("song"));
+    }
+
+    @Test
+    void seeksGoStraightToStorage() {
+        FakeUpstream upstream = new FakeUpstream();
+        ByteRange seek = ByteRange.parse("bytes=1000-");
+
+        ObjectStream first = fetcher.open(KEY, seek, () -> opened(upstream));
+        ObjectStream second = fetcher.open(KEY, seek, () -> opened(new FakeUpstream()));
+
+        assertThat(first).isSameAs(upstream);
+        assertThat(second).isNotSameAs(upstream);
+        assertThat(upstreamCalls.get()).isEqualTo(2);
+        assertThat(spoolFiles()).isZero();
+    }
+
+    @Test
+    void readerThatLeavesMidStreamDoesNotStopTheOthers() throws Exception {
+        FakeUpstream upstream = new FakeUpstream();
+        ObjectStream leaving = fetcher.open(KEY, null, () -> opened(upstream));
+        ObjectStream staying = fetcher.open(KEY, null, () -> opened(new FakeUpstream()));
+        Future<byte[]> stayingBody = read(staying);
+        Future<?> leavingBody = clients.submit(() -> {
+            leaving.writeTo(new HungUp(), null);
+            return null;
+        });
+
+        upstream.send("first ");
+        assertThatThrownBy(() -> leavingBody.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(IOException.class);
+        upstream.send("second").end();
+
+        assertThat(stayingBody.get(5, TimeUnit.SECONDS)).isEqualTo(bytes("first second"));
+        assertThat(upstream.failure).isNull();
+        assertThat(spoolFiles()).isZero();
+    }
+
+    @Test
+    void fetchIsCancelledOnceEveryReaderLeaves() throws Exception {
+        FakeUpstream upstream = new FakeUpstream();
+        ObjectStream only = fetcher.open(KEY, null, () -> opened(upstream));
+        Future<?> body = clients.submit(() -> {
+            only.writeTo(new HungUp(), null);
+            return null;
+        });
+
+        upstream.send("first ");
+        assertThatThrownBy(() -> body.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(IOException.class);
+        // the spool goes with the last reader, and the fetch stops at its next write
+        assertThat(spoolFiles()).isZero();
+        upstream.send("second");
+        assertThat(upstream.finished.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(upstream.failure).isInstanceOf(IOException.class);
+
+        // nobody joins a cancelled fetch
+        FakeUpstream next = new FakeUpstream();
+        ObjectStream fresh = fetcher.open(KEY, null, () -> opened(next));
+        Future<byte[]> freshBody = read(fresh);
+        next.send("again").end();
+        assertThat(freshBody.get(5, TimeUnit.SECONDS)).isEqualTo(bytes("again"));
+        assertThat(upstreamCalls.get()).isEqualTo(2);
+    }
+
+    @Test
+    void failedOpenIsNotShared() {
+        assertThatThrownBy(() -> fetcher.open(KEY, null, () -> {
+            upstreamCalls.incrementAndGet();
+            throw NoSuchKeyException.builder().message("missing").build();
+        })).isInstanceOf(NoSuchKeyException.class);
+
+        FakeUpstream upstream = new FakeUpstream();
+        fetcher.open(KEY, null, () -> opened(upstream)).abort();
+
+        assertThat(upstreamCalls.get()).isEqualTo(2);
+    }
+
+    @Test
+    void fetchesBeyondThePoolStreamUncoalesced() {
+        fetcher.shutdown();
+        properties.setMaxConcurrentFetches(1);
+        fetcher = newFetcher();
+        FakeUpstream running = new FakeUpstream();
+        fetcher.open(KEY, null, () -> opened(running));
+
+        FakeUpstream other = new FakeUpstream();
+        ObjectStream uncoalesced = fetcher.open("songs/other.mp3", null, () -> opened(other));
+
+        assertThat(uncoalesced).isSameAs(other);
+        assertThat(spoolFiles()).isEqualTo(1);
+        running.end();
+    }
+
+    @Test
+    void disabledFetcherAlwaysOpensItsOwn() {
+        fetcher.shutdown();
+        properties.setEnabled(false);
+        fetcher = newFetcher();
+        FakeUpstream upstream = new FakeUpstream();
+
+        assertThat(fetcher.isEnabled()).isFalse();
+        assertThat(fetcher.open(KEY, null, () -> opened(upstream))).isSameAs(upstream);
+    }
+
+    @Test
+    void spoolFilesLeftByARestartAreDeleted() throws IOException {
+        Files.createFile(spoolDirectory.resolve("fetch-1.spool"));
+
+        CoalescingFetcher restarted = newFetcher();
+
+        assertThat(spoolFiles()).isZero();
+        restarted.shutdown();
+    }
+
+    private CoalescingFetcher newFetcher() {
+        CoalescingFetcher coalescingFetcher = new CoalescingFetcher(properties, mock(AudioDiskCache.class), new SimpleMeterRegistry());
+        try {
+            coalescingFetcher.init();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return coalescingFetcher;
+    }
+
+    private ObjectStream opened(FakeUpstream upstream) {
+        upstreamCalls.incrementAndGet();
+        return upstream;
+    }
+
+    private Future<byte[]> read(ObjectStream stream) {
+        return clients.submit(() -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            stream.writeTo(out, null);
+            return out.toByteArray();
+        });
+    }
+
+    private long spoolFiles() {
+        try (Stream<Path> files = Files.list(spoolDirectory)) {
+            return files.count();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A storage body whose bytes arrive when the test sends them.
+     */
+    private static final class FakeUpstream implements ObjectStream {
+
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile IOException failure;
+
+        FakeUpstream send(String text) {
+            chunks.add(bytes(text));
+            return this;
+        }
+
+        void end() {
+            chunks.add(END);
+        }
+
+        @Override
+        public GetObjectResponse response() {
+            return GetObjectResponse.builder().contentType("audio/mpeg").build();
+        }
+
+        @Override
+        public void writeTo(OutputStream out, AudioDiskCache.CacheFill fill) throws IOException {
+            try {
+                while (true) {
+                    byte[] chunk = chunks.poll(5, TimeUnit.SECONDS);
+                    if (chunk == null || chunk == END) {
+                        return;
+                    }
+                    out.write(chunk);
+                }
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        @Override
+        public void abort() {
+            end();
+        }
+    }
+
+    /**
+     * A client that has gone away by the time the first bytes reach it.
+     */
+    private static final class HungUp extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            throw new IOException("Broken pipe");
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            throw new IOException("Broken pipe");
+        }
+    }
+}
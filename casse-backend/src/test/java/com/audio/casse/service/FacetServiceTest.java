@@ -0,0 +1,159 @@
+package com.audio.casse.service;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregate;
+import co.elastic.clients.elasticsearch._types.aggregations.StringTermsBucket;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import com.audio.casse.config.properties.SearchProperties;
+import com.audio.casse.dto.Facet;
+import com.audio.casse.dto.FacetBucket;
+import com.audio.casse.dto.Facets;
+import com.audio.casse.models.Song;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class FacetServiceTest {
+
+    private static final int SIZE = 3;
+
+    private ElasticsearchClient client;
+    private StringRedisTemplate redisTemplate;
+    private FacetService service;
+    private MessageListener approvals;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() throws IOException {
+        client = mock(ElasticsearchClient.class);
+        redisTemplate = mock(StringRedisTemplate.class);
+        RedisMessageListenerContainer listenerContainer = mock(RedisMessageListenerContainer.class);
+        ObjectMapper objectMapper = new ObjectMapper();
+        SearchProperties properties = new SearchProperties();
+        service = new FacetService(client, new SongSearchService(client, properties, objectMapper, mock(SearchCache.class)), properties,
+                redisTemplate, listenerContainer, objectMapper, new SimpleMeterRegistry());
+        service.subscribe();
+        ArgumentCaptor<MessageListener> listener = ArgumentCaptor.forClass(MessageListener.class);
+        verify(listenerContainer).addMessageListener(listener.capture(), any(Topic.class));
+        approvals = listener.getValue();
+
+        SearchResponse<Void> response = mock(SearchResponse.class);
+        when(response.aggregations()).thenReturn(Map.of(
+                "tags", terms(4, "rock", 5, "pop", 3, "jazz", 2),
+                "artists", terms(0, "queen", 2, "abba", 1),
+                "albums", terms(0, "a night at the opera", 2),
+                "years", Aggregate.of(aggregate -> aggregate.dateHistogram(histogram -> histogram
+                        .buckets(buckets -> buckets.array(List.of()))))));
+        when(client.search(any(Function.class), eq(Void.class))).thenReturn(response);
+    }
+
+    @Test
+    void approvedSongIsCountedInPlace() throws IOException {
+        service.facets(null, SIZE);
+
+        approve(song(List.of("Jazz", "jazz", "Pop"), List.of("Beyoncé"), "A Night at the Opera"));
+        Facets facets = service.facets(null, SIZE);
+
+        // once per distinct value, and reordered by the new counts
+        assertThat(facets.tags()).isEqualTo(facet(4, "rock", 5, "pop", 4, "jazz", 3));
+        // the artists were all listed, so a new one is listed too
+        assertThat(facets.artists()).isEqualTo(facet(0, "queen", 2, "abba", 1, "beyonce", 1));
+        assertThat(facets.albums()).isEqualTo(facet(0, "a night at the opera", 3));
+        verify(client, times(1)).search(any(Function.class), eq(Void.class));
+    }
+
+    @Test
+    void valuesOutsideTheListAreOtherSongs() throws IOException {
+        service.facets(null, SIZE);
+
+        approve(song(List.of("blues"), List.of("bee gees"), null));
+        approve(song(List.of(), List.of("the beatles"), null));
+        Facets facets = service.facets(null, SIZE);
+
+        // not every tag was listed, so blues may be among those that were not
+        assertThat(facets.tags()).isEqualTo(facet(5, "rock", 5, "pop", 3, "jazz", 2));
+        // the first new artist fills the list, the second is left over
+        assertThat(facets.artists()).isEqualTo(facet(1, "queen", 2, "abba", 1, "bee gees", 1));
+        assertThat(facets.albums()).isEqualTo(facet(0, "a night at the opera", 2));
+    }
+
+    @Test
+    void countsScopedByAQueryAreRecomputed() throws IOException {
+        service.facets("queen", SIZE);
+
+        approve(song(List.of("rock"), List.of("queen"), null));
+        Facets facets = service.facets("queen", SIZE);
+
+        assertThat(facets.tags()).isEqualTo(facet(4, "rock", 5, "pop", 3, "jazz", 2));
+        verify(client, times(2)).search(any(Function.class), eq(Void.class));
+    }
+
+    /**
+     * Announces the approval and delivers it as Redis would.
+     */
+    private void approve(Song song) {
+        service.songApproved(song);
+        ArgumentCaptor<String> message = ArgumentCaptor.forClass(String.class);
+        verify(redisTemplate, times(1)).convertAndSend(anyString(), message.capture());
+        approvals.onMessage(new DefaultMessage("facets:approvals".getBytes(StandardCharsets.UTF_8),
+                message.getValue().getBytes(StandardCharsets.UTF_8)), null);
+        clearInvocations(redisTemplate);
+    }
+
+    private static Song song(List<String> tags, List<String> artists, String album) {
+        Song song = new Song();
+        song.setTitle("song");
+        song.setTags(tags);
+        song.setArtists(artists);
+        song.setAlbum(album);
+        return song;
+    }
+
+    /**
+     * @param valuesAndCounts each value followed by its count.
+     */
+    private static Aggregate terms(long otherSongs, Object... valuesAndCounts) {
+        List<StringTermsBucket> buckets = new ArrayList<>();
+        for (int i = 0; i < valuesAndCounts.length; i += 2) {
+            String value = (String) valuesAndCounts[i];
+            long count = (Integer) valuesAndCounts[i + 1];
+            buckets.add(StringTermsBucket.of(bucket -> bucket.key(FieldValue.of(value)).docCount(count)));
+        }
+        return Aggregate.of(aggregate -> aggregate.sterms(terms -> terms
+                .buckets(array -> array.array(buckets))
+                .sumOtherDocCount(otherSongs)));
+    }
+
+    private static Facet facet(long otherSongs, Object... valuesAndCounts) {
+        List<FacetBucket> buckets = new ArrayList<>();
+        for (int i = 0; i < valuesAndCounts.length; i += 2) {
+            buckets.add(new FacetBucket((String) valuesAndCounts[i], (Integer) valuesAndCounts[i + 1]));
+        }
+        return new Facet(buckets, otherSongs);
+    }
+}
@@ -0,0 +1,178 @@
+package com.audio.casse.service;
+
+import com.audio.casse.models.SeekTable;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class Mp3FrameIndexerTest {
+
+    // MPEG-1 layer III, 44.1kHz, joint stereo: 1152 samples per frame, a point every 10 frames
+    private static final int HEADER_128K = 0xFFFB9064;
+    private static final int HEADER_192K = 0xFFFBB064;
+    private static final int LENGTH_128K = 417;
+    private static final int LENGTH_192K = 626;
+    private static final int FRAMES_PER_POINT = 10;
+    // where a Xing header sits in a stereo MPEG-1 frame: after the header and side information
+    private static final int XING_AT = 4 + 32;
+
+    @Test
+    void constantBitratePointsAreEvenlySpaced() throws IOException {
+        Mp3 mp3 = new Mp3();
+        for (int i = 0; i < 95; i++) {
+            mp3.frame(HEADER_128K, LENGTH_128K);
+        }
+
+        SeekTable table = index(mp3.bytes());
+
+        assertThat(table.sampleRate()).isEqualTo(44100);
+        assertThat(table.samplesPerPoint()).isEqualTo(FRAMES_PER_POINT * 1152);
+        assertThat(table.totalSamples()).isEqualTo(95 * 1152);
+        assertThat(table.offsets()).hasSize(10);
+        for (int point = 0; point < 10; point++) {
+            assertThat(table.offset(point)).isEqualTo((long) point * FRAMES_PER_POINT * LENGTH_128K);
+        }
+    }
+
+    @Test
+    void variableBitratePointsFallOnFrameStarts() throws IOException {
+        Mp3 mp3 = new Mp3();
+        for (int i = 0; i < 40; i++) {
+            if (i % 3 == 0) {
+                mp3.frame(HEADER_192K, LENGTH_192K);
+            } else {
+                mp3.frame(HEADER_128K, LENGTH_128K);
+            }
+        }
+
+        SeekTable table = index(mp3.bytes());
+
+        assertThat(table.totalSamples()).isEqualTo(40 * 1152);
+        assertThat(table.offsets()).containsExactly(mp3.frameStart(0), mp3.frameStart(10),
+                mp3.frameStart(20), mp3.frameStart(30));
+    }
+
+    @Test
+    void id3v2TagIsSkipped() throws IOException {
+        Mp3 mp3 = new Mp3();
+        mp3.id3v2Tag(1000);
+        for (int i = 0; i < 20; i++) {
+            mp3.frame(HEADER_128K, LENGTH_128K);
+        }
+
+        SeekTable table = index(mp3.bytes());
+
+        assertThat(table.offsets()).containsExactly(1010L, 1010L + FRAMES_PER_POINT * LENGTH_128K);
+    }
+
+    @Test
+    void xingFrameIsLeftOutOfTheTimeline() throws IOException {
+        Mp3 mp3 = new Mp3();
+        mp3.xingFrame(20, 20 * LENGTH_128K, false);
+        for (int i = 0; i < 20; i++) {
+            mp3.frame(HEADER_128K, LENGTH_128K);
+        }
+
+        SeekTable table = index(mp3.bytes());
+
+        assertThat(table.totalSamples()).isEqualTo(20 * 1152);
+        assertThat(table.offsets()).containsExactly(mp3.frameStart(1), mp3.frameStart(11));
+    }
+
+    @Test
+    void xingTableOfContentsIsUsedWhenFramesCannotBeWalked() throws IOException {
+        Mp3 mp3 = new Mp3();
+        mp3.xingFrame(1000, 417_000, true);
+        mp3.garbage(200);
+
+        SeekTable table = index(mp3.bytes());
+
+        assertThat(table.totalSamples()).isEqualTo(1000 * 1152);
+        assertThat(table.samplesPerPoint()).isEqualTo(1000 * 1152 / 100);
+        assertThat(table.offsets()).hasSize(100);
+        assertThat(table.offset(0)).isEqualTo(LENGTH_128K);
+        // entry i of the TOC is 2i, in 256ths of the audio
+        assertThat(table.offset(50)).isEqualTo(LENGTH_128K + 100 * 417_000L / 256);
+    }
+
+    @Test
+    void trailingTagEndsTheTimeline() throws IOException {
+        Mp3 mp3 = new Mp3();
+        for (int i = 0; i < 12; i++) {
+            mp3.frame(HEADER_128K, LENGTH_128K);
+        }
+        mp3.garbage(128);
+
+        SeekTable table = index(mp3.bytes());
+
+        assertThat(table.totalSamples()).isEqualTo(12 * 1152);
+        assertThat(table.offsets()).containsExactly(0L, (long) FRAMES_PER_POINT * LENGTH_128K);
+    }
+
+    @Test
+    void notMpegAudioHasNoTable() throws IOException {
+        assertThat(index("RIFF....WAVEfmt this is not an mp3".getBytes(StandardCharsets.US_ASCII))).isNull();
+        assertThat(index(new byte[0])).isNull();
+    }
+
+    private static SeekTable index(byte[] bytes) throws IOException {
+        return Mp3FrameIndexer.index(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Frames with a real header and silent (all zero) payload, which is all the indexer reads.
+     */
+    private static final class Mp3 {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final List<Long> frameStarts = new ArrayList<>();
+
+        void frame(int header, int length) {
+            frameStarts.add((long) out.size());
+            byte[] frame = new byte[length];
+            ByteBuffer.wrap(frame).putInt(header);
+            out.writeBytes(frame);
+        }
+
+        void xingFrame(int frames, int bytes, boolean toc) {
+            frameStarts.add((long) out.size());
+            byte[] frame = new byte[LENGTH_128K];
+            ByteBuffer buffer = ByteBuffer.wrap(frame).putInt(HEADER_128K);
+            buffer.position(XING_AT);
+            buffer.put("Xing".getBytes(StandardCharsets.US_ASCII));
+            buffer.putInt(toc ? 0x7 : 0x3).putInt(frames).putInt(bytes);
+            if (toc) {
+                for (int i = 0; i < 100; i++) {
+                    buffer.put((byte) (2 * i));
+                }
+            }
+            out.writeBytes(frame);
+        }
+
+        void id3v2Tag(int size) {
+            out.writeBytes(new byte[]{'I', 'D', '3', 4, 0, 0,
+                    (byte) (size >> 21 & 0x7F), (byte) (size >> 14 & 0x7F), (byte) (size >> 7 & 0x7F), (byte) (size & 0x7F)});
+            out.writeBytes(new byte[size]);
+        }
+
+        void garbage(int length) {
+            out.writeBytes(new byte[length]);
+        }
+
+        long frameStart(int frame) {
+            return frameStarts.get(frame);
+        }
+
+        byte[] bytes() {
+            return out.toByteArray();
+        }
+    }
+}
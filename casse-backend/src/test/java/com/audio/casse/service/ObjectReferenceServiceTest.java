@@ -0,0 +1,69 @@
+package com.audio.casse.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ObjectReferenceServiceTest {
+
+    private static final String KEY = "songs/9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08.mp3";
+
+    // what the release script answers, in order: the references left
+    private final Deque<Long> remaining = new ArrayDeque<>();
+    private final List<List<?>> releasedKeys = new ArrayList<>();
+    private ValueOperations<String, String> values;
+    private ObjectReferenceService service;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        values = mock(ValueOperations.class);
+        StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class, invocation -> {
+            if (invocation.getArguments().length > 0 && invocation.getArgument(0) instanceof RedisScript<?>) {
+                releasedKeys.add(invocation.getArgument(1));
+                return remaining.poll();
+            }
+            return RETURNS_DEFAULTS.answer(invocation);
+        });
+        when(redisTemplate.opsForValue()).thenReturn(values);
+        service = new ObjectReferenceService(redisTemplate);
+    }
+
+    @Test
+    void everyRetainTakesAReference() {
+        when(values.increment("object-refs:" + KEY)).thenReturn(1L, 2L);
+
+        assertThat(service.retain(KEY)).isEqualTo(1);
+        assertThat(service.retain(KEY)).isEqualTo(2);
+    }
+
+    @Test
+    void onlyTheLastReleaseDeletes() {
+        remaining.add(1L);
+        remaining.add(0L);
+
+        assertThat(service.release(KEY)).isFalse();
+        assertThat(service.release(KEY)).isTrue();
+        assertThat(releasedKeys).containsOnly(List.of("object-refs:" + KEY));
+    }
+
+    @Test
+    void releaseOfAnUncountedObjectDeletesIt() {
+        // objects stored before reference counting: DECR of a missing key goes below zero
+        remaining.add(-1L);
+
+        assertThat(service.release(KEY)).isTrue();
+    }
+}
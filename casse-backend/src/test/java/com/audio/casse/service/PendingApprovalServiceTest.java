@@ -0,0 +1,195 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.PendingApprovalProperties;
+import com.audio.casse.models.Song;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.Invocation;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PendingApprovalServiceTest {
+
+    private static final String SONG = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08.mp3";
+    private static final String ART = "60303ae22b998861bce3b28f33eec1be758a213c86c93c076dbe9f558c11c752.jpg";
+    private static final List<String> KEYS = List.of("pending-approval:alice@casse.music:Song",
+            "pending-approval-songs", "pending-approval-expiries");
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    // what each script answers, in order, by the type it returns
+    private final Map<Class<?>, Deque<Object>> scriptResults = new HashMap<>();
+    private StringRedisTemplate redisTemplate;
+    private PendingApprovalProperties properties;
+    private StorageBackend storage;
+    private PendingApprovalService service;
+
+    @BeforeEach
+    void setUp() {
+        redisTemplate = mock(StringRedisTemplate.class, invocation -> {
+            if (invocation.getArguments().length > 0 && invocation.getArgument(0) instanceof RedisScript<?> script) {
+                Deque<Object> results = scriptResults.get(script.getResultType());
+                return results == null ? null : results.poll();
+            }
+            return RETURNS_DEFAULTS.answer(invocation);
+        });
+        properties = new PendingApprovalProperties();
+        properties.setTtl(Duration.ofDays(30));
+        storage = mock(StorageBackend.class);
+        service = new PendingApprovalService(redisTemplate, objectMapper, properties, mock(EmailService.class), storage);
+    }
+
+    @Test
+    void submissionIsKeptWithWhenItExpires() throws JsonProcessingException {
+        long before = System.currentTimeMillis();
+
+        service.storePendingApproval("alice@casse.music", song(SONG, ART));
+
+        List<Object> call = scriptCall(String.class);
+        assertThat(call.get(0)).isEqualTo(KEYS);
+        assertThat(objectMapper.readValue((String) call.get(1), Song.class).getStorageAccessKey()).isEqualTo(SONG);
+        assertThat(call.get(2)).isEqualTo(String.valueOf(Duration.ofDays(30).toMillis()));
+        assertThat(Long.parseLong((String) call.get(3))).isGreaterThanOrEqualTo(before + Duration.ofDays(30).toMillis());
+        verify(storage, never()).deleteSong(anyString(), anyString());
+    }
+
+    @Test
+    void resubmissionReleasesTheFilesOfTheOneItReplaces() throws JsonProcessingException {
+        scriptResults.put(String.class, queue(json(song(SONG, "old-art.jpg"))));
+
+        // the same song again, with new album art
+        service.storePendingApproval("alice@casse.music", song(SONG, ART));
+
+        // each submission took a reference of its own to the shared song
+        verify(storage).deleteSong(SONG, "alice@casse.music");
+        verify(storage).deleteAlbumArt("old-art.jpg", "alice@casse.music");
+    }
+
+    @Test
+    void resubmissionKeepsALegacyFileItStillUses() throws JsonProcessingException {
+        scriptResults.put(String.class, queue(json(song("Song.mp3", null))));
+
+        service.storePendingApproval("alice@casse.music", song("Song.mp3", null));
+
+        verify(storage, never()).deleteSong(anyString(), anyString());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void uploadersPendingSongsAreMatchedByTheirLiteralEmail() throws JsonProcessingException {
+        HashOperations<String, Object, Object> hash = mock(HashOperations.class);
+        Cursor<Map.Entry<Object, Object>> entries = mock(Cursor.class);
+        when(redisTemplate.<Object, Object>opsForHash()).thenReturn(hash);
+        when(hash.scan(eq("pending-approval-songs"), any(ScanOptions.class))).thenReturn(entries);
+        when(entries.hasNext()).thenReturn(true, false);
+        when(entries.next()).thenReturn(Map.entry("pending-approval:a*b@casse.music:Song", json(song(SONG, null))));
+
+        List<Song> songs = service.getPendingApprovals("a*b@casse.music");
+
+        assertThat(songs).extracting(Song::getStorageAccessKey).containsExactly(SONG);
+        ArgumentCaptor<ScanOptions> options = ArgumentCaptor.forClass(ScanOptions.class);
+        verify(hash).scan(eq("pending-approval-songs"), options.capture());
+        // a * in the email would otherwise match other uploaders' songs too
+        assertThat(options.getValue().getPattern()).isEqualTo("pending-approval:a\\*b@casse.music:*");
+        verify(entries).close();
+    }
+
+    @Test
+    void removalDropsTheSongAndItsExpiry() {
+        service.removePendingApproval("alice@casse.music", "Song");
+
+        assertThat(scriptCall(Long.class)).containsExactly(KEYS);
+    }
+
+    @Test
+    void expiredSubmissionsHaveTheirFilesReleased() throws JsonProcessingException {
+        properties.setReleaseDelay(Duration.ofMinutes(10));
+        scriptResults.put(List.class, queue(List.of(json(song(SONG, ART)))));
+        long before = System.currentTimeMillis();
+
+        service.releaseExpired();
+
+        List<Object> call = scriptCall(List.class);
+        assertThat(call.get(0)).isEqualTo(KEYS.subList(1, 3));
+        // only those expired long enough ago for an approval reading them to be over
+        assertThat(Long.parseLong((String) call.get(1))).isLessThanOrEqualTo(System.currentTimeMillis() - Duration.ofMinutes(10).toMillis())
+                .isGreaterThanOrEqualTo(before - Duration.ofMinutes(10).toMillis());
+        verify(storage).deleteSong(SONG, "alice@casse.music");
+        verify(storage).deleteAlbumArt(ART, "alice@casse.music");
+    }
+
+    @Test
+    void sweepGoesOnUntilABatchComesBackShort() throws JsonProcessingException {
+        scriptResults.put(List.class, queue(Collections.nCopies(100, json(song(SONG, null))), List.of()));
+
+        service.releaseExpired();
+
+        verify(storage, times(100)).deleteSong(SONG, "alice@casse.music");
+        assertThat(Mockito.mockingDetails(redisTemplate).getInvocations()).hasSize(2);
+    }
+
+    @Test
+    void unreadableSongIsSkipped() throws JsonProcessingException {
+        scriptResults.put(List.class, queue(List.of("{not json", json(song(SONG, null)))));
+
+        service.releaseExpired();
+
+        verify(storage).deleteSong(SONG, "alice@casse.music");
+    }
+
+    /**
+     * The keys and arguments of the one call to the script returning {@code resultType}.
+     */
+    private List<Object> scriptCall(Class<?> resultType) {
+        List<Invocation> calls = Mockito.mockingDetails(redisTemplate).getInvocations().stream()
+                .filter(invocation -> invocation.getArguments().length > 0
+                        && invocation.getArgument(0) instanceof RedisScript<?> script
+                        && script.getResultType() == resultType)
+                .toList();
+        assertThat(calls).hasSize(1);
+        Object[] arguments = calls.get(0).getArguments();
+        return List.of(arguments).subList(1, arguments.length);
+    }
+
+    private static Deque<Object> queue(Object... results) {
+        return new ArrayDeque<>(List.of(results));
+    }
+
+    private String json(Song song) throws JsonProcessingException {
+        return objectMapper.writeValueAsString(song);
+    }
+
+    private static Song song(String storageAccessKey, String albumArt) {
+        Song song = new Song();
+        song.setTitle("Song");
+        song.setEmail("alice@casse.music");
+        song.setStorageAccessKey(storageAccessKey);
+        song.setAlbumArt(albumArt);
+        return song;
+    }
+}
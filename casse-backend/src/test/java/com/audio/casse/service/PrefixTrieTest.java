@@ -0,0 +1,60 @@
+package com.audio.casse.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PrefixTrieTest {
+
+    // entry ids 0..5, by key; entry 2 has two keys
+    private static final String[] KEYS = {"abba", "beach boys", "beatles", "bee gees", "beyonce", "queen", "the beatles"};
+    private static final int[] IDS = {0, 1, 2, 3, 4, 5, 2};
+    private static final long[] WEIGHTS = {10, 30, 90, 20, 50, 70};
+
+    private final PrefixTrie trie = new PrefixTrie(KEYS, IDS, WEIGHTS, 3);
+
+    @Test
+    void heaviestEntriesUnderAPrefixComeFirst() {
+        assertThat(trie.top("be")).containsExactly(2, 4, 1);
+    }
+
+    @Test
+    void prefixEndingInsideACollapsedEdgeMatches() {
+        // "bea" ends part way along the edge shared by "beach boys" and "beatles"
+        assertThat(trie.top("bea")).containsExactly(2, 1);
+        assertThat(trie.top("beatl")).containsExactly(2);
+    }
+
+    @Test
+    void wholeKeyMatches() {
+        assertThat(trie.top("queen")).containsExactly(5);
+    }
+
+    @Test
+    void emptyPrefixIsTheOverallTop() {
+        assertThat(trie.top("")).containsExactly(2, 5, 4);
+    }
+
+    @Test
+    void entryWithSeveralKeysIsListedOnce() {
+        PrefixTrie all = new PrefixTrie(KEYS, IDS, WEIGHTS, 10);
+
+        assertThat(all.top("")).containsExactly(2, 5, 4, 1, 3, 0);
+        assertThat(all.top("t")).containsExactly(2);
+    }
+
+    @Test
+    void equalWeightsAreOrderedById() {
+        PrefixTrie tied = new PrefixTrie(new String[]{"a", "ab", "ac"}, new int[]{2, 0, 1}, new long[]{5, 5, 5}, 3);
+
+        assertThat(tied.top("a")).containsExactly(0, 1, 2);
+    }
+
+    @Test
+    void prefixWithNoKeysHasNoEntries() {
+        assertThat(trie.top("bx")).isEmpty();
+        assertThat(trie.top("beatles forever")).isEmpty();
+        assertThat(trie.top("z")).isEmpty();
+        assertThat(new PrefixTrie(new String[0], new int[0], new long[0], 3).top("a")).isEmpty();
+    }
+}
@@ -0,0 +1,89 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.StreamingProperties;
+import com.audio.casse.dto.StreamManifest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PresignedUrlServiceTest {
+
+    private static final String KEY = "alice/songs/song.mp3";
+
+    private StorageBackend storage;
+    private StreamingProperties properties;
+    private final AtomicInteger signatures = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        storage = mock(StorageBackend.class);
+        when(storage.songKey("song.mp3", "alice")).thenReturn(KEY);
+        when(storage.presignGet(anyString(), any(Duration.class))).thenAnswer(invocation -> presigned());
+        properties = new StreamingProperties();
+    }
+
+    @Test
+    void songIsSignedForItsKeyAndTheConfiguredTtl() {
+        StreamManifest manifest = service().presignSong("bob", "song.mp3", "alice");
+
+        verify(storage).presignGet(KEY, Duration.ofMinutes(10));
+        assertThat(manifest.url()).isEqualTo("https://r2.example/bucket/" + KEY + "?signature=1");
+    }
+
+    @Test
+    void requesterGetsTheSameUrlBack() {
+        PresignedUrlService service = service();
+
+        StreamManifest first = service.presignSong("bob", "song.mp3", "alice");
+        StreamManifest second = service.presignSong("bob", "song.mp3", "alice");
+
+        assertThat(second).isEqualTo(first);
+        verify(storage, times(1)).presignGet(eq(KEY), any(Duration.class));
+    }
+
+    @Test
+    void everyRequesterGetsAUrlOfTheirOwn() {
+        PresignedUrlService service = service();
+
+        StreamManifest bob = service.presignSong("bob", "song.mp3", "alice");
+        StreamManifest carol = service.presignSong("carol", "song.mp3", "alice");
+
+        assertThat(carol.url()).isNotEqualTo(bob.url());
+    }
+
+    @Test
+    void urlIsSignedAgainBeforeItExpires() throws InterruptedException {
+        // cached for 50ms, refreshed a second before the signature's 1.05s are up
+        properties.getDelivery().setPresignTtl(Duration.ofMillis(1050));
+        properties.getDelivery().setPresignRefreshMargin(Duration.ofSeconds(1));
+        PresignedUrlService service = service();
+
+        StreamManifest first = service.presignSong("bob", "song.mp3", "alice");
+        Thread.sleep(200);
+        StreamManifest second = service.presignSong("bob", "song.mp3", "alice");
+
+        assertThat(second.url()).isNotEqualTo(first.url());
+    }
+
+    private PresignedUrlService service() {
+        return new PresignedUrlService(storage, properties, new SimpleMeterRegistry());
+    }
+
+    private StreamManifest presigned() {
+        return new StreamManifest("https://r2.example/bucket/" + KEY + "?signature=" + signatures.incrementAndGet(),
+                Instant.now().plus(Duration.ofMinutes(10)));
+    }
+}
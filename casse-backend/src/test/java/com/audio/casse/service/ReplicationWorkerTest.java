@@ -0,0 +1,206 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.R2ReplicationProperties;
+import com.audio.casse.models.ObjectMetadata;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ReplicationWorkerTest {
+
+    private static final String LOG = "storage-replication";
+    private static final String KEY = "songs/abc.mp3";
+
+    private R2ReplicationProperties properties;
+    private CloudflareR2Service storage;
+    private StorageReplica replica;
+    private StringRedisTemplate redisTemplate;
+    private StreamOperations<String, Object, Object> replicationLog;
+    private ReplicationWorker worker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        properties = new R2ReplicationProperties();
+        properties.setRetainedEntries(10);
+        storage = mock(CloudflareR2Service.class);
+        replica = mock(StorageReplica.class);
+        when(replica.name()).thenReturn("b2");
+        StorageReplicas replicas = mock(StorageReplicas.class);
+        when(replicas.replicas()).thenReturn(List.of(replica));
+        redisTemplate = mock(StringRedisTemplate.class);
+        replicationLog = mock(StreamOperations.class);
+        when(redisTemplate.opsForStream()).thenReturn(replicationLog);
+        worker = new ReplicationWorker(properties, storage, replicas, redisTemplate, new SimpleMeterRegistry());
+
+        stalled();
+        pendingSummary(0, null);
+        lastDelivered("0-0");
+        when(replicationLog.size(LOG)).thenReturn(5L);
+    }
+
+    @Test
+    void newEntryIsCopiedAndAcknowledged() {
+        MapRecord<String, Object, Object> entry = entry("7-0");
+        when(replicationLog.read(any(Consumer.class), any(StreamReadOptions.class), any(StreamOffset.class))).thenReturn(List.of(entry));
+        when(storage.headIfExists(KEY)).thenReturn(new ObjectMetadata("audio/mpeg", 3, "\"v2\"", null));
+        when(replica.sourceETag(KEY)).thenReturn("\"v1\"");
+        ResponseInputStream<GetObjectResponse> content = new ResponseInputStream<>(GetObjectResponse.builder().build(),
+                new ByteArrayInputStream(new byte[3]));
+        when(storage.getFromPrimary(KEY)).thenReturn(content);
+
+        worker.poll();
+
+        verify(replica).put(KEY, content);
+        verify(replicationLog).acknowledge(LOG, "replicators", RecordId.of("7-0"));
+    }
+
+    @Test
+    void failedCopyIsLeftPendingForARetry() {
+        when(replicationLog.read(any(Consumer.class), any(StreamReadOptions.class), any(StreamOffset.class))).thenReturn(List.of(entry("7-0")));
+        doThrow(new IllegalStateException("replica down")).when(replica).delete(KEY);
+
+        worker.poll();
+
+        verify(replicationLog, never()).acknowledge(anyString(), anyString(), any(RecordId[].class));
+    }
+
+    @Test
+    void entryIdlePastTheRetryDelayIsClaimedAndRetried() {
+        stalled(new PendingMessage(RecordId.of("3-0"), Consumer.from("replicators", "gone-pod"),
+                properties.getRetryDelay().plusSeconds(1), 2));
+        when(replicationLog.claim(eq(LOG), eq("replicators"), anyString(), eq(properties.getRetryDelay()), eq(RecordId.of("3-0"))))
+                .thenReturn(List.of(entry("3-0")));
+
+        worker.poll();
+
+        // the primary no longer has it, so neither should the replica
+        verify(replica).delete(KEY);
+        verify(replicationLog).acknowledge(LOG, "replicators", RecordId.of("3-0"));
+    }
+
+    @Test
+    void entryStillBeingCopiedIsNotClaimed() {
+        stalled(new PendingMessage(RecordId.of("3-0"), Consumer.from("replicators", "busy-pod"),
+                properties.getRetryDelay().minusSeconds(1), 1));
+
+        worker.poll();
+
+        verify(replicationLog, never()).claim(anyString(), anyString(), anyString(), any(Duration.class), any(RecordId[].class));
+    }
+
+    @Test
+    void entryOutOfAttemptsIsMovedToTheDeadLetters() {
+        stalled(new PendingMessage(RecordId.of("3-0"), Consumer.from("replicators", "gone-pod"),
+                properties.getRetryDelay(), properties.getMaxAttempts()));
+        MapRecord<String, Object, Object> entry = entry("3-0");
+        when(replicationLog.claim(eq(LOG), eq("replicators"), anyString(), eq(properties.getRetryDelay()), eq(RecordId.of("3-0"))))
+                .thenReturn(List.of(entry));
+
+        worker.poll();
+
+        verify(replicationLog).add(LOG + ":dead", entry.getValue());
+        verify(replicationLog).acknowledge(LOG, "replicators", RecordId.of("3-0"));
+        verify(replica, never()).delete(anyString());
+    }
+
+    @Test
+    void shortLogIsNotTrimmed() {
+        worker.poll();
+
+        verify(redisTemplate, never()).execute(any(RedisCallback.class));
+    }
+
+    @Test
+    void longLogIsTrimmedBelowTheOldestPendingEntry() {
+        when(replicationLog.size(LOG)).thenReturn(11L);
+        pendingSummary(2, Range.closed("5-0", "9-0"));
+        lastDelivered("12-0");
+
+        assertThat(trimCommand()).containsExactly("XTRIM", LOG, "MINID", "~", "5-0");
+    }
+
+    @Test
+    void withNothingPendingTheLogIsTrimmedBelowWhatIsStillToBeHandedOut() {
+        when(replicationLog.size(LOG)).thenReturn(11L);
+        lastDelivered("12-0");
+
+        assertThat(trimCommand()).containsExactly("XTRIM", LOG, "MINID", "~", "12-0");
+    }
+
+    /**
+     * Polls, then runs the trim it sent to Redis and returns the command as sent.
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> trimCommand() {
+        worker.poll();
+        ArgumentCaptor<RedisCallback<Object>> trim = ArgumentCaptor.forClass(RedisCallback.class);
+        verify(redisTemplate).execute(trim.capture());
+        RedisConnection connection = mock(RedisConnection.class);
+        trim.getValue().doInRedis(connection);
+        Object[] arguments = Mockito.mockingDetails(connection).getInvocations().iterator().next().getArguments();
+        return Stream.concat(Stream.of((String) arguments[0]), Arrays.stream(arguments, 1, arguments.length)
+                .map(argument -> new String((byte[]) argument, StandardCharsets.UTF_8))).toList();
+    }
+
+    private void stalled(PendingMessage... messages) {
+        when(replicationLog.pending(eq(LOG), eq("replicators"), any(Range.class), anyLong()))
+                .thenReturn(new PendingMessages("replicators", List.of(messages)));
+    }
+
+    private void pendingSummary(long count, Range<String> ids) {
+        when(replicationLog.pending(LOG, "replicators"))
+                .thenReturn(new PendingMessagesSummary("replicators", count, ids == null ? Range.unbounded() : ids, Map.of()));
+    }
+
+    private void lastDelivered(String id) {
+        StreamInfo.XInfoGroup group = mock(StreamInfo.XInfoGroup.class);
+        when(group.groupName()).thenReturn("replicators");
+        when(group.lastDeliveredId()).thenReturn(id);
+        StreamInfo.XInfoGroups groups = mock(StreamInfo.XInfoGroups.class);
+        when(groups.stream()).thenAnswer(invocation -> Stream.of(group));
+        when(replicationLog.groups(LOG)).thenReturn(groups);
+    }
+
+    private static MapRecord<String, Object, Object> entry(String id) {
+        return StreamRecords.newRecord().in(LOG).withId(id).ofMap(Map.<Object, Object>of(StorageReplicas.KEY_FIELD, KEY));
+    }
+}
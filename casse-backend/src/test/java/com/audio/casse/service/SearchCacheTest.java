@@ -0,0 +1,129 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.SearchProperties;
+import com.audio.casse.dto.SongPage;
+import com.audio.casse.models.Song;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SearchCacheTest {
+
+    private static final List<String> FIELDS = List.of("title");
+
+    private StringRedisTemplate redisTemplate;
+    private ValueOperations<String, String> values;
+    private RedisMessageListenerContainer listenerContainer;
+    private SearchCache cache;
+    private final AtomicInteger searches = new AtomicInteger();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        redisTemplate = mock(StringRedisTemplate.class);
+        values = mock(ValueOperations.class);
+        when(redisTemplate.opsForValue()).thenReturn(values);
+        listenerContainer = mock(RedisMessageListenerContainer.class);
+        cache = new SearchCache(new SearchProperties(), redisTemplate, listenerContainer, new ObjectMapper(),
+                new SimpleMeterRegistry());
+        cache.subscribe();
+    }
+
+    @Test
+    void analyzedSearchesDifferingInCaseOrSpacingShareAnEntry() {
+        search("search", "  Killer \t Queen ", false);
+        search("search", "killer queen", false);
+
+        assertThat(searches).hasValue(1);
+    }
+
+    @Test
+    void exactSearchesOnlyShareAnEntryAcrossCase() {
+        search("title", "Killer Queen", true);
+        search("title", "KILLER QUEEN", true);
+        // a different term to the keyword field
+        search("title", "Killer  Queen", true);
+        search("title", " Killer Queen", true);
+
+        assertThat(searches).hasValue(3);
+    }
+
+    @Test
+    void searchesOfDifferentEndpointsOrSizesAreKeptApart() {
+        search("title", "queen", false);
+        search("artists", "queen", false);
+        cache.get("artists", "queen", false, 5, FIELDS, null, this::page);
+
+        assertThat(searches).hasValue(3);
+    }
+
+    @Test
+    void invalidationFilesEntriesUnderANewGeneration() {
+        when(values.increment("search-cache:generation")).thenReturn(1L);
+
+        search("search", "queen", false);
+        cache.invalidate();
+        search("search", "queen", false);
+
+        assertThat(searches).hasValue(2);
+        assertThat(cache.generation()).isEqualTo(1);
+        verify(redisTemplate).convertAndSend("search-cache:invalidations", "1");
+        ArgumentCaptor<String> written = ArgumentCaptor.forClass(String.class);
+        verify(values, atLeastOnce()).set(written.capture(), anyString(), anyLong(), eq(TimeUnit.MILLISECONDS));
+        assertThat(written.getAllValues()).hasSize(2);
+        assertThat(written.getAllValues().get(0)).startsWith("search-cache:0:");
+        assertThat(written.getAllValues().get(1)).startsWith("search-cache:1:");
+    }
+
+    @Test
+    void anotherNodesInvalidationDropsLocalEntries() {
+        ArgumentCaptor<MessageListener> listener = ArgumentCaptor.forClass(MessageListener.class);
+        verify(listenerContainer).addMessageListener(listener.capture(), any(Topic.class));
+
+        search("search", "queen", false);
+        listener.getValue().onMessage(new DefaultMessage("search-cache:invalidations".getBytes(StandardCharsets.UTF_8),
+                "3".getBytes(StandardCharsets.UTF_8)), null);
+        search("search", "queen", false);
+        // an older generation, announced late, changes nothing
+        listener.getValue().onMessage(new DefaultMessage("search-cache:invalidations".getBytes(StandardCharsets.UTF_8),
+                "2".getBytes(StandardCharsets.UTF_8)), null);
+        search("search", "queen", false);
+
+        assertThat(searches).hasValue(2);
+        assertThat(cache.generation()).isEqualTo(3);
+    }
+
+    private void search(String endpoint, String query, boolean exactMatch) {
+        cache.get(endpoint, query, exactMatch, null, FIELDS, null, this::page);
+    }
+
+    private SongPage page() {
+        searches.incrementAndGet();
+        Song song = new Song();
+        song.setTitle("Killer Queen");
+        return new SongPage(List.of(song), null);
+    }
+}
@@ -0,0 +1,69 @@
+package com.audio.casse.service;
+
+import com.audio.casse.models.Song;
+import com.audio.casse.repository.SongsRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+class SongAccessServiceTest {
+
+    private static final String SONG = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08.mp3";
+    private static final String OWNER = "alice@casse.music";
+    private static final String OTHER = "mallory@casse.music";
+
+    private SongsRepository songsRepository;
+    private PendingApprovalService pendingApprovalService;
+    private SongAccessService service;
+
+    @BeforeEach
+    void setUp() {
+        songsRepository = mock(SongsRepository.class);
+        pendingApprovalService = mock(PendingApprovalService.class);
+        service = new SongAccessService(songsRepository, pendingApprovalService);
+    }
+
+    @Test
+    void approvedSongIsOnlyItsUploaders() throws Exception {
+        when(songsRepository.findByEmail(OWNER)).thenReturn(List.of(song(OWNER, SONG)));
+
+        assertThat(service.isOwnSong(OWNER, SONG)).isTrue();
+        assertThat(service.isOwnSong(OTHER, SONG)).isFalse();
+    }
+
+    @Test
+    void pendingSongIsOnlyItsUploaders() throws Exception {
+        when(pendingApprovalService.getPendingApprovals(OWNER)).thenReturn(List.of(song(OWNER, SONG)));
+
+        assertThat(service.isOwnSong(OWNER, SONG)).isTrue();
+        assertThat(service.isOwnSong(OTHER, SONG)).isFalse();
+    }
+
+    @Test
+    void pendingSongIsNotApproved() throws Exception {
+        when(songsRepository.findByEmail(OWNER)).thenReturn(List.of(song(OWNER, "other.mp3")));
+        when(pendingApprovalService.getPendingApprovals(OWNER)).thenReturn(List.of(song(OWNER, SONG)));
+
+        assertThat(service.isApproved(OWNER, SONG)).isFalse();
+        assertThat(service.isApproved(OWNER, "other.mp3")).isTrue();
+    }
+
+    @Test
+    void legacyNameOnlyReachesTheCallersOwnFolder() throws Exception {
+        assertThat(service.isOwnSong(OTHER, "song.mp3")).isTrue();
+        verifyNoInteractions(songsRepository, pendingApprovalService);
+    }
+
+    private static Song song(String email, String storageAccessKey) {
+        Song song = new Song();
+        song.setEmail(email);
+        song.setStorageAccessKey(storageAccessKey);
+        return song;
+    }
+}
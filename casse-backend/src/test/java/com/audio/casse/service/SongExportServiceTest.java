@@ -0,0 +1,213 @@
+package com.audio.casse.service;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.core.search.HitsMetadata;
+import co.elastic.clients.util.ObjectBuilder;
+import com.audio.casse.config.properties.SearchProperties;
+import com.audio.casse.models.Song;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SongExportServiceTest {
+
+    private ElasticsearchClient client;
+    private SongSearchService songSearchService;
+    private SearchProperties properties;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    // titles held by each slice of the index
+    private final Map<Integer, List<String>> slices = new ConcurrentHashMap<>();
+    private final List<SearchRequest> searches = new CopyOnWriteArrayList<>();
+    private final AtomicInteger failOnSearch = new AtomicInteger(-1);
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() throws IOException {
+        client = mock(ElasticsearchClient.class);
+        songSearchService = mock(SongSearchService.class);
+        when(songSearchService.openPointInTime(any(Duration.class))).thenReturn("pit-1");
+        when(songSearchService.sourceFields(null)).thenReturn(List.of("title"));
+        properties = new SearchProperties();
+        properties.getExport().setSlices(2);
+        properties.getExport().setPageSize(2);
+        properties.getExport().setBufferedPages(1);
+        when(client.search(any(Function.class), eq(Song.class))).thenAnswer(invocation -> search(
+                invocation.<Function<SearchRequest.Builder, ObjectBuilder<SearchRequest>>>getArgument(0)
+                        .apply(new SearchRequest.Builder()).build()));
+    }
+
+    @Test
+    void everySliceIsPagedThroughToTheEnd() throws IOException {
+        slices.put(0, titles("a", 5));
+        slices.put(1, titles("b", 3));
+        List<String> exported = Collections.synchronizedList(new ArrayList<>());
+
+        service().forEachPage(songs -> songs.forEach(song -> exported.add(song.getTitle())));
+
+        assertThat(exported).containsExactlyInAnyOrderElementsOf(concat(slices.get(0), slices.get(1)));
+        // three pages of a and two of b: each slice stops at its first short page
+        assertThat(searches).hasSize(5);
+        assertThat(searches).allSatisfy(search -> {
+            assertThat(search.pit().id()).isEqualTo("pit-1");
+            assertThat(search.slice().max()).isEqualTo(2);
+            assertThat(search.source().filter().includes()).containsExactly("title");
+        });
+        assertThat(searches).filteredOn(search -> search.searchAfter().isEmpty()).hasSize(2);
+        verify(songSearchService).closePointInTime("pit-1");
+    }
+
+    @Test
+    void singleSliceIsNotSliced() throws IOException {
+        properties.getExport().setSlices(1);
+        slices.put(0, titles("a", 3));
+
+        service().forEachPage(songs -> { });
+
+        assertThat(searches).hasSize(2).allSatisfy(search -> assertThat(search.slice()).isNull());
+    }
+
+    @Test
+    void exportIsOneSongPerLine() throws IOException {
+        slices.put(0, titles("a", 2));
+        slices.put(1, titles("b", 1));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        service().export(out);
+
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertThat(lines).hasSize(3);
+        List<String> exported = new ArrayList<>();
+        for (String line : lines) {
+            JsonNode song = objectMapper.readTree(line);
+            exported.add(song.get("title").asText());
+        }
+        assertThat(exported).containsExactlyInAnyOrder("a0", "a1", "b0");
+    }
+
+    @Test
+    void slowReaderHoldsTheSlicesBack() throws Exception {
+        properties.getExport().setPageSize(1);
+        slices.put(0, titles("a", 20));
+        slices.put(1, titles("b", 20));
+        CountDownLatch readerMayGoOn = new CountDownLatch(1);
+        AtomicInteger pages = new AtomicInteger();
+
+        Thread export = new Thread(() -> {
+            try {
+                service().forEachPage(songs -> {
+                    if (pages.getAndIncrement() == 0) {
+                        try {
+                            readerMayGoOn.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        export.start();
+        Thread.sleep(300);
+
+        // the page being written, the one buffered, and one waiting in each slice
+        assertThat(searches.size()).isLessThanOrEqualTo(1 + 1 + 2);
+        readerMayGoOn.countDown();
+        export.join(5000);
+        assertThat(pages.get()).isEqualTo(40);
+    }
+
+    @Test
+    void sliceThatFailsFailsTheExport() {
+        slices.put(0, titles("a", 5));
+        slices.put(1, titles("b", 5));
+        failOnSearch.set(2);
+
+        assertThatThrownBy(() -> service().forEachPage(songs -> { }))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("Reading the song index failed");
+        verify(songSearchService).closePointInTime("pit-1");
+    }
+
+    @Test
+    void readerGivingUpStopsTheSlices() {
+        slices.put(0, titles("a", 20));
+        slices.put(1, titles("b", 20));
+
+        assertThatThrownBy(() -> service().forEachPage(songs -> {
+            throw new IOException("Broken pipe");
+        })).hasMessage("Broken pipe");
+        verify(songSearchService).closePointInTime("pit-1");
+    }
+
+    private SongExportService service() {
+        return new SongExportService(client, songSearchService, properties, objectMapper);
+    }
+
+    /**
+     * Answers a page of a slice, after the sort value (the position in the slice) it asks for.
+     */
+    @SuppressWarnings("unchecked")
+    private SearchResponse<Song> search(SearchRequest request) throws IOException {
+        if (searches.size() == failOnSearch.get()) {
+            throw new IOException("connection reset");
+        }
+        searches.add(request);
+        int slice = request.slice() == null ? 0 : Integer.parseInt(request.slice().id());
+        List<String> titles = slices.getOrDefault(slice, List.of());
+        int from = request.searchAfter().isEmpty() ? 0 : (int) request.searchAfter().get(0).longValue() + 1;
+        List<Hit<Song>> hits = new ArrayList<>();
+        for (int i = from; i < Math.min(titles.size(), from + request.size()); i++) {
+            Song song = new Song();
+            song.setTitle(titles.get(i));
+            long position = i;
+            hits.add(Hit.of(hit -> hit.index("music_id3_v1").id(song.getTitle()).source(song)
+                    .sort(FieldValue.of(position))));
+        }
+        SearchResponse<Song> response = mock(SearchResponse.class);
+        when(response.hits()).thenReturn(HitsMetadata.of(metadata -> metadata.hits(hits)));
+        return response;
+    }
+
+    private static List<String> titles(String prefix, int count) {
+        List<String> titles = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            titles.add(prefix + i);
+        }
+        return titles;
+    }
+
+    private static List<String> concat(List<String> first, List<String> second) {
+        List<String> all = new ArrayList<>(first);
+        all.addAll(second);
+        return all;
+    }
+}
@@ -0,0 +1,172 @@
+package com.audio.casse.service;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.OpType;
+import co.elastic.clients.elasticsearch.core.ReindexRequest;
+import co.elastic.clients.elasticsearch.core.ReindexResponse;
+import co.elastic.clients.elasticsearch.indices.ElasticsearchIndicesClient;
+import co.elastic.clients.elasticsearch.indices.RefreshRequest;
+import co.elastic.clients.elasticsearch.tasks.ElasticsearchTasksClient;
+import co.elastic.clients.elasticsearch.tasks.GetTasksResponse;
+import co.elastic.clients.elasticsearch.tasks.TaskInfo;
+import co.elastic.clients.util.ObjectBuilder;
+import com.audio.casse.config.properties.SearchProperties;
+import com.audio.casse.models.Song;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SongIndexManagerTest {
+
+    private static final String STATE_KEY = "search-index:reindex";
+
+    private ElasticsearchClient client;
+    private ElasticsearchIndicesClient indices;
+    private ElasticsearchOperations elasticsearchOperations;
+    private HashOperations<String, Object, Object> hash;
+    private SearchCache searchCache;
+    private SongIndexManager manager;
+    // the reindex state in Redis
+    private final Map<Object, Object> state = new HashMap<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() throws IOException {
+        client = mock(ElasticsearchClient.class);
+        indices = mock(ElasticsearchIndicesClient.class);
+        when(client.indices()).thenReturn(indices);
+        elasticsearchOperations = mock(ElasticsearchOperations.class);
+        StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+        hash = mock(HashOperations.class);
+        when(redisTemplate.<Object, Object>opsForHash()).thenReturn(hash);
+        when(hash.entries(STATE_KEY)).thenAnswer(invocation -> new HashMap<>(state));
+        when(hash.multiGet(eq(STATE_KEY), any())).thenAnswer(invocation -> List.of(
+                String.valueOf(state.get("state")), String.valueOf(state.get("target"))));
+        ValueOperations<String, String> values = mock(ValueOperations.class);
+        when(redisTemplate.opsForValue()).thenReturn(values);
+        when(values.setIfAbsent(anyString(), anyString(), any(Duration.class))).thenReturn(true);
+        searchCache = mock(SearchCache.class);
+        manager = new SongIndexManager(client, elasticsearchOperations, redisTemplate, searchCache, new SearchProperties(),
+                new SimpleMeterRegistry());
+
+        state.put("state", "RUNNING");
+        state.put("source", "music_id3_v1");
+        state.put("target", "music_id3_v2");
+        state.put("task", "node:1");
+        state.put("requestsPerSecond", "500.0");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void copiedSongsAreCaughtUpWithOnceTheAliasMoved() throws IOException {
+        taskCompleted("node:1");
+        ReindexResponse catchUp = mock(ReindexResponse.class);
+        when(catchUp.task()).thenReturn("node:2");
+        when(client.reindex(any(Function.class))).thenReturn(catchUp);
+
+        manager.poll();
+
+        // an approval saved through the alias before it moved is in the old index only
+        InOrder order = inOrder(indices, client);
+        order.verify(indices).updateAliases(any(Function.class));
+        order.verify(indices, times(2)).refresh(any(Function.class));
+        order.verify(client).reindex(any(Function.class));
+        assertThat(refreshed()).containsExactly("music_id3_v2", "music_id3_v1");
+        ReindexRequest copy = lastReindex();
+        assertThat(copy.source().index()).containsExactly("music_id3_v1");
+        assertThat(copy.dest().index()).isEqualTo("music_id3_v2");
+        assertThat(copy.dest().opType()).isEqualTo(OpType.Create);
+
+        verify(hash).put(STATE_KEY, "state", "CATCHING_UP");
+        verify(hash).put(STATE_KEY, "task", "node:2");
+        // only the progress of the finished copy, the reindex is not over
+        assertThat(stateWritten().getAllValues()).noneSatisfy(written -> assertThat(written).containsKey("state"));
+    }
+
+    @Test
+    void reindexIsDoneOnceCaughtUp() throws IOException {
+        state.put("state", "CATCHING_UP");
+        state.put("task", "node:2");
+        taskCompleted("node:2");
+
+        manager.poll();
+
+        ArgumentCaptor<Map<String, String>> finished = stateWritten();
+        assertThat(finished.getAllValues()).anySatisfy(written -> assertThat(written).containsEntry("state", "DONE"));
+        verify(indices, never()).updateAliases(any(Function.class));
+        verify(searchCache).invalidate();
+    }
+
+    @Test
+    void approvalsAreOnlyDualWrittenWhileTheFirstCopyRuns() {
+        Song song = new Song();
+
+        manager.dualWrite(song);
+        state.put("state", "CATCHING_UP");
+        manager.dualWrite(song);
+
+        // once the alias moved, saving through it reaches the new index
+        verify(elasticsearchOperations, times(1)).save(song, IndexCoordinates.of("music_id3_v2"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void taskCompleted(String id) throws IOException {
+        ElasticsearchTasksClient tasks = mock(ElasticsearchTasksClient.class);
+        when(client.tasks()).thenReturn(tasks);
+        GetTasksResponse task = mock(GetTasksResponse.class);
+        when(task.completed()).thenReturn(true);
+        when(task.task()).thenReturn(mock(TaskInfo.class));
+        when(tasks.get(any(Function.class))).thenReturn(task);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> refreshed() throws IOException {
+        ArgumentCaptor<Function<RefreshRequest.Builder, ObjectBuilder<RefreshRequest>>> refresh =
+                ArgumentCaptor.forClass(Function.class);
+        verify(indices, times(2)).refresh(refresh.capture());
+        return refresh.getAllValues().stream()
+                .map(request -> request.apply(new RefreshRequest.Builder()).build().index().get(0))
+                .toList();
+    }
+
+    @SuppressWarnings("unchecked")
+    private ReindexRequest lastReindex() throws IOException {
+        ArgumentCaptor<Function<ReindexRequest.Builder, ObjectBuilder<ReindexRequest>>> reindex =
+                ArgumentCaptor.forClass(Function.class);
+        verify(client).reindex(reindex.capture());
+        return reindex.getValue().apply(new ReindexRequest.Builder()).build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private ArgumentCaptor<Map<String, String>> stateWritten() {
+        ArgumentCaptor<Map<String, String>> written = ArgumentCaptor.forClass(Map.class);
+        verify(hash, atLeastOnce()).putAll(eq(STATE_KEY), written.capture());
+        return written;
+    }
+}
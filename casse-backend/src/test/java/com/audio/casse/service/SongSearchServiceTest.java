@@ -0,0 +1,362 @@
+package com.audio.casse.service;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.ErrorResponse;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch._types.query_dsl.TermQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.TermsQuery;
+import co.elastic.clients.elasticsearch.core.OpenPointInTimeResponse;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.core.search.HitsMetadata;
+import co.elastic.clients.util.ObjectBuilder;
+import com.audio.casse.config.properties.SearchProperties;
+import com.audio.casse.dto.SongPage;
+import com.audio.casse.exceptions.InvalidSearchCursorException;
+import com.audio.casse.exceptions.InvalidSearchFieldsException;
+import com.audio.casse.models.Song;
+import com.audio.casse.models.SongField;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SongSearchServiceTest {
+
+    private static final List<String> FIELDS = List.of("title");
+
+    private ElasticsearchClient client;
+    private SearchProperties properties;
+    private SearchCache searchCache;
+    private SongSearchService service;
+
+    @BeforeEach
+    void setUp() {
+        client = mock(ElasticsearchClient.class);
+        properties = new SearchProperties();
+        searchCache = mock(SearchCache.class);
+        when(searchCache.maxAge()).thenReturn(Duration.ofSeconds(40));
+        service = new SongSearchService(client, properties, new ObjectMapper(), searchCache);
+    }
+
+    @Test
+    void firstPageSearchesWithinAPointInTime() throws IOException {
+        openPointInTime("pit-1");
+        returnHits(2, "pit-1");
+
+        SongPage page = service.search(service.matchAll(), 2, null, FIELDS);
+
+        SearchRequest request = lastSearch();
+        assertThat(request.pit().id()).isEqualTo("pit-1");
+        assertThat(request.index()).isEmpty();
+        assertThat(request.from()).isNull();
+        assertThat(request.searchAfter()).isEmpty();
+        assertThat(request.sort()).hasSize(2);
+        assertThat(page.songs()).hasSize(2);
+
+        SongSearchService.Cursor next = service.decode(page.nextCursor());
+        assertThat(next.pit()).isEqualTo("pit-1");
+        assertThat(next.sortValues()).extracting(FieldValue::_get).containsExactly(1.0, 1L);
+    }
+
+    @Test
+    void lastFirstPageHasNoCursor() throws IOException {
+        openPointInTime("pit-1");
+        returnHits(1, "pit-1");
+
+        SongPage page = service.search(service.matchAll(), 2, null, FIELDS);
+
+        assertThat(page.nextCursor()).isNull();
+        // other searches' first pages and cursors share it
+        verify(client, never()).closePointInTime(any(Function.class));
+    }
+
+    @Test
+    void firstPagesShareAPointInTime() throws IOException {
+        openPointInTime("pit-1");
+        returnHits(2, "pit-1");
+
+        service.search(service.matchAll(), 2, null, FIELDS);
+        service.search(service.matchAny("queen"), 2, null, FIELDS);
+
+        verify(client, times(1)).openPointInTime(any(Function.class));
+    }
+
+    @Test
+    void sharedPointInTimeIsReplacedWhenTheIndexChanges() throws IOException {
+        openPointInTime("pit-1");
+        returnHits(2, "pit-1");
+
+        service.search(service.matchAll(), 2, null, FIELDS);
+        when(searchCache.generation()).thenReturn(1L);
+        service.search(service.matchAll(), 2, null, FIELDS);
+
+        verify(client, times(2)).openPointInTime(any(Function.class));
+    }
+
+    @Test
+    void sharedPointInTimeIsReplacedOnceItIsOld() throws IOException {
+        properties.setPitRotation(Duration.ZERO);
+        openPointInTime("pit-1");
+        returnHits(2, "pit-1");
+
+        service.search(service.matchAll(), 2, null, FIELDS);
+        service.search(service.matchAll(), 2, null, FIELDS);
+
+        verify(client, times(2)).openPointInTime(any(Function.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void vanishedSharedPointInTimeIsReplaced() throws IOException {
+        openPointInTime("pit-1");
+        SearchResponse<Song> response = returnHits(2, "pit-1");
+        service.search(service.matchAll(), 2, null, FIELDS);
+        // e.g. the index was deleted after a reindex
+        when(client.search(any(Function.class), eq(Song.class))).thenThrow(notFound()).thenReturn(response);
+
+        SongPage page = service.search(service.matchAll(), 2, null, FIELDS);
+
+        assertThat(page.songs()).hasSize(2);
+        verify(client, times(2)).openPointInTime(any(Function.class));
+    }
+
+    @Test
+    void laterPagesSearchAfterTheLastHitWithinThePointInTime() throws IOException {
+        returnHits(2, null);
+        String cursor = service.encode(new SongSearchService.Cursor("pit-1", List.of(FieldValue.of(1.5), FieldValue.of(7L))));
+
+        SongPage page = service.search(service.matchAll(), 2, cursor, FIELDS);
+
+        verify(client, never()).openPointInTime(any(Function.class));
+        SearchRequest request = lastSearch();
+        assertThat(request.pit().id()).isEqualTo("pit-1");
+        assertThat(request.from()).isNull();
+        assertThat(request.searchAfter()).extracting(FieldValue::_kind)
+                .containsExactly(FieldValue.Kind.Double, FieldValue.Kind.Long);
+        assertThat(service.decode(page.nextCursor()).pit()).isEqualTo("pit-1");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void expiredCursorIsRejected() throws IOException {
+        when(client.search(any(Function.class), eq(Song.class))).thenThrow(notFound());
+        String cursor = service.encode(new SongSearchService.Cursor("pit-1", List.of(FieldValue.of(1.5), FieldValue.of(7L))));
+
+        assertThatThrownBy(() -> service.search(service.matchAll(), 2, cursor, FIELDS))
+                .isInstanceOf(InvalidSearchCursorException.class);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void pagingThroughASearchListsEverySongOnce() throws IOException {
+        // ten songs in pairs of equal score, so pages also break ties
+        List<Hit<Song>> index = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Song song = new Song();
+            song.setTitle("song " + i);
+            double score = 5 - i / 2;
+            long doc = i;
+            index.add(Hit.of(hit -> hit.index("music_id3_v1").id("id-" + doc).source(song)
+                    .sort(FieldValue.of(score), FieldValue.of(doc))));
+        }
+        openPointInTime("pit-1");
+        List<SearchRequest> requests = new ArrayList<>();
+        when(client.search(any(Function.class), eq(Song.class))).thenAnswer(invocation -> {
+            SearchRequest request = ((Function<SearchRequest.Builder, ObjectBuilder<SearchRequest>>) invocation.getArgument(0))
+                    .apply(new SearchRequest.Builder()).build();
+            requests.add(request);
+            List<Hit<Song>> hits = index.stream()
+                    .filter(hit -> request.searchAfter().isEmpty() || isAfter(hit.sort(), request.searchAfter()))
+                    .limit(request.size())
+                    .toList();
+            return SearchResponse.<Song>of(response -> response.took(1).timedOut(false)
+                    .shards(shards -> shards.total(1).successful(1).failed(0))
+                    .hits(metadata -> metadata.hits(hits))
+                    .pitId(request.pit().id()));
+        });
+
+        List<String> titles = new ArrayList<>();
+        String cursor = null;
+        do {
+            SongPage page = service.search(service.matchAll(), 3, cursor, FIELDS);
+            page.songs().forEach(song -> titles.add(song.getTitle()));
+            cursor = page.nextCursor();
+        } while (cursor != null);
+
+        assertThat(titles).doesNotHaveDuplicates().hasSize(10);
+        assertThat(requests).hasSize(4).allSatisfy(request -> assertThat(request.pit().id()).isEqualTo("pit-1"));
+    }
+
+    @Test
+    void cursorSurvivesEncoding() {
+        SongSearchService.Cursor cursor = new SongSearchService.Cursor("pit-1",
+                List.of(FieldValue.of(2.25), FieldValue.of(42L), FieldValue.of("b"), FieldValue.of(true)));
+
+        SongSearchService.Cursor decoded = service.decode(service.encode(cursor));
+
+        assertThat(decoded.pit()).isEqualTo("pit-1");
+        assertThat(decoded.sortValues()).extracting(FieldValue::_get)
+                .containsExactly(2.25, 42L, "b", true);
+    }
+
+    @Test
+    void malformedCursorsAreRejected() {
+        String notJson = Base64.getUrlEncoder().encodeToString("nope".getBytes());
+        String noSortValues = Base64.getUrlEncoder().encodeToString("{\"pit\":\"p\"}".getBytes());
+        // the first pages of an earlier release had no point in time
+        String noPit = Base64.getUrlEncoder().encodeToString("{\"skip\":20}".getBytes());
+
+        for (String cursor : List.of("%%%", notJson, noSortValues, noPit)) {
+            assertThatThrownBy(() -> service.decode(cursor)).isInstanceOf(InvalidSearchCursorException.class);
+        }
+    }
+
+    @Test
+    void everyFieldIsFetchedUnlessFewerAreAskedFor() {
+        List<String> all = List.of("title", "artists", "album", "composer", "tags", "email", "storageAccessKey", "albumArt");
+
+        assertThat(service.sourceFields(null)).isEqualTo(all);
+        assertThat(service.sourceFields(List.of())).isEqualTo(all);
+        assertThat(service.sourceFields(List.of(" ", ","))).isEqualTo(all);
+    }
+
+    @Test
+    void requestedFieldsAreFetchedInSongOrder() {
+        // as ?fields=tags,TITLE&fields=storageaccesskey,title binds
+        List<String> fields = service.sourceFields(List.of("tags, TITLE", "storageaccesskey,title"));
+
+        assertThat(fields).containsExactly("title", "tags", "storageAccessKey");
+    }
+
+    @Test
+    void unknownFieldsAreRejected() {
+        assertThatThrownBy(() -> service.sourceFields(List.of("title,lyrics")))
+                .isInstanceOf(InvalidSearchFieldsException.class)
+                .hasMessageContaining("lyrics");
+        // _id comes with every hit, so it is not a field to ask for
+        assertThatThrownBy(() -> service.sourceFields(List.of("_id")))
+                .isInstanceOf(InvalidSearchFieldsException.class);
+    }
+
+    @Test
+    void textIsScoredAndEveryFieldFilters() {
+        Map<SongField, List<String>> filters = new EnumMap<>(SongField.class);
+        filters.put(SongField.ARTISTS, List.of("Queen"));
+        filters.put(SongField.TAGS, List.of("rock", "pop"));
+
+        BoolQuery bool = service.filtered("killer queen", filters).bool();
+
+        assertThat(bool.must()).singleElement().satisfies(must ->
+                assertThat(must.multiMatch().query()).isEqualTo("killer queen"));
+        assertThat(bool.filter()).hasSize(2);
+        TermQuery artist = bool.filter().get(0).term();
+        assertThat(artist.field()).isEqualTo("artists.keyword");
+        assertThat(artist.value().stringValue()).isEqualTo("Queen");
+        TermsQuery tags = bool.filter().get(1).terms();
+        assertThat(tags.field()).isEqualTo("tags.keyword");
+        assertThat(tags.terms().value()).extracting(FieldValue::stringValue).containsExactly("rock", "pop");
+    }
+
+    @Test
+    void filtersWithoutTextDoNotScore() {
+        Map<SongField, List<String>> filters = new EnumMap<>(SongField.class);
+        filters.put(SongField.EMAIL, List.of("ana@example.com"));
+
+        BoolQuery bool = service.filtered("  ", filters).bool();
+
+        assertThat(bool.must()).isEmpty();
+        // email is a keyword field of its own
+        assertThat(bool.filter()).singleElement().satisfies(filter ->
+                assertThat(filter.term().field()).isEqualTo("email"));
+    }
+
+    @Test
+    void fieldsWithoutValuesAreIgnored() {
+        Map<SongField, List<String>> filters = new EnumMap<>(SongField.class);
+        filters.put(SongField.TITLE, List.of());
+        filters.put(SongField.ALBUM, null);
+
+        assertThat(service.filtered(null, filters).isMatchAll()).isTrue();
+        assertThat(service.filtered("queen", filters).bool().filter()).isEmpty();
+    }
+
+    @Test
+    void exactFieldMatchIsAFilterAndAPartialOneScores() {
+        Query exact = service.matchField(SongField.TITLE, "Bohemian Rhapsody", true);
+        Query partial = service.matchField(SongField.TITLE, "bohem", false);
+
+        assertThat(exact.bool().must()).isEmpty();
+        assertThat(exact.bool().filter()).singleElement().satisfies(filter -> {
+            assertThat(filter.term().field()).isEqualTo("title.keyword");
+            assertThat(filter.term().value().stringValue()).isEqualTo("Bohemian Rhapsody");
+        });
+        assertThat(partial.multiMatch().fields()).containsExactly("title.autocomplete");
+    }
+
+    @SuppressWarnings("unchecked")
+    private SearchResponse<Song> returnHits(int count, String pitId) throws IOException {
+        List<Hit<Song>> hits = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Song song = new Song();
+            song.setTitle("song " + i);
+            long doc = i;
+            hits.add(Hit.of(hit -> hit.index("music_id3_v1").id("id-" + doc).source(song)
+                    .sort(FieldValue.of(1.0), FieldValue.of(doc))));
+        }
+        SearchResponse<Song> response = mock(SearchResponse.class);
+        when(response.hits()).thenReturn(HitsMetadata.of(metadata -> metadata.hits(hits)));
+        when(response.pitId()).thenReturn(pitId);
+        when(client.search(any(Function.class), eq(Song.class))).thenReturn(response);
+        return response;
+    }
+
+    // by score descending, then _shard_doc ascending
+    private static boolean isAfter(List<FieldValue> sort, List<FieldValue> after) {
+        int byScore = Double.compare(after.get(0).doubleValue(), sort.get(0).doubleValue());
+        return byScore != 0 ? byScore > 0 : sort.get(1).longValue() > after.get(1).longValue();
+    }
+
+    private static ElasticsearchException notFound() {
+        return new ElasticsearchException("search", ErrorResponse.of(error -> error.status(404)
+                .error(cause -> cause.type("search_context_missing_exception").reason("No search context found"))));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void openPointInTime(String id) throws IOException {
+        OpenPointInTimeResponse response = mock(OpenPointInTimeResponse.class);
+        when(response.id()).thenReturn(id);
+        when(client.openPointInTime(any(Function.class))).thenReturn(response);
+    }
+
+    @SuppressWarnings("unchecked")
+    private SearchRequest lastSearch() throws IOException {
+        ArgumentCaptor<Function<SearchRequest.Builder, ObjectBuilder<SearchRequest>>> search =
+                ArgumentCaptor.forClass(Function.class);
+        verify(client).search(search.capture(), eq(Song.class));
+        return search.getValue().apply(new SearchRequest.Builder()).build();
+    }
+}
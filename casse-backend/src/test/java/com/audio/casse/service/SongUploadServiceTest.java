@@ -0,0 +1,268 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.AlbumArtProperties;
+import com.audio.casse.exceptions.SongUploadException;
+import com.audio.casse.models.ContentAddress;
+import com.audio.casse.models.Song;
+import jakarta.servlet.MultipartConfigElement;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SongUploadServiceTest {
+
+    private static final String EMAIL = "alice@casse.music";
+    private static final String BOUNDARY = "casse-boundary";
+    private static final byte[] ALBUM_ART = "not really a jpeg".getBytes(StandardCharsets.US_ASCII);
+
+    private StorageBackend storage;
+    private SeekIndexService seekIndexService;
+    private AlbumArtProperties albumArtProperties;
+    private final List<FakeStagedUpload> staged = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        storage = mock(StorageBackend.class);
+        seekIndexService = mock(SeekIndexService.class);
+        albumArtProperties = new AlbumArtProperties();
+        when(storage.stageSong(any())).thenAnswer(invocation -> {
+            FakeStagedUpload upload = new FakeStagedUpload();
+            staged.add(upload);
+            return upload;
+        });
+        when(storage.uploadAlbumArtAsync(any(), any(), anyString(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture(null));
+    }
+
+    @Test
+    void songIsStagedAndStoredUnderItsContentAddress() throws IOException {
+        byte[] audio = mp3(20);
+
+        Song song = service().upload(request(new Multipart()
+                .field("title", "Bohemian Rhapsody")
+                .field("artists", "Queen")
+                .file("albumArtFile", "cover.JPG", "image/jpeg", ALBUM_ART)
+                .file("audioFile", "Bohemian Rhapsody.mp3", "audio/mpeg", audio)), EMAIL);
+
+        String fileName = address(audio, ".mp3");
+        String albumArtName = address(ALBUM_ART, ".jpg");
+        assertThat(staged).hasSize(1);
+        assertThat(staged.get(0).bytes()).isEqualTo(audio);
+        verify(storage).storeSong(staged.get(0), EMAIL, fileName);
+        verify(storage).uploadAlbumArtAsync(ALBUM_ART, "image/jpeg", EMAIL, albumArtName);
+        // indexed on the same pass as the upload
+        verify(seekIndexService).indexUpload(argThat(table -> table != null && table.totalSamples() == 20 * 1152),
+                eq(fileName), eq(EMAIL));
+
+        assertThat(song.getTitle()).isEqualTo("Bohemian Rhapsody");
+        assertThat(song.getArtists()).containsExactly("Queen");
+        assertThat(song.getEmail()).isEqualTo(EMAIL);
+        assertThat(song.getStorageAccessKey()).isEqualTo(fileName);
+        assertThat(song.getAlbumArt()).isEqualTo(albumArtName);
+    }
+
+    @Test
+    void fileThatIsNotMp3IsStoredWithoutASeekTable() throws IOException {
+        byte[] audio = "RIFF....WAVEfmt not an mp3".getBytes(StandardCharsets.US_ASCII);
+
+        Song song = service().upload(request(new Multipart()
+                .file("audioFile", "song.wav", "audio/wav", audio)), EMAIL);
+
+        assertThat(staged.get(0).bytes()).isEqualTo(audio);
+        verify(seekIndexService).indexUpload(isNull(), eq(address(audio, ".wav")), eq(EMAIL));
+        assertThat(song.getAlbumArt()).isNull();
+    }
+
+    @Test
+    void fieldsSetByTheServerCannotBeForged() {
+        byte[] audio = mp3(1);
+
+        Song song = service().upload(request(new Multipart()
+                .field("title", "Song")
+                .field("email", "mallory@casse.music")
+                .field("storageAccessKey", "someone-elses.mp3")
+                .field("albumArt", "someone-elses.jpg")
+                .file("audioFile", "song.mp3", "audio/mpeg", audio)), EMAIL);
+
+        assertThat(song.getEmail()).isEqualTo(EMAIL);
+        assertThat(song.getStorageAccessKey()).isEqualTo(address(audio, ".mp3"));
+        assertThat(song.getAlbumArt()).isNull();
+    }
+
+    @Test
+    void uploadWithoutASongIsRefusedAndItsAlbumArtDeleted() throws IOException {
+        assertThatThrownBy(() -> service().upload(request(new Multipart()
+                .field("title", "Song")
+                .file("albumArtFile", "cover.jpg", "image/jpeg", ALBUM_ART)
+                .file("audioFile", "", "application/octet-stream", new byte[0])), EMAIL))
+                .isInstanceOfSatisfying(SongUploadException.class,
+                        e -> assertThat(e.getError()).isEqualTo(SongUploadException.NO_FILE_SELECTED));
+
+        verify(storage, never()).stageSong(any());
+        verify(storage).deleteAlbumArt(address(ALBUM_ART, ".jpg"), EMAIL);
+    }
+
+    @Test
+    void emptySongIsNotStored() throws IOException {
+        assertThatThrownBy(() -> service().upload(request(new Multipart()
+                .file("audioFile", "empty.mp3", "audio/mpeg", new byte[0])), EMAIL))
+                .isInstanceOfSatisfying(SongUploadException.class,
+                        e -> assertThat(e.getError()).isEqualTo(SongUploadException.NO_FILE_SELECTED));
+
+        verify(storage, never()).storeSong(any(), anyString(), anyString());
+        assertThat(staged.get(0).closed).isTrue();
+    }
+
+    @Test
+    void albumArtOverTheLimitFailsTheUpload() throws IOException {
+        albumArtProperties.setMaxSize(DataSize.ofBytes(ALBUM_ART.length - 1));
+
+        assertThatThrownBy(() -> service().upload(request(new Multipart()
+                .file("albumArtFile", "cover.jpg", "image/jpeg", ALBUM_ART)
+                .file("audioFile", "song.mp3", "audio/mpeg", mp3(1))), EMAIL))
+                .isInstanceOfSatisfying(SongUploadException.class,
+                        e -> assertThat(e.getError()).isEqualTo(SongUploadException.FILE_UPLOAD_FAILED));
+
+        verify(storage, never()).uploadAlbumArtAsync(any(), any(), anyString(), anyString());
+        verify(storage, never()).stageSong(any());
+    }
+
+    @Test
+    void songThatFailsToStoreTakesItsAlbumArtWithIt() throws IOException {
+        byte[] audio = mp3(1);
+        doThrow(new IOException("storage is down")).when(storage).storeSong(any(), anyString(), anyString());
+
+        assertThatThrownBy(() -> service().upload(request(new Multipart()
+                .file("albumArtFile", "cover.jpg", "image/jpeg", ALBUM_ART)
+                .file("audioFile", "song.mp3", "audio/mpeg", audio)), EMAIL))
+                .isInstanceOfSatisfying(SongUploadException.class,
+                        e -> assertThat(e.getError()).isEqualTo(SongUploadException.FILE_UPLOAD_FAILED));
+
+        assertThat(staged.get(0).closed).isTrue();
+        verify(storage).deleteAlbumArt(address(ALBUM_ART, ".jpg"), EMAIL);
+        verify(seekIndexService, never()).indexUpload(any(), anyString(), anyString());
+    }
+
+    @Test
+    void albumArtThatFailsToStoreTakesTheSongWithIt() {
+        byte[] audio = mp3(1);
+        when(storage.uploadAlbumArtAsync(any(), any(), anyString(), anyString()))
+                .thenReturn(CompletableFuture.failedFuture(new IOException("storage is down")));
+
+        assertThatThrownBy(() -> service().upload(request(new Multipart()
+                .file("albumArtFile", "cover.jpg", "image/jpeg", ALBUM_ART)
+                .file("audioFile", "song.mp3", "audio/mpeg", audio)), EMAIL))
+                .isInstanceOfSatisfying(SongUploadException.class,
+                        e -> assertThat(e.getError()).isEqualTo(SongUploadException.ALBUM_ART_UPLOAD_FAILED));
+
+        verify(storage).deleteSong(address(audio, ".mp3"), EMAIL);
+    }
+
+    private SongUploadService service() {
+        return new SongUploadService(storage, seekIndexService, albumArtProperties,
+                new MultipartConfigElement("", DataSize.ofMegabytes(10).toBytes(), DataSize.ofMegabytes(20).toBytes(), 0));
+    }
+
+    private static MockHttpServletRequest request(Multipart body) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/upload");
+        request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+        request.setContent(body.bytes());
+        return request;
+    }
+
+    private static String address(byte[] content, String extension) {
+        try {
+            return ContentAddress.of(new ByteArrayInputStream(content), "file" + extension).fileName();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * MPEG-1 layer III frames at 128kbps, 44.1kHz, silent.
+     */
+    private static byte[] mp3(int frames) {
+        ByteBuffer buffer = ByteBuffer.allocate(frames * 417);
+        for (int i = 0; i < frames; i++) {
+            buffer.putInt(i * 417, 0xFFFB9064);
+        }
+        return buffer.array();
+    }
+
+    private static final class Multipart {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Multipart field(String name, String value) {
+            part("Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n");
+            out.writeBytes(value.getBytes(StandardCharsets.UTF_8));
+            out.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+            return this;
+        }
+
+        Multipart file(String name, String fileName, String contentType, byte[] content) {
+            part("Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + fileName + "\"\r\n"
+                    + "Content-Type: " + contentType + "\r\n\r\n");
+            out.writeBytes(content);
+            out.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+            return this;
+        }
+
+        byte[] bytes() {
+            part(null);
+            return out.toByteArray();
+        }
+
+        private void part(String headers) {
+            out.writeBytes(("--" + BOUNDARY + (headers == null ? "--\r\n" : "\r\n" + headers)).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static final class FakeStagedUpload extends StagedUpload {
+
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private boolean closed;
+
+        @Override
+        protected void append(byte[] bytes, int offset, int length) {
+            written.write(bytes, offset, length);
+        }
+
+        @Override
+        protected void storeAs(String objectKey) {
+            throw new UnsupportedOperationException("stored through the mocked backend");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        byte[] bytes() {
+            return written.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.R2ResilienceProperties;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StorageCallPolicyTest {
+
+    private R2ResilienceProperties properties;
+    private SimpleMeterRegistry meterRegistry;
+    private StorageCallPolicy policy;
+    private final BlockingQueue<String> discarded = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    void setUp() {
+        properties = new R2ResilienceProperties();
+        properties.getHedge().setInitialDelay(Duration.ofMillis(50));
+        for (R2ResilienceProperties.CircuitBreaker breaker
+                : new R2ResilienceProperties.CircuitBreaker[]{properties.getCircuitBreaker(), properties.getUploadCircuitBreaker()}) {
+            breaker.setSlidingWindowSize(4);
+            breaker.setMinimumNumberOfCalls(4);
+        }
+        meterRegistry = new SimpleMeterRegistry();
+        policy = new StorageCallPolicy("r2", properties, meterRegistry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        policy.shutdown();
+    }
+
+    @Test
+    void fastReadIsNotHedged() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = policy.read(() -> "attempt " + attempts.incrementAndGet(), discarded::add);
+
+        assertThat(result).isEqualTo("attempt 1");
+        assertThat(attempts.get()).isEqualTo(1);
+        assertThat(counter("storage.reads.hedged")).isZero();
+    }
+
+    @Test
+    void slowReadIsHedgedAndTheLateFirstAttemptDiscarded() throws InterruptedException {
+        CountDownLatch firstMayAnswer = new CountDownLatch(1);
+        Attempts attempts = new Attempts(
+                () -> {
+                    await(firstMayAnswer);
+                    return "first";
+                },
+                () -> "second");
+
+        String result = policy.read(attempts, discarded::add);
+        firstMayAnswer.countDown();
+
+        assertThat(result).isEqualTo("second");
+        assertThat(discarded.poll(5, TimeUnit.SECONDS)).isEqualTo("first");
+        assertThat(counter("storage.reads.hedged")).isEqualTo(1);
+        assertThat(counter("storage.reads.hedge.wins")).isEqualTo(1);
+    }
+
+    @Test
+    void hedgeAnsweringLateIsDiscarded() throws InterruptedException {
+        CountDownLatch secondMayAnswer = new CountDownLatch(1);
+        Attempts attempts = new Attempts(
+                () -> {
+                    sleep(150);
+                    return "first";
+                },
+                () -> {
+                    await(secondMayAnswer);
+                    return "second";
+                });
+
+        String result = policy.read(attempts, discarded::add);
+        secondMayAnswer.countDown();
+
+        assertThat(result).isEqualTo("first");
+        assertThat(discarded.poll(5, TimeUnit.SECONDS)).isEqualTo("second");
+        assertThat(counter("storage.reads.hedged")).isEqualTo(1);
+        assertThat(counter("storage.reads.hedge.wins")).isZero();
+    }
+
+    @Test
+    void failedHedgeLeavesTheFirstAttemptToAnswer() {
+        Attempts attempts = new Attempts(
+                () -> {
+                    sleep(150);
+                    return "first";
+                },
+                () -> {
+                    throw serverError();
+                });
+
+        assertThat(policy.read(attempts, discarded::add)).isEqualTo("first");
+        assertThat(discarded).isEmpty();
+    }
+
+    @Test
+    void readFailsWhenBothAttemptsDo() {
+        Attempts attempts = new Attempts(
+                () -> {
+                    sleep(150);
+                    throw serverError();
+                },
+                () -> {
+                    throw serverError();
+                });
+
+        assertThatThrownBy(() -> policy.read(attempts, discarded::add)).isInstanceOf(S3Exception.class);
+    }
+
+    @Test
+    void breakerOpensOnServerErrorsAndFailsFast() {
+        for (int i = 0; i < 4; i++) {
+            assertThatThrownBy(() -> policy.call(() -> {
+                throw serverError();
+            })).isInstanceOf(S3Exception.class);
+        }
+
+        AtomicInteger calls = new AtomicInteger();
+        assertThatThrownBy(() -> policy.read(calls::incrementAndGet, response -> { }))
+                .isInstanceOf(CallNotPermittedException.class);
+        assertThat(calls.get()).isZero();
+    }
+
+    @Test
+    void clientErrorsDoNotOpenTheBreaker() {
+        for (int i = 0; i < 8; i++) {
+            assertThatThrownBy(() -> policy.call(() -> {
+                throw S3Exception.builder().statusCode(404).message("NoSuchKey").build();
+            })).isInstanceOf(S3Exception.class);
+        }
+
+        assertThat(policy.call(() -> "found")).isEqualTo("found");
+    }
+
+    @Test
+    void failingUploadsDoNotCutOffReads() {
+        for (int i = 0; i < 4; i++) {
+            assertThatThrownBy(() -> policy.upload(() -> {
+                throw serverError();
+            })).isInstanceOf(S3Exception.class);
+        }
+
+        assertThatThrownBy(() -> policy.upload(() -> "stored")).isInstanceOf(CallNotPermittedException.class);
+        assertThat(policy.read(() -> "read", response -> { })).isEqualTo("read");
+    }
+
+    private double counter(String name) {
+        return meterRegistry.get(name).counter().count();
+    }
+
+    private static S3Exception serverError() {
+        return (S3Exception) S3Exception.builder().statusCode(500).message("InternalError").build();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The first call answers as {@code first} does, the hedge as {@code hedge} does.
+     */
+    private static final class Attempts implements Supplier<String> {
+
+        private final Supplier<String> first;
+        private final Supplier<String> hedge;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        Attempts(Supplier<String> first, Supplier<String> hedge) {
+            this.first = first;
+            this.hedge = hedge;
+        }
+
+        @Override
+        public String get() {
+            return calls.getAndIncrement() == 0 ? first.get() : hedge.get();
+        }
+    }
+}
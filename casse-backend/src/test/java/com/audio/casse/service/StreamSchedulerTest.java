@@ -0,0 +1,128 @@
+package com.audio.casse.service;
+
+import com.audio.casse.config.properties.StreamingProperties;
+import com.audio.casse.dto.ActiveStream;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StreamSchedulerTest {
+
+    private StreamingProperties properties;
+
+    @BeforeEach
+    void setUp() {
+        properties = new StreamingProperties();
+        StreamingProperties.Pacing pacing = properties.getPacing();
+        // a stream is paced from its first byte, at exactly its bitrate
+        pacing.setInitialBurst(Duration.ZERO);
+        pacing.setRateMultiple(1.0);
+        pacing.setMaxPodBandwidth(DataSize.ofBytes(1000));
+        pacing.setMaxUserBandwidth(DataSize.ofBytes(0));
+    }
+
+    @Test
+    void modestStreamsKeepTheirRateAndTheRestSplitWhatIsLeft() throws IOException {
+        StreamScheduler scheduler = scheduler();
+        paced(scheduler.open("a", "slow", 800));
+        paced(scheduler.open("a", "fast", 8000));
+        paced(scheduler.open("a", "faster", 16000));
+
+        assertThat(allocated(scheduler, "slow")).isEqualTo(100L);
+        assertThat(allocated(scheduler, "fast")).isEqualTo(450L);
+        assertThat(allocated(scheduler, "faster")).isEqualTo(450L);
+    }
+
+    @Test
+    void bandwidthIsSharedBetweenListenersBeforeTheirStreams() throws IOException {
+        StreamScheduler scheduler = scheduler();
+        paced(scheduler.open("a", "a1", 8000));
+        paced(scheduler.open("a", "a2", 8000));
+        paced(scheduler.open("a", "a3", 8000));
+        paced(scheduler.open("b", "b1", 1600));
+
+        // b asks for less than half, so a has all it leaves
+        assertThat(allocated(scheduler, "b1")).isEqualTo(200L);
+        assertThat(allocated(scheduler, "a1")).isEqualTo(267L);
+        assertThat(allocated(scheduler, "a2")).isEqualTo(267L);
+        assertThat(allocated(scheduler, "a3")).isEqualTo(267L);
+    }
+
+    @Test
+    void burstingStreamsGetWhatPacedStreamsLeave() throws IOException {
+        StreamScheduler scheduler = scheduler();
+        paced(scheduler.open("a", "paced", 800));
+        scheduler.open("b", "bursting", 800);
+
+        assertThat(allocated(scheduler, "paced")).isEqualTo(100L);
+        assertThat(allocated(scheduler, "bursting")).isEqualTo(900L);
+        assertThat(describe(scheduler, "bursting").phase()).isEqualTo("burst");
+    }
+
+    @Test
+    void listenersAreHeldToTheUserLimit() throws IOException {
+        properties.getPacing().setMaxUserBandwidth(DataSize.ofBytes(300));
+        StreamScheduler scheduler = scheduler();
+        scheduler.open("a", "a1", 8000);
+        scheduler.open("a", "a2", 8000);
+        paced(scheduler.open("b", "b1", 800));
+
+        assertThat(allocated(scheduler, "a1")).isEqualTo(150L);
+        assertThat(allocated(scheduler, "a2")).isEqualTo(150L);
+        assertThat(allocated(scheduler, "b1")).isEqualTo(100L);
+    }
+
+    @Test
+    void withoutLimitsOnlyPacedStreamsAreHeldBack() throws IOException {
+        properties.getPacing().setMaxPodBandwidth(DataSize.ofBytes(0));
+        StreamScheduler scheduler = scheduler();
+        paced(scheduler.open("a", "paced", 800));
+        scheduler.open("a", "bursting", 800);
+
+        assertThat(allocated(scheduler, "paced")).isEqualTo(100L);
+        assertThat(allocated(scheduler, "bursting")).isNull();
+    }
+
+    @Test
+    void closingAStreamHandsItsShareToTheOthers() throws IOException {
+        StreamScheduler scheduler = scheduler();
+        paced(scheduler.open("a", "kept", 16000));
+        StreamScheduler.PacedStream closed = paced(scheduler.open("b", "closed", 16000));
+        assertThat(allocated(scheduler, "kept")).isEqualTo(500L);
+
+        closed.close();
+
+        assertThat(scheduler.activeStreams()).hasSize(1);
+        assertThat(allocated(scheduler, "kept")).isEqualTo(1000L);
+    }
+
+    private StreamScheduler scheduler() {
+        return new StreamScheduler(properties, new SimpleMeterRegistry());
+    }
+
+    /**
+     * Sends the stream's first byte, which with no initial burst is all it takes to pace it.
+     */
+    private static StreamScheduler.PacedStream paced(StreamScheduler.PacedStream stream) throws IOException {
+        stream.wrap(OutputStream.nullOutputStream()).write(0);
+        return stream;
+    }
+
+    private static Long allocated(StreamScheduler scheduler, String song) {
+        return describe(scheduler, song).allocatedBytesPerSecond();
+    }
+
+    private static ActiveStream describe(StreamScheduler scheduler, String song) {
+        return scheduler.activeStreams().stream()
+                .filter(stream -> stream.song().equals(song))
+                .findFirst()
+                .orElseThrow();
+    }
+}
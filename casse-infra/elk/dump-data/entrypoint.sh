@@ -6,8 +6,9 @@ until curl -s "http://elasticsearch1:9200/_cluster/health?wait_for_status=yellow
   sleep 5
 done
 
-# Create the index with the mapping
-curl -X PUT "http://elasticsearch1:9200/music_id3" -H 'Content-Type: application/json' -d @music_id3_mapping.json
+# Create the first version of the index with the mapping, behind the music_id3 alias
+curl -X PUT "http://elasticsearch1:9200/music_id3_v1" -H 'Content-Type: application/json' -d @music_id3_mapping.json
+curl -X PUT "http://elasticsearch1:9200/music_id3_v1/_alias/music_id3"
 
 # Run the data generator
 python generate-data.py
@@ -38,7 +38,7 @@ def generate_actions():
             "_id":    doc_id,
             "_source": {
                 "title":        fake.sentence(nb_words=3).rstrip("."),
-                "artists":      ", ".join(random.sample(artists_pool, k=random.randint(1, 2))),
+                "artists":      random.sample(artists_pool, k=random.randint(1, 2)),
                 "album":        fake.sentence(nb_words=2).rstrip("."),
                 "release_date": release.isoformat(),
                 "year":         release.year,
@@ -46,7 +46,7 @@ def generate_actions():
                 "lyrics":       fake.text(max_nb_chars=200),
                 "duration_ms":  random.randint(120_000, 300_000),
                 "comment":      fake.sentence(nb_words=6),
-                "tags":         ", ".join(random.sample(tags_pool, k=random.randint(1, 3))),
+                "tags":         random.sample(tags_pool, k=random.randint(1, 3)),
                 "email":        fake.email()
             }
         }
@@ -0,0 +1,85 @@
+#!/bin/zsh
+
+# Moves the songs from the music_id3 index, where artists and tags are ", "-joined strings, to
+# music_id3_v2, where they are arrays with one value per artist or tag, and leaves an alias named
+# music_id3 pointing at the new index. Search keeps working throughout; approvals
+# only fail while the old index is write-blocked for the short final catch-up pass.
+#
+# Run once, from this directory, with the backend up or down. The backend reads both shapes, so
+# it needs no restart.
+
+ELASTICSEARCH_HOST="http://localhost:9200"
+OLD_INDEX="music_id3"
+NEW_INDEX="music_id3_v2"
+ALIAS="music_id3"
+
+# Splits the joined strings; documents already holding arrays are copied as they are.
+# External versioning makes a second pass only rewrite the documents changed since the first one.
+REINDEX_BODY='{
+  "conflicts": "proceed",
+  "source": { "index": "'$OLD_INDEX'", "size": 1000 },
+  "dest": { "index": "'$NEW_INDEX'", "version_type": "external" },
+  "script": {
+    "lang": "painless",
+    "source": "for (String field : [\"artists\", \"tags\"]) { def value = ctx._source[field]; if (value instanceof String) { List values = new ArrayList(); for (String part : value.splitOnToken(\",\")) { String trimmed = part.trim(); if (!trimmed.isEmpty()) { values.add(trimmed); } } ctx._source[field] = values; } }"
+  }
+}'
+
+function reindex() {
+  curl -sf -X POST "$ELASTICSEARCH_HOST/_reindex?slices=auto&wait_for_completion=true&refresh=true" \
+    -H 'Content-Type: application/json' -d "$REINDEX_BODY"
+}
+
+function count() {
+  curl -sf "$ELASTICSEARCH_HOST/$1/_count" | grep -o '"count":[0-9]*' | cut -d: -f2
+}
+
+function unblock_and_abort() {
+  echo "$1 Lifting the write block on $OLD_INDEX, which still serves every request." >&2
+  curl -s -X PUT "$ELASTICSEARCH_HOST/$OLD_INDEX/_settings" -H 'Content-Type: application/json' \
+    -d '{"index.blocks.write": null}'
+  exit 1
+}
+
+if curl -sf "$ELASTICSEARCH_HOST/_alias/$ALIAS" > /dev/null; then
+  echo "$ALIAS is already an alias, nothing to migrate." >&2
+  exit 0
+fi
+
+echo "Creating $NEW_INDEX..."
+if ! curl -f -X PUT "$ELASTICSEARCH_HOST/$NEW_INDEX" -H 'Content-Type: application/json' -d @music_id3_mapping.json; then
+  echo "Failed to create $NEW_INDEX. Aborting." >&2
+  exit 1
+fi
+
+# The first pass copies everything while the old index keeps taking writes.
+echo "Copying songs to $NEW_INDEX..."
+if ! reindex; then
+  echo "Reindexing failed; $OLD_INDEX is untouched, delete $NEW_INDEX and run again." >&2
+  exit 1
+fi
+
+# The second pass picks up what was approved during the first one, with no more writes coming in.
+echo "Blocking writes to $OLD_INDEX and catching up..."
+curl -sf -X PUT "$ELASTICSEARCH_HOST/$OLD_INDEX/_settings" -H 'Content-Type: application/json' \
+  -d '{"index.blocks.write": true}' > /dev/null || unblock_and_abort "Could not block writes."
+reindex > /dev/null || unblock_and_abort "Catching up failed."
+
+OLD_COUNT=$(count $OLD_INDEX)
+NEW_COUNT=$(count $NEW_INDEX)
+if [[ -z "$OLD_COUNT" || "$OLD_COUNT" != "$NEW_COUNT" ]]; then
+  unblock_and_abort "$OLD_INDEX has $OLD_COUNT songs but $NEW_INDEX has $NEW_COUNT."
+fi
+
+# One request, so searches go from the old index to the new one with nothing in between.
+echo "Pointing $ALIAS at $NEW_INDEX..."
+if ! curl -f -X POST "$ELASTICSEARCH_HOST/_aliases" -H 'Content-Type: application/json' -d '{
+  "actions": [
+    { "add": { "index": "'$NEW_INDEX'", "alias": "'$ALIAS'" } },
+    { "remove_index": { "index": "'$OLD_INDEX'" } }
+  ]
+}'; then
+  unblock_and_abort "Could not swap the index for the alias."
+fi
+
+echo "Migrated $NEW_COUNT songs; $ALIAS now points at $NEW_INDEX."
@@ -18,15 +18,18 @@ function run_data_generator_and_cleanup() {
   echo "Cleanup complete."
 }
 
-# DELETE mapping if it exists. We don't check for failure here,
-# as it will fail if the index doesn't exist, which is an acceptable outcome.
+# DELETE every version of the index, and the unversioned one from before there were versions.
+# We don't check for failure here, as it will fail if there is none, which is an acceptable outcome.
 echo "Deleting existing mapping (if any)..."
+curl -X DELETE "$ELASTICSEARCH_HOST/music_id3_v*"
 curl -X DELETE "$ELASTICSEARCH_HOST/music_id3"
 
-# PUT mapping via curl. If successful, then run the data generator.
+# PUT mapping via curl as the first version, behind the music_id3 alias the backend and the data
+# generator go through. If successful, then run the data generator.
 # We use the -f flag to ensure that the command fails on server errors.
 echo "Creating new mapping..."
-if curl -f -X PUT "$ELASTICSEARCH_HOST/music_id3" -H 'Content-Type: application/json' -d @music_id3_mapping.json; then
+if curl -f -X PUT "$ELASTICSEARCH_HOST/music_id3_v1" -H 'Content-Type: application/json' -d @music_id3_mapping.json \
+    && curl -f -X PUT "$ELASTICSEARCH_HOST/music_id3_v1/_alias/music_id3"; then
   echo "Mapping created successfully."
   run_data_generator_and_cleanup
 else
@@ -0,0 +1,81 @@
+#!/bin/zsh
+
+# Measures time-to-first-byte of audio streams while toxiproxy makes some MinIO connections slow,
+# then while it blackholes all of them, to check the R2 hedging and circuit breaker
+# (cloudflare.r2.resilience.*).
+#
+# Start the mini stack (casse-infra/docker-compose-mini.yaml, which includes toxiproxy) and the
+# backend against the proxy, with the local caches off so every request really reaches storage:
+#   export $(cat .env | xargs) && CLOUDFARE_R2_ENDPOINT=http://localhost:9010 \
+#     CLOUDFLARE_R2_CACHE_ENABLED=false CLOUDFLARE_R2_COALESCING_ENABLED=false \
+#     ./gradlew :casse-backend:bootRun
+# Run once as is and once with CLOUDFLARE_R2_RESILIENCE_HEDGE_ENABLED=false to compare the tails.
+#
+# Usage: ./scripts/r2-latency-test.sh <access-token> <stream-url> [requests] [slow-share] [slow-latency-ms]
+#   stream-url  e.g. "http://localhost:8080/audio/stream?email=a@b.com&title=Song&key=Song.mp3"
+#   slow-share  share of proxied connections that get the extra latency (toxiproxy toxicity)
+
+TOKEN=$1
+URL=$2
+REQUESTS=${3:-200}
+SLOW_SHARE=${4:-0.05}
+SLOW_LATENCY=${5:-2000}
+BASE_URL=${URL%%/audio/*}
+TOXIPROXY=http://localhost:8474
+
+if [[ -z "$TOKEN" || -z "$URL" ]]; then
+  echo "Usage: $0 <access-token> <stream-url> [requests] [slow-share] [slow-latency-ms]" >&2
+  exit 1
+fi
+
+function metric() {
+  curl -s -H "Authorization: Bearer $TOKEN" "$BASE_URL/actuator/metrics/$1${2:+?tag=$2}" \
+    | python3 -c 'import json,sys; d=json.load(sys.stdin); print(int(d["measurements"][0]["value"]) if "measurements" in d else "n/a")'
+}
+
+function add_toxic() {
+  curl -s -o /dev/null -X POST "$TOXIPROXY/proxies/minio/toxics" -d "$1"
+}
+
+function remove_toxics() {
+  for toxic in tail blackhole; do
+    curl -s -o /dev/null -X DELETE "$TOXIPROXY/proxies/minio/toxics/$toxic"
+  done
+}
+
+# Prints p50/p95/p99/max time-to-first-byte in ms, and how many requests got something other than 2xx.
+function measure() {
+  local samples=$(mktemp)
+  local failed=0
+  for (( i = 0; i < REQUESTS; i++ )); do
+    # only the first KB: the body itself is not what the policy is about
+    result=$(curl -s -o /dev/null -r 0-1023 -H "Authorization: Bearer $TOKEN" \
+      -w '%{http_code} %{time_starttransfer}' "$URL")
+    [[ ${result%% *} == 2* ]] || (( failed++ ))
+    echo "${result##* }" >> $samples
+  done
+  sort -n $samples | python3 -c '
+import sys
+v = [float(x) * 1000 for x in sys.stdin]
+p = lambda q: v[min(len(v) - 1, int(q * len(v)))]
+print(f"p50={p(0.5):.0f}ms p95={p(0.95):.0f}ms p99={p(0.99):.0f}ms max={v[-1]:.0f}ms", end=" ")'
+  echo "non-2xx=$failed"
+  rm -f $samples
+}
+
+trap remove_toxics EXIT
+remove_toxics
+
+echo "== baseline"
+measure
+
+echo "== ${SLOW_SHARE} of connections +${SLOW_LATENCY}ms"
+add_toxic "{\"name\":\"tail\",\"type\":\"latency\",\"stream\":\"downstream\",\"toxicity\":$SLOW_SHARE,\"attributes\":{\"latency\":$SLOW_LATENCY}}"
+measure
+echo "hedged reads: $(metric storage.reads.hedged) (won by the hedge: $(metric storage.reads.hedge.wins))"
+remove_toxics
+
+echo "== all connections blackholed (expect fast 503s once the breaker opens)"
+add_toxic '{"name":"blackhole","type":"timeout","stream":"downstream","toxicity":1,"attributes":{"timeout":0}}'
+measure
+echo "breaker open: $(metric resilience4j.circuitbreaker.state state:open)"